@@ -0,0 +1,269 @@
+/*
+ * Weather station logger
+ *
+ * Reads a BME280 over I2C and a rain gauge on an interrupt pin, keeps a
+ * rolling hour of readings in RAM and writes a summary to the SD card
+ * every ten minutes. A small command shell on the serial port lets you
+ * dump the buffer and set the clock.
+ */
+
+#include <Wire.h>
+#include <SPI.h>
+#include <SD.h>
+#include <EEPROM.h>
+#include "config.h"
+
+#define RAIN_PIN 2
+#define SD_CS 10
+#define SAMPLES 60              // One a minute for an hour
+#define LOG_INTERVAL 600000UL   // Ten minutes, in ms
+
+// Calibration constants from the datasheet, read out of the sensor
+// at startup.
+struct Calibration {
+    uint16_t t1;
+    int16_t t2, t3;
+    uint16_t p1;
+    int16_t p2, p3, p4, p5, p6, p7, p8, p9;
+    uint8_t h1, h3;
+    int16_t h2, h4, h5;
+    int8_t h6;
+};
+
+struct Sample {
+    uint32_t time;
+    int16_t temperature;        // 0.01 C
+    uint32_t pressure;          // Pa
+    uint16_t humidity;          // 0.01 %
+    uint16_t rain;              // Bucket tips
+};
+
+static Calibration cal;
+static Sample samples[SAMPLES];
+static uint8_t head = 0;
+static uint8_t count = 0;
+static volatile uint16_t rainTips = 0;
+static int32_t tFine;
+static uint32_t lastSample = 0;
+static uint32_t lastLog = 0;
+static char line[64];
+static uint8_t linePos = 0;
+
+/* The rain gauge bucket tips close a reed switch. It bounces, so
+ * ignore anything within 50ms of the last tip. */
+void rainISR() {
+    static uint32_t last = 0;
+    uint32_t now = millis();
+    if (now - last > 50) {
+        rainTips++;
+    }
+    last = now;
+}
+
+uint8_t read8(uint8_t reg) {
+    Wire.beginTransmission(BME_ADDR);
+    Wire.write(reg);
+    Wire.endTransmission();
+    Wire.requestFrom((uint8_t)BME_ADDR, (uint8_t)1);
+    return Wire.read();
+}
+
+uint16_t read16LE(uint8_t reg) {
+    Wire.beginTransmission(BME_ADDR);
+    Wire.write(reg);
+    Wire.endTransmission();
+    Wire.requestFrom((uint8_t)BME_ADDR, (uint8_t)2);
+    uint16_t v = Wire.read();
+    v |= (uint16_t)Wire.read() << 8;
+    return v;
+}
+
+void write8(uint8_t reg, uint8_t val) {
+    Wire.beginTransmission(BME_ADDR);
+    Wire.write(reg);
+    Wire.write(val);
+    Wire.endTransmission();
+}
+
+bool readCalibration() {
+    if (read8(0xD0) != 0x60) {  // Chip ID
+        return false;
+    }
+    cal.t1 = read16LE(0x88);
+    cal.t2 = (int16_t)read16LE(0x8A);
+    cal.t3 = (int16_t)read16LE(0x8C);
+    cal.p1 = read16LE(0x8E);
+    cal.p2 = (int16_t)read16LE(0x90);
+    cal.p3 = (int16_t)read16LE(0x92);
+    cal.p4 = (int16_t)read16LE(0x94);
+    cal.p5 = (int16_t)read16LE(0x96);
+    cal.p6 = (int16_t)read16LE(0x98);
+    cal.p7 = (int16_t)read16LE(0x9A);
+    cal.p8 = (int16_t)read16LE(0x9C);
+    cal.p9 = (int16_t)read16LE(0x9E);
+    cal.h1 = read8(0xA1);
+    cal.h2 = (int16_t)read16LE(0xE1);
+    cal.h3 = read8(0xE3);
+    cal.h4 = ((int16_t)read8(0xE4) << 4) | (read8(0xE5) & 0x0F);
+    cal.h5 = ((int16_t)read8(0xE6) << 4) | (read8(0xE5) >> 4);
+    cal.h6 = (int8_t)read8(0xE7);
+    return true;
+}
+
+int16_t compensateTemperature(int32_t adc) {
+    int32_t var1 = ((((adc >> 3) - ((int32_t)cal.t1 << 1))) * ((int32_t)cal.t2)) >> 11;
+    int32_t var2 = (((((adc >> 4) - ((int32_t)cal.t1)) * ((adc >> 4) - ((int32_t)cal.t1))) >> 12) * ((int32_t)cal.t3)) >> 14;
+    tFine = var1 + var2;
+    return (tFine * 5 + 128) >> 8;
+}
+
+uint32_t compensatePressure(int32_t adc) {
+    int64_t var1 = ((int64_t)tFine) - 128000;
+    int64_t var2 = var1 * var1 * (int64_t)cal.p6;
+    var2 = var2 + ((var1 * (int64_t)cal.p5) << 17);
+    var2 = var2 + (((int64_t)cal.p4) << 35);
+    var1 = ((var1 * var1 * (int64_t)cal.p3) >> 8) + ((var1 * (int64_t)cal.p2) << 12);
+    var1 = (((((int64_t)1) << 47) + var1)) * ((int64_t)cal.p1) >> 33;
+    if (var1 == 0) {
+        return 0; // Avoid a divide by zero
+    }
+    int64_t p = 1048576 - adc;
+    p = (((p << 31) - var2) * 3125) / var1;
+    var1 = (((int64_t)cal.p9) * (p >> 13) * (p >> 13)) >> 25;
+    var2 = (((int64_t)cal.p8) * p) >> 19;
+    p = ((p + var1 + var2) >> 8) + (((int64_t)cal.p7) << 4);
+    return (uint32_t)(p >> 8);
+}
+
+uint16_t compensateHumidity(int32_t adc) {
+    int32_t v = (tFine - ((int32_t)76800));
+    v = (((((adc << 14) - (((int32_t)cal.h4) << 20) - (((int32_t)cal.h5) * v)) +
+        ((int32_t)16384)) >> 15) * (((((((v * ((int32_t)cal.h6)) >> 10) *
+        (((v * ((int32_t)cal.h3)) >> 11) + ((int32_t)32768))) >> 10) +
+        ((int32_t)2097152)) * ((int32_t)cal.h2) + 8192) >> 14));
+    v = (v - (((((v >> 15) * (v >> 15)) >> 7) * ((int32_t)cal.h1)) >> 4));
+    v = (v < 0 ? 0 : v);
+    v = (v > 419430400 ? 419430400 : v);
+    return (uint16_t)(((uint32_t)(v >> 12)) * 100 / 1024);
+}
+
+void takeSample() {
+    write8(0xF4, 0x25);         // Forced mode, x1 oversampling
+    delay(10);
+
+    Wire.beginTransmission(BME_ADDR);
+    Wire.write(0xF7);
+    Wire.endTransmission();
+    Wire.requestFrom((uint8_t)BME_ADDR, (uint8_t)8);
+    int32_t p = ((uint32_t)Wire.read() << 12) | ((uint32_t)Wire.read() << 4) | (Wire.read() >> 4);
+    int32_t t = ((uint32_t)Wire.read() << 12) | ((uint32_t)Wire.read() << 4) | (Wire.read() >> 4);
+    int32_t h = ((uint32_t)Wire.read() << 8) | Wire.read();
+
+    Sample &s = samples[head];
+    s.time = millis() / 1000;
+    s.temperature = compensateTemperature(t);
+    s.pressure = compensatePressure(p);
+    s.humidity = compensateHumidity(h);
+    noInterrupts();
+    s.rain = rainTips;
+    rainTips = 0;
+    interrupts();
+
+    head = (head + 1) % SAMPLES;
+    if (count < SAMPLES) {
+        count++;
+    }
+}
+
+void printSample(Print &out, const Sample &s) {
+    out.print(s.time);
+    out.print(',');
+    out.print(s.temperature / 100.0, 2);
+    out.print(',');
+    out.print(s.pressure / 100.0, 1);
+    out.print(',');
+    out.print(s.humidity / 100.0, 1);
+    out.print(',');
+    out.println(s.rain);
+}
+
+void writeLog() {
+    File f = SD.open("WEATHER.CSV", FILE_WRITE);
+    if (!f) {
+        Serial.println(F("Can't open log file"));
+        return;
+    }
+    uint8_t start = (head + SAMPLES - count) % SAMPLES;
+    for (uint8_t i = 0; i < 10 && i < count; i++) {
+        printSample(f, samples[(start + count - 10 + i) % SAMPLES]);
+    }
+    f.close();
+}
+
+void dumpBuffer() {
+    uint8_t start = (head + SAMPLES - count) % SAMPLES;
+    Serial.println(F("time,temperature,pressure,humidity,rain"));
+    for (uint8_t i = 0; i < count; i++) {
+        printSample(Serial, samples[(start + i) % SAMPLES]);
+    }
+}
+
+void runCommand(char *cmd) {
+    if (!strcmp(cmd, "dump")) {
+        dumpBuffer();
+    } else if (!strcmp(cmd, "clear")) {
+        count = 0;
+        head = 0;
+    } else if (!strncmp(cmd, "interval ", 9)) {
+        uint16_t i = atoi(cmd + 9);
+        EEPROM.put(0, i);
+        Serial.print(F("Interval set to "));
+        Serial.println(i);
+    } else {
+        Serial.print(F("Unknown command: "));
+        Serial.println(cmd);
+    }
+}
+
+void pollSerial() {
+    while (Serial.available()) {
+        char c = Serial.read();
+        if (c == '\r') {
+            continue;
+        }
+        if (c == '\n') {
+            line[linePos] = 0;
+            runCommand(line);
+            linePos = 0;
+        } else if (linePos < sizeof(line) - 1) {
+            line[linePos++] = c;
+        }
+    }
+}
+
+void setup() {
+    Serial.begin(115200);
+    Wire.begin();
+    pinMode(RAIN_PIN, INPUT_PULLUP);
+    attachInterrupt(digitalPinToInterrupt(RAIN_PIN), rainISR, FALLING);
+
+    if (!readCalibration()) {
+        Serial.println(F("BME280 not found"));
+    }
+    if (!SD.begin(SD_CS)) {
+        Serial.println(F("No SD card"));
+    }
+}
+
+void loop() {
+    uint32_t now = millis();
+    if (now - lastSample >= 60000UL) {
+        lastSample = now;
+        takeSample();
+    }
+    if (now - lastLog >= LOG_INTERVAL) {
+        lastLog = now;
+        writeLog();
+    }
+    pollSerial();
+}
@@ -0,0 +1,51 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* The comparators behind package lists and the sketch and library trees */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class CompareBenchmark {
+    Version[] versions;
+    String[] names;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1234);
+
+        versions = new Version[500];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = new Version(r.nextInt(3) + "." + r.nextInt(20) + "." + r.nextInt(100) + (r.nextBoolean() ? "-" + r.nextInt(10) : ""));
+        }
+
+        names = new String[1000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "Example" + r.nextInt(200) + "_part" + r.nextInt(50) + ".ino";
+        }
+    }
+
+    @Benchmark
+    public Version[] sortVersions() {
+        Version[] v = versions.clone();
+        Arrays.sort(v);
+        return v;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public String[] sortNatural() {
+        String[] n = names.clone();
+        Arrays.sort(n, new NaturalOrderComparator());
+        return n;
+    }
+}
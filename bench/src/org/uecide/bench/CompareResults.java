@@ -0,0 +1,146 @@
+package org.uecide.bench;
+
+import java.io.*;
+import java.util.*;
+
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/* Compares two JMH JSON result files, benchmark by benchmark.
+ *
+ *   java org.uecide.bench.CompareResults baseline.json results.json [threshold%]
+ *
+ * A benchmark is flagged when it is more than the threshold (default 10%)
+ * worse than the baseline and the difference is bigger than the two
+ * scores' error margins put together, so a noisy run on its own doesn't
+ * fail. Anything flagged makes the exit code 1.
+ *
+ *   java org.uecide.bench.CompareResults --save results.json baseline.json
+ *
+ * copies a result file to a new baseline, leaving out the fields that only
+ * mean something on the machine it was run on (the JVM path and the
+ * arguments, which hold the fixtures path). */
+
+public class CompareResults {
+    static final String[] LOCAL_FIELDS = { "jvm", "jvmArgs" };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("--save")) {
+            save(new File(args[1]), new File(args[2]));
+            return;
+        }
+
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <results.json> [threshold%]");
+            System.err.println("       CompareResults --save <results.json> <baseline.json>");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        LinkedHashMap<String, JSONObject> base = load(new File(args[0]));
+        LinkedHashMap<String, JSONObject> now = load(new File(args[1]));
+
+        int worse = 0;
+        System.out.println(String.format("%-50s %22s %22s %8s  %s", "Benchmark", "Baseline", "Now", "Change", "Unit"));
+        for (String name : now.keySet()) {
+            JSONObject n = now.get(name);
+            JSONObject b = base.get(name);
+            double score = score(n);
+            double error = error(n);
+            String unit = unit(n);
+            if (b == null) {
+                System.out.println(String.format("%-50s %22s %12.3f +-%7.3f %8s  %s", name, "-", score, error, "new", unit));
+                continue;
+            }
+            double was = score(b);
+            double wasError = error(b);
+
+            // Throughput goes up when things get faster, times go down
+            boolean higherIsBetter = "thrpt".equals(n.get("mode"));
+            double change = (score - was) * 100 / was;
+            double loss = higherIsBetter ? -change : change;
+
+            // Only believe a change that the error margins can't explain
+            boolean significant = Math.abs(score - was) > error + wasError;
+
+            String flag = "";
+            if (loss > threshold) {
+                if (significant) {
+                    flag = "  SLOWER";
+                    worse++;
+                } else {
+                    flag = "  (within error)";
+                }
+            } else if (loss < -threshold && significant) {
+                flag = "  faster";
+            }
+            System.out.println(String.format("%-50s %12.3f +-%7.3f %12.3f +-%7.3f %+7.1f%%  %s%s", name, was, wasError, score, error, change, unit, flag));
+        }
+
+        if (worse > 0) {
+            System.out.println(worse + " benchmark(s) more than " + threshold + "% slower than the baseline");
+            System.exit(1);
+        }
+    }
+
+    static JSONArray parse(File f) throws IOException, ParseException {
+        Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+            return (JSONArray)new JSONParser().parse(r);
+        } finally {
+            r.close();
+        }
+    }
+
+    static LinkedHashMap<String, JSONObject> load(File f) throws IOException, ParseException {
+        LinkedHashMap<String, JSONObject> out = new LinkedHashMap<String, JSONObject>();
+        for (Object o : parse(f)) {
+            JSONObject res = (JSONObject)o;
+            String name = (String)res.get("benchmark");
+            out.put(name.substring(name.lastIndexOf(".", name.lastIndexOf(".") - 1) + 1), res);
+        }
+        return out;
+    }
+
+    // One result per line so a new baseline diffs cleanly
+    static void save(File results, File baseline) throws IOException, ParseException {
+        JSONArray list = parse(results);
+        Writer w = new OutputStreamWriter(new FileOutputStream(baseline), "UTF-8");
+        try {
+            w.write("[\n");
+            for (int i = 0; i < list.size(); i++) {
+                JSONObject res = (JSONObject)list.get(i);
+                for (String k : LOCAL_FIELDS) {
+                    res.remove(k);
+                }
+                w.write("    " + res.toJSONString());
+                w.write(i < list.size() - 1 ? ",\n" : "\n");
+            }
+            w.write("]\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    static JSONObject metric(JSONObject res) {
+        return (JSONObject)res.get("primaryMetric");
+    }
+
+    static double score(JSONObject res) {
+        return ((Number)metric(res).get("score")).doubleValue();
+    }
+
+    // JMH writes "NaN" when there were too few iterations to work one out
+    static double error(JSONObject res) {
+        Object e = metric(res).get("scoreError");
+        if (!(e instanceof Number)) {
+            return 0;
+        }
+        double d = ((Number)e).doubleValue();
+        return Double.isNaN(d) ? 0 : d;
+    }
+
+    static String unit(JSONObject res) {
+        return (String)metric(res).get("scoreUnit");
+    }
+}
@@ -0,0 +1,44 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Expanding the compile commands the way a build does for every file */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class ContextBenchmark {
+    Context ctx;
+    String compileCpp;
+    String compileLink;
+
+    @Setup
+    public void setup() {
+        ctx = Fixtures.createContext();
+        PropertyFile merged = ctx.getMerged();
+        compileCpp = merged.get("compile.cpp");
+        compileLink = merged.get("compile.link");
+    }
+
+    @Benchmark
+    public String parseStringCompile() {
+        return ctx.parseString(compileCpp);
+    }
+
+    @Benchmark
+    public String parseStringLink() {
+        return ctx.parseString(compileLink);
+    }
+
+    @Benchmark
+    public PropertyFile getMerged() {
+        return ctx.getMerged();
+    }
+}
@@ -0,0 +1,202 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+import org.uecide.Package;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Dependency resolution over a repository index the size of the real
+ * one: compilers, cores that need a compiler version, boards that need a
+ * core and one of two upload tools, and libraries that pull in each
+ * other, with a tenth of it installed.
+ *
+ * closure asks a graph that has already worked the answer out, so it
+ * times the memoized lookup; coldClosure gets a fresh graph every call and
+ * times the walk itself.
+ *
+ * legacyResolve is the breadth-first walk APT used before the graph, kept
+ * here for comparison. That walk looked entries up by name as they stood,
+ * so the version constraints and alternatives are cut off first - without
+ * that it finds nothing past the board and has nothing to do. */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class DependencyBenchmark {
+    static final int COMPILERS = 40;
+    static final int CORES = 120;
+    static final int BOARDS = 1500;
+    static final int LIBRARIES = 2000;
+
+    APT apt;
+    HashMap<String, Package> available = new HashMap<String, Package>();
+    HashMap<String, Package> installed = new HashMap<String, Package>();
+    DependencyGraph graph;
+    Package board;
+    ArrayList<Package> toolchain = new ArrayList<Package>();
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.init();
+        Random rng = new Random(1234);
+        File root = Fixtures.tempFolder("apt");
+        File db = new File(root, "apt/db");
+        db.mkdirs();
+
+        PrintWriter pw = new PrintWriter(new File(db, "packages.db"));
+        for (int i = 0; i < COMPILERS; i++) {
+            stanza(pw, root, String.format("compiler-%03d", i), "4." + (i % 10), null, null, i % 10 == 0);
+        }
+        stanza(pw, root, "avrdude", "6.3", null, null, true);
+        stanza(pw, root, "bossac", "1.7", null, null, false);
+        for (int i = 0; i < CORES; i++) {
+            stanza(pw, root, String.format("core-%03d", i), "1." + (i % 5),
+                String.format("compiler-%03d (>= 4.%d)", i % COMPILERS, (i % COMPILERS) % 10), null, i % 10 == 0);
+        }
+        for (int i = 0; i < BOARDS; i++) {
+            stanza(pw, root, String.format("board-%04d", i), "1.0",
+                String.format("core-%03d (>= 1.0), avrdude | bossac", i % CORES), null, i % 10 == 0);
+        }
+        for (int i = 0; i < LIBRARIES; i++) {
+            StringBuilder deps = new StringBuilder(String.format("core-%03d", i % CORES));
+            int n = i < 10 ? 0 : rng.nextInt(4);
+            for (int j = 0; j < n; j++) {
+                deps.append(String.format(", lib-%04d", rng.nextInt(i)));
+            }
+            String extra = null;
+            if (i % 50 == 0 && i > 0) {
+                extra = String.format("Replaces: lib-%04d (<< 2.0)\nConflicts: lib-%04d", i - 1, i - 2);
+            }
+            stanza(pw, root, String.format("lib-%04d", i), "1." + (i % 3), deps.toString(), extra, i % 10 == 0);
+        }
+        pw.close();
+
+        apt = new APT(root);
+        for (Package p : apt.getPackages()) {
+            available.put(p.getName(), p);
+        }
+        for (Package p : apt.getInstalledPackages()) {
+            installed.put(p.getName(), p);
+        }
+        graph = apt.getGraph();
+        board = apt.getPackage("board-0777");
+
+        toolchain.add(apt.getPackage("compiler-007"));
+        toolchain.add(apt.getPackage("core-007"));
+        for (int i = 0; i < 20; i++) {
+            toolchain.add(apt.getPackage(String.format("lib-%04d", 1900 + i * 5)));
+        }
+    }
+
+    void stanza(PrintWriter pw, File root, String name, String version, String depends, String extra, boolean inst) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Package: " + name + "\n");
+        sb.append("Version: " + version + "\n");
+        sb.append("Architecture: all\n");
+        sb.append("Section: " + name.substring(0, name.indexOf("-") > 0 ? name.indexOf("-") : name.length()) + "\n");
+        sb.append("Description: " + name + "\n");
+        if (depends != null) {
+            sb.append("Depends: " + depends + "\n");
+        }
+        if (extra != null) {
+            sb.append(extra + "\n");
+        }
+        pw.println(sb);
+        if (inst) {
+            File pd = new File(root, "apt/db/packages/" + name);
+            pd.mkdirs();
+            PrintWriter cw = new PrintWriter(new File(pd, "control"));
+            cw.println(sb);
+            cw.close();
+        }
+    }
+
+    @Benchmark
+    public DependencyGraph buildGraph() {
+        return new DependencyGraph(available, installed);
+    }
+
+    @Benchmark
+    public Package[] closure() {
+        return graph.closure(board);
+    }
+
+    @Benchmark
+    public Package[] coldClosure(ColdGraph cold) {
+        return cold.graph.closure(board);
+    }
+
+    @State(Scope.Thread)
+    public static class ColdGraph {
+        DependencyGraph graph;
+
+        @Setup(Level.Invocation)
+        public void setup(DependencyBenchmark b) {
+            graph = new DependencyGraph(b.available, b.installed);
+        }
+    }
+
+    @Benchmark
+    public DependencyGraph.Plan planToolchain() {
+        return graph.plan(toolchain);
+    }
+
+    @Benchmark
+    public Package[] dependants() {
+        return apt.getDependants(apt.getPackage("core-000"));
+    }
+
+    @Benchmark
+    public Package[] legacyResolve() {
+        ArrayDeque<String> depList = new ArrayDeque<String>();
+        HashMap<String, Package> pkgList = new HashMap<String, Package>();
+        String[] deps = names(board.getDependencies(true));
+        if (deps != null) {
+            for (String dep : deps) {
+                depList.add(dep);
+            }
+            String adep;
+            while ((adep = depList.poll()) != null) {
+                Package foundPkg = available.get(adep);
+                if (foundPkg != null && pkgList.get(adep) == null) {
+                    pkgList.put(adep, foundPkg);
+                    String[] subDeps = names(foundPkg.getDependencies(true));
+                    if (subDeps != null) {
+                        for (String dep : subDeps) {
+                            depList.add(dep);
+                        }
+                    }
+                }
+            }
+        }
+        return pkgList.values().toArray(new Package[0]);
+    }
+
+    // "core-001 (>= 1.0)" to "core-001", and "avrdude | bossac" to "avrdude"
+    static String[] names(String[] deps) {
+        if (deps == null) {
+            return null;
+        }
+        String[] out = new String[deps.length];
+        for (int i = 0; i < deps.length; i++) {
+            String d = deps[i];
+            int cut = d.indexOf("|");
+            if (cut >= 0) {
+                d = d.substring(0, cut);
+            }
+            cut = d.indexOf("(");
+            if (cut >= 0) {
+                d = d.substring(0, cut);
+            }
+            out[i] = d.trim();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,100 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+import org.uecide.Compiler;
+
+import java.io.*;
+import java.util.*;
+
+/* The checked-in fixture data the benchmarks run against, and enough of
+ * Base's global state to let the core classes run outside the IDE.
+ *
+ * The fixtures folder is taken from the bench.fixtures property, which
+ * "ant run" sets, or ./fixtures otherwise. */
+
+public class Fixtures {
+    static boolean initialized = false;
+
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        Base.preferences = new PropertyFile();
+        Base.preferencesTree = new PropertyFile();
+        Base.overrideSettingsFolder = tempFolder("data").getAbsolutePath();
+        if (Base.cores == null) {
+            Base.cores = new TreeMap<String, Core>();
+        }
+        initialized = true;
+    }
+
+    public static File getFolder() {
+        return new File(System.getProperty("bench.fixtures", "fixtures"));
+    }
+
+    public static File getFile(String name) {
+        return new File(getFolder(), name);
+    }
+
+    public static String read(String name) {
+        return Base.getFileAsString(getFile(name));
+    }
+
+    // A context set up for the fixture board, as it is part way through
+    // compiling a file.
+    public static Context createContext() {
+        init();
+        Context ctx = new Context();
+        ctx.setCompiler(new Compiler(getFile("compiler")));
+        ctx.setCore(new Core(getFile("core")));
+        ctx.setBoard(new Board(getFile("board")));
+        ctx.set("build.path", "/tmp/build-bench");
+        ctx.set("cache.root", "/tmp/cache-bench");
+        ctx.set("filename", "Weather");
+        ctx.set("includes", "-I/tmp/build-bench::-I/opt/arduino/cores/arduino::-I/opt/arduino/variants/standard::-I/opt/arduino/libraries/Wire::-I/opt/arduino/libraries/SPI");
+        ctx.set("option.flags", "-Os::-ffunction-sections::-fdata-sections");
+        ctx.set("option.cflags", "");
+        ctx.set("option.cppflags", "");
+        ctx.set("option.ldflags", "-Wl,--gc-sections");
+        ctx.set("source.name", "/tmp/build-bench/Weather.cpp");
+        ctx.set("object.name", "/tmp/build-bench/Weather.o");
+        return ctx;
+    }
+
+    static final ArrayList<File> tempFolders = new ArrayList<File>();
+
+    // A scratch folder that is removed, contents and all, when the fork
+    // exits. deleteOnExit() can't do that as it only removes empty folders.
+    public static synchronized File tempFolder(String name) {
+        try {
+            File f = File.createTempFile("bench-" + name, "");
+            f.delete();
+            f.mkdirs();
+            if (tempFolders.size() == 0) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        synchronized (Fixtures.class) {
+                            for (File t : tempFolders) {
+                                delete(t);
+                            }
+                        }
+                    }
+                });
+            }
+            tempFolders.add(f);
+            return f;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File sub : list) {
+                delete(sub);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,43 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Reading and writing a 16KB Intel HEX image */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class HexFileBenchmark {
+    File in;
+    File out;
+    HexFile loaded;
+
+    @Setup
+    public void setup() {
+        Fixtures.init();
+        in = Fixtures.getFile("program.hex");
+        out = new File(Fixtures.tempFolder("hex"), "out.hex");
+        out.deleteOnExit();
+        loaded = new HexFile(in);
+    }
+
+    @Benchmark
+    public HexFile loadFile() {
+        HexFile h = new HexFile();
+        h.loadFile(in);
+        return h;
+    }
+
+    @Benchmark
+    public boolean saveFile() {
+        return loaded.saveFile(out);
+    }
+}
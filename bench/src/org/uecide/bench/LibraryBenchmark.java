@@ -0,0 +1,66 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Finding the library for an #include among 1000 installed ones.
+ *
+ * Each synthetic library has its main header plus two more, so the
+ * lookups cover a name match, a match on one of the other headers, and
+ * a header nothing provides (what every system header costs). */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class LibraryBenchmark {
+    static final int LIBRARIES = 1000;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.init();
+        File root = Fixtures.tempFolder("libraries");
+        for (int i = 0; i < LIBRARIES; i++) {
+            String name = String.format("Lib%04d", i);
+            File dir = new File(root, name);
+            dir.mkdirs();
+            header(new File(dir, name + ".h"));
+            header(new File(dir, name + "_config.h"));
+            File util = new File(dir, "utility");
+            util.mkdirs();
+            header(new File(util, name + "_util.h"));
+        }
+        Library.libraryList = new TreeMap<String, ArrayList<Library>>();
+        Library.loadLibrariesFromFolder(root, "contributed");
+        Library.rescanAll();
+    }
+
+    static void header(File f) throws IOException {
+        PrintWriter pw = new PrintWriter(f);
+        pw.println("#pragma once");
+        pw.close();
+        f.deleteOnExit();
+    }
+
+    @Benchmark
+    public Library byName() {
+        return Library.getLibraryByInclude("Lib0500.h", "arduino");
+    }
+
+    @Benchmark
+    public Library byOtherHeader() {
+        return Library.getLibraryByInclude("Lib0999_config.h", "arduino");
+    }
+
+    @Benchmark
+    public Library missing() {
+        return Library.getLibraryByInclude("avr/pgmspace.h", "arduino");
+    }
+}
@@ -0,0 +1,54 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Loading, slicing and merging the board, core and compiler properties */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class PropertyFileBenchmark {
+    String text;
+    PropertyFile compiler;
+    PropertyFile core;
+    PropertyFile board;
+
+    @Setup
+    public void setup() {
+        Fixtures.init();
+        text = Fixtures.read("compiler/compiler.txt") + Fixtures.read("core/core.txt") + Fixtures.read("board/board.txt");
+        compiler = new PropertyFile(Fixtures.getFile("compiler/compiler.txt"));
+        core = new PropertyFile(Fixtures.getFile("core/core.txt"));
+        board = new PropertyFile(Fixtures.getFile("board/board.txt"));
+    }
+
+    @Benchmark
+    public TreeMap<String, String> loadProperties() {
+        TreeMap<String, String> data = new TreeMap<String, String>();
+        new PropertyFile().loadProperties(data, new BufferedReader(new StringReader(text)));
+        return data;
+    }
+
+    @Benchmark
+    public PropertyFile getChildren() {
+        return compiler.getChildren("options.optimize");
+    }
+
+    @Benchmark
+    public PropertyFile mergeData() {
+        PropertyFile pf = new PropertyFile();
+        pf.mergeData(compiler);
+        pf.mergeData(core);
+        pf.mergeData(board);
+        return pf;
+    }
+}
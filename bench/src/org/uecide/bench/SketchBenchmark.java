@@ -0,0 +1,38 @@
+package org.uecide.bench;
+
+import org.uecide.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/* The source scanning done on every build and on every edit */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(3)
+public class SketchBenchmark {
+    Sketch sketch;
+    String source;
+
+    @Setup
+    public void setup() {
+        Fixtures.init();
+        sketch = new Sketch();
+        source = Fixtures.read("Weather.ino");
+    }
+
+    @Benchmark
+    public String stripComments() {
+        return sketch.stripComments(source);
+    }
+
+    @Benchmark
+    public HashMap<Integer, String> findFunctions() {
+        return sketch.findFunctions(source);
+    }
+}
@@ -20,7 +20,7 @@ import say.swing.*;
 import jssc.*;
 
 
-public class Grapher extends Plugin implements SerialPortEventListener
+public class Grapher extends Plugin implements SerialPortEventListener,CommsListener
 {
     public static HashMap<String, String> pluginInfo = null;
     public static void setInfo(HashMap<String, String>info) { pluginInfo = info; }
@@ -32,7 +32,10 @@ public class Grapher extends Plugin implements SerialPortEventListener
     JGrapher graph;
     SerialPort port;
     JComboBox baudRates;
+    JComboBox zoomLevels;
     JScrollBar scrollbackBar;
+    javax.swing.Timer scrollbackTimer;
+    boolean updatingScrollback = false;
 
     JButton playPauseButton;
     ImageIcon playIcon;
@@ -42,6 +45,7 @@ public class Grapher extends Plugin implements SerialPortEventListener
     JToolBar toolbar;
 
     static JTextField fontSizeField;
+    static JTextField historyField;
     JPanel line;
     JPanel panel;
     JPanel graphPanel;
@@ -50,10 +54,18 @@ public class Grapher extends Plugin implements SerialPortEventListener
 
     boolean ready = false;
 
+    CaptureReplayer replayer = null;
+
     public void openMainWindow()
     {
         serialPort = editor.getSerialPort();
         win = new JFrame(Translate.t("Grapher"));
+        replayer = new CaptureReplayer(win, editor, this) {
+            public void beforeReplay() {
+                command = 0;
+                data.setLength(0);
+            }
+        };
         win.setResizable(false);
         JPanel panel = new JPanel();
         win.add(panel);
@@ -85,6 +97,15 @@ public class Grapher extends Plugin implements SerialPortEventListener
         });
         playPauseState = false;
         toolbar.add(playPauseButton);
+
+        JButton replayButton = new JButton(Base.loadIconFromResource("toolbar/open.png"));
+        replayButton.setToolTipText(Translate.t("Replay Capture"));
+        replayButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                startReplay();
+            }
+        });
+        toolbar.add(replayButton);
         panel.add(toolbar, BorderLayout.NORTH);
 
         graph = new JGrapher();
@@ -94,11 +115,29 @@ public class Grapher extends Plugin implements SerialPortEventListener
             Base.preferences.set("grapher.font", "Monospaced,plain,12");
         }
         graph.setFont(f);
+        graph.setHistorySize(getHistoryPreference());
 
         graphPanel = new JPanel();
         graphPanel.setLayout(new BorderLayout());
         graphPanel.add(graph, BorderLayout.CENTER);
+
+        scrollbackBar = new JScrollBar(JScrollBar.HORIZONTAL);
+        scrollbackBar.addAdjustmentListener(new AdjustmentListener() {
+            public void adjustmentValueChanged(AdjustmentEvent e) {
+                if (!updatingScrollback) {
+                    scrollbackMoved();
+                }
+            }
+        });
+        graphPanel.add(scrollbackBar, BorderLayout.SOUTH);
         panel.add(graphPanel, BorderLayout.CENTER);
+
+        scrollbackTimer = new javax.swing.Timer(250, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateScrollback();
+            }
+        });
+        scrollbackTimer.start();
         
         JPanel line = new JPanel();
         line.setLayout(new BoxLayout(line, BoxLayout.LINE_AXIS));
@@ -139,6 +178,16 @@ public class Grapher extends Plugin implements SerialPortEventListener
 
         line.add(baudRates);
 
+        line.add(new JLabel(" " + Translate.t("Samples per pixel") + ": "));
+        zoomLevels = new JComboBox(new String[] { "1", "10", "100", "1000", "10000" });
+        zoomLevels.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                graph.setSamplesPerColumn(Integer.parseInt((String)zoomLevels.getSelectedItem()));
+                updateScrollback();
+            }
+        });
+        line.add(zoomLevels);
+
         panel.add(line, BorderLayout.SOUTH);
 
         win.pack();
@@ -179,6 +228,10 @@ public class Grapher extends Plugin implements SerialPortEventListener
     public void close()
     {
         ready = false;
+        stopReplay();
+        if (scrollbackTimer != null) {
+            scrollbackTimer.stop();
+        }
         try {
             if (port != null) {
                 port.removeEventListener();
@@ -205,7 +258,7 @@ public class Grapher extends Plugin implements SerialPortEventListener
     }
 
     char command = 0;
-    String data = "";
+    StringBuilder data = new StringBuilder();
 
     public void executeCommand(char cmd, String dta) {
         String params[] = dta.split(":");
@@ -331,6 +384,42 @@ public class Grapher extends Plugin implements SerialPortEventListener
         }
     }
 
+    // The scroll bar works in pixel columns at the current zoom level. The
+    // right hand end of the bar follows the live data.
+    void updateScrollback() {
+        long oldest = graph.getOldestSample();
+        long count = graph.getSampleCount();
+        int spc = graph.getSamplesPerColumn();
+        int max = (int)Math.min(Integer.MAX_VALUE, (count - oldest + spc - 1) / spc);
+        int extent = Math.min(graph.getColumns(), max);
+        int value = max - extent;
+        long end = graph.getViewEnd();
+        if (end >= 0) {
+            value = (int)Math.max(0, Math.min(max - extent, (end - oldest) / spc - extent));
+        }
+        updatingScrollback = true;
+        scrollbackBar.setValues(value, extent, 0, max);
+        updatingScrollback = false;
+    }
+
+    void scrollbackMoved() {
+        int value = scrollbackBar.getValue();
+        int extent = scrollbackBar.getVisibleAmount();
+        if (value + extent >= scrollbackBar.getMaximum()) {
+            graph.setViewEnd(-1);
+        } else {
+            graph.setViewEnd(graph.getOldestSample() + (long)(value + extent) * graph.getSamplesPerColumn());
+        }
+    }
+
+    static int getHistoryPreference() {
+        try {
+            return Integer.parseInt(Preferences.get("grapher.history"));
+        } catch (Exception e) {
+            return 1 << 20;
+        }
+    }
+
     public void resizeWindow() {
         win.pack();
     }
@@ -408,10 +497,28 @@ public class Grapher extends Plugin implements SerialPortEventListener
         });
 
         fontSizeField.setText(Base.preferences.get("grapher.font"));
+
+        label = new JLabel(Base.i18n.string("prefs.grapher.history") + ": ");
+        c.gridx = 0;
+        c.gridy = 2;
+        p.add(label, c);
+
+        historyField = new JTextField(10);
+        historyField.setText(Integer.toString(getHistoryPreference()));
+        c.gridx = 0;
+        c.gridy = 3;
+        p.add(historyField, c);
     }
 
     public static void savePreferences() {
         Base.preferences.set("grapher.font", fontSizeField.getText());
+        int h = 1 << 20;
+        try {
+            h = Integer.parseInt(historyField.getText().trim());
+        } catch (Exception e) {
+            h = 1 << 20;
+        }
+        Base.preferences.set("grapher.history", Integer.toString(h));
     }
 
     public void releasePort(String portName) {
@@ -446,38 +553,59 @@ public class Grapher extends Plugin implements SerialPortEventListener
                 if (bytes == null) {
                     return;
                 }
-                for (byte c : bytes) {
-                    if (command == 0) {
-                        switch(c) {
-                            case 'A':
-                            case 'V':
-                            case 'R':
-                            case 'S':
-                            case 'M':
-                            case 'B':
-                            case 'F':
-                            case 'Y':
-                                command = (char)c;
-                                break;
-                        }
-                    } else {
-                        if(c == '\n' || c == '\r') {
-                            char cmd = command;
-                            command = 0;
-                            String dta = data;
-                            data = "";
-                            executeCommand(cmd, dta);
-                        } else {
-                            data += Character.toString((char)c);
-                        }
-                    }
-                }
+                processBytes(bytes);
             } catch (Exception ex) {
                 Base.error(ex);
             }
         }
     }
 
+    public void commsDataReceived(byte[] bytes) {
+        processBytes(bytes);
+    }
+
+    public void commsEventReceived(CommsEvent event) {
+    }
+
+    synchronized void processBytes(byte[] bytes) {
+        for (byte c : bytes) {
+            if (command == 0) {
+                switch(c) {
+                    case 'A':
+                    case 'V':
+                    case 'R':
+                    case 'S':
+                    case 'M':
+                    case 'B':
+                    case 'F':
+                    case 'Y':
+                        command = (char)c;
+                        break;
+                }
+            } else {
+                if(c == '\n' || c == '\r') {
+                    char cmd = command;
+                    command = 0;
+                    String dta = data.toString();
+                    data.setLength(0);
+                    executeCommand(cmd, dta);
+                } else {
+                    data.append((char)c);
+                }
+            }
+        }
+    }
+
+    void startReplay() {
+        replayer.start();
+    }
+
+    void stopReplay() {
+        if (replayer != null) {
+            replayer.stop();
+        }
+    }
+
     public ImageIcon getFileIconOverlay(File f) {
         return null;
     }
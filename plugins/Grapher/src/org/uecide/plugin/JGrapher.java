@@ -37,55 +37,145 @@ public class JGrapher extends JComponent
     int rightMargin = 10;
     int bottomMargin = 60;
 
+    // Width of the plot area in pixel columns
     int numPoints = 0;
     
     ArrayList<DataSeries> series = new ArrayList<DataSeries>();
-    ArrayList<Date> dates = new ArrayList<Date>();
-    int tickCycle = 0;
+
+    // All series share one sample clock. Samples are addressed by their
+    // absolute index; only the most recent historySize are retained.
+    int historySize;
+    int historyMask;
+    long sampleCount = 0;
+    long[] sampleTimes;
+
+    // Each level of the decimation pyramid summarises blocks four times
+    // the size of the level below it.
+    final static int LEVEL_SHIFT = 2;
+
+    // Zoom and scroll position. A viewEnd of -1 follows the live data.
+    int samplesPerColumn = 1;
+    long viewEnd = -1;
+
+    // The plot is drawn incrementally into a back buffer which is reused
+    // between repaints. Axes and the legend are drawn over the top.
+    BufferedImage backBuffer = null;
+    Graphics2D backGraphics = null;
+    boolean fullRedraw = true;
+    long renderedColumn = -1;
+    long renderedCount = -1;
+
+    SimpleDateFormat tickFormat = new SimpleDateFormat("HH:mm:ss");
 
     public class DataSeries {
         String name;
         Color color;
-        int numPoints;
         int lineWidth;
-        ArrayList<Float> values;
+        float[] values;
+        float[][] minimums;
+        float[][] maximums;
+        float last = 0;
 
-        public DataSeries(String name, Color color, int numPoints, int width) {
+        public DataSeries(String name, Color color, int width) {
             this.name = name;
             this.color = color;
             this.lineWidth = width;
-            this.numPoints = numPoints;
-            this.values = new ArrayList<Float>();
-            for (int i = 0; i < numPoints; i++) {
-                values.add(0.0f);
+            this.values = new float[historySize];
+
+            int levels = 0;
+            while ((historySize >> ((levels + 1) * LEVEL_SHIFT)) >= 16) {
+                levels++;
+            }
+            minimums = new float[levels][];
+            maximums = new float[levels][];
+            for (int l = 0; l < levels; l++) {
+                minimums[l] = new float[historySize >> ((l + 1) * LEVEL_SHIFT)];
+                maximums[l] = new float[historySize >> ((l + 1) * LEVEL_SHIFT)];
+            }
+        }
+
+        void set(long index, float value) {
+            values[(int)(index & historyMask)] = value;
+            last = value;
+            for (int l = 0; l < minimums.length; l++) {
+                int shift = (l + 1) * LEVEL_SHIFT;
+                int slot = (int)((index >> shift) & (minimums[l].length - 1));
+                if ((index & ((1L << shift) - 1)) == 0) {
+                    minimums[l][slot] = value;
+                    maximums[l][slot] = value;
+                } else {
+                    if (value < minimums[l][slot]) {
+                        minimums[l][slot] = value;
+                    }
+                    if (value > maximums[l][slot]) {
+                        maximums[l][slot] = value;
+                    }
+                }
             }
         }
 
         public void add(float value) {
-            values.add(value);
-            while (values.size() > numPoints) {
-                values.remove(0);
+            set(sampleCount, value);
+        }
+
+        public float get(long index) {
+            return values[(int)(index & historyMask)];
+        }
+
+        public float getLast() {
+            return last;
+        }
+
+        // Find the minimum and maximum over the samples [from, to) using
+        // the largest aligned pyramid blocks that fit inside the range.
+        public void getRange(long from, long to, float[] out) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            long i = from;
+            while (i < to) {
+                int level = minimums.length - 1;
+                while (level >= 0) {
+                    int shift = (level + 1) * LEVEL_SHIFT;
+                    long size = 1L << shift;
+                    if (((i & (size - 1)) == 0) && (i + size <= to)) {
+                        int slot = (int)((i >> shift) & (minimums[level].length - 1));
+                        if (minimums[level][slot] < min) {
+                            min = minimums[level][slot];
+                        }
+                        if (maximums[level][slot] > max) {
+                            max = maximums[level][slot];
+                        }
+                        i += size;
+                        break;
+                    }
+                    level--;
+                }
+                if (level < 0) {
+                    float v = get(i);
+                    if (v < min) {
+                        min = v;
+                    }
+                    if (v > max) {
+                        max = v;
+                    }
+                    i++;
+                }
             }
+            out[0] = min;
+            out[1] = max;
         }
 
         public float[] getValues() {
             float o[] = new float[numPoints];
+            long first = sampleCount - numPoints;
             for (int i = 0; i < numPoints; i++) {
-                o[i] = values.get(i);
+                if (first + i >= getOldestSample()) {
+                    o[i] = get(first + i);
+                }
             }
             return o;
         }
 
-        public void resize(int numPoints) {
-            this.numPoints = numPoints;
-            while (values.size() > numPoints) {
-                values.remove(0);
-            }
-            while (values.size() < numPoints) {
-                values.add(0, 0.0f);
-            }
-        }
-
         public Color getColor() {
             return color;
         }
@@ -101,87 +191,293 @@ public class JGrapher extends JComponent
 
     public JGrapher()
     {
+        setHistorySize(1 << 20);
         setScreenSize(new Dimension(640, 480));
     }
 
+    // Set how many samples of history are kept. This is rounded up to a
+    // power of two and clears any existing data.
+    public synchronized void setHistorySize(int size) {
+        int s = 1024;
+        while (s < size && s < (1 << 30)) {
+            s <<= 1;
+        }
+        historySize = s;
+        historyMask = s - 1;
+        sampleTimes = new long[historySize];
+        sampleCount = 0;
+        ArrayList<DataSeries> oldSeries = series;
+        series = new ArrayList<DataSeries>();
+        for (DataSeries ds : oldSeries) {
+            series.add(new DataSeries(ds.getName(), ds.getColor(), ds.getWidth()));
+        }
+        invalidateGraph();
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized long getOldestSample() {
+        return Math.max(0, sampleCount - historySize);
+    }
+
+    public synchronized void setSamplesPerColumn(int spc) {
+        samplesPerColumn = Math.max(1, spc);
+        invalidateGraph();
+    }
+
+    public int getSamplesPerColumn() {
+        return samplesPerColumn;
+    }
+
+    // Set the sample at the right hand edge of the graph, or -1 to follow
+    // incoming data.
+    public synchronized void setViewEnd(long end) {
+        viewEnd = end;
+        invalidateGraph();
+    }
+
+    public long getViewEnd() {
+        return viewEnd;
+    }
+
+    public int getColumns() {
+        return numPoints;
+    }
+
+    synchronized void invalidateGraph() {
+        fullRedraw = true;
+        repaint();
+    }
+
     public void paintComponent(Graphics screen) 
     {
-        BufferedImage pic = renderGraph();
-        screen.drawImage(pic, 0, 0, null);
+        synchronized (this) {
+            updateBackBuffer();
+            screen.drawImage(backBuffer, 0, 0, null);
+            drawOverlay((Graphics2D)screen);
+        }
     }
 
-    public BufferedImage renderGraph()
+    public synchronized BufferedImage renderGraph()
     {
-        BufferedImage offscreen = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g = offscreen.createGraphics();
-        g.setRenderingHint(
-            RenderingHints.KEY_ANTIALIASING,
-            RenderingHints.VALUE_ANTIALIAS_ON);
-        g.setRenderingHint(
-            RenderingHints.KEY_TEXT_ANTIALIASING,
-            RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
-        g.setStroke(new BasicStroke(1));
-        g.setColor(backgroundColor);
-        g.fillRect(0, 0, screenSize.width, screenSize.height);
-        g.setColor(axisColor);
-
-        g.drawLine(leftMargin, topMargin, leftMargin, screenSize.height - bottomMargin);
-        g.drawLine(leftMargin, screenSize.height - bottomMargin, screenSize.width - rightMargin, screenSize.height - bottomMargin);
+        fullRedraw = true;
+        updateBackBuffer();
+        BufferedImage pic = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = pic.createGraphics();
+        g.drawImage(backBuffer, 0, 0, null);
+        drawOverlay(g);
+        g.dispose();
+        return pic;
+    }
 
+    int plotBottom() {
+        return screenSize.height - bottomMargin;
+    }
 
+    float yScale() {
         float diff = axisY1Max - axisY1Min;
         float adiff = screenSize.height - topMargin - bottomMargin;
-        float scale = adiff / diff;
+        return adiff / diff;
+    }
+
+    int valueToY(float value, float scale) {
+        return plotBottom() - (int)((value - axisY1Min) * scale);
+    }
+
+    // Absolute column index shown at the right hand edge of the plot
+    long lastColumn() {
+        long end = viewEnd < 0 ? sampleCount : Math.min(viewEnd, sampleCount);
+        if (end <= 0) {
+            return -1;
+        }
+        return (end - 1) / samplesPerColumn;
+    }
+
+    void updateBackBuffer() {
+        if (backBuffer == null || backBuffer.getWidth() != screenSize.width || backBuffer.getHeight() != screenSize.height) {
+            if (backGraphics != null) {
+                backGraphics.dispose();
+            }
+            backBuffer = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
+            backGraphics = backBuffer.createGraphics();
+            backGraphics.setRenderingHint(
+                RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+            backGraphics.setRenderingHint(
+                RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            fullRedraw = true;
+        }
 
+        Graphics2D g = backGraphics;
         g.setFont(font);
+
+        long lastCol = lastColumn();
+        long shift = lastCol - renderedColumn;
+
+        if (fullRedraw || renderedColumn < 0 || shift < 0 || shift >= numPoints) {
+            g.setStroke(new BasicStroke(1));
+            g.setColor(backgroundColor);
+            g.fillRect(0, 0, screenSize.width, screenSize.height);
+            drawYAxis(g);
+            drawColumns(g, 0, numPoints - 1, lastCol);
+            fullRedraw = false;
+        } else if (shift > 0 || (viewEnd < 0 && renderedCount != sampleCount)) {
+            // Scroll what is already drawn and only draw the new columns,
+            // plus the previously partial column and its neighbour so the
+            // lines join up.
+            int s = (int)shift;
+            if (s > 0) {
+                g.copyArea(leftMargin + s, topMargin, numPoints - s, plotBottom() - topMargin, -s, 0);
+            }
+            drawColumns(g, Math.max(0, numPoints - 1 - s), numPoints - 1, lastCol);
+        }
+        drawXAxis(g, lastCol);
+
+        renderedColumn = lastCol;
+        renderedCount = sampleCount;
+    }
+
+    void drawYAxis(Graphics2D g) {
+        float diff = axisY1Max - axisY1Min;
+        float scale = yScale();
         FontMetrics fm = g.getFontMetrics();
         int fontShift = fm.getAscent()/2;
 
+        g.setColor(axisColor);
         for (float i = 0; i <= diff; i += axisY1Step) {
-            int pos = (int) ((float) i * scale);
-            for (int j = leftMargin; j < screenSize.width - rightMargin; j+=2) {
-                g.drawLine(j, screenSize.height - bottomMargin - pos, j, screenSize.height - bottomMargin - pos); 
-            }
-            g.drawLine(leftMargin - 5, screenSize.height - bottomMargin - pos, leftMargin, screenSize.height - bottomMargin - pos);
-            g.drawString(Float.toString(axisY1Min + i), 0, screenSize.height-bottomMargin-pos+fontShift);
+            int pos = (int) (i * scale);
+            g.drawLine(leftMargin - 5, plotBottom() - pos, leftMargin, plotBottom() - pos);
+            g.drawString(Float.toString(axisY1Min + i), 0, plotBottom()-pos+fontShift);
         }
+    }
 
-        for (int x=0; x<numPoints; x++) {
-            if (x % 20 == 19 - tickCycle) {
-                g.drawLine(leftMargin + x, screenSize.height - bottomMargin, leftMargin + x, screenSize.height - bottomMargin + 5);
+    void drawXAxis(Graphics2D g, long lastCol) {
+        FontMetrics fm = g.getFontMetrics();
+        int fontShift = fm.getAscent()/2;
+
+        g.setStroke(new BasicStroke(1));
+        g.setColor(backgroundColor);
+        g.fillRect(leftMargin, plotBottom() + 1, screenSize.width - leftMargin, bottomMargin);
+        g.setColor(axisColor);
+
+        long oldest = getOldestSample();
+        for (int x = 0; x < numPoints; x++) {
+            long col = lastCol - (numPoints - 1 - x);
+            long sample = col * samplesPerColumn;
+            if (col < 0 || sample < oldest || sample >= sampleCount) {
+                continue;
+            }
+            if (col % 20 == 0) {
+                g.drawLine(leftMargin + x, plotBottom(), leftMargin + x, plotBottom() + 5);
                 AffineTransform orig = g.getTransform();
                 g.rotate(Math.toRadians(-90),  leftMargin + x + fontShift, screenSize.height);
-                SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
-                String out = fmt.format(dates.get(x));
+                String out = tickFormat.format(new Date(sampleTimes[(int)(sample & historyMask)]));
                 g.drawString(out, leftMargin + x + fontShift, screenSize.height);
                 g.setTransform(orig);
             }
         }
+    }
 
-        int ypos = 0;
-        ArrayList<DataSeries>toDraw = new ArrayList<DataSeries>();
-        toDraw.addAll(series);
+    // Redraw the plot columns first to last (inclusive). Each column shows
+    // the range of values of the samples that fall into it.
+    void drawColumns(Graphics2D g, int first, int last, long lastCol) {
+        float diff = axisY1Max - axisY1Min;
+        float scale = yScale();
+        int top = topMargin;
+        int bottom = plotBottom();
+
+        g.setStroke(new BasicStroke(1));
+        g.setColor(backgroundColor);
+        g.fillRect(leftMargin + first, top, last - first + 1, bottom - top);
+
+        // The grid dots are tied to the column index so that they scroll
+        // along with the data.
+        g.setColor(axisColor);
+        for (int x = first; x <= last; x++) {
+            long col = lastCol - (numPoints - 1 - x);
+            if ((col & 1) == 0) {
+                for (float i = 0; i <= diff; i += axisY1Step) {
+                    int pos = (int) (i * scale);
+                    g.fillRect(leftMargin + x, bottom - pos, 1, 1);
+                }
+            }
+        }
+
+        Shape clip = g.getClip();
+        g.clipRect(leftMargin, top, numPoints, bottom - top + 1);
 
-        for (DataSeries s : toDraw) {
-            float[] vals = s.getValues();
+        long oldest = getOldestSample();
+        float[] range = new float[2];
+        float[] prev = new float[2];
 
+        for (DataSeries s : series) {
             g.setColor(s.getColor());
-            float oval = (vals[0] - axisY1Min) * scale;
             g.setStroke(new BasicStroke(s.getWidth()));
-
-            for (int x=1; x<numPoints; x++) {
-                float val = (vals[x] - axisY1Min) * scale;
-                g.drawLine(leftMargin + x, screenSize.height - bottomMargin - (int)oval, leftMargin + x + 1, screenSize.height - bottomMargin - (int)val);
-                oval = val;
+            boolean havePrev = false;
+
+            for (int x = first - 1; x <= last; x++) {
+                long col = lastCol - (numPoints - 1 - x);
+                long from = col * samplesPerColumn;
+                long to = Math.min(from + samplesPerColumn, sampleCount);
+                if (col < 0 || from < oldest || from >= to) {
+                    havePrev = false;
+                    continue;
+                }
+
+                if (samplesPerColumn == 1) {
+                    range[0] = range[1] = s.get(from);
+                } else {
+                    s.getRange(from, to, range);
+                }
+
+                if (havePrev && x >= first) {
+                    if (samplesPerColumn == 1) {
+                        g.drawLine(leftMargin + x - 1, valueToY(prev[0], scale), leftMargin + x, valueToY(range[0], scale));
+                    } else {
+                        // Stretch the span to meet the previous column
+                        float lo = Math.min(range[0], prev[1]);
+                        float hi = Math.max(range[1], prev[0]);
+                        g.drawLine(leftMargin + x, valueToY(lo, scale), leftMargin + x, valueToY(hi, scale));
+                    }
+                }
+                prev[0] = range[0];
+                prev[1] = range[1];
+                havePrev = true;
             }
+        }
+
+        g.setClip(clip);
+        g.setStroke(new BasicStroke(1));
+    }
+
+    void drawOverlay(Graphics2D g) {
+        g.setRenderingHint(
+            RenderingHints.KEY_TEXT_ANTIALIASING,
+            RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setFont(font);
+        g.setStroke(new BasicStroke(1));
+        g.setColor(axisColor);
+
+        g.drawLine(leftMargin, topMargin, leftMargin, plotBottom());
+        g.drawLine(leftMargin, plotBottom(), screenSize.width - rightMargin, plotBottom());
 
-            String out = s.getName() + ": " + vals[numPoints-1];
+        long end = viewEnd < 0 ? sampleCount : Math.min(viewEnd, sampleCount);
+
+        int ypos = 0;
+        for (DataSeries s : series) {
+            float val = end > getOldestSample() ? s.get(end - 1) : 0;
+            g.setColor(s.getColor());
+            String out = s.getName() + ": " + val;
             g.drawString(out, leftMargin + 10, topMargin + 10 + (ypos * 20));
             ypos++;
         }
-
-        return offscreen;
     }
 /*
     public Dimension getPreferredSize() { return screenSize; }
@@ -191,17 +487,17 @@ public class JGrapher extends JComponent
 */
     public void setFont(Font f) {
         font = f;
-        repaint();
+        invalidateGraph();
     }
 
     public void setBackgroundColor(Color c) {
         backgroundColor = c;
-        repaint();
+        invalidateGraph();
     }
 
     public void setAxisColor(Color c) {
         axisColor = c;
-        repaint();
+        invalidateGraph();
     }
 
     public void setLeftMargin(int d) {
@@ -259,53 +555,47 @@ public class JGrapher extends JComponent
         repaint();
     } 
 
+    // The history is independent of the plot size, so a change of layout
+    // only needs the plot drawing again from scratch.
     public void recreateDataStore() {
-        while (dates.size() > numPoints) {
-            dates.remove(0);
-        }
-        while (dates.size() < numPoints) {
-            dates.add(0, new Date());
-        }
-        for (DataSeries s : series) {
-            s.resize(numPoints);
-        }
+        invalidateGraph();
     }
 
-    public void addSeries(String name, Color color, int width) {
-        series.add(new DataSeries(name, color, numPoints, width));
+    public synchronized void addSeries(String name, Color color, int width) {
+        series.add(new DataSeries(name, color, width));
+        fullRedraw = true;
     }
 
     public void addDataPoint(float[] v) {
-
-        for (int i = 0; i < v.length; i++) {
-            if (i < series.size()) {
-                series.get(i).add(v[i]);
+        synchronized (this) {
+            for (int i = 0; i < series.size(); i++) {
+                DataSeries s = series.get(i);
+                // Series without a new value hold their last one so all
+                // series stay on the same sample clock.
+                s.add(i < v.length ? v[i] : s.getLast());
             }
-        }
-        dates.add(new Date());
-        while (dates.size() > numPoints) {
-            dates.remove(0);
-        }
-        tickCycle++;
-        if (tickCycle == 20) {
-            tickCycle = 0;
+            sampleTimes[(int)(sampleCount & historyMask)] = System.currentTimeMillis();
+            sampleCount++;
         }
         repaint();
     }
 
     public void setYMinimum(float value) {
         axisY1Min = value;
+        invalidateGraph();
     }
 
     public void setYMaximum(float value) {
         axisY1Max = value;
+        invalidateGraph();
     }
 
     public void setYStep(float value) {
         axisY1Step = value;
+        invalidateGraph();
     }
     
-    public void reset() {
+    public synchronized void reset() {
         series = new ArrayList<DataSeries>();
         recreateDataStore();
     }
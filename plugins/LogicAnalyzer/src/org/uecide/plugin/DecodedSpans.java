@@ -0,0 +1,82 @@
+package org.uecide.plugin;
+
+import java.util.*;
+
+/* An interval index of the annotations produced by a protocol decoder.
+ *
+ * A decoder emits its spans in time order and they never overlap, so both
+ * the start and end times are sorted and the spans visible in a window
+ * can be found with a binary search. Like LogicCapture there is a single
+ * writer (the decoder thread) and readers only look below the published
+ * count.
+ */
+
+public class DecodedSpans {
+    long[] starts = new long[1024];
+    long[] ends = new long[1024];
+    String[] labels = new String[1024];
+    volatile int count = 0;
+
+    public int size() {
+        return count;
+    }
+
+    public void add(long start, long end, String label) {
+        int index = count;
+        if (index == starts.length) {
+            int newSize = starts.length * 2;
+            long[] ns = Arrays.copyOf(starts, newSize);
+            long[] ne = Arrays.copyOf(ends, newSize);
+            String[] nl = Arrays.copyOf(labels, newSize);
+            starts = ns;
+            ends = ne;
+            labels = nl;
+        }
+        starts[index] = start;
+        ends[index] = end;
+        labels[index] = label;
+        count = index + 1;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    // Index of the first span that ends at or after the given time
+    public int firstEndingAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Index of the first span that starts at or after the given time
+    public int firstStartingAfter(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,174 @@
+package org.uecide.plugin;
+
+import java.util.*;
+
+/* Decoder throughput over synthetic captures.
+ *
+ * Builds a UART, an I2C and an SPI capture of known random data, feeds
+ * each to its decoder in blocks the way the capture thread does, and
+ * reports how fast the transitions are consumed. The decoded output is
+ * checked against the data that was generated.
+ *
+ *   java -cp LogicAnalyzer.jar:uecide.jar org.uecide.plugin.DecoderBenchmark [bytes]
+ */
+
+public class DecoderBenchmark {
+    static final double NS_PER_SAMPLE = 100;    // 10MHz sampling
+    static final int BLOCK = 4096;              // Transitions per decode() call
+
+    // Accumulates transitions, dropping any that don't change the state
+    static class Builder {
+        ArrayList<long[]> points = new ArrayList<long[]>();
+        int state;
+        long time = 0;
+
+        Builder(int idle) {
+            state = idle;
+            points.add(new long[] { 0, idle });
+        }
+
+        void set(int channel, boolean high) {
+            int s = high ? (state | (1 << channel)) : (state & ~(1 << channel));
+            if (s != state) {
+                state = s;
+                points.add(new long[] { time, s });
+            }
+        }
+
+        void advance(long samples) {
+            time += samples;
+        }
+    }
+
+    public static void main(String[] args) {
+        int bytes = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Random rng = new Random(1234);
+        byte[] data = new byte[bytes];
+        rng.nextBytes(data);
+
+        run("UART 115200", uart(data), new UartDecoder(0, 115200), data, 0);
+        run("I2C 400kHz", i2c(data), new I2cDecoder(0, 1), data, 1);
+        run("SPI 4MHz", spi(data), new SpiDecoder(0, 1, -1, 2, 0), data, 0);
+    }
+
+    static void run(String name, Builder b, ProtocolDecoder decoder, byte[] data, int skip) {
+        LogicCapture capture = new LogicCapture();
+        int n = b.points.size();
+
+        // Warm up on a copy so the timed run sees compiled code
+        feed(b, new LogicCapture(), decoder);
+        decoder.reset();
+
+        long start = System.nanoTime();
+        feed(b, capture, decoder);
+        long elapsed = System.nanoTime() - start;
+
+        DecodedSpans spans = decoder.getSpans();
+        int matched = 0;
+        int next = 0;
+        for (int i = 0; i < spans.size() && next < data.length; i++) {
+            String l = spans.getLabel(i);
+            if (!l.startsWith("0x")) {
+                continue;
+            }
+            if (Integer.parseInt(l.substring(2, 4), 16) == (data[next] & 0xFF)) {
+                matched++;
+            }
+            next++;
+        }
+
+        System.out.println(String.format("%-12s %9d transitions %8d spans %6d/%d bytes ok  %7.1f ms  %6.1f M transitions/s",
+            name, n, spans.size(), matched, data.length, elapsed / 1000000d, n * 1000d / elapsed));
+    }
+
+    static void feed(Builder b, LogicCapture capture, ProtocolDecoder decoder) {
+        int n = b.points.size();
+        for (int i = 0; i < n; i++) {
+            long[] p = b.points.get(i);
+            capture.add(p[0], (int)p[1]);
+            if ((i % BLOCK) == BLOCK - 1) {
+                capture.setLastTimestamp(p[0]);
+                decoder.decode(capture, NS_PER_SAMPLE);
+            }
+        }
+        capture.setLastTimestamp(b.time);
+        decoder.decode(capture, NS_PER_SAMPLE);
+    }
+
+    static Builder uart(byte[] data) {
+        double samplesPerBit = 1000000000d / 115200 / NS_PER_SAMPLE;
+        Builder b = new Builder(1);
+        double t = 100;
+        for (byte d : data) {
+            int frame = ((d & 0xFF) << 1) | 0x200;    // start, 8 data, stop
+            for (int i = 0; i < 10; i++) {
+                b.time = (long)t;
+                b.set(0, (frame & (1 << i)) != 0);
+                t += samplesPerBit;
+            }
+        }
+        b.time = (long)t + 100;
+        return b;
+    }
+
+    static Builder i2c(byte[] data) {
+        // SCL on channel 0, SDA on channel 1, 400kHz = 25 samples per bit
+        Builder b = new Builder(3);
+        int i = 0;
+        while (i < data.length) {
+            b.advance(10);
+            b.set(1, false);                    // Start
+            b.advance(5);
+            b.set(0, false);
+            int count = Math.min(16, data.length - i);
+            writeI2cByte(b, 0xA0);              // Address 0x50, write
+            for (int j = 0; j < count; j++) {
+                writeI2cByte(b, data[i++] & 0xFF);
+            }
+            b.set(1, false);
+            b.advance(6);
+            b.set(0, true);
+            b.advance(6);
+            b.set(1, true);                     // Stop
+        }
+        b.advance(10);
+        return b;
+    }
+
+    static void writeI2cByte(Builder b, int value) {
+        for (int bit = 7; bit >= -1; bit--) {
+            // Bit -1 is the slave's ACK
+            b.set(1, bit >= 0 && (value & (1 << bit)) != 0);
+            b.advance(6);
+            b.set(0, true);
+            b.advance(12);
+            b.set(0, false);
+            b.advance(6);
+        }
+    }
+
+    static Builder spi(byte[] data) {
+        // CLK on 0, MOSI on 1, CS on 2, mode 0
+        Builder b = new Builder(4);
+        int i = 0;
+        while (i < data.length) {
+            b.advance(5);
+            b.set(2, false);
+            int count = Math.min(64, data.length - i);
+            for (int j = 0; j < count; j++) {
+                int value = data[i++] & 0xFF;
+                for (int bit = 7; bit >= 0; bit--) {
+                    b.set(1, (value & (1 << bit)) != 0);
+                    b.advance(1);
+                    b.set(0, true);
+                    b.advance(1);
+                    b.set(0, false);
+                }
+            }
+            b.advance(2);
+            b.set(2, true);
+        }
+        b.advance(5);
+        return b;
+    }
+}
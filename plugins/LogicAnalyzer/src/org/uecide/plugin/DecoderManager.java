@@ -0,0 +1,145 @@
+package org.uecide.plugin;
+
+import org.uecide.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.awt.*;
+
+/* Runs the protocol decoders on a background thread, away from both the
+ * capture thread and the painting. Requests for an update while one is
+ * already waiting to run are merged into it, so a burst of incoming data
+ * causes one decode pass, not one per serial event.
+ */
+
+public class DecoderManager {
+    ExecutorService executor;
+    CopyOnWriteArrayList<ProtocolDecoder> decoders = new CopyOnWriteArrayList<ProtocolDecoder>();
+    AtomicBoolean pending = new AtomicBoolean(false);
+
+    LogicCapture capture;
+    double nsPerSample = 1d;
+    Component view;
+
+    public DecoderManager(Component v) {
+        view = v;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Logic Analyzer Decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public java.util.List<ProtocolDecoder> getDecoders() {
+        return decoders;
+    }
+
+    public void setCapture(LogicCapture c, double ns) {
+        capture = c;
+        nsPerSample = ns;
+        resetAll();
+    }
+
+    // Queue a task on the decoder thread. Once the window has closed the
+    // executor is shut down and late requests from the capture or the UI
+    // are dropped.
+    Future<?> submit(Runnable r) {
+        if (executor.isShutdown()) {
+            return null;
+        }
+        try {
+            return executor.submit(r);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    public void addDecoder(final ProtocolDecoder d) {
+        submit(new Runnable() {
+            public void run() {
+                d.reset();
+                decoders.add(d);
+            }
+        });
+        update();
+    }
+
+    public void removeDecoder(ProtocolDecoder d) {
+        decoders.remove(d);
+        view.repaint();
+    }
+
+    // Start again from the beginning of the capture
+    public void resetAll() {
+        submit(new Runnable() {
+            public void run() {
+                for (ProtocolDecoder d : decoders) {
+                    d.reset();
+                }
+            }
+        });
+        update();
+    }
+
+    // Decode any data that has arrived since the last pass
+    public void update() {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        Future<?> f = submit(new Runnable() {
+            public void run() {
+                pending.set(false);
+                LogicCapture c = capture;
+                if (c == null) {
+                    return;
+                }
+                for (ProtocolDecoder d : decoders) {
+                    try {
+                        d.decode(c, nsPerSample);
+                    } catch (Exception e) {
+                        Base.error(e);
+                    }
+                }
+                view.repaint();
+            }
+        });
+        if (f == null) {
+            pending.set(false);
+        }
+    }
+
+    // Empty the capture and restart the decoders as one task on the decoder
+    // thread, so a decode pass never runs with old positions against new
+    // data. Waits for it so the capture is empty before any new samples
+    // arrive.
+    public void clearData() {
+        Future<?> f = submit(new Runnable() {
+            public void run() {
+                LogicCapture c = capture;
+                if (c != null) {
+                    c.clear();
+                }
+                for (ProtocolDecoder d : decoders) {
+                    d.reset();
+                }
+            }
+        });
+        if (f == null) {
+            return;
+        }
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Base.error(e);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
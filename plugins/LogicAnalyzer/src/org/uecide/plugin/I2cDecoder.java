@@ -0,0 +1,93 @@
+package org.uecide.plugin;
+
+/* I2C. Bits are sampled on the rising edge of SCL; each byte is followed
+ * by an acknowledge bit, and the first byte after a start condition is
+ * shown as an address. */
+
+public class I2cDecoder extends ProtocolDecoder {
+    int scl;
+    int sda;
+
+    boolean inFrame = false;
+    boolean addressByte = false;
+    int bits = 0;
+    int value = 0;
+    long byteStart = 0;
+
+    public I2cDecoder(int scl, int sda) {
+        this.scl = scl;
+        this.sda = sda;
+    }
+
+    public String getName() {
+        return "I2C (SCL " + (scl + 1) + ", SDA " + (sda + 1) + ")";
+    }
+
+    public int getAnnotationChannel() {
+        return sda;
+    }
+
+    protected void resetState() {
+        inFrame = false;
+        addressByte = false;
+        bits = 0;
+        value = 0;
+    }
+
+    public void decode(LogicCapture capture, double nsPerSample) {
+        int mask = (1 << scl) | (1 << sda);
+
+        while (true) {
+            int end = capture.size();
+            int edge = capture.nextEdge(position, end, mask);
+            if (edge < 0) {
+                position = end;
+                return;
+            }
+            position = edge + 1;
+
+            int prev = capture.getState(edge - 1);
+            int cur = capture.getState(edge);
+            long time = capture.getTime(edge);
+
+            boolean sclBefore = bit(prev, scl);
+            boolean sclNow = bit(cur, scl);
+            boolean sdaBefore = bit(prev, sda);
+            boolean sdaNow = bit(cur, sda);
+
+            if (sclBefore && sclNow && sdaBefore != sdaNow) {
+                if (!sdaNow) {
+                    spans.add(time, time, inFrame ? "Sr" : "S");
+                    inFrame = true;
+                    addressByte = true;
+                } else {
+                    spans.add(time, time, "P");
+                    inFrame = false;
+                }
+                bits = 0;
+                value = 0;
+                continue;
+            }
+
+            if (inFrame && !sclBefore && sclNow) {
+                if (bits == 0) {
+                    byteStart = time;
+                }
+                if (bits < 8) {
+                    value = (value << 1) | (sdaNow ? 1 : 0);
+                    bits++;
+                } else {
+                    String ack = sdaNow ? " NAK" : " ACK";
+                    if (addressByte) {
+                        spans.add(byteStart, time, "Addr " + hex(value >> 1) + ((value & 1) != 0 ? " R" : " W") + ack);
+                        addressByte = false;
+                    } else {
+                        spans.add(byteStart, time, formatByte(value) + ack);
+                    }
+                    bits = 0;
+                    value = 0;
+                }
+            }
+        }
+    }
+}
@@ -32,7 +32,8 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
     Integer cPos = 0;
     Integer hPos = -1;
 
-    TreeMap<Long, Integer>dataStore = new TreeMap<Long, Integer>();
+    LogicCapture capture = new LogicCapture();
+    DecoderManager decoders = null;
 
     long timeOffset = 0;
     double samplesPerPixel = 100;
@@ -58,6 +59,7 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
     }
 
     public void paintComponent(Graphics screen) {
+        LogicCapture capture = this.capture.snapshot();
         int th = getHeight() - 20;
         screen.setColor(new Color(50, 50, 70));
         screen.fillRect(0, 0, getWidth(), getHeight());
@@ -87,83 +89,49 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
         }
             
 
-        int[] states = { 0, 0, 0, 0, 0, 0, 0, 0 };
-        int[] newStates = { 0, 0, 0, 0, 0, 0, 0, 0 };
-
-        int pval = 0;
-
-        Integer sv = 0;
-        Map.Entry<Long, Integer> startValue = dataStore.lowerEntry(timeOffset);
-        if (startValue != null) {
-            sv = startValue.getValue();
-        }
-
-        states[0] = ((sv & 0x01) != 0) ? HIGH : LOW;
-        states[1] = ((sv & 0x02) != 0) ? HIGH : LOW;
-        states[2] = ((sv & 0x04) != 0) ? HIGH : LOW;
-        states[3] = ((sv & 0x08) != 0) ? HIGH : LOW;
-        states[4] = ((sv & 0x10) != 0) ? HIGH : LOW;
-        states[5] = ((sv & 0x20) != 0) ? HIGH : LOW;
-        states[6] = ((sv & 0x40) != 0) ? HIGH : LOW;
-        states[7] = ((sv & 0x80) != 0) ? HIGH : LOW;
-            
         int gutter = traceHeight / 10;
-
-        long start = timeOffset;
-        long end = (long)(timeOffset + getWidth() * samplesPerPixel);
-
-        // This grabs a snapshot of all the points between the start and end times.
-        TreeMap<Long, Integer> sub = null;
-        synchronized (dataStore) {
-            sub = new TreeMap<Long, Integer>(dataStore.subMap(start, end));
+        int width = getWidth();
+
+        // Work across the window a pixel column at a time. Each column
+        // covers a range of transitions; any channel that changed within
+        // that range gets an edge drawn at that column, and the levels
+        // between edges are drawn as single horizontal runs.
+        int[] runStart = new int[8];
+        int state = capture.stateAt(timeOffset - 1);
+
+        int end = (int)Math.min(width, (capture.getLastTimestamp() - timeOffset) / samplesPerPixel);
+        if (capture.size() == 0 || capture.getLastTimestamp() <= timeOffset) {
+            end = width;
         }
 
         screen.setColor(new Color(200, 200, 200));
 
-        // If there are no points in the sample set then draw a horizontal line for each trace
-        // at the level of the most recent point before this sample set starts
-        if (sub.size() == 0) {
-            for (int i = 0; i < 8; i++) {
-                if ((sv & (1<<i)) == 0) {
-                    screen.drawLine(0, (i + 1) * traceHeight - gutter, getWidth(), (i + 1) * traceHeight - gutter);
-                } else {
-                    screen.drawLine(0, i * traceHeight + gutter, getWidth(), i * traceHeight + gutter);
-                }
-            }
-        } else {
-            // We have some data points, so let's draw them.
-
-            int lastOff = 0;
-            for (long time : sub.keySet()) {
-                int val = sub.get(time);
-                int off = (int)((time - timeOffset) / samplesPerPixel);
-
-                screen.setColor(new Color(200, 200, 200));
-            
+        int index = capture.ceilingIndex(timeOffset);
+        for (int x = 0; x < end; x++) {
+            long colEnd = (long)(timeOffset + (x + 1) * samplesPerPixel);
+            int next = capture.ceilingIndex(colEnd);
+            if (next > index) {
+                int changed = capture.changesBetween(index, next);
+                int newState = capture.getState(next - 1);
                 for (int i = 0; i < 8; i++) {
-                    pval = ((val & (1<<i)) == 0) ? LOW : HIGH;
-                    if (states[i] == LOW) {
-                        screen.drawLine(lastOff, (i + 1) * traceHeight - gutter, off, (i + 1) * traceHeight - gutter);
-                    } else {
-                        screen.drawLine(lastOff, i * traceHeight + gutter, off, i * traceHeight + gutter);
-                    }
-                    if (pval != states[i]) {
-                        states[i] = pval;
-                        screen.drawLine(off, i * traceHeight + gutter, off, (i + 1) * traceHeight - gutter);
+                    if ((changed & (1<<i)) != 0) {
+                        drawLevel(screen, i, (state & (1<<i)) != 0, runStart[i], x, traceHeight, gutter);
+                        screen.drawLine(x, i * traceHeight + gutter, x, (i + 1) * traceHeight - gutter);
+                        runStart[i] = x;
                     }
                 }
-                lastOff = off;
+                state = newState;
+                index = next;
             }
+        }
 
-            int seenOff = (int)((lastReceivedTimestamp - timeOffset) / samplesPerPixel);
-            if (seenOff > lastOff) {
-                for (int i = 0; i < 8; i++) {
-                    if (states[i] == LOW) {
-                        screen.drawLine(lastOff, (i + 1) * traceHeight - gutter, seenOff, (i + 1) * traceHeight - gutter);
-                    } else {
-                        screen.drawLine(lastOff, i * traceHeight + gutter, seenOff, i * traceHeight + gutter);
-                    }
-                }
+        for (int i = 0; i < 8; i++) {
+            drawLevel(screen, i, (state & (1<<i)) != 0, runStart[i], end, traceHeight, gutter);
+        }
+
+        if (decoders != null) {
+            for (ProtocolDecoder d : decoders.getDecoders()) {
+                drawSpans(screen, d, traceHeight, width);
             }
         }
 
@@ -172,58 +140,32 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
         // Now for the fancy arrow thingie.
         if ((hoveredTrace >= 0) && (hoveredTrace <= 7)) {
 
-            // Step one, get the value at the cursor position
-            Map.Entry<Long, Integer> curVal = dataStore.lowerEntry((long)((cPos * samplesPerPixel) + timeOffset));
-            if (curVal != null) {
-                Map.Entry<Long, Integer>startVal = curVal;
-                Map.Entry<Long, Integer>endVal = curVal;
-                int curSet = ((curVal.getValue() & (1<<hoveredTrace)) == 0) ? LOW : HIGH;
-
-                // Step two, expand out until we find two edges.
-                Map.Entry<Long, Integer> testVal = null;
-
-                testVal = dataStore.lowerEntry(startVal.getKey());
-
-                while (testVal != null) {
-                    int testSet = ((testVal.getValue() & (1<<hoveredTrace)) == 0) ? LOW : HIGH;
-                    if (testSet != curSet) {
-                        break;
+            // Find the edges either side of the cursor on the hovered trace
+            int curIdx = capture.floorIndex((long)((cPos * samplesPerPixel) + timeOffset));
+            if (curIdx >= 0) {
+                int startIdx = capture.previousEdge(curIdx, 1<<hoveredTrace);
+                int endIdx = capture.nextEdge(curIdx + 1, 1<<hoveredTrace);
+
+                if (startIdx >= 0 && endIdx >= 0) {
+                    long astartTime = capture.getTime(startIdx);
+                    long aendTime = capture.getTime(endIdx);
+                    int startPos = (int)((astartTime - timeOffset) / samplesPerPixel);
+                    int endPos = (int)((aendTime - timeOffset) / samplesPerPixel);
+                    if (startPos < 0) { 
+                        startPos = 0;
                     }
-                    startVal = testVal;
-                    testVal = dataStore.lowerEntry(startVal.getKey());
-                }
-                if (testVal != null) {
-                    testVal = dataStore.higherEntry(endVal.getKey());
-
-                    while (testVal != null) {
-                        int testSet = ((testVal.getValue() & (1<<hoveredTrace)) == 0) ? LOW : HIGH;
-                        endVal = testVal;
-                        if (testSet != curSet) {
-                            break;
-                        }
-                        testVal = dataStore.higherEntry(endVal.getKey());
-                    }
-                    if (testVal != null) {
-                        long astartTime = startVal.getKey();
-                        long aendTime = endVal.getKey();
-                        int startPos = (int)((astartTime - timeOffset) / samplesPerPixel);
-                        int endPos = (int)((aendTime - timeOffset) / samplesPerPixel);
-                        if (startPos < 0) { 
-                            startPos = 0;
-                        }
-                        if (endPos > getWidth()) {
-                            endPos = getWidth();
-                        }
-
-                        screen.setColor(new Color(200, 0, 0));
-                        screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos, hoveredTrace * traceHeight + (traceHeight / 2));
-                        screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), startPos + 3, hoveredTrace * traceHeight + (traceHeight / 2) - 3);
-                        screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), startPos + 3, hoveredTrace * traceHeight + (traceHeight / 2) + 3);
-                        screen.drawLine(endPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos - 3, hoveredTrace * traceHeight + (traceHeight / 2) - 3);
-                        screen.drawLine(endPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos - 3, hoveredTrace * traceHeight + (traceHeight / 2) + 3);
-
-                        measuredTime = aendTime - astartTime;
+                    if (endPos > getWidth()) {
+                        endPos = getWidth();
                     }
+
+                    screen.setColor(new Color(200, 0, 0));
+                    screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos, hoveredTrace * traceHeight + (traceHeight / 2));
+                    screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), startPos + 3, hoveredTrace * traceHeight + (traceHeight / 2) - 3);
+                    screen.drawLine(startPos, hoveredTrace * traceHeight + (traceHeight / 2), startPos + 3, hoveredTrace * traceHeight + (traceHeight / 2) + 3);
+                    screen.drawLine(endPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos - 3, hoveredTrace * traceHeight + (traceHeight / 2) - 3);
+                    screen.drawLine(endPos, hoveredTrace * traceHeight + (traceHeight / 2), endPos - 3, hoveredTrace * traceHeight + (traceHeight / 2) + 3);
+
+                    measuredTime = aendTime - astartTime;
                 }
             } 
         }
@@ -244,6 +186,64 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
     }
 
 
+    // Draw the decoded annotations that fall in the window over the top
+    // half of the decoder's trace. When zoomed out far enough that several
+    // spans share a pixel column only the first is drawn and the rest are
+    // skipped with a binary search.
+    void drawSpans(Graphics screen, ProtocolDecoder d, int traceHeight, int width) {
+        DecodedSpans spans = d.getSpans();
+        int count = spans.size();
+        long windowEnd = (long)(timeOffset + width * samplesPerPixel);
+        int top = d.getAnnotationChannel() * traceHeight + 3;
+        int height = traceHeight / 2 - 3;
+        FontMetrics fm = screen.getFontMetrics();
+
+        int i = spans.firstEndingAfter(timeOffset);
+        while (i < count) {
+            long start = spans.getStart(i);
+            if (start > windowEnd) {
+                break;
+            }
+            int x1 = (int)((start - timeOffset) / samplesPerPixel);
+            int x2 = (int)((spans.getEnd(i) - timeOffset) / samplesPerPixel);
+            if (x1 < 0) {
+                x1 = 0;
+            }
+            if (x2 > width) {
+                x2 = width;
+            }
+
+            screen.setColor(new Color(40, 90, 40));
+            screen.fillRect(x1, top, Math.max(1, x2 - x1), height);
+            String label = spans.getLabel(i);
+            if (fm.stringWidth(label) < x2 - x1 - 2) {
+                screen.setColor(new Color(220, 255, 220));
+                screen.drawString(label, x1 + 2, top + height - fm.getDescent());
+            }
+
+            if (x2 <= x1) {
+                i = Math.max(i + 1, spans.firstStartingAfter((long)(timeOffset + (x1 + 1) * samplesPerPixel)));
+            } else {
+                i++;
+            }
+        }
+    }
+
+    public void setDecoderManager(DecoderManager d) {
+        decoders = d;
+    }
+
+    void drawLevel(Graphics screen, int trace, boolean high, int from, int to, int traceHeight, int gutter) {
+        if (to <= from) {
+            return;
+        }
+        if (high) {
+            screen.drawLine(from, trace * traceHeight + gutter, to, trace * traceHeight + gutter);
+        } else {
+            screen.drawLine(from, (trace + 1) * traceHeight - gutter, to, (trace + 1) * traceHeight - gutter);
+        }
+    }
+
     public void mouseMoved(MouseEvent e) {
         cPos = e.getX();
         hPos = e.getY();
@@ -285,27 +285,41 @@ public class JLogicView extends JPanel implements MouseMotionListener, MouseList
 
     public void addDataPoint(long timestamp, int sample) {
         if (sample != -1) {
-            if (dataStore.size() == 0) {
+            if (capture.size() == 0) {
                 startTime = System.nanoTime();
             }
-            synchronized (dataStore) {
-                dataStore.put(timestamp, sample);
-            }
+            capture.add(timestamp, sample);
+        } else {
+            capture.setLastTimestamp(timestamp);
         }
         lastReceivedTimestamp = timestamp;
     }
 
+    // The capture itself is emptied by DecoderManager.clearData()
     public void clearData() {
-        synchronized (dataStore) {
-            dataStore.clear();
-        }
+        lastReceivedTimestamp = 0;
+    }
+
+    public LogicCapture getCapture() {
+        return capture;
+    }
+
+    public void setCapture(LogicCapture c) {
+        capture = c;
+        lastReceivedTimestamp = c.getLastTimestamp();
+        timeOffset = 0;
+        repaint();
+    }
+
+    public double getNSPerSample() {
+        return nsPerSample;
     }
 
     public long getSampleLength() {
-        if (dataStore == null || dataStore.size() == 0) {
+        if (capture == null || capture.size() == 0) {
             return 0;
         }
-        return dataStore.lastKey();
+        return capture.getLastTime();
     }
 
     public int getZoomRange() { 
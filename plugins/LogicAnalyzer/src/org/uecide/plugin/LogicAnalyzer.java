@@ -27,6 +27,7 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
     JFrame window;
 
     JLogicView logicView;
+    DecoderManager decoderManager;
     JScrollBar horizontalScroll;
     JScrollBar verticalScroll;
 
@@ -102,6 +103,9 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
 
         final JButton runButton = new JButton("Run");
         final JButton stopButton = new JButton("Stop");
+        final JButton saveButton = new JButton("Save");
+        final JButton loadButton = new JButton("Open");
+        final JButton decodersButton = new JButton("Decoders...");
         final JLabel portLabel = new JLabel("Serial Port:");
         portList = new JComboBox(Serial.getPortList().toArray(new String[0]));
         final JLabel baudLabel = new JLabel("Baud Rate:");
@@ -136,9 +140,32 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
             }
         });
 
+        saveButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                saveCapture();
+            }
+        });
+
+        loadButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                loadCapture();
+            }
+        });
+
         toolbar.add(runButton);
         toolbar.add(stopButton);
         toolbar.addSeparator();
+        decodersButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                editDecoders();
+            }
+        });
+
+        toolbar.add(saveButton);
+        toolbar.add(loadButton);
+        toolbar.addSeparator();
+        toolbar.add(decodersButton);
+        toolbar.addSeparator();
         toolbar.add(portLabel);
         toolbar.add(portList);
         toolbar.addSeparator();
@@ -151,6 +178,10 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
         logicView = new JLogicView();
         window.add(logicView, BorderLayout.CENTER);
 
+        decoderManager = new DecoderManager(logicView);
+        decoderManager.setCapture(logicView.getCapture(), logicView.getNSPerSample());
+        logicView.setDecoderManager(decoderManager);
+
         horizontalScroll = new JScrollBar(JScrollBar.HORIZONTAL);
         verticalScroll = new JScrollBar(JScrollBar.VERTICAL);
 
@@ -219,6 +250,7 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
                 Serial.closePort(serialPort);
             }
         }
+        decoderManager.shutdown();
         window.dispose();
     }
 
@@ -226,7 +258,41 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
         horizontalScroll.setMaximum((int)(logicView.getSampleLength() / 1000L));
     }
 
+    public void saveCapture() {
+        FileDialog fd = new FileDialog(window, "Save Capture", FileDialog.SAVE);
+        fd.setVisible(true);
+        if (fd.getDirectory() == null || fd.getFile() == null) {
+            return;
+        }
+        try {
+            logicView.getCapture().save(new File(fd.getDirectory(), fd.getFile()), logicView.getNSPerSample());
+        } catch (Exception ex) {
+            editor.error(ex);
+        }
+    }
+
+    public void loadCapture() {
+        FileDialog fd = new FileDialog(window, "Open Capture", FileDialog.LOAD);
+        fd.setVisible(true);
+        if (fd.getDirectory() == null || fd.getFile() == null) {
+            return;
+        }
+        try {
+            stopRunning();
+            LogicCapture c = new LogicCapture();
+            double ns = c.load(new File(fd.getDirectory(), fd.getFile()));
+            logicView.setNSPerSample(ns);
+            logicView.setCapture(c);
+            decoderManager.setCapture(c, ns);
+            updateHorizontalRange();
+            horizontalScroll.setValue(0);
+        } catch (Exception ex) {
+            editor.error(ex);
+        }
+    }
+
     public void startRunning() {
+        decoderManager.clearData();
         logicView.clearData();
         sampleNum = 0;
         Base.preferences.setInteger("logicanalyzer.baud", (Integer)baudList.getSelectedItem());
@@ -253,6 +319,7 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
         }
 
         logicView.setNSPerSample((long)((Integer)sampleRateList.getSelectedItem() * 1000L));
+        decoderManager.setCapture(logicView.getCapture(), logicView.getNSPerSample());
 
         try {
             serialPort.writeInt((Integer)sampleRateList.getSelectedItem());
@@ -296,6 +363,8 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
                     }
                     sampleNum++;
                 }
+                logicView.addDataPoint(sampleNum, -1);
+                decoderManager.update();
                 updateHorizontalRange();
                 horizontalScroll.setValue(logicView.getScrollPosition());
             } catch (Exception ex) {
@@ -304,6 +373,79 @@ public class LogicAnalyzer extends Plugin implements SerialPortEventListener, Mo
         }
     }
 
+    static final String[] channelNames = { "1", "2", "3", "4", "5", "6", "7", "8" };
+    static final String[] optionalChannelNames = { "None", "1", "2", "3", "4", "5", "6", "7", "8" };
+
+    public void editDecoders() {
+        Object[] options = { "Add UART", "Add I2C", "Add SPI", "Remove", "Close" };
+        while (true) {
+            JList list = new JList(decoderManager.getDecoders().toArray());
+            JScrollPane sp = new JScrollPane(list);
+            sp.setPreferredSize(new Dimension(300, 120));
+            int res = JOptionPane.showOptionDialog(window, sp, "Protocol Decoders",
+                JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[4]);
+
+            ProtocolDecoder d = null;
+            switch (res) {
+                case 0: d = askUartDecoder(); break;
+                case 1: d = askI2cDecoder(); break;
+                case 2: d = askSpiDecoder(); break;
+                case 3:
+                    if (list.getSelectedValue() != null) {
+                        decoderManager.removeDecoder((ProtocolDecoder)list.getSelectedValue());
+                    }
+                    continue;
+                default:
+                    return;
+            }
+            if (d != null) {
+                decoderManager.addDecoder(d);
+            }
+        }
+    }
+
+    boolean askSettings(String title, String[] labels, JComponent[] fields) {
+        JPanel p = new JPanel(new GridLayout(labels.length, 2));
+        for (int i = 0; i < labels.length; i++) {
+            p.add(new JLabel(labels[i] + ": "));
+            p.add(fields[i]);
+        }
+        return JOptionPane.showConfirmDialog(window, p, title, JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION;
+    }
+
+    ProtocolDecoder askUartDecoder() {
+        JComboBox channel = new JComboBox(channelNames);
+        JComboBox baud = new JComboBox(baudRates);
+        baud.setSelectedItem(9600);
+        if (!askSettings("UART Decoder", new String[] { "Channel", "Baud Rate" }, new JComponent[] { channel, baud })) {
+            return null;
+        }
+        return new UartDecoder(channel.getSelectedIndex(), (Integer)baud.getSelectedItem());
+    }
+
+    ProtocolDecoder askI2cDecoder() {
+        JComboBox scl = new JComboBox(channelNames);
+        JComboBox sda = new JComboBox(channelNames);
+        sda.setSelectedIndex(1);
+        if (!askSettings("I2C Decoder", new String[] { "SCL", "SDA" }, new JComponent[] { scl, sda })) {
+            return null;
+        }
+        return new I2cDecoder(scl.getSelectedIndex(), sda.getSelectedIndex());
+    }
+
+    ProtocolDecoder askSpiDecoder() {
+        JComboBox clk = new JComboBox(channelNames);
+        JComboBox mosi = new JComboBox(channelNames);
+        JComboBox miso = new JComboBox(optionalChannelNames);
+        JComboBox cs = new JComboBox(optionalChannelNames);
+        JComboBox mode = new JComboBox(new Integer[] { 0, 1, 2, 3 });
+        mosi.setSelectedIndex(1);
+        if (!askSettings("SPI Decoder", new String[] { "Clock", "MOSI", "MISO", "CS", "Mode" }, new JComponent[] { clk, mosi, miso, cs, mode })) {
+            return null;
+        }
+        return new SpiDecoder(clk.getSelectedIndex(), mosi.getSelectedIndex(), miso.getSelectedIndex() - 1, cs.getSelectedIndex() - 1, (Integer)mode.getSelectedItem());
+    }
+
     public void mouseWheelMoved(MouseWheelEvent ev) {
         int v = verticalScroll.getValue();
         int a = ev.getWheelRotation();
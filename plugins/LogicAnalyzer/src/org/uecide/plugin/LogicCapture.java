@@ -0,0 +1,368 @@
+package org.uecide.plugin;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/* Stores a logic analyzer capture as a run-length encoded list of
+ * transitions: the sample number at which the channel states changed
+ * and the new state of all the channels.
+ *
+ * Transitions are held in fixed size chunks of parallel long[] and int[]
+ * arrays, so each one costs twelve bytes with no per-entry objects. Each
+ * chunk also keeps a small pyramid of change masks (the channels that
+ * changed anywhere within a block of transitions) so that zoomed out
+ * views and edge searches can skip over whole blocks at a time.
+ *
+ * There may only be one writer (the capture thread) but any number of
+ * readers, which only ever look at transitions below the published count.
+ *
+ * All of the data lives in a Store which clear() replaces rather than
+ * empties, so a reader that works from a snapshot() is never pulled out
+ * from under by a clear on another thread.
+ */
+
+public class LogicCapture {
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Change mask block sizes are 16, 256 and 4096 transitions
+    static final int LEVEL_BITS = 4;
+    static final int LEVELS = 3;
+
+    static final int FILE_MAGIC = 0x554C4143; // "ULAC"
+    static final int FILE_VERSION = 1;
+
+    static class Store {
+        long[][] timeChunks = new long[16][];
+        int[][] stateChunks = new int[16][];
+        int[][][] changeChunks = new int[16][][];
+
+        // Written last by add(), so reading it first makes everything
+        // below it visible.
+        volatile int count = 0;
+        volatile long lastTimestamp = 0;
+        int lastState = 0;
+    }
+
+    volatile Store store;
+
+    public LogicCapture() {
+        store = new Store();
+    }
+
+    LogicCapture(Store s) {
+        store = s;
+    }
+
+    // A view of the capture as it is now. It still sees data added after
+    // this call, but not a later clear(), so indexes taken from it stay
+    // valid for as long as it is used.
+    public LogicCapture snapshot() {
+        return new LogicCapture(store);
+    }
+
+    public int size() {
+        return store.count;
+    }
+
+    public long getLastTimestamp() {
+        return store.lastTimestamp;
+    }
+
+    public long getFirstTime() {
+        Store s = store;
+        return s.count == 0 ? 0 : getTime(s, 0);
+    }
+
+    public long getLastTime() {
+        Store s = store;
+        int c = s.count;
+        return c == 0 ? 0 : getTime(s, c - 1);
+    }
+
+    public long getTime(int index) {
+        return getTime(store, index);
+    }
+
+    static long getTime(Store s, int index) {
+        return s.timeChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    public int getState(int index) {
+        return getState(store, index);
+    }
+
+    static int getState(Store s, int index) {
+        if (index < 0) {
+            return 0;
+        }
+        return s.stateChunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    // Record that the sample counter has reached a timestamp without a
+    // change of state.
+    public void setLastTimestamp(long timestamp) {
+        store.lastTimestamp = timestamp;
+    }
+
+    public void add(long timestamp, int state) {
+        Store s = store;
+        int index = s.count;
+        int chunk = index >>> CHUNK_BITS;
+        int offset = index & CHUNK_MASK;
+
+        if (offset == 0) {
+            if (chunk == s.timeChunks.length) {
+                s.timeChunks = Arrays.copyOf(s.timeChunks, chunk * 2);
+                s.stateChunks = Arrays.copyOf(s.stateChunks, chunk * 2);
+                s.changeChunks = Arrays.copyOf(s.changeChunks, chunk * 2);
+            }
+            s.timeChunks[chunk] = new long[CHUNK_SIZE];
+            s.stateChunks[chunk] = new int[CHUNK_SIZE];
+            int[][] levels = new int[LEVELS][];
+            for (int l = 0; l < LEVELS; l++) {
+                levels[l] = new int[CHUNK_SIZE >> ((l + 1) * LEVEL_BITS)];
+            }
+            s.changeChunks[chunk] = levels;
+        }
+
+        s.timeChunks[chunk][offset] = timestamp;
+        s.stateChunks[chunk][offset] = state;
+
+        int changed = state ^ s.lastState;
+        int[][] levels = s.changeChunks[chunk];
+        for (int l = 0; l < LEVELS; l++) {
+            levels[l][offset >> ((l + 1) * LEVEL_BITS)] |= changed;
+        }
+        s.lastState = state;
+
+        if (timestamp > s.lastTimestamp) {
+            s.lastTimestamp = timestamp;
+        }
+        s.count = index + 1;
+    }
+
+    // An add() already under way finishes into the old store, and readers
+    // working from a snapshot carry on with the old data.
+    public void clear() {
+        store = new Store();
+    }
+
+    // Channels that changed at a transition
+    static int changeAt(Store s, int index) {
+        return getState(s, index) ^ getState(s, index - 1);
+    }
+
+    // Index of the last transition at or before the given time, or -1 if
+    // the time is before the first transition.
+    public int floorIndex(long time) {
+        return floorIndex(store, time);
+    }
+
+    static int floorIndex(Store s, long time) {
+        int c = s.count;
+        if (c == 0 || getTime(s, 0) > time) {
+            return -1;
+        }
+        int lastChunk = (c - 1) >>> CHUNK_BITS;
+        int low = 0;
+        int high = lastChunk;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (s.timeChunks[mid][0] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int length = (low == lastChunk) ? ((c - 1) & CHUNK_MASK) + 1 : CHUNK_SIZE;
+        int pos = Arrays.binarySearch(s.timeChunks[low], 0, length, time);
+        if (pos < 0) {
+            pos = -pos - 2;
+        }
+        return (low << CHUNK_BITS) + pos;
+    }
+
+    // Index of the first transition at or after the given time, or size()
+    // if there is none.
+    public int ceilingIndex(long time) {
+        Store s = store;
+        int i = floorIndex(s, time);
+        if (i >= 0 && getTime(s, i) == time) {
+            return i;
+        }
+        return i + 1;
+    }
+
+    public int stateAt(long time) {
+        Store s = store;
+        return getState(s, floorIndex(s, time));
+    }
+
+    // The channels that changed in the transitions [from, to), using the
+    // largest aligned change mask blocks that fit inside the range.
+    public int changesBetween(int from, int to) {
+        Store s = store;
+        int mask = 0;
+        int i = Math.max(from, 0);
+        to = Math.min(to, s.count);
+        while (i < to) {
+            int level = LEVELS - 1;
+            while (level >= 0) {
+                int bits = (level + 1) * LEVEL_BITS;
+                int blockSize = 1 << bits;
+                if (((i & (blockSize - 1)) == 0) && (i + blockSize <= to)) {
+                    mask |= s.changeChunks[i >>> CHUNK_BITS][level][(i & CHUNK_MASK) >> bits];
+                    i += blockSize;
+                    break;
+                }
+                level--;
+            }
+            if (level < 0) {
+                mask |= changeAt(s, i);
+                i++;
+            }
+        }
+        return mask;
+    }
+
+    // The first transition at or after from where any channel in the mask
+    // changes, or -1 if there is none.
+    public int nextEdge(int from, int mask) {
+        return nextEdge(from, Integer.MAX_VALUE, mask);
+    }
+
+    // As nextEdge, only looking at transitions before to. A decoder that
+    // reads size() first and searches up to it knows it has seen everything
+    // before that point, even while the capture is still growing.
+    public int nextEdge(int from, int to, int mask) {
+        Store s = store;
+        int c = Math.min(s.count, to);
+        int i = Math.max(from, 0);
+        while (i < c) {
+            boolean skipped = false;
+            for (int level = LEVELS - 1; level >= 0; level--) {
+                int bits = (level + 1) * LEVEL_BITS;
+                int blockSize = 1 << bits;
+                if (((i & (blockSize - 1)) == 0) && (i + blockSize <= c)) {
+                    if ((s.changeChunks[i >>> CHUNK_BITS][level][(i & CHUNK_MASK) >> bits] & mask) == 0) {
+                        i += blockSize;
+                        skipped = true;
+                    }
+                    break;
+                }
+            }
+            if (!skipped) {
+                if ((changeAt(s, i) & mask) != 0) {
+                    return i;
+                }
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    // The last transition at or before from where any channel in the mask
+    // changes, or -1 if there is none.
+    public int previousEdge(int from, int mask) {
+        Store s = store;
+        int i = Math.min(from, s.count - 1);
+        while (i >= 0) {
+            boolean skipped = false;
+            for (int level = LEVELS - 1; level >= 0; level--) {
+                int bits = (level + 1) * LEVEL_BITS;
+                int blockSize = 1 << bits;
+                int start = i - blockSize + 1;
+                if ((start >= 0) && ((start & (blockSize - 1)) == 0)) {
+                    if ((s.changeChunks[start >>> CHUNK_BITS][level][(start & CHUNK_MASK) >> bits] & mask) == 0) {
+                        i = start - 1;
+                        skipped = true;
+                    }
+                    break;
+                }
+            }
+            if (!skipped) {
+                if ((changeAt(s, i) & mask) != 0) {
+                    return i;
+                }
+                i--;
+            }
+        }
+        return -1;
+    }
+
+    /* Captures are saved as a small header followed by the transitions,
+     * each as a variable length time delta and state, all compressed. */
+    public void save(File file, double nsPerSample) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 65536), 65536));
+        try {
+            Store s = store;
+            int c = s.count;
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeDouble(nsPerSample);
+            out.writeLong(s.lastTimestamp);
+            out.writeInt(c);
+            long last = 0;
+            for (int i = 0; i < c; i++) {
+                long t = getTime(s, i);
+                writeVarLong(out, t - last);
+                writeVarLong(out, getState(s, i) & 0xFFFFFFFFL);
+                last = t;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Replace the contents with a saved capture. Returns the ns per sample
+    // the capture was recorded at.
+    public double load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536), 65536));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException(file.getName() + " is not a logic analyzer capture");
+            }
+            if (in.readInt() != FILE_VERSION) {
+                throw new IOException(file.getName() + " has an unsupported version");
+            }
+            double nsPerSample = in.readDouble();
+            long endTime = in.readLong();
+            int c = in.readInt();
+
+            clear();
+            long t = 0;
+            for (int i = 0; i < c; i++) {
+                t += readVarLong(in);
+                add(t, (int)readVarLong(in));
+            }
+            setLastTimestamp(endTime);
+            return nsPerSample;
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.uecide.plugin;
+
+/* Base class for the protocol decoders.
+ *
+ * A decoder is fed the capture incrementally: each call to decode() picks
+ * up from the transition it stopped at last time and works forward as
+ * far as the data received so far allows, adding annotations to its
+ * span index as it goes. Decoders only ever run on the decoder thread.
+ */
+
+public abstract class ProtocolDecoder {
+    DecodedSpans spans = new DecodedSpans();
+
+    // The next transition the decoder has to look at
+    int position = 0;
+
+    public abstract String getName();
+
+    // The trace the annotations are drawn on
+    public abstract int getAnnotationChannel();
+
+    public abstract void decode(LogicCapture capture, double nsPerSample);
+
+    // Forget any partially decoded data
+    protected abstract void resetState();
+
+    public void reset() {
+        spans = new DecodedSpans();
+        position = 0;
+        resetState();
+    }
+
+    public DecodedSpans getSpans() {
+        return spans;
+    }
+
+    public String toString() {
+        return getName();
+    }
+
+    static boolean bit(int state, int channel) {
+        return (state & (1 << channel)) != 0;
+    }
+
+    static final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+
+    // String.format is far too slow to call for every byte decoded
+    static String hex(int b) {
+        return new String(new char[] { '0', 'x', hexDigits[(b >> 4) & 0xF], hexDigits[b & 0xF] });
+    }
+
+    static String formatByte(int b) {
+        String hex = hex(b);
+        if (b >= 32 && b < 127) {
+            return hex + " '" + (char)b + "'";
+        }
+        return hex;
+    }
+}
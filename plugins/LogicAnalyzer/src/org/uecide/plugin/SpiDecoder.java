@@ -0,0 +1,98 @@
+package org.uecide.plugin;
+
+/* SPI, MSB first, in any of the four clock modes. MISO and CS are
+ * optional (-1). While CS is high the bus is idle. */
+
+public class SpiDecoder extends ProtocolDecoder {
+    int clk;
+    int mosi;
+    int miso;
+    int cs;
+    int mode;
+
+    int bits = 0;
+    int mosiValue = 0;
+    int misoValue = 0;
+    long byteStart = 0;
+
+    public SpiDecoder(int clk, int mosi, int miso, int cs, int mode) {
+        this.clk = clk;
+        this.mosi = mosi;
+        this.miso = miso;
+        this.cs = cs;
+        this.mode = mode & 3;
+    }
+
+    public String getName() {
+        return "SPI (mode " + mode + ")";
+    }
+
+    public int getAnnotationChannel() {
+        return mosi;
+    }
+
+    protected void resetState() {
+        bits = 0;
+        mosiValue = 0;
+        misoValue = 0;
+    }
+
+    public void decode(LogicCapture capture, double nsPerSample) {
+        int mask = 1 << clk;
+        if (cs >= 0) {
+            mask |= 1 << cs;
+        }
+
+        // Modes 0 and 3 sample on the rising edge, 1 and 2 on the falling
+        boolean sampleOnRise = (mode == 0) || (mode == 3);
+
+        while (true) {
+            int end = capture.size();
+            int edge = capture.nextEdge(position, end, mask);
+            if (edge < 0) {
+                position = end;
+                return;
+            }
+            position = edge + 1;
+
+            int prev = capture.getState(edge - 1);
+            int cur = capture.getState(edge);
+
+            if (cs >= 0) {
+                if (bit(cur, cs)) {
+                    resetState();
+                    continue;
+                }
+                if (bit(prev, cs)) {
+                    // Just selected
+                    resetState();
+                }
+            }
+
+            boolean clkBefore = bit(prev, clk);
+            boolean clkNow = bit(cur, clk);
+            if (clkBefore == clkNow || clkNow != sampleOnRise) {
+                continue;
+            }
+
+            long time = capture.getTime(edge);
+            if (bits == 0) {
+                byteStart = time;
+            }
+            mosiValue = (mosiValue << 1) | (bit(cur, mosi) ? 1 : 0);
+            if (miso >= 0) {
+                misoValue = (misoValue << 1) | (bit(cur, miso) ? 1 : 0);
+            }
+            bits++;
+
+            if (bits == 8) {
+                if (miso >= 0) {
+                    spans.add(byteStart, time, hex(mosiValue) + " / " + hex(misoValue));
+                } else {
+                    spans.add(byteStart, time, hex(mosiValue));
+                }
+                resetState();
+            }
+        }
+    }
+}
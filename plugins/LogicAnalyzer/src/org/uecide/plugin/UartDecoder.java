@@ -0,0 +1,68 @@
+package org.uecide.plugin;
+
+/* Asynchronous serial, 8 data bits, no parity, one stop bit, idle high. */
+
+public class UartDecoder extends ProtocolDecoder {
+    int channel;
+    int baud;
+
+    public UartDecoder(int channel, int baud) {
+        this.channel = channel;
+        this.baud = baud;
+    }
+
+    public String getName() {
+        return "UART (" + (channel + 1) + " @ " + baud + ")";
+    }
+
+    public int getAnnotationChannel() {
+        return channel;
+    }
+
+    protected void resetState() {
+    }
+
+    public void decode(LogicCapture capture, double nsPerSample) {
+        double samplesPerBit = 1000000000d / baud / nsPerSample;
+        int mask = 1 << channel;
+        long available = capture.getLastTimestamp();
+
+        while (true) {
+            int end = capture.size();
+            int edge = capture.nextEdge(position, end, mask);
+            if (edge < 0) {
+                // Nothing new; everything up to the end has been seen.
+                position = end;
+                return;
+            }
+
+            if (bit(capture.getState(edge), channel)) {
+                // A rising edge can't start a frame
+                position = edge + 1;
+                continue;
+            }
+
+            long start = capture.getTime(edge);
+            long frameEnd = start + (long)(samplesPerBit * 10);
+            if (frameEnd > available) {
+                // Wait until the whole frame has arrived
+                position = edge;
+                return;
+            }
+
+            int value = 0;
+            for (int i = 0; i < 8; i++) {
+                long t = start + (long)(samplesPerBit * (1.5 + i));
+                if (bit(capture.stateAt(t), channel)) {
+                    value |= (1 << i);
+                }
+            }
+
+            long stopTime = start + (long)(samplesPerBit * 9.5);
+            boolean framed = bit(capture.stateAt(stopTime), channel);
+            spans.add(start, frameEnd, framed ? formatByte(value) : formatByte(value) + " FE");
+
+            position = capture.ceilingIndex(stopTime);
+        }
+    }
+}
@@ -35,8 +35,12 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
 
     char[] codepage;
 
-    final static int fgShift = 16;
-    final static int bgShift = 20;
+    // Each cell's attributes are packed into a single byte:
+    // bits 0-2 foreground, bits 3-5 background, bit 6 bright, bit 7 dim.
+    final static int fgShift = 0;
+    final static int bgShift = 3;
+    final static int IS_BRIGHT = 0x40;
+    final static int IS_DIM    = 0x80;
 
     boolean disconnected = false;
     boolean autoCr = false;
@@ -71,16 +75,33 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
     MessageConsumer keyPressConsumer = null;
 
     int scrollbackSize = 2000;
-    int[][] scrollback = new int[2000][80];
+
+    // The scrollback is a circular buffer of lines. Logical line 0 (the
+    // oldest) lives at physical line ringHead, so scrolling just moves
+    // ringHead on by one instead of copying the whole buffer.
+    char[] scrollbackChars;
+    byte[] scrollbackAttrs;
+    int ringHead = 0;
 
     int topOfScreen = 2000 - 24;
     int scrollbackPosition = 0;
 
-    final int IS_BRIGHT = 0x100000;
-    final int IS_DIM    = 0x200000;
+    // Screen rows that need redrawing into the offscreen image, plus the
+    // number of whole-screen scrolls that haven't been applied to it yet.
+    boolean[] dirtyLines = new boolean[24];
+    boolean allDirty = true;
+    int pendingScroll = 0;
+
+    final Object bufferLock = new Object();
+
+    // Repaints are requested by the refresh timer at most once per frame
+    // rather than once for every chunk of incoming data.
+    volatile boolean contentChanged = false;
+    javax.swing.Timer refreshTimer = null;
 
     public JTerminal()
     {
+        allocateScrollback();
         offscreen = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
         graphic = offscreen.createGraphics();
         cursorPosition = new Point(0, 0);
@@ -120,13 +141,110 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         addMouseListener(this);
         addFocusListener(this);
         addMouseMotionListener(this);
+
+        refreshTimer = new javax.swing.Timer(getRefreshInterval(), new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                if (contentChanged) {
+                    contentChanged = false;
+                    repaint();
+                }
+            }
+        });
+        refreshTimer.setCoalesce(true);
+    }
+
+    static int getRefreshInterval()
+    {
+        try {
+            DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+            int rate = mode.getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN && rate > 0) {
+                return Math.max(1, 1000 / rate);
+            }
+        } catch (Exception e) {
+        }
+        return 1000 / 60;
+    }
+
+    public void addNotify()
+    {
+        super.addNotify();
+        refreshTimer.start();
+    }
+
+    public void removeNotify()
+    {
+        refreshTimer.stop();
+        super.removeNotify();
+    }
+
+    void allocateScrollback()
+    {
+        synchronized (bufferLock) {
+            scrollbackChars = new char[scrollbackSize * textSize.width];
+            scrollbackAttrs = new byte[scrollbackSize * textSize.width];
+            ringHead = 0;
+            topOfScreen = scrollbackSize - textSize.height;
+            dirtyLines = new boolean[textSize.height];
+            pendingScroll = 0;
+            allDirty = true;
+        }
     }
 
     public void setScrollbackSize(int s)
     {
+        if (s < textSize.height) {
+            s = textSize.height;
+        }
         scrollbackSize = s;
-        scrollback = new int[scrollbackSize][textSize.width];
-        topOfScreen = scrollbackSize - textSize.height;
+        allocateScrollback();
+    }
+
+    public int getScrollbackSize()
+    {
+        return scrollbackSize;
+    }
+
+    // Index of the first cell of a logical scrollback line
+    int lineOffset(int line)
+    {
+        int physical = ringHead + line;
+        if (physical >= scrollbackSize) {
+            physical -= scrollbackSize;
+        }
+        return physical * textSize.width;
+    }
+
+    int cellIndex(Point position)
+    {
+        return lineOffset(position.y + topOfScreen - scrollbackPosition) + position.x;
+    }
+
+    void markLineDirty(int line)
+    {
+        int row = line - topOfScreen + scrollbackPosition;
+        if (row >= 0 && row < textSize.height) {
+            dirtyLines[row] = true;
+        }
+    }
+
+    void markAllDirty()
+    {
+        synchronized (bufferLock) {
+            allDirty = true;
+        }
+    }
+
+    int currentAttributes()
+    {
+        int attr = (color << fgShift) | (background << bgShift);
+        if (brightness < 0) {
+            attr |= IS_DIM;
+        }
+        if (brightness > 0) {
+            attr |= IS_BRIGHT;
+        }
+        return attr;
     }
 
     public Point scrollbackAt(Point position)
@@ -141,52 +259,56 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
     }
 
     public char characterIn(Point position) {
-        return (char) (scrollback[position.y][position.x] & 0xFFFF);
+        return scrollbackChars[lineOffset(position.y) + position.x];
     }
 
     public char characterAt(Point position)
     {
-        return (char) (scrollback[position.y + topOfScreen - scrollbackPosition][position.x] & 0xFFFF);
+        return scrollbackChars[cellIndex(position)];
     }
 
-    public Color selectedForegroundAt(Point position)
+    Color foregroundOf(int attr, boolean selected)
     {
-        int character = scrollback[position.y + topOfScreen - scrollbackPosition][position.x];
-        int colorIndex = (character >> fgShift) & 0x07;
-        if ((character & IS_BRIGHT) != 0) {
-            return brightColors[7-colorIndex];
+        int colorIndex = (attr >> fgShift) & 0x07;
+        if (selected) {
+            colorIndex = 7 - colorIndex;
+        }
+        if ((attr & IS_BRIGHT) != 0) {
+            return brightColors[colorIndex];
         }
-        if ((character & IS_DIM) != 0) {
-            return dimColors[7-colorIndex];
+        if ((attr & IS_DIM) != 0) {
+            return dimColors[colorIndex];
         }
-        return normalColors[7-colorIndex];
+        return normalColors[colorIndex];
     }
 
-    public Color foregroundAt(Point position)
+    Color backgroundOf(int attr, boolean selected)
     {
-        int character = scrollback[position.y + topOfScreen - scrollbackPosition][position.x];
-        int colorIndex = (character >> fgShift) & 0x07;
-        if ((character & IS_BRIGHT) != 0) {
-            return brightColors[colorIndex];
-        }
-        if ((character & IS_DIM) != 0) {
-            return dimColors[colorIndex];
+        int colorIndex = (attr >> bgShift) & 0x07;
+        if (selected) {
+            colorIndex = 7 - colorIndex;
         }
         return normalColors[colorIndex];
     }
 
+    public Color selectedForegroundAt(Point position)
+    {
+        return foregroundOf(scrollbackAttrs[cellIndex(position)], true);
+    }
+
+    public Color foregroundAt(Point position)
+    {
+        return foregroundOf(scrollbackAttrs[cellIndex(position)], false);
+    }
+
     public Color selectedBackgroundAt(Point position)
     {
-        int character = scrollback[position.y + topOfScreen - scrollbackPosition][position.x];
-        int colorIndex = (character >> bgShift) & 0x07;
-        return normalColors[7-colorIndex];
+        return backgroundOf(scrollbackAttrs[cellIndex(position)], true);
     }
 
     public Color backgroundAt(Point position)
     {
-        int character = scrollback[position.y + topOfScreen - scrollbackPosition][position.x];
-        int colorIndex = (character >> bgShift) & 0x07;
-        return normalColors[colorIndex];
+        return backgroundOf(scrollbackAttrs[cellIndex(position)], false);
     }
 
     public void setKeypressConsumer(MessageConsumer m)
@@ -219,7 +341,7 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         fontDescent = fm.getMaxDescent();
         int width = fm.charWidth('W');
 
-        scrollback = new int[scrollbackSize][textSize.width];
+        allocateScrollback();
 
         characterSize = new Dimension(
             width,
@@ -229,8 +351,11 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
             characterSize.width * textSize.width,
             characterSize.height * textSize.height
         );
-        offscreen = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
-        graphic = offscreen.createGraphics();
+        synchronized (bufferLock) {
+            offscreen = new BufferedImage(screenSize.width, screenSize.height, BufferedImage.TYPE_INT_RGB);
+            graphic = offscreen.createGraphics();
+            allDirty = true;
+        }
     }
 
     public Color getFGColor()
@@ -251,9 +376,12 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
 
     public void clearScreen()
     {
-        for (int y = 0; y < textSize.height; y++) {
-            scrollUp();
+        synchronized (bufferLock) {
+            for (int y = 0; y < textSize.height; y++) {
+                scrollUp();
+            }
         }
+        contentChanged = true;
     }
 
     public Point graphicToChar(Point p) {
@@ -278,7 +406,10 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
     }
 
     public void setScrollbackPosition(int pos) {
-        scrollbackPosition = pos;
+        synchronized (bufferLock) {
+            scrollbackPosition = pos;
+            allDirty = true;
+        }
         repaint();
     }
 
@@ -301,44 +432,10 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
 
     public void paintComponent(Graphics screen) 
     {
-        int sbSi = pointToAbsolute(selectStart);
-        int sbEi = pointToAbsolute(selectEnd);
-
-        if (sbSi > sbEi) {
-            int t = sbSi;
-            sbSi = sbEi;
-            sbEi = t;
-        }
-
-        graphic.setFont(font);
-        graphic.setRenderingHint(
-        RenderingHints.KEY_TEXT_ANTIALIASING,
-        RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-
-        boolean inSelect = false;
-
-        for (int y = 0; y < textSize.height; y++) {
-            for (int x = 0; x < textSize.width; x++) {
-                Point myPos = new Point(x, y);
-                Point sbP = scrollbackAt(myPos);
-                int sbPi = pointToAbsolute(sbP);
-
-                if ((sbPi >= sbSi) && (sbPi <= sbEi)) {
-                    inSelect = true;
-                } else {
-                    inSelect = false;
-                }
-                char c = characterAt(myPos);
-                Point cPos = charToGraphic(myPos);
-                graphic.setColor(inSelect ? selectedBackgroundAt(myPos) : backgroundAt(myPos));
-                graphic.fillRect(cPos.x, cPos.y, characterSize.width, characterSize.height);
-                graphic.setColor(inSelect ? selectedForegroundAt(myPos) : foregroundAt(myPos));
-                String text = Character.toString(c);
-                cPos = charToGraphicBaseline(myPos);
-                graphic.drawString(text, cPos.x, cPos.y);
-            }
+        synchronized (bufferLock) {
+            updateOffscreen();
+            screen.drawImage(offscreen, 0, 0, null);
         }
-        screen.drawImage(offscreen, 0, 0, null);
         if (cursorShow) {
             Point scrolledCursorPosition = new Point(cursorPosition.x, cursorPosition.y + scrollbackPosition);
             if (scrolledCursorPosition.y < textSize.height) {
@@ -369,39 +466,91 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         }
     }
 
-    public void scrollUp()
+    // Bring the offscreen image up to date with the scrollback. Pending
+    // scrolls are applied with a single block copy and then only the
+    // lines that have changed are drawn again.
+    void updateOffscreen()
     {
-        for (int y = 0; y < scrollbackSize - 1; y++) {
-            for (int x = 0; x < textSize.width; x++) {
-                scrollback[y][x] = scrollback[y+1][x];
-            }
+        if (allDirty || pendingScroll >= textSize.height) {
+            Arrays.fill(dirtyLines, true);
+            allDirty = false;
+        } else if (pendingScroll > 0) {
+            int shift = pendingScroll * characterSize.height;
+            graphic.copyArea(0, shift, screenSize.width, screenSize.height - shift, 0, -shift);
         }
-        int bCol = 32;
-        bCol |= color << fgShift;
-        bCol |= background << bgShift;
-        if (brightness < 0) {
-            bCol |= IS_DIM;
+        pendingScroll = 0;
+
+        int sbSi = pointToAbsolute(selectStart);
+        int sbEi = pointToAbsolute(selectEnd);
+
+        if (sbSi > sbEi) {
+            int t = sbSi;
+            sbSi = sbEi;
+            sbEi = t;
         }
-        if (brightness > 0) {
-            bCol |= IS_BRIGHT;
+
+        graphic.setFont(font);
+        graphic.setRenderingHint(
+        RenderingHints.KEY_TEXT_ANTIALIASING,
+        RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        for (int y = 0; y < textSize.height; y++) {
+            if (dirtyLines[y]) {
+                drawLine(y, sbSi, sbEi);
+                dirtyLines[y] = false;
+            }
         }
+    }
+
+    void drawLine(int y, int sbSi, int sbEi)
+    {
+        int line = y + topOfScreen - scrollbackPosition;
+        int offset = lineOffset(line);
+        int top = y * characterSize.height;
+        int baseline = top + characterSize.height - fontDescent;
+
         for (int x = 0; x < textSize.width; x++) {
-            scrollback[scrollbackSize - 1][x] = bCol;
+            int sbPi = line * textSize.width + x;
+            boolean inSelect = (sbPi >= sbSi) && (sbPi <= sbEi);
+            int attr = scrollbackAttrs[offset + x];
+            int left = x * characterSize.width;
+
+            graphic.setColor(backgroundOf(attr, inSelect));
+            graphic.fillRect(left, top, characterSize.width, characterSize.height);
+
+            char c = scrollbackChars[offset + x];
+            if (c != 0 && c != ' ') {
+                graphic.setColor(foregroundOf(attr, inSelect));
+                graphic.drawChars(scrollbackChars, offset + x, 1, left, baseline);
+            }
         }
     }
 
-    public void drawCharacter(char c)
+    public void scrollUp()
     {
-        int bCol = codepage[((int)c) & 0xFF];
-        bCol |= color << fgShift;
-        bCol |= background << bgShift;
-        if (brightness < 0) {
-            bCol |= IS_DIM;
-        }
-        if (brightness > 0) {
-            bCol |= IS_BRIGHT;
+        synchronized (bufferLock) {
+            // The oldest line is recycled as the new bottom line.
+            int offset = ringHead * textSize.width;
+            Arrays.fill(scrollbackChars, offset, offset + textSize.width, ' ');
+            Arrays.fill(scrollbackAttrs, offset, offset + textSize.width, (byte)currentAttributes());
+            ringHead++;
+            if (ringHead == scrollbackSize) {
+                ringHead = 0;
+            }
+
+            System.arraycopy(dirtyLines, 1, dirtyLines, 0, textSize.height - 1);
+            dirtyLines[textSize.height - 1] = true;
+            pendingScroll++;
         }
-        scrollback[cursorPosition.y + topOfScreen][cursorPosition.x] = bCol;
+    }
+
+    public void drawCharacter(char c)
+    {
+        int line = cursorPosition.y + topOfScreen;
+        int index = lineOffset(line) + cursorPosition.x;
+        scrollbackChars[index] = codepage[((int)c) & 0xFF];
+        scrollbackAttrs[index] = (byte)currentAttributes();
+        markLineDirty(line);
         cursorPosition.x++;
         if (cursorPosition.x == textSize.width) {
             cursorPosition.x = 0;
@@ -426,6 +575,14 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         if (m == null) {
             return;
         }
+        synchronized (bufferLock) {
+            parseMessage(m);
+        }
+        contentChanged = true;
+    }
+
+    void parseMessage(String m)
+    {
         char[] chars = m.toCharArray();
         for (char c : chars) {
             switch (c) {
@@ -478,8 +635,6 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
                     }
             }
         }
-        repaint();
-        this.getParent().repaint();
     }
 
     public void executeEscapeSequence(String sequence)
@@ -731,6 +886,8 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
                     copyContent();
                     selectStart = null;
                     selectEnd = null;
+                    markAllDirty();
+                    repaint();
                 }
             });
             menu.add(item);
@@ -749,6 +906,7 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         requestFocusInWindow();
         selectStart = null;
         selectEnd = null;
+        markAllDirty();
         repaint();
     }
 
@@ -769,6 +927,7 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
         if (e.getButton() == 1) {
             selectStart = scrollbackAt(graphicToChar(e.getPoint()));
             selectEnd = scrollbackAt(graphicToChar(e.getPoint()));
+            markAllDirty();
             repaint();
         }
     }
@@ -779,6 +938,7 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
     public void mouseDragged(MouseEvent e) {
         if (selectStart != null) {
             selectEnd = scrollbackAt(graphicToChar(e.getPoint()));
+            markAllDirty();
             repaint();
         }
     }
@@ -835,7 +995,6 @@ public class JTerminal extends JComponent implements KeyListener,MouseListener,F
 
     public void setSize(Dimension d) {
         textSize = d;
-        topOfScreen = 2000 - d.height;
         setDimension();
     }
 
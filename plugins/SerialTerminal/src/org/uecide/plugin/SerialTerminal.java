@@ -21,7 +21,7 @@ import jssc.*;
 import say.swing.*;
 
 
-public class SerialTerminal extends Plugin implements SerialPortEventListener,MessageConsumer
+public class SerialTerminal extends Plugin implements SerialPortEventListener,MessageConsumer,CommsListener
 {
     public static HashMap<String, String> pluginInfo = null;
     public static void setInfo(HashMap<String, String>info) { pluginInfo = info; }
@@ -34,11 +34,17 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
     JCheckBox showCursor;
     JCheckBox localEcho;
     JCheckBox lineEntry;
+    JCheckBox captureData;
+    JButton replayButton;
     JScrollBar scrollbackBar;
 
+    volatile SerialCapture capture = null;
+    CaptureReplayer replayer = null;
+
     static JTextField fontSizeField;
     static JTextField widthField;
     static JTextField heightField;
+    static JTextField scrollbackField;
     static JCheckBox  autoCrIn;
     static JCheckBox  autoCrOut;
 
@@ -70,6 +76,7 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
         Debug.message(this + ": Opening serial terminal on port " + serialPort);
 
         win = new JFrame(Translate.t("Serial Terminal"));
+        replayer = new CaptureReplayer(win, editor, this);
         win.getContentPane().setLayout(new BorderLayout());
         win.setResizable(false);
 
@@ -104,17 +111,20 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
         }
 
         term.setSize(new Dimension(width, height));
+        term.setScrollbackSize(getScrollbackPreference());
         term.setAutoCr(Base.preferences.getBoolean("serial.autocr_in"));
 
+        final int scrollbackSize = term.getScrollbackSize();
+
         line.add(term);
         scrollbackBar = new JScrollBar(JScrollBar.VERTICAL);
         scrollbackBar.setMinimum(height);
-        scrollbackBar.setMaximum(2000 + height);
-        scrollbackBar.setValue(2000);
+        scrollbackBar.setMaximum(scrollbackSize + height);
+        scrollbackBar.setValue(scrollbackSize);
         scrollbackBar.setVisibleAmount(height);
         scrollbackBar.addAdjustmentListener(new AdjustmentListener() {
             public void adjustmentValueChanged(AdjustmentEvent e) {
-                term.setScrollbackPosition(2000 - scrollbackBar.getValue());
+                term.setScrollbackPosition(scrollbackSize - scrollbackBar.getValue());
             }
         });
         line.add(scrollbackBar);
@@ -189,8 +199,28 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
             }
         });
         
+        captureData = new JCheckBox(Translate.t("Capture"));
+        captureData.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                if (captureData.isSelected()) {
+                    startCapture();
+                } else {
+                    stopCapture();
+                }
+            }
+        });
+
+        replayButton = new JButton(Translate.t("Replay..."));
+        replayButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                startReplay();
+            }
+        });
+
         line.add(localEcho);
         line.add(showCursor);
+        line.add(captureData);
+        line.add(replayButton);
         box.add(line);
 
         entryLineArea = Box.createHorizontalBox();
@@ -278,6 +308,8 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
     public void close()
     {
         ready = false;
+        stopCapture();
+        stopReplay();
         for( ActionListener al : baudRates.getActionListeners() ) {
             baudRates.removeActionListener( al );
         }
@@ -341,6 +373,14 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
         }
     }
 
+    static int getScrollbackPreference() {
+        try {
+            return Integer.parseInt(Preferences.get("serial.scrollback"));
+        } catch (Exception e) {
+            return 10000;
+        }
+    }
+
     public static void populatePreferences(JPanel p) {
         GridBagConstraints c = new GridBagConstraints();
         c.fill = GridBagConstraints.HORIZONTAL;
@@ -419,6 +459,24 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
         s.width = 40;
         heightField.setMaximumSize(s);
 
+        label = new JLabel(Base.i18n.string("prefs.serial.scrollback") + ": ");
+        c.gridx = 0;
+        c.gridy++;
+        p.add(label, c);
+
+        c.gridx = 0;
+        c.gridy++;
+        b = Box.createHorizontalBox();
+        scrollbackField = new JTextField(8);
+        scrollbackField.setText(Integer.toString(getScrollbackPreference()));
+        b.add(scrollbackField);
+        b.add(Box.createHorizontalGlue());
+        p.add(b, c);
+
+        s = scrollbackField.getMaximumSize();
+        s.width = 80;
+        scrollbackField.setMaximumSize(s);
+
         c.gridy++;
         c.gridx = 0;
         JLabel tl = new JLabel(Translate.t("Add CR to LF: "));
@@ -451,6 +509,14 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
         Base.preferences.set("serial.width", Integer.toString(w));
         Base.preferences.set("serial.height", Integer.toString(h));
 
+        int sb = 10000;
+        try {
+            sb = Integer.parseInt(scrollbackField.getText().trim());
+        } catch (Exception e) {
+            sb = 10000;
+        }
+        Base.preferences.set("serial.scrollback", Integer.toString(sb));
+
         Base.preferences.setBoolean("serial.autocr_in", autoCrIn.isSelected());
         Base.preferences.setBoolean("serial.autocr_out", autoCrOut.isSelected());
             
@@ -478,19 +544,105 @@ public class SerialTerminal extends Plugin implements SerialPortEventListener,Me
                 if (bytes == null) {
                     return;
                 }
-                String s = "";
-                for (byte b : bytes) {
-                    int i = ((int)b) & 0xFF;
-                    s += (char)i;
+                term.message(new String(bytes, "ISO-8859-1"));
+                SerialCapture c = capture;
+                if (c != null) {
+                    try {
+                        c.write(bytes);
+                    } catch (Exception ex) {
+                        captureFailed(c, ex);
+                    }
                 }
-                term.message(s);
-                //term.message(port.readString());
             } catch (Exception ex) {
                 editor.error(ex);
             }
         }
     }
 
+    public void commsDataReceived(byte[] data) {
+        try {
+            term.message(new String(data, "ISO-8859-1"));
+        } catch (Exception ex) {
+            editor.error(ex);
+        }
+    }
+
+    public void commsEventReceived(CommsEvent event) {
+    }
+
+    void startCapture() {
+        FileDialog fd = new FileDialog(win, Translate.t("Capture To File"), FileDialog.SAVE);
+        fd.setVisible(true);
+        String dir = fd.getDirectory();
+        String name = fd.getFile();
+        if (dir == null || name == null) {
+            captureData.setSelected(false);
+            return;
+        }
+        try {
+            capture = new SerialCapture(new File(dir, name), baudRate);
+        } catch (Exception e) {
+            editor.error("Unable to start capture:");
+            editor.error(e);
+            captureData.setSelected(false);
+        }
+    }
+
+    // Take the capture out of use if it is still the current one. Whoever
+    // gets it closes it, so it is only ever closed and reported once.
+    synchronized boolean takeCapture(SerialCapture c) {
+        if (c == null || capture != c) {
+            return false;
+        }
+        capture = null;
+        return true;
+    }
+
+    // Runs on the serial thread when the capture file can't be written
+    void captureFailed(SerialCapture c, Exception ex) {
+        if (!takeCapture(c)) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (Exception ignored) {
+        }
+        editor.error("Capture stopped:");
+        editor.error(ex);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (captureData != null) {
+                    captureData.setSelected(false);
+                }
+            }
+        });
+    }
+
+    void stopCapture() {
+        SerialCapture c = capture;
+        if (!takeCapture(c)) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (Exception e) {
+            editor.error(e);
+        }
+        if (captureData != null) {
+            captureData.setSelected(false);
+        }
+    }
+
+    void startReplay() {
+        replayer.start();
+    }
+
+    void stopReplay() {
+        if (replayer != null) {
+            replayer.stop();
+        }
+    }
+
     public void populateMenu(JMenu menu, int flags) {
         if (flags == (Plugin.MENU_TOOLS | Plugin.MENU_MID)) {
             JMenuItem item = new JMenuItem("Serial Terminal");
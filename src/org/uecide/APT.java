@@ -49,6 +49,8 @@ public class APT {
 
     ArrayList<Source>sources = new ArrayList<Source>();
 
+    DependencyGraph graph = null;
+
     public APT(String rootPath) {
         root = new File(rootPath);
         initRepository();
@@ -162,6 +164,7 @@ public class APT {
         packagesFolder = new File(dbFolder, "packages");
 
         makeTree();
+        PackageTransaction.recover(this);
         sources = new ArrayList<Source>();
 
         loadSources(new File(dbFolder, "sources.db"));
@@ -178,8 +181,8 @@ public class APT {
 
         packagesDB = new File(dbFolder, "packages.db");
 
-        cachedPackages = loadPackages(packagesDB);
-        installedPackages = new HashMap<String, Package>();
+        HashMap<String, Package> cached = loadPackages(packagesDB);
+        HashMap<String, Package> installed = new HashMap<String, Package>();
         File[] pks = packagesFolder.listFiles();
         for (File pk : pks) {
             if (pk.isDirectory()) {
@@ -187,11 +190,21 @@ public class APT {
                     File pf = new File(pk, "control");
                     if (pf.exists()) {
                         HashMap<String, Package> ap = loadPackages(pf);
-                        installedPackages.putAll(ap);
+                        installed.putAll(ap);
                     }
                 }
             }
         }
+        setPackages(cached, installed);
+    }
+
+    // Swap in freshly loaded package lists. The graph is dropped under the
+    // same lock getGraph() builds it under, so a graph built from the old
+    // lists can't outlive them.
+    synchronized void setPackages(HashMap<String, Package> cached, HashMap<String, Package> installed) {
+        cachedPackages = cached;
+        installedPackages = installed;
+        graph = null;
     }
 
     public HashMap<String, Package> loadPackages(File f) {
@@ -270,7 +283,7 @@ public class APT {
     }
 
     public void update(AptPercentageListener pct) {
-        cachedPackages = new HashMap<String, Package>();
+        HashMap<String, Package> cached = new HashMap<String, Package>();
         int num = sources.size();
         int done = 0;
         for (Source s : sources) {
@@ -281,21 +294,22 @@ public class APT {
             }
 
             for (Package p : packages) {
-                if (cachedPackages.get(p.getName()) != null) {
-                    Version existing = cachedPackages.get(p.getName()).getVersion();
+                if (cached.get(p.getName()) != null) {
+                    Version existing = cached.get(p.getName()).getVersion();
                     Version testing = p.getVersion();
                     if (testing.compareTo(existing) > 0) {
-                        cachedPackages.put(p.getName(), p);
+                        cached.put(p.getName(), p);
                     } else {
-                        Package e = cachedPackages.get(p.getName());
+                        Package e = cached.get(p.getName());
                         e.addRepository(s.getRoot());
-                        cachedPackages.put(e.getName(), e); // Is this needed? I'm never sure with Java
+                        cached.put(e.getName(), e); // Is this needed? I'm never sure with Java
                     }
                 } else {
-                    cachedPackages.put(p.getName(), p);
+                    cached.put(p.getName(), p);
                 }
             }
         }
+        setPackages(cached, installedPackages);
         save();
     }
 
@@ -361,35 +375,16 @@ public class APT {
         return installedPackages.get(name);
     }
 
-    public Package[] resolveDepends(Package top) {
-        ArrayDeque<String> depList = new ArrayDeque<String>();
-        HashMap<String, Package> pkgList = new HashMap<String, Package>();
-
-        String[] deps = top.getDependencies(true);
-        if (deps != null) {
-            for (String dep : deps) {
-                depList.add(dep);
-            }
-
-            String adep;
-            while ((adep = depList.poll()) != null) {
-                Package foundPkg = cachedPackages.get(adep);
-                if (foundPkg == null) {
-                    System.err.println("Broken dependency: " + adep);
-                } else {
-                    if (pkgList.get(adep) == null) {
-                        pkgList.put(adep, foundPkg);
-                        String[] subDeps = foundPkg.getDependencies(true);
-                        if (subDeps != null) {
-                            for (String dep : subDeps) {
-                                depList.add(dep);
-                            }
-                        }
-                    }
-                }
-            }
+    // Built on first use after the package lists change
+    public synchronized DependencyGraph getGraph() {
+        if (graph == null) {
+            graph = new DependencyGraph(cachedPackages, installedPackages);
         }
-        return pkgList.values().toArray(new Package[0]);
+        return graph;
+    }
+
+    public Package[] resolveDepends(Package top) {
+        return getGraph().closure(top);
     }
 
     public boolean isUpgradable(Package p) {
@@ -420,70 +415,30 @@ public class APT {
         if (!isUpgradable(p)) {
             return;
         }
-        Package[] deps = resolveDepends(p);
-        for (Package dep : deps) {
-            if (!isInstalled(dep) || isUpgradable(dep)) {
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep);
-                    return;
-                }
-            }
-        }
-        if (!p.fetchPackage(cacheFolder)) {
-            System.err.println("Error downloading " + p);
-        }
-
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                dep.extractPackage(cacheFolder, packagesFolder, root);
-            } else if(isUpgradable(dep)) {
-                uninstallPackage(dep, true);
-                dep.extractPackage(cacheFolder, packagesFolder, root);
-            }
-        }
-        uninstallPackage(p, true);
-        p.extractPackage(cacheFolder, packagesFolder, root);
-        initRepository();
+        installPackages(new Package[] { p });
     }
+
     public void installPackage(Package p) {
 System.out.println("Installing " + p.getName());
-        Package[] deps = resolveDepends(p);
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                dep.attachPercentageListener(p.getPercentageListener());
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep);
-                    return;
-                }
-                dep.detachPercentageListener();
-            }
-        }
-        if (!p.fetchPackage(cacheFolder)) {
-            System.err.println("Error downloading " + p);
-        }
+        installPackages(new Package[] { p });
+    }
 
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                dep.attachPercentageListener(p.getPercentageListener());
-                dep.extractPackage(cacheFolder, packagesFolder, root);
-                dep.detachPercentageListener();
-            }
-        }
-        if (isInstalled(p)) {
-            uninstallPackage(p, true);
-        }
-        String reps[] = p.getReplaces();
-        if (reps != null) {
-            for (String rep : reps) {
-System.err.println("Replace: " + rep);
-                Package rp = getPackage(rep);
-                if (isInstalled(rp)) {
-                    uninstallPackage(rp, true);
-                }
-            }
+    // Install (or upgrade) a set of packages and everything they need
+    // as a single transaction. Either all of them end up installed or,
+    // if anything fails, the tree is left as it was.
+    public boolean installPackages(Package[] pkgs) {
+        return installPackages(pkgs, null);
+    }
+
+    public boolean installPackages(Package[] pkgs, PrintStream progress) {
+        if (pkgs.length == 0) {
+            return true;
         }
-        p.extractPackage(cacheFolder, packagesFolder, root);
-        initRepository();
+        PackageTransaction t = new PackageTransaction(this);
+        t.add(pkgs);
+        t.setPercentageListener(pkgs[0], pkgs[0].getPercentageListener());
+        t.setProgressStream(progress);
+        return t.run();
     }
 
     public Package[] getUpgradeList() {
@@ -505,22 +460,7 @@ System.err.println("Replace: " + rep);
     }
 
     public Package[] getDependants(Package p) {
-        ArrayList<Package> out = new ArrayList<Package>();
-
-        for (Package ip : installedPackages.values()) {
-            String[] deps = ip.getDependencies(false);
-            if (deps == null) {
-                continue;
-            }
-            for (String dep : deps) {
-                if (dep.equals(p.getName())) {
-                    if (out.indexOf(ip) == -1) {
-                        out.add(ip);
-                    }
-                }
-            }
-        }
-        return out.toArray(new Package[0]);
+        return getGraph().getDependants(p.getName());
     }
 
     public void recursivelyUninstallPackage(Package p) {
@@ -669,60 +609,26 @@ System.err.println("Replace: " + rep);
 
         boolean madeChanges = false;
 
-        // First off, do the packages that want to be installed require any other packages to be installed?
-        for (Package p : install) {
-            String[] deps = p.getDependencies(false);
-            for (String dep : deps) {
-                Package inst = installedPackages.get(dep);
-                // If it's not installed then add it to the install list.
-                if (inst == null) {
-                    inst = cachedPackages.get(dep);
-                    if (inst == null) {
-                        System.err.println("Error: Unresolved dependency: " + dep);
-                    } else {
-                        install.add(inst);
-                        madeChanges = true;
-                    }
-                } else {
-                    // Is the dependency up to date? If not then add it to the upgrade list
-                    Version installedVersion = inst.getVersion();
-                    Version availableVersion = cachedPackages.get(dep).getVersion();
-                    if (availableVersion.compareTo(installedVersion) > 0) {
-                        upgrade.add(inst);
-                        madeChanges = true;
-                    }
-                }
-            }
-        }
+        ArrayList<Package> wanted = new ArrayList<Package>(install);
+        wanted.addAll(upgrade);
 
-        // Now we'll do the same for packages that want to be upgraded. Check they have all their dependencies
-        // and that they are all up to date.
-        for (Package p : upgrade) {
-            String[] deps = p.getDependencies(false);
-            for (String dep : deps) {
-                Package inst = installedPackages.get(dep);
-                // If it's not installed then add it to the install list.
+        for (Package p : wanted) {
+            for (Package dep : resolveDepends(p)) {
+                Package inst = installedPackages.get(dep.getName());
                 if (inst == null) {
-                    inst = cachedPackages.get(dep);
-                    if (inst == null) {
-                        System.err.println("Error: Unresolved dependency: " + dep);
-                    } else {
-                        install.add(inst);
-                        madeChanges = true;
-                    }
-                } else {
-                    // Is the dependency up to date? If not then add it to the upgrade list
-                    Version installedVersion = inst.getVersion();
-                    Version availableVersion = cachedPackages.get(dep).getVersion();
-                    if (availableVersion.compareTo(installedVersion) > 0) {
-                        upgrade.add(inst);
+                    // If it's not installed then add it to the install list.
+                    if (!install.contains(dep)) {
+                        install.add(dep);
                         madeChanges = true;
                     }
+                } else if (isUpgradable(dep) && !upgrade.contains(inst)) {
+                    // If it's out of date then add it to the upgrade list
+                    upgrade.add(inst);
+                    madeChanges = true;
                 }
             }
         }
         return madeChanges;
-        
     }
 
     public Collection<Package> getInstalledPackages() {
@@ -233,6 +233,11 @@ public class Base implements AptPercentageListener {
         cli.addParameter("clean",               "",         Boolean.class,  "cli.help.clean");
         cli.addParameter("compile",             "",         Boolean.class,  "cli.help.compile");
         cli.addParameter("upload",              "",         Boolean.class,  "cli.help.upload");
+        cli.addParameter("diagnostics",         "file",     String.class,   "cli.help.diagnostics");
+        cli.addParameter("size-report",         "file",     String.class,   "cli.help.size-report");
+        cli.addParameter("size-baseline",       "file",     String.class,   "cli.help.size-baseline");
+        cli.addParameter("trace",               "file",     String.class,   "cli.help.trace");
+        cli.addParameter("trace-summary",       "",         Boolean.class,  "cli.help.trace-summary");
         cli.addParameter("board",               "name",     String.class,   "cli.help.board");
         cli.addParameter("core",                "name",     String.class,   "cli.help.core");
         cli.addParameter("compiler",            "name",     String.class,   "cli.help.compiler");
@@ -270,6 +275,16 @@ public class Base implements AptPercentageListener {
 
         cli.addParameter("locale",              "name",     String.class,   "cli.help.locale");
 
+        cli.addParameter("daemon",              "",         Boolean.class,  "cli.help.daemon");
+        cli.addParameter("daemon-port",         "port",     Integer.class,  "cli.help.daemon-port");
+        cli.addParameter("use-daemon",          "",         Boolean.class,  "cli.help.use-daemon");
+        cli.addParameter("stop-daemon",         "",         Boolean.class,  "cli.help.stop-daemon");
+
+        cli.addParameter("matrix",              "file",     String.class,   "cli.help.matrix");
+        cli.addParameter("matrix-jobs",         "num",      Integer.class,  "cli.help.matrix-jobs");
+        cli.addParameter("matrix-report",       "file",     String.class,   "cli.help.matrix-report");
+        cli.addParameter("matrix-junit",        "file",     String.class,   "cli.help.matrix-junit");
+
         String[] argv = cli.process(args);
 
         Authenticator.setDefault(new Authenticator() {
@@ -298,7 +313,7 @@ public class Base implements AptPercentageListener {
 
         boolean doExit = false;
 
-        if (cli.isSet("mkmf")) {
+        if (cli.isSet("mkmf") || cli.isSet("daemon") || cli.isSet("matrix")) {
             headless = true;
         }
 
@@ -355,6 +370,12 @@ public class Base implements AptPercentageListener {
 
         preferences = new PropertyFile(getDataFile("preferences.txt"), "/org/uecide/config/preferences.txt");
         preferences.setPlatformAutoOverride(true);
+        preferences.setJournal(preferences.getBoolean("editor.save.journal"));
+
+        Debug.setLevel(preferences.getInteger("debug.log.level", Debug.DEBUG));
+        if (preferences.getBoolean("debug.log.file")) {
+            Debug.setLogFile(getDataFile("debug.log"), preferences.getInteger("debug.log.size", 1024) * 1024L);
+        }
 
         platform.setSettingsFolderEnvironmentVariable();
 
@@ -370,6 +391,24 @@ public class Base implements AptPercentageListener {
             setOfflineMode();
         }
         
+        // Hand the work to a running daemon if there is one, rather than
+        // loading everything ourselves.
+        if (cli.isSet("stop-daemon")) {
+            int ret = BuildDaemon.request("stop", new String[0]);
+            if (ret == -1) {
+                System.err.println(i18n.string("err.daemon.unavailable"));
+            }
+            System.exit(ret == -1 ? 1 : 0);
+        }
+
+        if (cli.isSet("use-daemon") && (cli.isSet("compile") || cli.isSet("upload"))) {
+            int ret = BuildDaemon.request("build", BuildDaemon.clientArgs(args));
+            if (ret != -1) {
+                System.exit(ret);
+            }
+            System.err.println(i18n.string("err.daemon.unavailable"));
+        }
+
         if (cli.isSet("update")) {
             PluginManager pm = new PluginManager();
             APT apt = pm.getApt();
@@ -382,10 +421,12 @@ public class Base implements AptPercentageListener {
             APT apt = pm.getApt();
             Package[] pl = apt.getUpgradeList();
             for (Package p : pl) {
-                System.out.print(i18n.string("msg.upgrading", p.getName()));
-                p.attachPercentageListener(this);
-                apt.upgradePackage(p);
-                System.out.println("..." + i18n.string("msg.done"));
+                System.out.println(i18n.string("msg.upgrading", p.getName()));
+            }
+            if (apt.installPackages(pl, System.out)) {
+                System.out.println(i18n.string("msg.done"));
+            } else {
+                System.err.println(i18n.string("err.pkginstall"));
             }
             doExit = true;
         }
@@ -399,17 +440,25 @@ public class Base implements AptPercentageListener {
                 doExit = true;
             }
 
-            Package p = apt.getPackage(packageName);
-            if (p == null) {
-                System.err.println(i18n.string("err.pkgnotfound", packageName));
-                System.err.println(i18n.string("msg.usesearch"));
-                doExit = true;
+            // Several packages can be given, separated by commas, and are
+            // installed together.
+            ArrayList<Package> pl = new ArrayList<Package>();
+            for (String name : packageName.split(",")) {
+                Package p = apt.getPackage(name.trim());
+                if (p == null) {
+                    System.err.println(i18n.string("err.pkgnotfound", name.trim()));
+                    System.err.println(i18n.string("msg.usesearch"));
+                    System.exit(1);
+                }
+                System.out.println(i18n.string("msg.installing", p.getName()));
+                pl.add(p);
             }
 
-            System.out.println(i18n.string("msg.installing", p.getName()));
-            p.attachPercentageListener(this);
-            apt.installPackage(p);
-            System.out.println(i18n.string("msg.done"));
+            if (apt.installPackages(pl.toArray(new Package[0]), System.out)) {
+                System.out.println(i18n.string("msg.done"));
+            } else {
+                System.err.println(i18n.string("err.pkginstall"));
+            }
             doExit = true;
         }
 
@@ -724,6 +773,11 @@ public class Base implements AptPercentageListener {
 
         loadIconSets();
         loadThemes();
+        org.uecide.editors.KeywordTokenMaker.register();
+
+        if (!headless) {
+            IconCache.preload();
+        }
 
         if(!headless) splashScreen.setMessage(i18n.string("splash.msg.libraries"), 70);
 
@@ -748,6 +802,38 @@ public class Base implements AptPercentageListener {
             System.exit(0);
         }
 
+        if (cli.isSet("daemon")) {
+            try {
+                BuildDaemon daemon = new BuildDaemon(cli.isSet("daemon-port") ? cli.getInteger("daemon-port") : 0);
+                daemon.run();
+            } catch (IOException e) {
+                error(e);
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        if (cli.isSet("matrix")) {
+            try {
+                MatrixBuild matrix = new MatrixBuild(new File(cli.getString("matrix")));
+                if (cli.isSet("matrix-jobs")) {
+                    matrix.setThreads(cli.getInteger("matrix-jobs"));
+                }
+                boolean ok = matrix.run();
+                matrix.printSummary(System.out);
+                if (cli.isSet("matrix-report")) {
+                    matrix.writeReport(new File(cli.getString("matrix-report")));
+                }
+                if (cli.isSet("matrix-junit")) {
+                    matrix.writeJUnit(new File(cli.getString("matrix-junit")));
+                }
+                System.exit(ok ? MatrixBuild.EXIT_OK : MatrixBuild.EXIT_FAILED);
+            } catch (Exception e) {
+                error(e);
+                System.exit(1);
+            }
+        }
+
         boolean opened = false;
 
         // Check if any files were passed in on the command line
@@ -943,6 +1029,25 @@ System.err.println("Showing changelog as I don't know better");
             s.loadConfig();
         }
 
+        applyPresets(s);
+
+        if(e == null) {
+            if (!runHeadless(s)) {
+                System.exit(10);
+            }
+        } else {
+            if(autoProgram) {
+                e.program();
+            } else if(autoCompile) {
+                e.compile();
+            }
+        }
+
+        return true;
+    }
+
+    /*! Apply the board, core etc. given on the command line to a sketch */
+    static void applyPresets(Sketch s) {
         if(presetPort != null) {
             s.setDevice(presetPort);
         }
@@ -970,28 +1075,15 @@ System.err.println("Showing changelog as I don't know better");
         if (cleanBuild) {
             s.purgeBuildFiles();
         }
+    }
 
-        if(e == null) {
-            if(autoProgram) {
-                if(!s.build()) {
-                    System.exit(10);
-                }
-                if (!s.upload()) {
-                    System.exit(10);
-                }
-            } else if(autoCompile) {
-                if (!s.build()) {
-                    System.exit(10);
-                }
-            }
-        } else {
-            if(autoProgram) {
-                e.program();
-            } else if(autoCompile) {
-                e.compile();
-            }
+    /*! Compile, and upload if asked to, a sketch that has no editor. Returns false on failure. */
+    static boolean runHeadless(Sketch s) {
+        if(autoProgram) {
+            return s.buildAndUpload();
+        } else if(autoCompile) {
+            return s.build();
         }
-
         return true;
     }
 
@@ -1779,7 +1871,13 @@ System.err.println("Showing changelog as I don't know better");
     * Get an image associated with the current color theme.
     */
     public static Image getThemeImage(String name, Component who) {
-        return getLibImage("theme/" + name, who);
+        String key = "theme:" + name;
+        Image image = (Image)IconCache.get(key);
+        if (image == null) {
+            image = getLibImage("theme/" + name, who);
+            IconCache.put(key, image);
+        }
+        return image;
     }
 
 
@@ -2166,6 +2264,7 @@ System.err.println("Showing changelog as I don't know better");
     }
 
     public static void applyPreferences() {
+        IconCache.clear();
         setLookAndFeel();
         Editor.updateLookAndFeel();
     }
@@ -2344,6 +2443,26 @@ System.err.println("Showing changelog as I don't know better");
         }
     }
 
+    // Release a memory mapped buffer now rather than whenever it gets
+    // garbage collected. There's no public way of doing it in this Java
+    // version, so ask the buffer's cleaner if it has one.
+    public static void unmapBuffer(java.nio.ByteBuffer b) {
+        if (b == null || !b.isDirect()) {
+            return;
+        }
+        try {
+            Method cm = b.getClass().getMethod("cleaner");
+            cm.setAccessible(true);
+            Object cleaner = cm.invoke(b);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+        }
+    }
+
     public static byte[] loadBytesRaw(File file) {
         try {
             int size = (int) file.length();
@@ -2515,7 +2634,17 @@ System.err.println("Showing changelog as I don't know better");
             loc = Base.class.getResource("/org/uecide/icons/unknown.png");
         }
 
-        return new ImageIcon(loc);
+        return loadIconFromURL(loc);
+    }
+
+    static ImageIcon loadIconFromURL(URL loc) {
+        String key = "url:" + loc.toString();
+        ImageIcon icon = (ImageIcon)IconCache.get(key);
+        if (icon == null) {
+            icon = new ImageIcon(loc);
+            IconCache.put(key, icon);
+        }
+        return icon;
     }
 
     public static BufferedImage loadImageFromResource(String res) {
@@ -2544,13 +2673,21 @@ System.err.println("Showing changelog as I don't know better");
             res = "/org/uecide/icons/" + res;
         }
 
+        String key = "res:" + res;
+        ImageIcon icon = (ImageIcon)IconCache.get(key);
+        if (icon != null) {
+            return icon;
+        }
+
         URL loc = Base.class.getResource(res);
 
         if(loc == null) {
             loc = Base.class.getResource("/org/uecide/icons/unknown.png");
         }
 
-        return new ImageIcon(loc);
+        icon = loadIconFromURL(loc);
+        IconCache.put(key, icon);
+        return icon;
     }
 
     public static boolean copyResourceToFile(String res, File dest) {
@@ -2707,6 +2844,7 @@ System.err.println("Showing changelog as I don't know better");
     public static void loadThemes() {
 
         themes = new TreeMap<String, PropertyFile>();
+        IconCache.clear();
 
         Reflections reflections = new Reflections(new ConfigurationBuilder()
                 .setUrls(ClasspathHelper.forPackage("org.uecide"))
@@ -2961,8 +3099,14 @@ System.err.println("Showing changelog as I don't know better");
     }
 
     public static ImageIcon getIcon(String category, String name, int size) {
+        String set = getIconSet();
+        String key = "icon:" + set + "/" + size + "x" + size + "/" + category + "/" + name + "@" + IconCache.getScale();
+        ImageIcon icon = (ImageIcon)IconCache.get(key);
+        if (icon != null) {
+            return icon;
+        }
 
-        String path = getIconsPath(getIconSet());
+        String path = getIconsPath(set);
         if (path == null) {
             return null;
         }
@@ -2976,7 +3120,9 @@ System.err.println("Showing changelog as I don't know better");
             loc = Base.class.getResource(path + "/" + size + "x" + size + "/actions/unknown.png");
         }
 
-        return new ImageIcon(loc);
+        icon = new ImageIcon(loc);
+        IconCache.put(key, icon);
+        return icon;
     }
 
     public static String getIconSet() {
@@ -2988,6 +3134,7 @@ System.err.println("Showing changelog as I don't know better");
 
     public static void loadIconSets() {
         iconSets = new HashMap<String, PropertyFile>();
+        IconCache.clear();
 
         Reflections reflections = new Reflections(new ConfigurationBuilder()
                 .setUrls(ClasspathHelper.forPackage("org.uecide"))
@@ -3316,9 +3463,9 @@ System.err.println("Showing changelog as I don't know better");
                 apt.update();
                 Package[] packages = apt.getPackages();
                 for (Package p : packages) {
-                    apt.installPackage(p);
                     System.err.println("Installing " + p);
                 }
+                apt.installPackages(packages);
                 apt.save();
 
 //                PropertyFile props = new PropertyFile(new File(dbFolder, "repositories.db"));
@@ -64,8 +64,13 @@ class BufferedStyledDocument extends DefaultStyledDocument {
         // updates every 250 ms when an app isn't even running.. see bug 180)
         hasAppendage = true;
 
-        // process each line of the string
-        while(str.length() > 0) {
+        // process each line of the string. All the lines share the one
+        // character array rather than each taking a copy of the rest of
+        // the string.
+        char[] chars = str.toCharArray();
+        int pos = 0;
+
+        while(pos < chars.length) {
             // newlines within an element have (almost) no effect, so we need to
             // replace them with proper paragraph breaks (start and end tags)
             if(needLineBreak || currentLineLength > maxLineLength) {
@@ -74,17 +79,19 @@ class BufferedStyledDocument extends DefaultStyledDocument {
                 currentLineLength = 0;
             }
 
-            if(str.indexOf('\n') == -1) {
+            int nl = str.indexOf('\n', pos);
+
+            if(nl == -1) {
                 elements.add(new ElementSpec(a, ElementSpec.ContentType,
-                                             str.toCharArray(), 0, str.length()));
-                currentLineLength += str.length();
+                                             chars, pos, chars.length - pos));
+                currentLineLength += chars.length - pos;
                 needLineBreak = false;
-                str = str.substring(str.length()); // eat the string
+                pos = chars.length; // eat the string
             } else {
                 elements.add(new ElementSpec(a, ElementSpec.ContentType,
-                                             str.toCharArray(), 0, str.indexOf('\n') + 1));
+                                             chars, pos, nl + 1 - pos));
                 needLineBreak = true;
-                str = str.substring(str.indexOf('\n') + 1); // eat the line
+                pos = nl + 1; // eat the line
             }
         }
     }
@@ -95,7 +102,13 @@ class BufferedStyledDocument extends DefaultStyledDocument {
         ElementSpec[] elementArray = new ElementSpec[elements.size()];
         elements.toArray(elementArray);
 
+        if(elementArray.length == 0) {
+            return;
+        }
+
         try {
+            super.insert(super.getLength(), elementArray);
+
             // check how many lines have been used so far
             // if too many, shave off a few lines from the beginning
             Element element = super.getDefaultRootElement();
@@ -108,15 +121,13 @@ class BufferedStyledDocument extends DefaultStyledDocument {
                 //systemOut.println("overage is " + overage);
                 Element lineElement = element.getElement(overage);
 
-                if(lineElement == null) return;   // do nuthin
-
-                int endOffset = lineElement.getEndOffset();
-                // remove to the end of the 200th line
-                super.remove(0, endOffset);
+                if(lineElement != null) {
+                    int endOffset = lineElement.getEndOffset();
+                    // remove to the end of the 200th line
+                    super.remove(0, endOffset);
+                }
             }
 
-            super.insert(super.getLength(), elementArray);
-
         } catch(BadLocationException e) {
             // ignore the error otherwise this will cause an infinite loop
             // maybe not a good idea in the long run?
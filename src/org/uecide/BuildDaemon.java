@@ -0,0 +1,476 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/* Keeps a fully loaded headless instance running so that command line
+ * builds don't each pay for starting up.
+ *
+ * Started with --daemon, it listens on a loopback port and writes that
+ * port, along with a random token, to daemon.json in the data folder.
+ * Running with --use-daemon then sends the command line to it instead of
+ * loading everything: the daemon processes the arguments exactly as a
+ * fresh start would, streams the console output back, and hands back the
+ * exit code.
+ *
+ * Requests and replies are single lines of JSON. A request is
+ *
+ *   {"token": "...", "command": "build", "args": [...]}
+ *
+ * with a command of build (the args carry --compile or --upload as
+ * usual), ping or stop. Replies are any number of {"out": text} and
+ * {"err": text} lines followed by {"exit": code}.
+ *
+ * Each connection is handled on its own thread so ping and stop are
+ * answered straight away, but builds are run one at a time under
+ * buildLock, since a build uses Base's global state (and System.out) the
+ * same way a headless start does. Before each one the compiler, core,
+ * board, programmer and library folders are checked and the catalogues
+ * reloaded only if something in them has changed.
+ */
+
+public class BuildDaemon {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 10;
+
+    ServerSocket server;
+    String token;
+    File infoFile;
+    String fingerprint;
+    volatile boolean running = true;
+    final Object buildLock = new Object();
+
+    public static File getInfoFile() {
+        return Base.getDataFile("daemon.json");
+    }
+
+    @SuppressWarnings("unchecked")
+    public BuildDaemon(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+
+        byte[] rnd = new byte[16];
+        new SecureRandom().nextBytes(rnd);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : rnd) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        token = sb.toString();
+
+        infoFile = getInfoFile();
+        JSONObject info = new JSONObject();
+        info.put("port", server.getLocalPort());
+        info.put("token", token);
+        info.put("version", Base.systemVersion.toString());
+
+        // Only the owner should be able to read the token
+        infoFile.delete();
+        infoFile.createNewFile();
+        infoFile.setReadable(false, false);
+        infoFile.setWritable(false, false);
+        infoFile.setReadable(true, true);
+        infoFile.setWritable(true, true);
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(infoFile), "UTF-8"));
+        pw.println(info.toJSONString());
+        pw.close();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                infoFile.delete();
+            }
+        });
+
+        fingerprint = getFingerprint();
+    }
+
+    public void run() {
+        System.out.println(Base.i18n.string("msg.daemon.listening", String.valueOf(server.getLocalPort())));
+
+        while (running) {
+            final Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                // A stop request closes the socket to get us out of accept()
+                if (running) {
+                    Base.error(e);
+                }
+                continue;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        handle(s);
+                    } catch (Exception e) {
+                        Base.error(e);
+                    } finally {
+                        try {
+                            s.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "Build daemon request");
+            t.start();
+        }
+
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+
+        // Let a build that is already under way finish before we exit
+        synchronized (buildLock) {
+        }
+        infoFile.delete();
+    }
+
+    void handle(Socket s) throws IOException, ParseException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+        Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+
+        String line = in.readLine();
+        if (line == null) {
+            return;
+        }
+
+        JSONObject req = (JSONObject)new JSONParser().parse(line);
+        if (!token.equals(req.get("token"))) {
+            Debug.message("Daemon: rejected request with a bad token");
+            return;
+        }
+
+        String command = (String)req.get("command");
+        if (command == null) {
+            command = "build";
+        }
+
+        if (command.equals("ping")) {
+            reply(out, "exit", EXIT_OK);
+            return;
+        }
+
+        if (command.equals("stop")) {
+            running = false;
+            reply(out, "exit", EXIT_OK);
+            server.close();
+            return;
+        }
+
+        ArrayList<String> args = new ArrayList<String>();
+        JSONArray a = (JSONArray)req.get("args");
+        if (a != null) {
+            for (Object o : a) {
+                args.add(o.toString());
+            }
+        }
+
+        int exit = EXIT_FAILED;
+        synchronized (buildLock) {
+            if (!running) {
+                reply(out, "err", Base.i18n.string("err.daemon.stopping") + "\n");
+                reply(out, "exit", EXIT_FAILED);
+                return;
+            }
+
+            PrintStream oldOut = System.out;
+            PrintStream oldErr = System.err;
+            try {
+                System.setOut(new PrintStream(new ReplyStream(out, "out"), true, "UTF-8"));
+                System.setErr(new PrintStream(new ReplyStream(out, "err"), true, "UTF-8"));
+                exit = build(args.toArray(new String[0]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                System.setOut(oldOut);
+                System.setErr(oldErr);
+            }
+        }
+
+        try {
+            reply(out, "exit", exit);
+        } catch (IOException e) {
+            Debug.message("Daemon: client went away before the build finished");
+        }
+    }
+
+    int build(String[] args) {
+        long start = System.currentTimeMillis();
+
+        // process() shows the help and exits on a bad option, which would
+        // take the daemon down with it
+        String bad = Base.cli.check(args);
+        if (bad != null) {
+            System.err.println(Base.i18n.string("err.daemon.badarg", bad));
+            Base.cli.help();
+            return EXIT_FAILED;
+        }
+
+        String[] argv = Base.cli.process(args);
+        Base.autoCompile = Base.cli.isSet("compile");
+        Base.autoProgram = Base.cli.isSet("upload");
+        Base.presetPort = Base.cli.getString("port");
+        Base.presetBoard = Base.cli.getString("board");
+        Base.presetCore = Base.cli.getString("core");
+        Base.presetCompiler = Base.cli.getString("compiler");
+        Base.presetProgrammer = Base.cli.getString("programmer");
+        Base.purgeCache = Base.cli.isSet("purge");
+        Base.cleanBuild = Base.cli.isSet("clean");
+        Debug.setVerbose(Base.cli.isSet("verbose"));
+
+        rescanIfChanged();
+
+        int exit = EXIT_OK;
+        for (String path : argv) {
+            File f = new File(path);
+            if (!f.exists()) {
+                System.err.println(Base.i18n.string("err.notfound", path));
+                exit = EXIT_FAILED;
+                continue;
+            }
+            Sketch sketch = new Sketch(f);
+            sketch.loadConfig();
+            Base.applyPresets(sketch);
+            if (!Base.runHeadless(sketch)) {
+                exit = EXIT_FAILED;
+            }
+        }
+
+        Debug.message("Daemon: request took " + (System.currentTimeMillis() - start) + "ms");
+        return exit;
+    }
+
+    void rescanIfChanged() {
+        String now = getFingerprint();
+        if (now.equals(fingerprint)) {
+            return;
+        }
+        Debug.message("Daemon: installed files have changed, reloading");
+        Base.loadCompilers();
+        Base.loadCores();
+        Base.loadBoards();
+        Base.loadProgrammers();
+        Base.gatherLibraries();
+        fingerprint = now;
+    }
+
+    /* The dates of everything within two levels of the folders the
+     * catalogues are loaded from. Installing, removing or editing a
+     * compiler, core, board or programmer, or adding a library, shows up
+     * here. */
+    String getFingerprint() {
+        ArrayList<File> roots = new ArrayList<File>();
+        roots.addAll(Arrays.asList(Base.getCompilersFolders()));
+        roots.addAll(Arrays.asList(Base.getCoresFolders()));
+        roots.addAll(Arrays.asList(Base.getBoardsFolders()));
+        roots.addAll(Arrays.asList(Base.getProgrammersFolders()));
+        roots.addAll(Arrays.asList(Base.getLibrariesFolders()));
+
+        PropertyFile liblocs = Base.preferences.getChildren("locations.library");
+        for (String k : liblocs.childKeys()) {
+            String path = liblocs.get(k + ".path");
+            if (path != null) {
+                roots.add(new File(path));
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (File root : roots) {
+            addDates(sb, root, 2);
+        }
+        return sb.toString();
+    }
+
+    void addDates(StringBuilder sb, File f, int depth) {
+        sb.append(f.getPath()).append('=').append(f.lastModified()).append(':').append(f.length()).append('\n');
+        if (depth == 0 || !f.isDirectory()) {
+            return;
+        }
+        File[] list = f.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list);
+        for (File sub : list) {
+            addDates(sb, sub, depth - 1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void reply(Writer out, String key, Object value) throws IOException {
+        JSONObject o = new JSONObject();
+        o.put(key, value);
+        synchronized (out) {
+            out.write(o.toJSONString());
+            out.write("\n");
+            out.flush();
+        }
+    }
+
+    // Sends whatever is written to it back to the client as one kind of output
+    static class ReplyStream extends OutputStream {
+        Writer out;
+        String key;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        boolean gone = false;
+
+        ReplyStream(Writer w, String k) {
+            out = w;
+            key = k;
+        }
+
+        public synchronized void write(int b) {
+            buffer.write(b);
+        }
+
+        public synchronized void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        public synchronized void flush() {
+            if (buffer.size() == 0 || gone) {
+                buffer.reset();
+                return;
+            }
+            try {
+                reply(out, key, new String(buffer.toByteArray(), "UTF-8"));
+            } catch (IOException e) {
+                // Carry on with the build even if nobody is listening
+                gone = true;
+            }
+            buffer.reset();
+        }
+    }
+
+    /* Client side. Sends a request to a running daemon and copies its
+     * output to ours. Returns the exit code, or -1 if there is no daemon
+     * to talk to. */
+    @SuppressWarnings("unchecked")
+    public static int request(String command, String[] args) {
+        File info = getInfoFile();
+        if (!info.exists()) {
+            return -1;
+        }
+
+        Socket s = null;
+        try {
+            JSONObject i = (JSONObject)new JSONParser().parse(Base.getFileAsString(info));
+            int port = ((Number)i.get("port")).intValue();
+
+            s = new Socket(InetAddress.getByName("127.0.0.1"), port);
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+
+            JSONObject req = new JSONObject();
+            req.put("token", i.get("token"));
+            req.put("command", command);
+            JSONArray a = new JSONArray();
+            for (String arg : args) {
+                a.add(arg);
+            }
+            req.put("args", a);
+            out.write(req.toJSONString());
+            out.write("\n");
+            out.flush();
+
+            JSONParser parser = new JSONParser();
+            String line;
+            while ((line = in.readLine()) != null) {
+                JSONObject r = (JSONObject)parser.parse(line);
+                if (r.get("out") != null) {
+                    System.out.print(r.get("out"));
+                    System.out.flush();
+                } else if (r.get("err") != null) {
+                    System.err.print(r.get("err"));
+                    System.err.flush();
+                } else if (r.get("exit") != null) {
+                    return ((Number)r.get("exit")).intValue();
+                }
+            }
+            // The daemon went away part way through
+            return EXIT_FAILED;
+        } catch (ConnectException e) {
+            return -1;
+        } catch (Exception e) {
+            Debug.message("Unable to talk to the build daemon: " + e.getMessage());
+            return -1;
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /* The command line as the daemon should see it: without the options
+     * that only mean something to the client, and with every path made
+     * absolute since the daemon has its own working directory. */
+    public static String[] clientArgs(String[] args) {
+        ArrayList<String> out = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("--use-daemon") || arg.equals("--headless")) {
+                continue;
+            }
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf("=");
+                if (eq > -1) {
+                    String key = arg.substring(2, eq);
+                    if (key.equals("diagnostics") || key.equals("size-report") || key.equals("size-baseline") || key.equals("trace")) {
+                        arg = "--" + key + "=" + absolute(arg.substring(eq + 1));
+                    }
+                }
+                out.add(arg);
+                continue;
+            }
+            out.add(absolute(arg));
+        }
+        return out.toArray(new String[0]);
+    }
+
+    static String absolute(String path) {
+        File f = new File(path);
+        try {
+            return f.getCanonicalPath();
+        } catch (IOException e) {
+            return f.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import org.json.simple.*;
+
+/* Records where the time in a build goes.
+ *
+ * The build phases, every executeKey and every external command open a
+ * span when they start and close it when they finish, so the spans nest
+ * the same way the calls do. Each one records its wall time and the CPU
+ * time the calling thread used; external commands also record their
+ * command line and exit code. The CPU time of a child process isn't
+ * visible from here, so a compiler run shows up as wall time only.
+ *
+ * A trace that isn't enabled records nothing and begin() just returns
+ * null, so the instrumentation costs nothing on a normal build.
+ *
+ * The result can be written as Chrome trace_event JSON (load it in
+ * chrome://tracing or Perfetto) or printed as a per-phase summary.
+ */
+
+public class BuildTrace {
+    public static final String PHASE = "phase";
+    public static final String KEY = "key";
+    public static final String EXEC = "exec";
+
+    public static class Span {
+        public String name;
+        public String category;
+        public long start;          // ns since the trace started
+        public long wall = 0;       // ns
+        public long cpu = 0;        // ns, -1 if not available
+        public long tid;
+        public String command = null;
+        public int exit = 0;
+        public Span parent;
+
+        long cpuStart;
+    }
+
+    boolean enabled;
+    long origin = System.nanoTime();
+    ArrayList<Span> spans = new ArrayList<Span>();
+    HashMap<Long, Span> open = new HashMap<Long, Span>();
+    ThreadMXBean threads = null;
+
+    public BuildTrace(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            ThreadMXBean t = ManagementFactory.getThreadMXBean();
+            if (t.isCurrentThreadCpuTimeSupported()) {
+                threads = t;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized Span begin(String name, String category) {
+        if (!enabled) {
+            return null;
+        }
+        Span s = new Span();
+        s.name = name;
+        s.category = category;
+        s.tid = Thread.currentThread().getId();
+        s.parent = open.get(s.tid);
+        s.cpuStart = threads != null ? threads.getCurrentThreadCpuTime() : -1;
+        s.start = System.nanoTime() - origin;
+        spans.add(s);
+        open.put(s.tid, s);
+        return s;
+    }
+
+    public Span begin(String name) {
+        return begin(name, PHASE);
+    }
+
+    public synchronized void end(Span s) {
+        if (s == null) {
+            return;
+        }
+        s.wall = System.nanoTime() - origin - s.start;
+        s.cpu = s.cpuStart >= 0 ? threads.getCurrentThreadCpuTime() - s.cpuStart : -1;
+        open.put(s.tid, s.parent);
+    }
+
+    public void end(Span s, String command, int exit) {
+        if (s == null) {
+            return;
+        }
+        s.command = command;
+        s.exit = exit;
+        end(s);
+    }
+
+    public synchronized List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void writeChromeTrace(File f) throws IOException {
+        JSONArray events = new JSONArray();
+        for (Span s : spans) {
+            JSONObject e = new JSONObject();
+            e.put("name", s.name);
+            e.put("cat", s.category);
+            e.put("ph", "X");
+            e.put("ts", s.start / 1000);
+            e.put("dur", s.wall / 1000);
+            e.put("pid", 1);
+            e.put("tid", s.tid);
+            JSONObject args = new JSONObject();
+            if (s.cpu >= 0) {
+                args.put("cpu_ms", s.cpu / 1000000d);
+            }
+            if (s.command != null) {
+                args.put("command", s.command);
+                args.put("exit", s.exit);
+            }
+            e.put("args", args);
+            events.add(e);
+        }
+        JSONObject trace = new JSONObject();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+
+        PrintWriter pw = new PrintWriter(new FileWriter(f));
+        pw.println(trace.toJSONString());
+        pw.close();
+    }
+
+    // Phase totals, in the order the phases first ran. The command
+    // columns count the external commands run anywhere inside each phase.
+    public synchronized ArrayList<String> getSummary() {
+        LinkedHashMap<String, long[]> phases = new LinkedHashMap<String, long[]>();
+        long commands = 0;
+        long commandTime = 0;
+
+        for (Span s : spans) {
+            if (s.category.equals(PHASE)) {
+                long[] t = phases.get(s.name);
+                if (t == null) {
+                    t = new long[4];
+                    t[1] = -1;
+                    phases.put(s.name, t);
+                }
+                t[0] += s.wall;
+                // -1 means the CPU time wasn't available for that span
+                if (s.cpu >= 0) {
+                    t[1] = Math.max(t[1], 0) + s.cpu;
+                }
+            } else if (s.category.equals(EXEC)) {
+                commands++;
+                commandTime += s.wall;
+                Span p = s.parent;
+                while (p != null && !p.category.equals(PHASE)) {
+                    p = p.parent;
+                }
+                if (p != null) {
+                    long[] t = phases.get(p.name);
+                    t[2]++;
+                    t[3] += s.wall;
+                }
+            }
+        }
+
+        ArrayList<String> lines = new ArrayList<String>();
+        String fmt = "%-18s %9s %9s %9s %9s";
+        lines.add(String.format(fmt, "Phase", "Wall", "CPU", "Commands", "Cmd time"));
+        for (String name : phases.keySet()) {
+            long[] t = phases.get(name);
+            lines.add(String.format(fmt, name, seconds(t[0]), t[1] < 0 ? "-" : seconds(t[1]), t[2], seconds(t[3])));
+        }
+        lines.add(String.format(fmt, "(all commands)", "", "", commands, seconds(commandTime)));
+        return lines;
+    }
+
+    static String seconds(long ns) {
+        return String.format("%.3fs", ns / 1000000000d);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.awt.*;
+import java.io.*;
+import javax.swing.*;
+
+/* The "Replay..." action shared by the serial tools: asks for a capture
+ * file, a speed and a starting offset, then replays the capture into the
+ * tool's listener. Override beforeReplay() to reset any parsing state
+ * once the user has confirmed.
+ */
+
+public class CaptureReplayer {
+    Frame parent;
+    Editor editor;
+    CommsListener listener;
+
+    SerialCaptureReader reader = null;
+    SerialCaptureReader.Replay replay = null;
+
+    public CaptureReplayer(Frame p, Editor e, CommsListener l) {
+        parent = p;
+        editor = e;
+        listener = l;
+    }
+
+    public boolean start() {
+        stop();
+        FileDialog fd = new FileDialog(parent, Translate.t("Replay Capture"), FileDialog.LOAD);
+        fd.setVisible(true);
+        String dir = fd.getDirectory();
+        String name = fd.getFile();
+        if (dir == null || name == null) {
+            return false;
+        }
+
+        try {
+            reader = new SerialCaptureReader(new File(dir, name));
+        } catch (Exception e) {
+            editor.error("Unable to open capture:");
+            editor.error(e);
+            return false;
+        }
+
+        JComboBox<String> speeds = new JComboBox<String>(new String[] { "1", "2", "5", "10", "100", Translate.t("Maximum") });
+        JTextField offset = new JTextField("0");
+        JPanel p = new JPanel(new GridLayout(2, 2));
+        p.add(new JLabel(Translate.t("Speed") + ": "));
+        p.add(speeds);
+        p.add(new JLabel(Translate.t("Start at (seconds)") + ": "));
+        p.add(offset);
+
+        int res = JOptionPane.showConfirmDialog(parent, p, Translate.t("Replay Capture"), JOptionPane.OK_CANCEL_OPTION);
+        if (res != JOptionPane.OK_OPTION) {
+            stop();
+            return false;
+        }
+
+        double speed = 0;
+        if (speeds.getSelectedIndex() < speeds.getItemCount() - 1) {
+            speed = Double.parseDouble((String)speeds.getSelectedItem());
+        }
+        long from = 0;
+        try {
+            from = (long)(Double.parseDouble(offset.getText().trim()) * 1000000000L);
+        } catch (Exception e) {
+            from = 0;
+        }
+        beforeReplay();
+        replay = reader.replay(from, speed, listener);
+        return true;
+    }
+
+    public void beforeReplay() {
+    }
+
+    public void stop() {
+        if (replay != null) {
+            replay.stop();
+            replay = null;
+        }
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+            }
+            reader = null;
+        }
+    }
+
+    public boolean isRunning() {
+        return replay != null && replay.isRunning();
+    }
+}
@@ -115,6 +115,32 @@ public class CommandLine {
         return extraValues.toArray(new String[0]);
     }
 
+    // The first argument that process() would reject (an unknown option or
+    // one missing its value), or null if they are all fine. Lets callers
+    // that must not exit, such as the build daemon, check up front.
+    public String check(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            String key = arg.substring(2);
+            String value = "";
+            int equals = key.indexOf("=");
+            if (equals > -1) {
+                value = key.substring(equals + 1);
+                key = key.substring(0, equals);
+            }
+            Class<?> aclass = parameterTypes.get(key);
+            if (aclass == null) {
+                return arg;
+            }
+            if (aclass != Boolean.class && value.equals("")) {
+                return arg;
+            }
+        }
+        return null;
+    }
+
     public void help() {
         System.out.println("Available command line arguments:");
         int maxlen = 0;
@@ -39,6 +39,7 @@ import javax.swing.event.*;
 import javax.swing.text.*;
 import java.util.regex.*;
 import java.awt.image.*;
+import java.util.*;
 
 import java.awt.datatransfer.*;
 
@@ -95,6 +96,31 @@ public class Console extends JTextPane implements ClipboardOwner {
 
     boolean couldEraseLine = false;
 
+    // Text waiting to be added to the document. append() may be called
+    // from any thread; the queue is emptied into the document on the EDT
+    // at most once per frame.
+    static final int FRAME_INTERVAL = 16; // ms
+    static final int MAX_PENDING = 512 * 1024; // chars
+
+    static class Chunk {
+        String text;
+        AttributeSet attributes;
+
+        Chunk(String t, AttributeSet a) {
+            text = t;
+            attributes = a;
+        }
+    }
+
+    // Guards the pending fields. pending itself is swapped out on every
+    // flush, so it can't be the lock.
+    final Object pendingLock = new Object();
+    ArrayList<Chunk> pending = new ArrayList<Chunk>();
+    int pendingLength = 0;
+    int droppedLength = 0;
+    boolean pendingClear = false;
+    javax.swing.Timer flushTimer;
+
     private final static String LINK_ATTRIBUTE = "linkact";
 
     Editor urlClickListener = null;
@@ -113,6 +139,13 @@ public class Console extends JTextPane implements ClipboardOwner {
         addMouseListener(new TextClickListener());
         addMouseMotionListener(new TextMotionListener());
         setOpaque(true);
+
+        flushTimer = new javax.swing.Timer(FRAME_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        flushTimer.setRepeats(false);
     }   
 
     @Override
@@ -349,35 +382,153 @@ public class Console extends JTextPane implements ClipboardOwner {
         return indent;
     }
 
-    void doAppendString(String message, MutableAttributeSet type) {
+    void doAppendString(String message, AttributeSet type) {
+        if (message.length() == 0) {
+            return;
+        }
+        synchronized (pendingLock) {
+            pending.add(new Chunk(message, type));
+            pendingLength += message.length();
+
+            // If the EDT can't keep up, throw away the oldest text rather
+            // than let the queue grow without limit. It would only have
+            // been scrolled off the top of the console anyway.
+            while (pendingLength > MAX_PENDING && pending.size() > 1) {
+                Chunk c = pending.remove(0);
+                pendingLength -= c.text.length();
+                droppedLength += c.text.length();
+            }
+        }
+        if (!flushTimer.isRunning()) {
+            flushTimer.start();
+        }
+    }
+
+    // Move everything queued into the document. Runs on the EDT.
+    void flush() {
+        ArrayList<Chunk> chunks;
+        boolean doClear;
+        int dropped;
+        synchronized (pendingLock) {
+            chunks = pending;
+            doClear = pendingClear;
+            dropped = droppedLength;
+            pending = new ArrayList<Chunk>();
+            pendingLength = 0;
+            droppedLength = 0;
+            pendingClear = false;
+        }
+
         try {
-            String[] chars = message.split("(?!^)");
-            for (String c : chars) {
-                if (c.equals("\010")) {
-                    document.remove(document.getEndPosition().getOffset()-2, 1);
-                    continue;
-                } 
-                if (c.equals("\r")) {
-                    couldEraseLine = true;
-                    continue;
+            if (doClear) {
+                document.insertAll();
+                document.remove(0, document.getLength());
+                couldEraseLine = false;
+            }
+
+            if (dropped > 0) {
+                document.appendString("[" + dropped + " characters of output skipped]\n", warning);
+            }
+
+            // Text is gathered into runs of the same style, and each run is
+            // added to the document in one go. Carriage returns and
+            // backspaces are dealt with as the runs are built.
+            StringBuilder run = new StringBuilder();
+            AttributeSet runStyle = null;
+            int runLineStart = -1; // Start of the current line within the run, if it is there
+
+            for (Chunk chunk : chunks) {
+                if (chunk.attributes != runStyle) {
+                    if (run.length() > 0) {
+                        document.appendString(run.toString(), runStyle);
+                        run.setLength(0);
+                    }
+                    runStyle = chunk.attributes;
+                    runLineStart = -1;
                 }
-                if (!c.equals("\n") && couldEraseLine) {
-                    removeLastLine();
+
+                String text = chunk.text;
+                int len = text.length();
+                for (int i = 0; i < len; i++) {
+                    char c = text.charAt(i);
+
+                    if (c == '\010') {
+                        if (run.length() > 0) {
+                            run.setLength(run.length() - 1);
+                            if (runLineStart > run.length()) {
+                                runLineStart = -1;
+                            }
+                        } else {
+                            document.insertAll();
+                            if (document.getLength() > 0) {
+                                document.remove(document.getLength() - 1, 1);
+                            }
+                        }
+                        continue;
+                    }
+
+                    if (c == '\r') {
+                        couldEraseLine = true;
+                        continue;
+                    }
+
+                    if (couldEraseLine && c != '\n') {
+                        if (runLineStart >= 0) {
+                            run.setLength(runLineStart);
+                        } else {
+                            run.setLength(0);
+                            document.insertAll();
+                            removeLastLine();
+                        }
+                    }
+                    couldEraseLine = false;
+
+                    run.append(c);
+                    if (c == '\n') {
+                        runLineStart = run.length();
+                    }
                 }
-                document.appendString(c, type);
-                couldEraseLine = false;
             }
+
+            if (run.length() > 0) {
+                document.appendString(run.toString(), runStyle);
+            }
+
             document.insertAll();
             setCaretPosition(document.getLength());
         } catch (Exception e) {
             e.printStackTrace();
         }
+
+        // Anything that arrived while this was running goes in the next frame
+        synchronized (pendingLock) {
+            if ((pending.size() > 0 || pendingClear) && !flushTimer.isRunning()) {
+                flushTimer.start();
+            }
+        }
+    }
+
+    // Find the start of the last line by looking backwards from the end
+    // of the document a block at a time.
+    int findLastLineStart() throws BadLocationException {
+        Segment seg = new Segment();
+        int end = document.getLength();
+        while (end > 0) {
+            int start = Math.max(0, end - 1024);
+            document.getText(start, end - start, seg);
+            for (int i = seg.count - 1; i >= 0; i--) {
+                if (seg.array[seg.offset + i] == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
     }
 
     public void removeLastLine() {
         try {
-            String content = document.getText(0, document.getLength());
-            int lastLineBreak = content.lastIndexOf('\n') + 1;
+            int lastLineBreak = findLastLineStart();
             document.remove(lastLineBreak, document.getLength() - lastLineBreak); 
         } catch (Exception ignored) {
         }
@@ -414,8 +565,11 @@ public class Console extends JTextPane implements ClipboardOwner {
             doAppendString(bchar + " " + message, bullet3);
         } else if (type == LINK) {
             String[] chunks = message.split("\\|");
-            link.addAttribute(LINK_ATTRIBUTE, new URLLinkAction(chunks[0]));
-            doAppendString(chunks[1], link);
+            // Each link needs its own attributes as it may still be
+            // queued when the next one comes along.
+            SimpleAttributeSet thisLink = new SimpleAttributeSet(link);
+            thisLink.addAttribute(LINK_ATTRIBUTE, new URLLinkAction(chunks[0]));
+            doAppendString(chunks[1], thisLink);
         } else if (type == BLACK) {
             doAppendString(message, fgBlack);
         } else if (type == RED) {
@@ -439,9 +593,9 @@ public class Console extends JTextPane implements ClipboardOwner {
     // to the console with the right type.  Pass the chunks through
     // append() to do the formatting.  Chunks are plain text (body),
     // or {\type text...} to embed a certain type inside the text
-    public void appendParsed(String message) {
+    static final Pattern parsedBlock = Pattern.compile("\\{\\\\(\\w+)\\s*(.*)\\}");
 
-        Pattern pat = Pattern.compile("\\{\\\\(\\w+)\\s*(.*)\\}");
+    public void appendParsed(String message) {
 
         int openBracketLocation = message.indexOf("{\\");
         
@@ -468,7 +622,7 @@ public class Console extends JTextPane implements ClipboardOwner {
                 append(leftChunk, BODY);
             }
 
-            Matcher m = pat.matcher(block);
+            Matcher m = parsedBlock.matcher(block);
             if (m.find()) {
                 String type = m.group(1);
                 String text = m.group(2);
@@ -502,9 +656,14 @@ public class Console extends JTextPane implements ClipboardOwner {
     }
 
     void clear() {
-        try {
-            document.remove(0, document.getLength());
-        } catch (Exception e) {
+        synchronized (pendingLock) {
+            pending.clear();
+            pendingLength = 0;
+            droppedLength = 0;
+            pendingClear = true;
+        }
+        if (!flushTimer.isRunning()) {
+            flushTimer.start();
         }
     }
 
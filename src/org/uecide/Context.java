@@ -488,6 +488,10 @@ public class Context {
     }
         
     public void printParsed(String message) {
+        printParsed(message, System.out, System.err);
+    }
+
+    public void printParsed(String message, PrintStream out, PrintStream err) {
 
         Pattern pat = Pattern.compile("\\{\\\\(\\w+)\\s*(.*)\\}");
 
@@ -496,7 +500,7 @@ public class Context {
         // No open sequence means there's no parsing to do - just
         // append the text as BODY and leave it at that.
         if (openBracketLocation == -1) {
-            System.out.print(message);
+            out.print(message);
             return;
         }
 
@@ -506,14 +510,14 @@ public class Context {
             int closeBracketLocation = rightChunk.indexOf("}");
             if (closeBracketLocation == -1) {
                 // Oops - something went wrong! No close bracket!
-                System.err.println("Badly formatted message: " + message);
+                err.println("Badly formatted message: " + message);
                 return;
             }
             String block = rightChunk.substring(0, closeBracketLocation + 1);
             String remainder = rightChunk.substring(closeBracketLocation + 1);
 
             if (!leftChunk.equals("")) {
-                System.out.print(leftChunk);
+                out.print(leftChunk);
             }
 
             Matcher m = pat.matcher(block);
@@ -521,21 +525,21 @@ public class Context {
                 String type = m.group(1);
                 String text = m.group(2);
                 if (type.equals("body")) {
-                    System.out.print(text);
+                    out.print(text);
                 } else if (type.equals("warning")) {
-                    System.out.print("[36m" + text + "[0m");
+                    out.print("[36m" + text + "[0m");
                 } else if (type.equals("error")) {
-                    System.out.print("[31m" + text + "[0m");
+                    out.print("[31m" + text + "[0m");
                 } else if (type.equals("command")) {
-                    System.out.print(text);
+                    out.print(text);
                 } else if (type.equals("heading")) {
-                    System.out.print(text);
+                    out.print(text);
                 } else if (type.equals("bullet")) {
-                    System.out.print(" * " + text);
+                    out.print(" * " + text);
                 } else if (type.equals("bullet2")) {
-                    System.out.print("   * " + text);
+                    out.print("   * " + text);
                 } else if (type.equals("link")) {
-                    System.out.print(text);
+                    out.print(text);
                 }
             }
 
@@ -543,7 +547,7 @@ public class Context {
             openBracketLocation = message.indexOf("{\\");
         }
         if (!message.equals("")) {
-            System.out.print(message);
+            out.print(message);
         }
     }
 
@@ -554,6 +558,20 @@ public class Context {
     // Execute a key as a script in whatever way is needed.
 
     public Object executeKey(String key) {
+        BuildTrace trace = sketch == null ? null : sketch.getTrace();
+        if (trace == null || !trace.isEnabled()) {
+            return runKey(key);
+        }
+
+        BuildTrace.Span span = trace.begin(key, BuildTrace.KEY);
+        try {
+            return runKey(key);
+        } finally {
+            trace.end(span);
+        }
+    }
+
+    Object runKey(String key) {
         PropertyFile props = getMerged();
     
         // If there is a platform specific version of the key then we should switch to that instead.
@@ -1022,9 +1040,13 @@ public class Context {
             command(sb.toString());
         }
 
+        BuildTrace trace = sketch == null ? null : sketch.getTrace();
+        BuildTrace.Span span = trace == null ? null : trace.begin(new File(stringList.get(0)).getName(), BuildTrace.EXEC);
+
         try {
             runningProcess = process.start();
         } catch(Exception e) {
+            if (trace != null) trace.end(span, sb.toString().trim(), -1);
             error(Base.i18n.string("err.process"));
             error(e);
             return false;
@@ -1215,6 +1237,8 @@ public class Context {
 
         Base.processes.remove(runningProcess);
 
+        if (trace != null) trace.end(span, sb.toString().trim(), result);
+
         if(result == 0) {
             return true;
         }
@@ -54,11 +54,86 @@ import org.fife.ui.rsyntaxtextarea.*;
 import org.fife.ui.rtextarea.*;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
+/* Debug logging.
+ *
+ * Messages are dropped into a fixed size ring of entries without taking
+ * any locks; a background thread drains the ring into the debug window,
+ * stdout (--verbose) and the optional log file. The ring is the only
+ * history kept, so memory use is bounded however long the IDE runs.
+ *
+ * Messages below the current level are discarded before anything is
+ * allocated. Finding the caller for the message tag is only done while
+ * someone is actually watching (window open or verbose), and even then
+ * the stack is only captured on the calling thread - turning it into a
+ * file name and line number is left to the drain thread.
+ */
 
 public class Debug {
 
-    public static StringBuilder debugText = new StringBuilder();
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+
+    static final String[] levelNames = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR" };
+
+    static final int RING_SIZE = 8192; // Must be a power of two
+    static final int RING_MASK = RING_SIZE - 1;
+    static final int MAX_WINDOW_LINES = 20000;
+
+    static class Entry {
+        long sequence;
+        long time;
+        int level;
+        String thread;
+        String text;
+        Throwable caller;
+        String tag;
+
+        // Resolves the caller into a tag the first time it is asked for.
+        // This writes to the entry, so it must only be called with
+        // drainLock held.
+        String getTag() {
+            if (tag == null) {
+                tag = "";
+                if (caller != null) {
+                    StackTraceElement[] st = caller.getStackTrace();
+                    // [0] is log(), [1] is the public wrapper
+                    int i = 0;
+                    while (i < st.length && st[i].getClassName().equals(Debug.class.getName())) {
+                        i++;
+                    }
+                    if (i < st.length) {
+                        tag = st[i].getFileName() + " " + st[i].getLineNumber() + " (" + st[i].getMethodName() + "): ";
+                    }
+                    caller = null;
+                }
+            }
+            return tag;
+        }
+    }
+
+    static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<Entry>(RING_SIZE);
+    static final AtomicLong head = new AtomicLong(0);
+    static volatile long tail = 0;      // Next entry for the drain thread
+    static volatile long cleared = 0;   // Start of the history shown in the window
+    static volatile int level = DEBUG;
+    static volatile boolean captureCallers = false;
+
+    static volatile Thread drainThread = null;
+    static final Object drainLock = new Object();
+    static long lost = 0;
+
+    static File logFile = null;
+    static Writer logWriter = null;
+    static long logSize = 0;
+    static long logLimit = 1024 * 1024;
+    static final int LOG_BACKUPS = 3;
+
     public static JFrame win;
     public static RSyntaxTextArea textArea;
     public static boolean shown = false;
@@ -70,6 +145,73 @@ public class Debug {
 
     public static void setVerbose(boolean b) {
         verbose = b;
+        updateCallerCapture();
+    }
+
+    public static void setLevel(int l) {
+        level = l;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(int l) {
+        return l >= level;
+    }
+
+    static void updateCallerCapture() {
+        captureCallers = shown || verbose;
+    }
+
+    // Also write messages to a file. When it reaches the size limit it is
+    // renamed to name.1 (and so on, up to LOG_BACKUPS) and a new one started.
+    public static synchronized void setLogFile(File f, long maxSize) {
+        synchronized (drainLock) {
+            closeLog();
+            logFile = f;
+            logLimit = maxSize;
+            if (f != null) {
+                openLog();
+            }
+        }
+        startDrain();
+    }
+
+    static void openLog() {
+        try {
+            logSize = logFile.exists() ? logFile.length() : 0;
+            logWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8"));
+        } catch (IOException e) {
+            logWriter = null;
+            System.err.println("Unable to open debug log " + logFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+    }
+
+    static void closeLog() {
+        if (logWriter != null) {
+            try {
+                logWriter.close();
+            } catch (IOException e) {
+            }
+            logWriter = null;
+        }
+    }
+
+    static void rotateLog() {
+        closeLog();
+        for (int i = LOG_BACKUPS - 1; i >= 1; i--) {
+            File from = new File(logFile.getPath() + "." + i);
+            if (from.exists()) {
+                File to = new File(logFile.getPath() + "." + (i + 1));
+                to.delete();
+                from.renameTo(to);
+            }
+        }
+        File first = new File(logFile.getPath() + ".1");
+        first.delete();
+        logFile.renameTo(first);
+        openLog();
     }
 
     public static void show() {
@@ -83,7 +225,11 @@ public class Debug {
         contentPane.setLayout(new BorderLayout());
 
         textArea = new RSyntaxTextArea();
-        textArea.setText(debugText.toString());
+        synchronized (drainLock) {
+            // Anything not yet drained is part of the initial text
+            drain();
+            textArea.setText(getText(cleared, tail));
+        }
 //        textArea.setEnabled(false);
         textArea.setAntiAliasingEnabled(true);
         textArea.setMarkOccurrences(true);
@@ -98,7 +244,7 @@ public class Debug {
         trashButton.setToolTipText(Base.i18n.string("toolbar.clear"));
         trashButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                Debug.debugText = new StringBuilder();
+                clear();
                 textArea.setText("");
             }
         });
@@ -138,6 +284,8 @@ public class Debug {
 
         win.setVisible(true);
         shown = true;
+        updateCallerCapture();
+        startDrain();
         win.addComponentListener(new ComponentListener() {
             public void componentMoved(ComponentEvent e) {
                 Point windowPos = e.getComponent().getLocation(null);
@@ -167,6 +315,7 @@ public class Debug {
 
     public static void handleClose() {
         shown = false;
+        updateCallerCapture();
 
         if(Base.preferences != null) {
             Dimension d = win.getSize();
@@ -181,42 +330,190 @@ public class Debug {
     }
 
     public static void message(String s) {
-        Thread t = Thread.currentThread();
-        StackTraceElement[] st = t.getStackTrace();
-        StackTraceElement caller = st[2];
-        String tag = caller.getFileName() + " " + caller.getLineNumber() + " (" + caller.getMethodName() + "): ";
+        log(DEBUG, s);
+    }
 
-        debugText.append(tag);
+    public static void trace(String s) {
+        log(TRACE, s);
+    }
+
+    public static void info(String s) {
+        log(INFO, s);
+    }
 
-        if (s == null) {
-            debugText.append("[null]\n");
+    public static void warn(String s) {
+        log(WARN, s);
+    }
+
+    public static void log(int l, String s) {
+        if (l < level) {
             return;
         }
 
-        debugText.append(s);
+        Entry e = new Entry();
+        e.time = System.currentTimeMillis();
+        e.level = l;
+        e.thread = Thread.currentThread().getName();
+        e.text = (s == null) ? "[null]" : s;
+        if (captureCallers) {
+            e.caller = new Throwable();
+        }
+
+        e.sequence = head.getAndIncrement();
+        ring.set((int)(e.sequence & RING_MASK), e);
+
+        if (drainThread == null && (shown || verbose || logWriter != null)) {
+            startDrain();
+        }
+    }
+
+    // Wipe the history
+    public static void clear() {
+        cleared = head.get();
+    }
 
-        if(verbose) System.out.print(tag + s);
+    static String format(Entry e) {
+        String text = e.text;
+        StringBuilder sb = new StringBuilder(text.length() + 64);
+        sb.append(e.getTag());
+        sb.append(text);
+        if (!text.endsWith("\n")) {
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
 
-        if(!s.endsWith("\n")) {
-            debugText.append("\n");
+    // Returns the entries from the ring between the two sequence numbers.
+    // Entries that have already been overwritten are skipped. Collection
+    // stops at an entry that has been claimed but not yet written, and
+    // next[0] (if given) is set to where to carry on from.
+    static ArrayList<Entry> collect(long from, long to, long[] next) {
+        if (to - from > RING_SIZE) {
+            from = to - RING_SIZE;
+        }
+        ArrayList<Entry> out = new ArrayList<Entry>((int)(to - from));
+        long seq = from;
+        while (seq < to) {
+            Entry e = ring.get((int)(seq & RING_MASK));
+            if (e == null || e.sequence < seq) {
+                break;
+            }
+            if (e.sequence == seq) {
+                out.add(e);
+            }
+            seq++;
+        }
+        if (next != null) {
+            next[0] = seq;
+        }
+        return out;
+    }
 
-            if(verbose) System.out.print("\n");
+    static synchronized void startDrain() {
+        if (drainThread != null) {
+            LockSupport.unpark(drainThread);
+            return;
         }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                drain();
+                synchronized (drainLock) {
+                    closeLog();
+                }
+            }
+        });
+        drainThread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    drain();
+                    LockSupport.parkNanos(100000000L); // 100ms
+                }
+            }
+        }, "Debug log");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
 
-        if(shown) {
-            textArea.append(tag);
-            textArea.append(s);
+    static void drain() {
+        synchronized (drainLock) {
+            long to = head.get();
+            long[] next = new long[1];
+            ArrayList<Entry> entries = collect(tail, to, next);
+            if (to - tail > RING_SIZE) {
+                lost += (to - tail) - RING_SIZE;
+            }
+            tail = next[0];
+            if (entries.size() == 0) {
+                return;
+            }
 
-            if(!s.endsWith("\n")) {
-                textArea.append("\n");
+            final StringBuilder text = new StringBuilder();
+            SimpleDateFormat stamp = null;
+
+            if (lost > 0) {
+                text.append("[" + lost + " debug messages lost]\n");
+                lost = 0;
             }
 
-            if(!pauseButton.isSelected()) {
+            for (Entry e : entries) {
+                String line = format(e);
+                text.append(line);
+
+                if (verbose) {
+                    System.out.print(line);
+                }
+
+                if (logWriter != null) {
+                    if (stamp == null) {
+                        stamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+                    }
+                    String out = stamp.format(new Date(e.time)) + " " + levelNames[e.level] + " [" + e.thread + "] " + line;
+                    try {
+                        logWriter.write(out);
+                        logSize += out.length();
+                        if (logSize > logLimit) {
+                            rotateLog();
+                        }
+                    } catch (IOException ex) {
+                        closeLog();
+                    }
+                }
+            }
+
+            if (logWriter != null) {
                 try {
-                    textArea.setCaretPosition(debugText.length());
-                } catch(Exception e) {
+                    logWriter.flush();
+                } catch (IOException ex) {
+                    closeLog();
                 }
             }
+
+            if (shown) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        appendToWindow(text.toString());
+                    }
+                });
+            }
+        }
+    }
+
+    static void appendToWindow(String text) {
+        if (!shown || textArea == null || pauseButton == null) {
+            return;
+        }
+        textArea.append(text);
+
+        int excess = textArea.getLineCount() - MAX_WINDOW_LINES;
+        if (excess > 0) {
+            try {
+                textArea.replaceRange("", 0, textArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+            }
+        }
+
+        if(!pauseButton.isSelected()) {
+            textArea.setCaretPosition(textArea.getDocument().getLength());
         }
     }
 
@@ -233,7 +530,18 @@ public class Debug {
     }
 
     public static String getText() {
-        return debugText.toString();
+        synchronized (drainLock) {
+            return getText(cleared, head.get());
+        }
+    }
+
+    // Caller must hold drainLock, as formatting fills in the entry tags
+    static String getText(long from, long to) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : collect(from, to, null)) {
+            sb.append(format(e));
+        }
+        return sb.toString();
     }
 
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.regex.*;
+
+/* Package relationships, worked out once per repository state.
+ *
+ * Depends, Recommends and Conflicts are parsed the Debian way: a comma
+ * separated list of entries, each one or more alternatives separated by
+ * "|", each a package name with an optional version constraint such as
+ * "avr-gcc (>= 4.8)". The forward edges and the installed packages'
+ * reverse edges are built up front; transitive closures are worked out
+ * on demand and kept.
+ *
+ * APT throws the graph away whenever its package lists change.
+ */
+
+public class DependencyGraph {
+
+    static final Pattern DEP = Pattern.compile("^\\s*([^\\s(]+)\\s*(?:\\(\\s*(<<|<=|>=|>>|=|<|>)\\s*([^)\\s]+)\\s*\\))?\\s*$");
+
+    // One alternative of one entry in a dependency list
+    public static class Dep {
+        public String name;
+        public String op = null;
+        public Version version = null;
+
+        Dep(String n, String o, String v) {
+            name = n;
+            if (o != null) {
+                op = o;
+                version = new Version(v);
+            }
+        }
+
+        public boolean matches(Package p) {
+            if (p == null || !p.getName().equals(name)) {
+                return false;
+            }
+            if (op == null) {
+                return true;
+            }
+            int c = p.getVersion().compareTo(version);
+            if (op.equals("=")) return c == 0;
+            if (op.equals(">=")) return c >= 0;
+            if (op.equals("<=")) return c <= 0;
+            if (op.equals(">>") || op.equals(">")) return c > 0;
+            if (op.equals("<<") || op.equals("<")) return c < 0;
+            return false;
+        }
+
+        public String toString() {
+            return op == null ? name : name + " (" + op + " " + version + ")";
+        }
+    }
+
+    // The install plan: each layer only depends on the layers before it,
+    // so the packages within a layer can be installed in any order or
+    // all at once.
+    public static class Plan {
+        public ArrayList<ArrayList<Package>> layers = new ArrayList<ArrayList<Package>>();
+        public ArrayList<Package> removals = new ArrayList<Package>();
+        public ArrayList<String> missing = new ArrayList<String>();
+        public ArrayList<String> conflicts = new ArrayList<String>();
+
+        public ArrayList<Package> getPackages() {
+            ArrayList<Package> out = new ArrayList<Package>();
+            for (ArrayList<Package> layer : layers) {
+                out.addAll(layer);
+            }
+            return out;
+        }
+
+        public boolean isValid() {
+            return conflicts.size() == 0;
+        }
+    }
+
+    HashMap<String, Package> available;
+    HashMap<String, Package> installed;
+
+    HashMap<String, Dep[][]> depends = new HashMap<String, Dep[][]>();
+    HashMap<String, Dep[][]> replaces = new HashMap<String, Dep[][]>();
+    HashMap<String, Dep[][]> conflicts = new HashMap<String, Dep[][]>();
+    HashMap<String, ArrayList<Package>> dependants = new HashMap<String, ArrayList<Package>>();
+    HashMap<String, Package[]> closures = new HashMap<String, Package[]>();
+
+    public DependencyGraph(HashMap<String, Package> avail, HashMap<String, Package> inst) {
+        available = avail;
+        installed = inst;
+
+        for (Package p : available.values()) {
+            depends.put(p.getName(), parse(p.getDependencies(true)));
+            if (p.get("Replaces") != null) {
+                replaces.put(p.getName(), parseField(p, "Replaces"));
+            }
+            if (p.get("Conflicts") != null) {
+                conflicts.put(p.getName(), parseField(p, "Conflicts"));
+            }
+        }
+
+        // Only the installed packages' hard dependencies count when asking
+        // what would break if something were removed.
+        for (Package p : installed.values()) {
+            for (Dep[] entry : parse(p.getDependencies(false))) {
+                for (Dep d : entry) {
+                    ArrayList<Package> list = dependants.get(d.name);
+                    if (list == null) {
+                        list = new ArrayList<Package>();
+                        dependants.put(d.name, list);
+                    }
+                    if (!list.contains(p)) {
+                        list.add(p);
+                    }
+                }
+            }
+        }
+    }
+
+    public static Dep[][] parse(String[] entries) {
+        if (entries == null) {
+            return new Dep[0][];
+        }
+        ArrayList<Dep[]> out = new ArrayList<Dep[]>();
+        for (String entry : entries) {
+            ArrayList<Dep> alts = new ArrayList<Dep>();
+            for (String alt : entry.split("\\|")) {
+                Matcher m = DEP.matcher(alt);
+                if (m.matches()) {
+                    alts.add(new Dep(m.group(1), m.group(2), m.group(3)));
+                }
+            }
+            if (alts.size() > 0) {
+                out.add(alts.toArray(new Dep[0]));
+            }
+        }
+        return out.toArray(new Dep[0][]);
+    }
+
+    static Dep[][] parseField(Package p, String key) {
+        String v = p.get(key);
+        if (v == null) {
+            return new Dep[0][];
+        }
+        return parse(v.split(","));
+    }
+
+    // Pick the package that satisfies an entry: the first alternative
+    // that is available in a suitable version, or failing that one that
+    // is already installed in a suitable version.
+    public Package choose(Dep[] entry) {
+        for (Dep d : entry) {
+            Package p = available.get(d.name);
+            if (d.matches(p)) {
+                return p;
+            }
+        }
+        for (Dep d : entry) {
+            Package p = installed.get(d.name);
+            if (d.matches(p)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    Dep[][] getDepends(Package p) {
+        Dep[][] d = depends.get(p.getName());
+        if (d == null || available.get(p.getName()) != p) {
+            d = parse(p.getDependencies(true));
+        }
+        return d;
+    }
+
+    Dep[][] getField(HashMap<String, Dep[][]> map, Package p, String key) {
+        if (available.get(p.getName()) == p) {
+            Dep[][] d = map.get(p.getName());
+            return d == null ? new Dep[0][] : d;
+        }
+        return parseField(p, key);
+    }
+
+    // Everything the package needs, directly or indirectly, with each
+    // package coming after the ones it depends on. The package itself
+    // is not included.
+    public synchronized Package[] closure(Package top) {
+        Package[] c = closures.get(top.getName());
+        if (c != null && available.get(top.getName()) == top) {
+            return c;
+        }
+        LinkedHashSet<Package> out = new LinkedHashSet<Package>();
+        HashSet<String> visiting = new HashSet<String>();
+        visiting.add(top.getName());
+        for (Dep[] entry : getDepends(top)) {
+            visit(choose(entry), out, visiting, null);
+        }
+        out.remove(top);
+        c = out.toArray(new Package[0]);
+        if (available.get(top.getName()) == top) {
+            closures.put(top.getName(), c);
+        }
+        return c;
+    }
+
+    void visit(Package p, LinkedHashSet<Package> out, HashSet<String> visiting, ArrayList<String> missing) {
+        if (p == null || out.contains(p) || !visiting.add(p.getName())) {
+            return;
+        }
+        // A kept closure can stand in for the walk, unless missing
+        // dependencies are being collected.
+        Package[] known = missing == null ? closures.get(p.getName()) : null;
+        if (known != null && available.get(p.getName()) == p) {
+            for (Package k : known) {
+                out.add(k);
+            }
+        } else {
+            for (Dep[] entry : getDepends(p)) {
+                Package dp = choose(entry);
+                if (dp == null && missing != null) {
+                    missing.add(p.getName() + ": " + describe(entry));
+                }
+                visit(dp, out, visiting, missing);
+            }
+        }
+        visiting.remove(p.getName());
+        out.add(p);
+    }
+
+    static String describe(Dep[] entry) {
+        StringBuilder sb = new StringBuilder();
+        for (Dep d : entry) {
+            if (sb.length() > 0) {
+                sb.append(" | ");
+            }
+            sb.append(d);
+        }
+        return sb.toString();
+    }
+
+    // Installed packages that depend directly on the named one.
+    public Package[] getDependants(String name) {
+        ArrayList<Package> list = dependants.get(name);
+        if (list == null) {
+            return new Package[0];
+        }
+        return list.toArray(new Package[0]);
+    }
+
+    public boolean needsInstall(Package p) {
+        Package inst = installed.get(p.getName());
+        return inst == null || (inst != p && p.getVersion().compareTo(inst.getVersion()) > 0);
+    }
+
+    // Work out what installing the given packages involves: the packages
+    // themselves, whatever they need that is missing or out of date, the
+    // installed packages they replace, and anything that conflicts.
+    public synchronized Plan plan(Collection<Package> targets) {
+        Plan plan = new Plan();
+
+        LinkedHashSet<Package> order = new LinkedHashSet<Package>();
+        HashSet<String> targetNames = new HashSet<String>();
+        for (Package t : targets) {
+            targetNames.add(t.getName());
+        }
+        for (Package t : targets) {
+            visit(t, order, new HashSet<String>(), plan.missing);
+        }
+
+        HashMap<String, Package> chosen = new HashMap<String, Package>();
+        for (Package p : order) {
+            if (targetNames.contains(p.getName()) || needsInstall(p)) {
+                if (!chosen.containsKey(p.getName())) {
+                    chosen.put(p.getName(), p);
+                }
+            }
+        }
+
+        // What the system will look like afterwards, for checking conflicts
+        HashSet<String> removed = new HashSet<String>();
+        for (Package p : chosen.values()) {
+            for (Dep[] entry : getField(replaces, p, "Replaces")) {
+                for (Dep d : entry) {
+                    Package r = installed.get(d.name);
+                    if (d.matches(r) && !chosen.containsKey(d.name) && removed.add(d.name)) {
+                        plan.removals.add(r);
+                    }
+                }
+            }
+        }
+        for (Package p : chosen.values()) {
+            for (Dep[] entry : getField(conflicts, p, "Conflicts")) {
+                for (Dep d : entry) {
+                    Package other = chosen.get(d.name);
+                    if (other == null && !removed.contains(d.name)) {
+                        other = installed.get(d.name);
+                    }
+                    if (!d.name.equals(p.getName()) && d.matches(other)) {
+                        plan.conflicts.add(p.getName() + " conflicts with " + other);
+                    }
+                }
+            }
+        }
+
+        // Layer each package one above the deepest of its own
+        // dependencies that are also being installed.
+        HashMap<String, Integer> level = new HashMap<String, Integer>();
+        for (Package p : order) {
+            Package c = chosen.get(p.getName());
+            if (c != p) {
+                continue;
+            }
+            int l = 0;
+            for (Dep[] entry : getDepends(p)) {
+                Package dp = choose(entry);
+                if (dp != null && level.containsKey(dp.getName())) {
+                    l = Math.max(l, level.get(dp.getName()) + 1);
+                }
+            }
+            level.put(p.getName(), l);
+            while (plan.layers.size() <= l) {
+                plan.layers.add(new ArrayList<Package>());
+            }
+            plan.layers.get(l).add(p);
+        }
+        return plan;
+    }
+}
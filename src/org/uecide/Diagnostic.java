@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import org.json.simple.*;
+
+/* A single error or warning reported by a compiler, along with any
+ * "note:" lines that followed it. */
+
+public class Diagnostic {
+    public static final int NOTE = 0;
+    public static final int WARNING = 1;
+    public static final int ERROR = 2;
+
+    File file;
+    int line;
+    int column;
+    int severity;
+    String message;
+    ArrayList<String> notes = new ArrayList<String>();
+
+    public Diagnostic(File file, int line, int column, int severity, String message) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    public File getFile() { return file; }
+    public int getLine() { return line; }
+    public int getColumn() { return column; }
+    public int getSeverity() { return severity; }
+    public String getMessage() { return message; }
+    public ArrayList<String> getNotes() { return notes; }
+
+    public boolean isError() {
+        return severity == ERROR;
+    }
+
+    public boolean isWarning() {
+        return severity == WARNING;
+    }
+
+    public void addNote(String note) {
+        notes.add(note);
+    }
+
+    public String getSeverityName() {
+        switch (severity) {
+            case ERROR: return "error";
+            case WARNING: return "warning";
+            default: return "note";
+        }
+    }
+
+    // Identifies repeats of the same diagnostic, such as a warning in a
+    // header that gets included by many files.
+    public String getKey() {
+        return file.getAbsolutePath() + ":" + line + ":" + column + ":" + severity + ":" + message;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("file", file.getAbsolutePath());
+        o.put("line", line);
+        o.put("column", column);
+        o.put("severity", getSeverityName());
+        o.put("message", message);
+        JSONArray n = new JSONArray();
+        n.addAll(notes);
+        o.put("notes", n);
+        return o;
+    }
+
+    public String toString() {
+        return file.getName() + ":" + line + ":" + (column > 0 ? column + ":" : "") + " " + getSeverityName() + ": " + message;
+    }
+}
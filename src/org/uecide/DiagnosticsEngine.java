@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import org.json.simple.*;
+
+/* Turns compiler output into Diagnostic records.
+ *
+ * The error and warning expressions come from the merged board, core and
+ * compiler properties:
+ *
+ *   compiler.error           Regular expression matching an error line
+ *   compiler.error.filename  Group holding the file name (default 1)
+ *   compiler.error.line      Group holding the line number (default 2)
+ *   compiler.error.column    Group holding the column, 0 for none (default 0)
+ *   compiler.error.message   Group holding the message (default 3)
+ *
+ * and likewise for compiler.warning and compiler.note. They are compiled
+ * once, when the engine is created at the start of a build, rather than
+ * for every line of output.
+ *
+ * A header included by many files produces the same diagnostic many
+ * times; only the first is recorded. Newly recorded diagnostics are also
+ * queued so the editor can be updated with a whole batch at once.
+ */
+
+public class DiagnosticsEngine {
+    static final String DEFAULT_NOTE = "^(.+?):(\\d+):(?:\\d+:)?\\s*note:\\s*(.*)$";
+
+    class Rule {
+        Pattern pattern;
+        int filename;
+        int line;
+        int column;
+        int message;
+        int severity;
+
+        Rule(PropertyFile props, String key, String def, int sev) {
+            String rec = props.get(key, def);
+            if (rec != null) {
+                try {
+                    pattern = Pattern.compile(rec);
+                } catch (PatternSyntaxException e) {
+                    Base.error(e);
+                }
+            }
+            filename = props.getInteger(key + ".filename", 1);
+            line = props.getInteger(key + ".line", 2);
+            column = props.getInteger(key + ".column", 0);
+            message = props.getInteger(key + ".message", 3);
+            severity = sev;
+        }
+
+        Diagnostic match(String s) {
+            if (pattern == null) {
+                return null;
+            }
+            Matcher m = pattern.matcher(s);
+            if (!m.find()) {
+                return null;
+            }
+            try {
+                int col = 0;
+                if (column > 0 && m.group(column) != null) {
+                    col = Integer.parseInt(m.group(column).replaceAll("[^0-9]", ""));
+                }
+                return new Diagnostic(
+                    new File(m.group(filename).trim()),
+                    Integer.parseInt(m.group(line).trim()),
+                    col,
+                    severity,
+                    m.group(message)
+                );
+            } catch (Exception e) {
+                // The expression matched but doesn't have the groups
+                // we were told it has.
+                return null;
+            }
+        }
+    }
+
+    Rule errorRule;
+    Rule warningRule;
+    Rule noteRule;
+
+    ArrayList<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+    HashSet<String> seen = new HashSet<String>();
+    ArrayList<Diagnostic> pending = new ArrayList<Diagnostic>();
+
+    // The most recent diagnostic, which any following notes belong to.
+    // Null if that diagnostic was a repeat and its notes should be dropped.
+    Diagnostic last = null;
+    boolean lastWasRepeat = false;
+
+    int errors = 0;
+    int warnings = 0;
+    int repeats = 0;
+
+    public DiagnosticsEngine(PropertyFile props) {
+        errorRule = new Rule(props, "compiler.error", null, Diagnostic.ERROR);
+        warningRule = new Rule(props, "compiler.warning", null, Diagnostic.WARNING);
+        noteRule = new Rule(props, "compiler.note", DEFAULT_NOTE, Diagnostic.NOTE);
+    }
+
+    // Parse a line without recording it
+    public Diagnostic match(String s) {
+        Diagnostic d = errorRule.match(s);
+        if (d == null) {
+            d = warningRule.match(s);
+        }
+        return d;
+    }
+
+    public Diagnostic matchError(String s) {
+        return errorRule.match(s);
+    }
+
+    public Diagnostic matchWarning(String s) {
+        return warningRule.match(s);
+    }
+
+    // Returns true if this is the first time the diagnostic has been seen
+    public synchronized boolean record(Diagnostic d) {
+        if (!seen.add(d.getKey())) {
+            repeats++;
+            last = null;
+            lastWasRepeat = true;
+            return false;
+        }
+        diagnostics.add(d);
+        pending.add(d);
+        last = d;
+        lastWasRepeat = false;
+        if (d.isError()) {
+            errors++;
+        } else if (d.isWarning()) {
+            warnings++;
+        }
+        return true;
+    }
+
+    // Try and attach a note line to the last diagnostic. Returns 1 if it
+    // was attached, -1 if it belongs to a repeated diagnostic and should
+    // be dropped, or 0 if it isn't a note at all.
+    public synchronized int attachNote(String s) {
+        if (last == null && !lastWasRepeat) {
+            return 0;
+        }
+        Diagnostic n = noteRule.match(s);
+        if (n == null) {
+            return 0;
+        }
+        if (lastWasRepeat) {
+            return -1;
+        }
+        last.addNote(n.getFile().getName() + ":" + n.getLine() + ": " + n.getMessage());
+        return 1;
+    }
+
+    // Diagnostics recorded since the last call
+    public synchronized ArrayList<Diagnostic> takePending() {
+        if (pending.size() == 0) {
+            return null;
+        }
+        ArrayList<Diagnostic> out = pending;
+        pending = new ArrayList<Diagnostic>();
+        return out;
+    }
+
+    public synchronized ArrayList<Diagnostic> getDiagnostics() {
+        return new ArrayList<Diagnostic>(diagnostics);
+    }
+
+    public int getErrorCount() {
+        return errors;
+    }
+
+    public int getWarningCount() {
+        return warnings;
+    }
+
+    public int getRepeatCount() {
+        return repeats;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized void writeReport(File file, String sketchName, boolean success) throws IOException {
+        JSONObject report = new JSONObject();
+        report.put("sketch", sketchName);
+        report.put("success", success);
+        report.put("errors", errors);
+        report.put("warnings", warnings);
+        report.put("repeats", repeats);
+
+        JSONArray list = new JSONArray();
+        for (Diagnostic d : diagnostics) {
+            list.add(d.toJSON());
+        }
+        report.put("diagnostics", list);
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            report.writeJSONString(out);
+            out.write("\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -192,11 +192,10 @@ public class Editor extends JFrame {
             abortButton.setVisible(true);
 
             try {
-                if(loadedSketch.build()) {
-                    //        reportSize();
-                    if(upload) {
-                        loadedSketch.upload();
-                    }
+                if(upload) {
+                    loadedSketch.buildAndUpload();
+                } else {
+                    loadedSketch.build();
                 }
             } catch(Exception e) {
                 error(e);
@@ -1161,92 +1160,74 @@ public class Editor extends JFrame {
         }
     }
 
-    public boolean mergeTrees(DefaultMutableTreeNode dst, DefaultMutableTreeNode src) {
-        // First go through and remove any nodes in dst that aren't in src.
-        boolean removedNodes = false;
-        int currentNode = 0;
-        boolean hasChanged = false;
-
-        while(currentNode < dst.getChildCount()) {
-            boolean found = false;
-            DefaultMutableTreeNode foundNode = null;
-
-            for(int i = 0; i < src.getChildCount(); i++) {
-                if(src.getChildAt(i).toString().equals(dst.getChildAt(currentNode).toString())) {
-                    foundNode = (DefaultMutableTreeNode)src.getChildAt(i);
-                    src.remove(i);
-                    found = true;
-                    break;
+    public void updateKeywords() {
+        KeywordTable table = loadedSketch.getKeywordTable();
+        HashMap<String, Integer>keywordList = loadedSketch.getKeywords();
+        for (int i = 0; i < getTabCount(); i++) {
+            EditorBase eb = getTab(i);
+            if ((eb instanceof code) && ((code)eb).setKeywords(table)) {
+                continue;
+            }
+            if (eb != null) {
+                eb.clearKeywords();
+                for (Map.Entry<String, Integer>kw : keywordList.entrySet()) {
+                    eb.addKeyword(kw.getKey(), kw.getValue());
                 }
+                eb.repaint();
             }
+        }
+    }
 
-            if(!found) {
-                removedNodes = true;
-                dst.remove(currentNode);
-                hasChanged = true;
-                continue;
-            }
+    // Tree updates asked for since the tree was last refreshed. They are run
+    // together on the event thread a short while after the first one comes
+    // in, so a build that reports after every file doesn't rebuild the tree
+    // every time.
+    LinkedHashMap<String, Runnable> pendingTreeUpdates = new LinkedHashMap<String, Runnable>();
+    javax.swing.Timer treeUpdateTimer = null;
 
-            // Copy across the user object.
-            DefaultMutableTreeNode dnode = (DefaultMutableTreeNode)dst.getChildAt(currentNode);
-            Object sob = foundNode.getUserObject();
-            Object dob = dnode.getUserObject();
+    void scheduleTreeUpdate(String which, Runnable r) {
+        synchronized(pendingTreeUpdates) {
+            pendingTreeUpdates.put(which, r);
 
-            if(sob != dob) {
-                dnode.setUserObject(sob);
+            if(treeUpdateTimer == null) {
+                treeUpdateTimer = new javax.swing.Timer(100, new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        runTreeUpdates();
+                    }
+                });
+                treeUpdateTimer.setRepeats(false);
             }
 
-            if (mergeTrees(dnode, foundNode)) {
-                hasChanged = true;
+            if(!treeUpdateTimer.isRunning()) {
+                treeUpdateTimer.start();
             }
-            currentNode++;
         }
+    }
 
-        // Now copy across any new objects.
-
-        boolean addedNodes = false;
+    void runTreeUpdates() {
+        ArrayList<Runnable> todo;
 
-        while(src.getChildCount() > 0) {
-            dst.add((DefaultMutableTreeNode)src.getChildAt(0));
-            hasChanged = true;
-            addedNodes = true;
+        synchronized(pendingTreeUpdates) {
+            todo = new ArrayList<Runnable>(pendingTreeUpdates.values());
+            pendingTreeUpdates.clear();
         }
 
-        return hasChanged;
-    }
+        if(sketchContentTree == null) {
+            return;
+        }
 
-    public void updateKeywords() {
-        HashMap<String, Integer>keywordList = loadedSketch.getKeywords();
-        for (int i = 0; i < getTabCount(); i++) {
-            EditorBase eb = getTab(i);
-            if (eb != null) {
-                eb.clearKeywords();
-                for (Map.Entry<String, Integer>kw : keywordList.entrySet()) {
-                    eb.addKeyword(kw.getKey(), kw.getValue());
-                }
-                eb.repaint();
-            }
+        for(Runnable r : todo) {
+            r.run();
         }
     }
 
     public void updateSourceTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("source", new Runnable() {
             public void run() {
-                    
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-
-                DefaultMutableTreeNode ntc = new DefaultMutableTreeNode();
-                treeSource.removeAllChildren();
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
                 DefaultMutableTreeNode node;
 
-                File[] flist = loadedSketch.sketchFiles.toArray(new File[0]);
-
-                Arrays.sort(flist);
-
-                for(File f : flist) {
+                for(File f : loadedSketch.sketchFiles) {
                     int type = FileType.getType(f);
 
                     switch(type) {
@@ -1256,7 +1237,7 @@ public class Editor extends JFrame {
                         case FileType.SKETCH:
                             node = new DefaultMutableTreeNode(f.getName());
                             node.setUserObject(f);
-                            treeSource.add(node);
+                            fresh.add(node);
                             HashMap<Integer, String> funcs = loadedSketch.getFunctionsForFile(f);
 
                             if(funcs != null) {
@@ -1318,27 +1299,18 @@ public class Editor extends JFrame {
                     }
                 }
 
-                treeModel.reload(sortTree(treeSource));
-                restoreTreeState(sketchContentTree, saved);
+                TreeSync.sync(treeModel, treeSource, sortTree(fresh));
             }
         });
     }
 
     public DefaultMutableTreeNode sortTree(DefaultMutableTreeNode root) {
-        Enumeration e = root.depthFirstEnumeration();
-        while(e.hasMoreElements()) {
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode)e.nextElement();
-            if(!node.isLeaf()) {
-                sort2(node);   //selection sort
-            }
-        }
+        TreeSync.sort(root, tnc);
         return root;
     }
 
-    public Comparator tnc = new Comparator() {
-        public int compare(Object ao, Object bo) {
-            DefaultMutableTreeNode a = (DefaultMutableTreeNode)ao;
-            DefaultMutableTreeNode b = (DefaultMutableTreeNode)bo;
+    public Comparator<DefaultMutableTreeNode> tnc = new Comparator<DefaultMutableTreeNode>() {
+        public int compare(DefaultMutableTreeNode a, DefaultMutableTreeNode b) {
             //Sort the parent and child nodes separately:
             if ((a.getUserObject() instanceof FlaggedList) && !(b.getUserObject() instanceof FlaggedList)) {
                 return -1;
@@ -1352,50 +1324,31 @@ public class Editor extends JFrame {
         }
     };
 
-    @SuppressWarnings("unchecked")
-    public void sort2(DefaultMutableTreeNode parent) {
-        int n = parent.getChildCount();
-        for(int i=0;i< n-1;i++) {
-            int min = i;
-            for(int j=i+1;j< n;j++) {
-                if(tnc.compare((DefaultMutableTreeNode)parent.getChildAt(min),
-                               (DefaultMutableTreeNode)parent.getChildAt(j))>0) {
-                    min = j;
-                }
-            }
-            if(i!=min) {
-                MutableTreeNode a = (MutableTreeNode)parent.getChildAt(i);
-                MutableTreeNode b = (MutableTreeNode)parent.getChildAt(min);
-                parent.insert(b, i);
-                parent.insert(a, min);
-            }
-        }
-    }
-
     public void updateDocsTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("docs", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-                treeDocs.removeAllChildren();
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
                 DefaultMutableTreeNode node;
 
-                for(File f : loadedSketch.getFolder().listFiles()) {
-                    int type = FileType.getType(f);
+                File[] flist = loadedSketch.getFolder().listFiles();
 
-                    switch(type) {
-                        case FileType.DOCUMENT:
-                            node = new DefaultMutableTreeNode(f.getName());
-                            node.setUserObject(f);
-                            treeDocs.add(node);
-                            break;
+                if(flist != null) {
+                    Arrays.sort(flist);
+
+                    for(File f : flist) {
+                        int type = FileType.getType(f);
+
+                        switch(type) {
+                            case FileType.DOCUMENT:
+                                node = new DefaultMutableTreeNode(f.getName());
+                                node.setUserObject(f);
+                                fresh.add(node);
+                                break;
+                        }
                     }
                 }
 
-        treeModel.nodeStructureChanged(treeDocs);
-                restoreTreeState(sketchContentTree, saved);
+                TreeSync.sync(treeModel, treeDocs, fresh);
             }
         });
     }
@@ -1415,13 +1368,9 @@ public class Editor extends JFrame {
     }
 
     public void updateHeadersTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("headers", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-                treeHeaders.removeAllChildren();
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
                 DefaultMutableTreeNode node;
 
                 for(File f : loadedSketch.sketchFiles) {
@@ -1431,43 +1380,34 @@ public class Editor extends JFrame {
                         case FileType.HEADER:
                             node = new DefaultMutableTreeNode(f.getName());
                             node.setUserObject(f);
-                            treeHeaders.add(node);
+                            fresh.add(node);
                             break;
                     }
                 }
 
-                treeModel.nodeStructureChanged(treeHeaders);
-                restoreTreeState(sketchContentTree, saved);
+                TreeSync.sync(treeModel, treeHeaders, fresh);
             }
         });
     }
 
-    public synchronized void updateLibrariesTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+    public void updateLibrariesTree() {
+        scheduleTreeUpdate("libraries", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-//                treeLibraries.removeAllChildren();
                 HashMap<String, Library>libList = loadedSketch.getLibraries();
                 
-                DefaultMutableTreeNode ntc = new DefaultMutableTreeNode();
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
                 DefaultMutableTreeNode node;
 
                 if(libList != null) {
-                    ArrayList<String> libs = new ArrayList<String>();
-                    libs.addAll(libList.keySet());
-                    for(String libname : libs) {
+                    for(String libname : libList.keySet()) {
                         node = new DefaultMutableTreeNode(libname);
                         node.setUserObject(libList.get(libname));
-                        ntc.add(node);
+                        fresh.add(node);
                     }
                 }
 
-                boolean hasChanged = mergeTrees(treeLibraries, ntc);
-                treeModel.reload(sortTree(treeLibraries));
-                restoreTreeState(sketchContentTree, saved);
+                // Libraries draw their compile progress, so always repaint them
+                boolean hasChanged = TreeSync.sync(treeModel, treeLibraries, sortTree(fresh), true);
                 if (hasChanged) {
                     populateOptionsMenu(optionsMenu);
                     optionsMenu.setEnabled(optionsMenu.getItemCount() > 0);
@@ -1477,18 +1417,15 @@ public class Editor extends JFrame {
     }
 
     public void updateBinariesTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("binaries", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-                treeBinaries.removeAllChildren();
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
                 File bins = loadedSketch.getBinariesFolder();
                 DefaultMutableTreeNode node;
 
                 if(bins.exists() && bins.isDirectory()) {
                     File[] files = bins.listFiles();
+                    Arrays.sort(files);
 
                     for(File binFile : files) {
                         if(binFile.getName().startsWith(".")) {
@@ -1497,45 +1434,36 @@ public class Editor extends JFrame {
 
                         node = new DefaultMutableTreeNode(binFile.getName());
                         node.setUserObject(binFile);
-                        treeBinaries.add(node);
+                        fresh.add(node);
                     }
                 }
 
-        treeModel.nodeStructureChanged(treeBinaries);
-                restoreTreeState(sketchContentTree, saved);
+                TreeSync.sync(treeModel, treeBinaries, fresh);
             }
         });
     }
 
     public void updateOutputTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("output", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchContentTree);
-                if (saved == null) {
-                    return;
-                }
-                treeOutput.removeAllChildren();
-                addFileTreeToNode(treeOutput, loadedSketch.getBuildFolder());
-                treeModel.nodeStructureChanged(treeOutput);
-
-
-                restoreTreeState(sketchContentTree, saved);
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
+                addFileTreeToNode(fresh, loadedSketch.getBuildFolder());
+                TreeSync.sync(treeModel, treeOutput, fresh);
             }
         });
     }
 
     public void updateFilesTree() {
-        SwingUtilities.invokeLater(new Runnable() {
+        scheduleTreeUpdate("files", new Runnable() {
             public void run() {
-                TreePath[] saved = saveTreeState(sketchFilesTree);
-                if (saved == null) {
+                if(sketchFilesTree == null) {
                     return;
                 }
-                filesTreeRoot.removeAllChildren();
                 filesTreeRoot.setUserObject(loadedSketch.getFolder());
-                addFileTreeToNode(filesTreeRoot, loadedSketch.getFolder());
-                filesTreeModel.nodeStructureChanged(filesTreeRoot);
-                restoreTreeState(sketchFilesTree, saved);
+                filesTreeModel.nodeChanged(filesTreeRoot);
+                DefaultMutableTreeNode fresh = new DefaultMutableTreeNode();
+                addFileTreeToNode(fresh, loadedSketch.getFolder());
+                TreeSync.sync(filesTreeModel, filesTreeRoot, fresh);
             }
         });
     }
@@ -2542,6 +2470,61 @@ public class Editor extends JFrame {
         return true;
     }
 
+    // Open the file that defines name at the definition, asking which one
+    // if there's more than one.
+    public boolean gotoDefinition(String name) {
+        if (name == null || name.equals("")) {
+            return false;
+        }
+
+        ArrayList<SymbolIndex.Symbol> found = new ArrayList<SymbolIndex.Symbol>();
+        ArrayList<SymbolIndex.Symbol> others = new ArrayList<SymbolIndex.Symbol>();
+        for (SymbolIndex.Symbol s : loadedSketch.getSymbolIndex().lookup(name)) {
+            if (s.getOrigin().equals(SymbolIndex.SKETCH)) {
+                found.add(s);
+            } else {
+                others.add(s);
+            }
+        }
+        found.addAll(others);
+
+        if (found.size() == 0) {
+            message(Base.i18n.string("msg.definition.notfound", name));
+            return false;
+        }
+
+        SymbolIndex.Symbol target = found.get(0);
+
+        if (found.size() > 1) {
+            String[] choices = new String[found.size()];
+            for (int i = 0; i < choices.length; i++) {
+                SymbolIndex.Symbol s = found.get(i);
+                choices[i] = s.getFile().getName() + ":" + (s.getLine() + 1) + "  " + s.getText();
+            }
+            Object choice = JOptionPane.showInputDialog(this,
+                Base.i18n.string("msg.definition.choose", name),
+                Base.i18n.string("menu.definition"),
+                JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+            if (choice == null) {
+                return false;
+            }
+            for (int i = 0; i < choices.length; i++) {
+                if (choices[i] == choice) {
+                    target = found.get(i);
+                }
+            }
+        }
+
+        int tab = openOrSelectFile(target.getFile());
+        if (tab < 0) {
+            return false;
+        }
+        EditorBase eb = getTab(tab);
+        eb.gotoLine(target.getLine());
+        eb.requestFocus();
+        return true;
+    }
+
     public int openNewTab(File sf) {
         if (sf == null) {
             error("No file specified");
@@ -0,0 +1,538 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/* Reader for ELF32 and ELF64 files of either byte order.
+ *
+ * The file is memory mapped and nothing beyond the file header is decoded
+ * up front: the section table is read the first time it's asked for, the
+ * symbol table likewise, and section and symbol names are only pulled out
+ * of their string tables when something wants them.
+ *
+ * Call close() when finished so the mapping is released straight away
+ * rather than whenever the garbage collector gets round to it - Windows
+ * won't let the linker replace a file that is still mapped. Anything that
+ * touches the mapping holds the read side of mapLock, so close() waits for
+ * readers to finish before unmapping and later reads get an exception
+ * rather than a crash.
+ */
+
+public class ElfFile {
+    public static final int ELFCLASS32 = 1;
+    public static final int ELFCLASS64 = 2;
+    public static final int ELFDATA2LSB = 1;
+    public static final int ELFDATA2MSB = 2;
+
+    public static final int SHT_NULL = 0;
+    public static final int SHT_PROGBITS = 1;
+    public static final int SHT_SYMTAB = 2;
+    public static final int SHT_STRTAB = 3;
+    public static final int SHT_NOBITS = 8;
+    public static final int SHT_DYNSYM = 11;
+
+    public static final long SHF_WRITE = 0x1;
+    public static final long SHF_ALLOC = 0x2;
+    public static final long SHF_EXECINSTR = 0x4;
+
+    public static final int SHN_UNDEF = 0;
+    public static final int SHN_LORESERVE = 0xFF00;
+    public static final int SHN_ABS = 0xFFF1;
+    public static final int SHN_COMMON = 0xFFF2;
+
+    public static final int STB_LOCAL = 0;
+    public static final int STB_GLOBAL = 1;
+    public static final int STB_WEAK = 2;
+
+    public static final int STT_NOTYPE = 0;
+    public static final int STT_OBJECT = 1;
+    public static final int STT_FUNC = 2;
+    public static final int STT_SECTION = 3;
+    public static final int STT_FILE = 4;
+
+    File file;
+    String name;
+    ByteBuffer buffer;
+    final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+
+    int elfClass;
+    int dataEncoding;
+    int elfVersion;
+    int osAbi;
+    int abiVersion;
+
+    int type;
+    int machine;
+    long version;
+    long entry;
+    long phoff;
+    long shoff;
+    long flags;
+    int ehsize;
+    int phentsize;
+    int phnum;
+    int shentsize;
+    int shnum;
+    int shstrndx;
+
+    Section[] sections = null;
+    HashMap<String, Section> sectionsByName = null;
+    ArrayList<Symbol> symbols = null;
+
+    public class Section {
+        int index;
+        int nameIndex;
+        String name = null;
+
+        public int type;
+        public long flags;
+        public long addr;
+        public long offset;
+        public long size;
+        public int link;
+        public int info;
+        public long addralign;
+        public long entsize;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            if (name == null) {
+                name = getString(shstrndx, nameIndex);
+            }
+            return name;
+        }
+
+        public boolean isAlloc() {
+            return (flags & SHF_ALLOC) != 0;
+        }
+
+        public boolean isWritable() {
+            return (flags & SHF_WRITE) != 0;
+        }
+
+        public boolean isExecutable() {
+            return (flags & SHF_EXECINSTR) != 0;
+        }
+
+        // Takes no space in the file (.bss and friends)
+        public boolean isNoBits() {
+            return type == SHT_NOBITS;
+        }
+
+        public boolean contains(long address) {
+            return address >= addr && address < addr + size;
+        }
+
+        public byte[] getData(long start, int length) {
+            if (isNoBits()) {
+                return new byte[length];
+            }
+            return readBytes(offset + start, length);
+        }
+
+        public String toString() {
+            return getName();
+        }
+    }
+
+    public class Symbol {
+        int index;
+        int nameIndex;
+        int stringTable;
+        String name = null;
+
+        public long value;
+        public long size;
+        public int info;
+        public int other;
+        public int shndx;
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            if (name == null) {
+                name = (nameIndex == 0) ? "" : getString(stringTable, nameIndex);
+            }
+            return name;
+        }
+
+        public int getBinding() {
+            return (info >> 4) & 0xF;
+        }
+
+        public int getType() {
+            return info & 0xF;
+        }
+
+        public boolean isDefined() {
+            return shndx != SHN_UNDEF;
+        }
+
+        // The section the symbol is defined in, or null for undefined,
+        // absolute and common symbols.
+        public Section getSection() {
+            if (shndx == SHN_UNDEF || shndx >= SHN_LORESERVE) {
+                return null;
+            }
+            Section[] secs = getSections();
+            if (shndx >= secs.length) {
+                return null;
+            }
+            return secs[shndx];
+        }
+
+        public String toString() {
+            return getName();
+        }
+    }
+
+    public ElfFile(File f) throws IOException {
+        file = f;
+        name = f.getName();
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            in.close();
+        }
+        readHeader();
+    }
+
+    // An ELF image that is already in memory, such as a member of an
+    // archive. The buffer must start at the ELF header.
+    public ElfFile(String n, ByteBuffer data) throws IOException {
+        name = n;
+        buffer = data.slice();
+        readHeader();
+    }
+
+    void readHeader() throws IOException {
+        if (buffer.limit() < 52 || buffer.getInt(0) != 0x7F454C46) {
+            close();
+            throw new IOException(name + " is not an ELF file");
+        }
+
+        elfClass = buffer.get(4) & 0xFF;
+        dataEncoding = buffer.get(5) & 0xFF;
+        elfVersion = buffer.get(6) & 0xFF;
+        osAbi = buffer.get(7) & 0xFF;
+        abiVersion = buffer.get(8) & 0xFF;
+
+        if ((elfClass != ELFCLASS32 && elfClass != ELFCLASS64) || (dataEncoding != ELFDATA2LSB && dataEncoding != ELFDATA2MSB)) {
+            close();
+            throw new IOException(name + " has an unsupported ELF class or encoding");
+        }
+
+        buffer.order(dataEncoding == ELFDATA2MSB ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+        type = half(16);
+        machine = half(18);
+        version = word(20);
+        if (is64()) {
+            entry = buffer.getLong(24);
+            phoff = buffer.getLong(32);
+            shoff = buffer.getLong(40);
+            flags = word(48);
+            ehsize = half(52);
+            phentsize = half(54);
+            phnum = half(56);
+            shentsize = half(58);
+            shnum = half(60);
+            shstrndx = half(62);
+        } else {
+            entry = word(24);
+            phoff = word(28);
+            shoff = word(32);
+            flags = word(36);
+            ehsize = half(40);
+            phentsize = half(42);
+            phnum = half(44);
+            shentsize = half(46);
+            shnum = half(48);
+            shstrndx = half(50);
+        }
+    }
+
+    // Quick check of the magic number without mapping the file
+    public static boolean isElf(File f) {
+        if (f == null || !f.isFile() || f.length() < 52) {
+            return false;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                return in.readInt() == 0x7F454C46;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        mapLock.writeLock().lock();
+        try {
+            if (buffer == null) {
+                return;
+            }
+            ByteBuffer b = buffer;
+            buffer = null;
+            Base.unmapBuffer(b);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    ByteBuffer buf() {
+        if (buffer == null) {
+            throw new IllegalStateException(name + " has been closed");
+        }
+        return buffer;
+    }
+
+    int half(long pos) {
+        return buf().getShort((int)pos) & 0xFFFF;
+    }
+
+    long word(long pos) {
+        return buf().getInt((int)pos) & 0xFFFFFFFFL;
+    }
+
+    long addr(long pos) {
+        return is64() ? buf().getLong((int)pos) : word(pos);
+    }
+
+    byte[] readBytes(long pos, int length) {
+        byte[] out = new byte[length];
+        mapLock.readLock().lock();
+        try {
+            ByteBuffer b = buf().duplicate();
+            b.position((int)pos);
+            b.get(out);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        return out;
+    }
+
+    // Read a NUL terminated string from the given string table section
+    String getString(int table, long index) {
+        Section[] secs = getSections();
+        if (table <= 0 || table >= secs.length) {
+            return "";
+        }
+        Section s = secs[table];
+        if (index >= s.size) {
+            return "";
+        }
+        mapLock.readLock().lock();
+        try {
+            ByteBuffer b = buf();
+            int start = (int)(s.offset + index);
+            int end = start;
+            int limit = (int)Math.min(b.limit(), s.offset + s.size);
+            while (end < limit && b.get(end) != 0) {
+                end++;
+            }
+            char[] c = new char[end - start];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = (char)(b.get(start + i) & 0xFF);
+            }
+            return new String(c);
+        } finally {
+            mapLock.readLock().unlock();
+        }
+    }
+
+    public File getFile() { return file; }
+    public String getName() { return name; }
+    public boolean is64() { return elfClass == ELFCLASS64; }
+    public boolean isBigEndian() { return dataEncoding == ELFDATA2MSB; }
+    public int getType() { return type; }
+    public int getMachine() { return machine; }
+    public long getVersion() { return version; }
+    public long getEntry() { return entry; }
+    public long getFlags() { return flags; }
+    public int getOsAbi() { return osAbi; }
+    public int getAbiVersion() { return abiVersion; }
+
+    public synchronized Section[] getSections() {
+        if (sections != null) {
+            return sections;
+        }
+        Section[] secs = new Section[shnum];
+        mapLock.readLock().lock();
+        try {
+            for (int i = 0; i < shnum; i++) {
+                long p = shoff + (long)i * shentsize;
+                Section s = new Section();
+                s.index = i;
+                s.nameIndex = (int)word(p);
+                s.type = (int)word(p + 4);
+                if (is64()) {
+                    s.flags = buf().getLong((int)(p + 8));
+                    s.addr = buf().getLong((int)(p + 16));
+                    s.offset = buf().getLong((int)(p + 24));
+                    s.size = buf().getLong((int)(p + 32));
+                    s.link = (int)word(p + 40);
+                    s.info = (int)word(p + 44);
+                    s.addralign = buf().getLong((int)(p + 48));
+                    s.entsize = buf().getLong((int)(p + 56));
+                } else {
+                    s.flags = word(p + 8);
+                    s.addr = word(p + 12);
+                    s.offset = word(p + 16);
+                    s.size = word(p + 20);
+                    s.link = (int)word(p + 24);
+                    s.info = (int)word(p + 28);
+                    s.addralign = word(p + 32);
+                    s.entsize = word(p + 36);
+                }
+                secs[i] = s;
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        sections = secs;
+        return sections;
+    }
+
+    public synchronized Section getSection(String name) {
+        if (sectionsByName == null) {
+            HashMap<String, Section> map = new HashMap<String, Section>();
+            for (Section s : getSections()) {
+                map.put(s.getName(), s);
+            }
+            sectionsByName = map;
+        }
+        return sectionsByName.get(name);
+    }
+
+    // The allocated section covering an address, if any
+    public Section getSectionAt(long address) {
+        for (Section s : getSections()) {
+            if (s.isAlloc() && s.contains(address)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    // The static symbol table, or the dynamic one if there isn't one
+    public synchronized ArrayList<Symbol> getSymbols() {
+        if (symbols != null) {
+            return symbols;
+        }
+        Section table = null;
+        for (Section s : getSections()) {
+            if (s.type == SHT_SYMTAB) {
+                table = s;
+                break;
+            }
+            if (s.type == SHT_DYNSYM && table == null) {
+                table = s;
+            }
+        }
+
+        ArrayList<Symbol> syms = new ArrayList<Symbol>();
+        mapLock.readLock().lock();
+        try {
+            if (table != null && table.entsize > 0) {
+                int count = (int)(table.size / table.entsize);
+                syms.ensureCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    long p = table.offset + (long)i * table.entsize;
+                    Symbol s = new Symbol();
+                    s.index = i;
+                    s.stringTable = table.link;
+                    s.nameIndex = (int)word(p);
+                    if (is64()) {
+                        s.info = buf().get((int)(p + 4)) & 0xFF;
+                        s.other = buf().get((int)(p + 5)) & 0xFF;
+                        s.shndx = half(p + 6);
+                        s.value = buf().getLong((int)(p + 8));
+                        s.size = buf().getLong((int)(p + 16));
+                    } else {
+                        s.value = word(p + 4);
+                        s.size = word(p + 8);
+                        s.info = buf().get((int)(p + 12)) & 0xFF;
+                        s.other = buf().get((int)(p + 13)) & 0xFF;
+                        s.shndx = half(p + 14);
+                    }
+                    syms.add(s);
+                }
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        symbols = syms;
+        return symbols;
+    }
+
+    /* Memory usage the way the binutils "size" tool reports it: text is
+     * every allocated read-only section, data the allocated writable ones
+     * that take space in the file, and bss the allocated writable ones
+     * that don't. Sections named in ignore (which may be null) aren't
+     * counted. Returns { text, data, bss }. */
+    public long[] getSizes(Collection<String> ignore) {
+        long text = 0;
+        long data = 0;
+        long bss = 0;
+        for (Section s : getSections()) {
+            if (!s.isAlloc()) {
+                continue;
+            }
+            if (ignore != null && ignore.contains(s.getName())) {
+                continue;
+            }
+            if (s.isNoBits()) {
+                bss += s.size;
+            } else if (s.isWritable()) {
+                data += s.size;
+            } else {
+                text += s.size;
+            }
+        }
+        return new long[] { text, data, bss };
+    }
+}
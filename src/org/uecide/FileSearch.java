@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+/* Searches a set of files in parallel and passes back the matches for each
+ * file as soon as it has been scanned.
+ *
+ * Files on disk are read into (or, when large, mapped as) a byte buffer
+ * and matched through a ISO-8859-1 view of it, so nothing is decoded
+ * except the lines that match. That is exact for ASCII terms, which is
+ * nearly all of them; a term with other characters in it makes the file
+ * be decoded as UTF-8 first. Text from open editor tabs is searched as
+ * given.
+ *
+ * Literal searches consult the shared TrigramIndex to skip files that
+ * can't contain the term; every disk file that is scanned in full is
+ * added to it, so repeat searches over a large tree only read the files
+ * that could match.
+ */
+
+public class FileSearch {
+    static final int MAP_THRESHOLD = 64 * 1024;
+    static final int MAX_LINE = 300;
+    static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final TrigramIndex index = new TrigramIndex();
+
+    static ExecutorService pool = null;
+
+    public static class Match {
+        File file;
+        int line;
+        String text;
+        int start;
+        int end;
+
+        public File getFile() { return file; }
+        // One based
+        public int getLine() { return line; }
+        // The line the match starts on, possibly shortened
+        public String getText() { return text; }
+        // Where the match is within getText()
+        public int getStart() { return start; }
+        public int getEnd() { return end; }
+    }
+
+    public interface Listener {
+        // Called from a search thread with the matches in one file
+        public void found(File f, ArrayList<Match> matches);
+        // Called from a search thread once every file has been dealt with
+        public void finished(int files, int matches, boolean cancelled);
+    }
+
+    public class Task {
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        AtomicInteger remaining = new AtomicInteger(0);
+        AtomicInteger matches = new AtomicInteger(0);
+        AtomicInteger scanned = new AtomicInteger(0);
+        ArrayList<Future<?>> jobs = new ArrayList<Future<?>>();
+        Listener listener;
+
+        public void cancel() {
+            cancelled.set(true);
+            synchronized (jobs) {
+                for (Future<?> f : jobs) {
+                    f.cancel(false);
+                }
+            }
+            // Jobs that never started won't report in
+            finishIfDone(0);
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+
+        public boolean isDone() {
+            return remaining.get() <= 0;
+        }
+
+        void finishIfDone(int done) {
+            int left = done > 0 ? remaining.addAndGet(-done) : remaining.get();
+            if (left == 0 || (cancelled.get() && done == 0 && left >= 0)) {
+                if (remaining.getAndSet(-1) >= 0) {
+                    listener.finished(scanned.get(), matches.get(), cancelled.get());
+                }
+            }
+        }
+    }
+
+    Pattern pattern;
+    boolean ascii;
+    int[] literal;
+    boolean useIndex;
+    boolean wordCheck;
+
+    /* A search for term, which is a regular expression if regex is set and
+     * plain text otherwise. Throws PatternSyntaxException for a bad
+     * expression. */
+    public FileSearch(String term, boolean regex, boolean wholeWord, boolean matchCase) {
+        String p = regex ? term : Pattern.quote(term);
+        // A leading lookbehind stops the matcher skipping ahead on the
+        // literal, so plain text has its word boundaries checked by hand.
+        if (wholeWord && regex) {
+            p = "(?<![A-Za-z0-9_])(?:" + p + ")(?![A-Za-z0-9_])";
+        }
+        wordCheck = wholeWord && !regex;
+        int flags = Pattern.MULTILINE;
+        if (!matchCase) {
+            flags |= Pattern.CASE_INSENSITIVE;
+        }
+        pattern = Pattern.compile(p, flags);
+
+        ascii = true;
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) > 127) {
+                ascii = false;
+            }
+        }
+        literal = regex ? new int[0] : TrigramIndex.termTrigrams(term);
+        useIndex = Preferences.getBoolean("editor.find.index");
+    }
+
+    static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                int count = 0;
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Search " + (++count));
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /* Search the files. Where open has an entry for a file its text is
+     * searched instead of what's on disk. */
+    public Task search(Collection<File> files, final Map<File, String> open, Listener listener) {
+        final Task task = new Task();
+        task.listener = listener;
+        LinkedHashSet<File> all = new LinkedHashSet<File>(files);
+        if (open != null) {
+            all.addAll(open.keySet());
+        }
+        task.remaining.set(all.size());
+        if (all.isEmpty()) {
+            task.finishIfDone(0);
+            return task;
+        }
+        ExecutorService p = getPool();
+        for (final File f : all) {
+            Future<?> job = p.submit(new Runnable() {
+                public void run() {
+                    try {
+                        if (!task.cancelled.get()) {
+                            scan(task, f, open == null ? null : open.get(f));
+                        }
+                    } catch (Exception e) {
+                        Debug.message("Search of " + f.getAbsolutePath() + " failed: " + e.getMessage());
+                    } finally {
+                        task.finishIfDone(1);
+                    }
+                }
+            });
+            synchronized (task.jobs) {
+                task.jobs.add(job);
+            }
+        }
+        return task;
+    }
+
+    void scan(Task task, File f, String text) throws IOException {
+        if (text != null) {
+            task.scanned.incrementAndGet();
+            report(task, f, find(task, f, text, null));
+            return;
+        }
+
+        if (!f.isFile()) {
+            return;
+        }
+
+        if (useIndex && index.excludes(f, literal)) {
+            return;
+        }
+
+        long modified = f.lastModified();
+        long length = f.length();
+        ByteBuffer buf = read(f, length);
+        task.scanned.incrementAndGet();
+        try {
+            ByteChars bytes = new ByteChars(buf);
+            ArrayList<Match> found;
+            if (ascii) {
+                found = find(task, f, bytes, bytes);
+            } else {
+                found = find(task, f, UTF8.decode(buf.duplicate()), null);
+            }
+            if (useIndex && !task.cancelled.get()) {
+                index.add(f, modified, length, bytes);
+            }
+            report(task, f, found);
+        } finally {
+            Base.unmapBuffer(buf);
+        }
+    }
+
+    static ByteBuffer read(File f, long length) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            if (length >= MAP_THRESHOLD) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            ByteBuffer b = ByteBuffer.allocate((int)length);
+            while (b.hasRemaining() && ch.read(b) >= 0) {
+            }
+            b.flip();
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    void report(Task task, File f, ArrayList<Match> found) {
+        if (found == null || found.isEmpty() || task.cancelled.get()) {
+            return;
+        }
+        task.matches.addAndGet(found.size());
+        task.listener.found(f, found);
+    }
+
+    // Every line with a match on it. Line text comes from bytes if given,
+    // so it can be decoded properly.
+    ArrayList<Match> find(Task task, File f, CharSequence cs, ByteChars bytes) {
+        ArrayList<Match> out = null;
+        Matcher m = pattern.matcher(cs);
+        int n = cs.length();
+        int line = 1;
+        int scanned = 0;
+
+        int from = 0;
+
+        while (from <= n && m.find(from)) {
+            if (task.cancelled.get()) {
+                return null;
+            }
+            int start = m.start();
+            int end = m.end();
+            if (wordCheck && ((start > 0 && isWord(cs.charAt(start - 1))) || (end < n && isWord(cs.charAt(end))))) {
+                from = start + 1;
+                continue;
+            }
+            for (int i = scanned; i < start; i++) {
+                if (cs.charAt(i) == '\n') {
+                    line++;
+                }
+            }
+
+            int ls = start;
+            while (ls > 0 && cs.charAt(ls - 1) != '\n') {
+                ls--;
+            }
+            int le = start;
+            while (le < n && cs.charAt(le) != '\n') {
+                le++;
+            }
+            int te = le > ls && cs.charAt(le - 1) == '\r' ? le - 1 : le;
+
+            Match mt = new Match();
+            mt.file = f;
+            mt.line = line;
+            int cut = Math.max(ls, Math.min(start - MAX_LINE / 3, te - MAX_LINE));
+            int to = Math.min(te, cut + MAX_LINE);
+            if (bytes != null) {
+                String before = bytes.decode(cut, Math.min(start, to));
+                String match = bytes.decode(Math.min(start, to), Math.min(end, to));
+                mt.text = before + match + bytes.decode(Math.min(end, to), to);
+                mt.start = before.length();
+                mt.end = before.length() + match.length();
+            } else {
+                mt.text = cs.subSequence(cut, to).toString();
+                mt.start = Math.min(start, to) - cut;
+                mt.end = Math.min(end, to) - cut;
+            }
+            if (out == null) {
+                out = new ArrayList<Match>();
+            }
+            out.add(mt);
+
+            // One result per line
+            scanned = le;
+            from = le + 1;
+            if (le < n) {
+                line++;
+                scanned = le + 1;
+            }
+        }
+        return out;
+    }
+
+    static boolean isWord(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // Bytes seen as ISO-8859-1 characters, without copying them
+    static class ByteChars implements CharSequence {
+        ByteBuffer buf;
+        int offset;
+        int length;
+
+        ByteChars(ByteBuffer b) {
+            this(b, 0, b.limit());
+        }
+
+        ByteChars(ByteBuffer b, int o, int l) {
+            buf = b;
+            offset = o;
+            length = l;
+        }
+
+        public char charAt(int i) {
+            return (char)(buf.get(offset + i) & 0xFF);
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return new ByteChars(buf, offset + start, end - start);
+        }
+
+        public String toString() {
+            return decode(0, length, LATIN1);
+        }
+
+        String decode(int start, int end) {
+            return decode(start, end, UTF8);
+        }
+
+        String decode(int start, int end, Charset cs) {
+            if (end <= start) {
+                return "";
+            }
+            ByteBuffer b = buf.duplicate();
+            b.position(offset + start);
+            b.limit(offset + end);
+            return cs.decode(b).toString();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.awt.*;
+import java.util.*;
+
+/* Keeps the icons and images that have already been loaded, so that
+ * asking for the same one again doesn't look the resource up and decode
+ * the PNG a second time.
+ *
+ * Keys are built by the loaders in Base and include the icon set and the
+ * display scale along with the category, name and size, so switching
+ * icon sets never hands back an old icon. It holds at most MAX entries,
+ * dropping the least recently used, and is emptied whenever the themes
+ * or icon sets are reloaded or the preferences applied.
+ *
+ * The same ImageIcon is handed to everyone who asks for it, so it must
+ * not be changed by the caller.
+ */
+
+public class IconCache {
+    public static final int MAX = 512;
+
+    static float scale = 0;
+
+    static final LinkedHashMap<String, Object> cache = new LinkedHashMap<String, Object>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > MAX;
+        }
+    };
+
+    public static synchronized Object get(String key) {
+        return cache.get(key);
+    }
+
+    public static synchronized void put(String key, Object value) {
+        if (value != null) {
+            cache.put(key, value);
+        }
+    }
+
+    public static synchronized void clear() {
+        cache.clear();
+        scale = 0;
+    }
+
+    public static synchronized int size() {
+        return cache.size();
+    }
+
+    // The scale factor of the main screen. Always 1 on runtimes that
+    // don't scale for HiDPI displays.
+    public static synchronized float getScale() {
+        if (scale == 0) {
+            scale = 1;
+            try {
+                if (!GraphicsEnvironment.isHeadless()) {
+                    GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                        .getDefaultScreenDevice().getDefaultConfiguration();
+                    scale = (float)gc.getDefaultTransform().getScaleX();
+                }
+            } catch (Exception e) {
+                Debug.message("Unable to get the screen scale: " + e.getMessage());
+            }
+        }
+        return scale;
+    }
+
+    // The toolbar, tree and flag icons every editor window needs straight
+    // away, loaded in the background while the rest of startup carries on.
+    static final String[][] common = {
+        { "actions", "24", "cancel", "run", "program", "new", "open", "save", "search", "refresh" },
+        { "actions", "16", "close", "install", "upgrade" },
+        { "flags", "16", "todo", "note", "fixme", "info" },
+        { "bookmarks", "16", "folder", "folder-open", "todo", "function", "library-good", "library-semi", "library-bad" },
+    };
+
+    public static void preload() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+                for (String[] group : common) {
+                    int size = Integer.parseInt(group[1]);
+                    for (int i = 2; i < group.length; i++) {
+                        Base.getIcon(group[0], group[i], size);
+                    }
+                }
+                Debug.message("Preloaded " + size() + " icons in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }, "Icon preload");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+}
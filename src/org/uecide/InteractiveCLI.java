@@ -126,7 +126,7 @@ public class InteractiveCLI implements AptPercentageListener {
                         new NullCompletor()
                     }
                 ),
-                new SimpleCompletor(new String[] { "ls", "quit", "compile", "make", "upload", "info", "purge", "rescan", "pkg-update", "help" }),
+                new SimpleCompletor(new String[] { "ls", "quit", "compile", "make", "upload", "info", "sizes", "purge", "rescan", "pkg-update", "help" }),
                 new ArgumentCompletor(
                     new Completor[] {
                         new SimpleCompletor("pkg-install"),
@@ -321,6 +321,13 @@ public class InteractiveCLI implements AptPercentageListener {
                         info();
                     }
                 }
+                if (args[0].equals("sizes")) {
+                    if (_loadedSketch != null) {
+                        sizes(args);
+                    } else {
+                        System.out.println("No sketch loaded!");
+                    }
+                }
                 if (args[0].equals("board")) {
                     if (args.length == 2) {
                         if (_loadedSketch != null) {
@@ -508,6 +515,44 @@ public class InteractiveCLI implements AptPercentageListener {
 
     }
 
+    // List the sketch's size history, or compare two builds from it
+    public void sizes(String[] args) {
+        File[] history = SizeReport.getHistory(_loadedSketch.getSizeHistoryFolder());
+        if (args.length == 1) {
+            if (history.length == 0) {
+                System.out.println("No size history for this sketch");
+            }
+            for (int i = 0; i < history.length; i++) {
+                try {
+                    SizeReport r = SizeReport.load(history[i]);
+                    System.out.println(String.format("%3d  %tF %<tT  %-20s flash %8d  ram %8d",
+                        i + 1, new Date(r.getTime()), r.getBoard(), r.getFlash(), r.getRam()));
+                } catch (IOException e) {
+                    System.out.println(String.format("%3d  %s", i + 1, e.getMessage()));
+                }
+            }
+            return;
+        }
+        if (args.length != 3) {
+            System.out.println("Usage: sizes [<from> <to>]");
+            return;
+        }
+        try {
+            int a = Integer.parseInt(args[1]) - 1;
+            int b = Integer.parseInt(args[2]) - 1;
+            if (a < 0 || b < 0 || a >= history.length || b >= history.length) {
+                System.out.println("No such build");
+                return;
+            }
+            SizeDiff diff = new SizeDiff(SizeReport.load(history[a]), SizeReport.load(history[b]));
+            _loadedSketch.showSizeDiff(diff, Integer.MAX_VALUE, 50);
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: sizes [<from> <to>]");
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     public void info() {
         if (_loadedSketch.getBoard() == null) {
             System.out.println("Board:      No Board Selected!!!");
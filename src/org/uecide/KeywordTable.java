@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/* An unchanging set of keywords and their KeywordTypes, held as a trie so
+ * that a token can be looked up straight out of the character array the
+ * syntax highlighter is working on.
+ *
+ * Parsed keywords.txt files are cached for the whole process against
+ * their size and date, so every sketch that uses the same core or library
+ * shares the one copy and a file is only read again when it changes.
+ */
+
+public class KeywordTable {
+    static class CachedFile {
+        long modified;
+        long length;
+        KeywordTable table;
+    }
+
+    static final HashMap<File, CachedFile> fileCache = new HashMap<File, CachedFile>();
+
+    public static final KeywordTable EMPTY = new KeywordTable(new HashMap<String, Integer>());
+
+    Map<String, Integer> words;
+
+    // Node n's children are edges first[n] to first[n] + count[n] - 1,
+    // sorted by character. value[n] is the keyword type ending there, or -1.
+    int[] first;
+    int[] count;
+    int[] value;
+    char[] edgeChar;
+    int[] edgeNode;
+
+    int nodes = 0;
+    int edges = 0;
+
+    public KeywordTable(Map<String, Integer> in) {
+        words = Collections.unmodifiableMap(new HashMap<String, Integer>(in));
+
+        String[] keys = words.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+
+        int chars = 1;
+        for (String k : keys) {
+            chars += k.length();
+        }
+        first = new int[chars];
+        count = new int[chars];
+        value = new int[chars];
+        edgeChar = new char[chars];
+        edgeNode = new int[chars];
+
+        build(keys, 0, keys.length, 0);
+    }
+
+    // Build the node for keys[lo..hi), which all share their first depth characters
+    int build(String[] keys, int lo, int hi, int depth) {
+        int node = nodes++;
+        value[node] = -1;
+
+        if (lo < hi && keys[lo].length() == depth) {
+            value[node] = words.get(keys[lo]);
+            lo++;
+        }
+
+        // Claim a run of edges for this node before the children claim theirs
+        int groups = 0;
+        for (int i = lo; i < hi; i++) {
+            if (i == lo || keys[i].charAt(depth) != keys[i - 1].charAt(depth)) {
+                groups++;
+            }
+        }
+        first[node] = edges;
+        count[node] = groups;
+        int edge = edges;
+        edges += groups;
+
+        int start = lo;
+        for (int i = lo + 1; i <= hi; i++) {
+            if (i == hi || keys[i].charAt(depth) != keys[start].charAt(depth)) {
+                edgeChar[edge] = keys[start].charAt(depth);
+                edgeNode[edge] = build(keys, start, i, depth + 1);
+                edge++;
+                start = i;
+            }
+        }
+        return node;
+    }
+
+    // The type of the keyword in array[start..end] (end inclusive, as the
+    // token makers have it), or -1 if it isn't one.
+    public int lookup(char[] array, int start, int end) {
+        int node = 0;
+        for (int i = start; i <= end; i++) {
+            char c = array[i];
+            int lo = first[node];
+            int hi = lo + count[node] - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = edgeChar[mid];
+                if (m < c) {
+                    lo = mid + 1;
+                } else if (m > c) {
+                    hi = mid - 1;
+                } else {
+                    found = mid;
+                    break;
+                }
+            }
+            if (found == -1) {
+                return -1;
+            }
+            node = edgeNode[found];
+        }
+        return value[node];
+    }
+
+    public Integer get(String word) {
+        return words.get(word);
+    }
+
+    public boolean contains(String word) {
+        return words.containsKey(word);
+    }
+
+    public Map<String, Integer> getMap() {
+        return words;
+    }
+
+    public int size() {
+        return words.size();
+    }
+
+    /* The keywords in a keywords.txt file. Lines are a name followed by
+     * its type, separated by white space; anything else is ignored. */
+    public static KeywordTable load(File f) {
+        if (f == null || !f.isFile()) {
+            return EMPTY;
+        }
+
+        long modified = f.lastModified();
+        long length = f.length();
+
+        synchronized (fileCache) {
+            CachedFile c = fileCache.get(f);
+            if (c != null && c.modified == modified && c.length == length) {
+                return c.table;
+            }
+        }
+
+        HashMap<String, Integer> found = new HashMap<String, Integer>();
+        String kwd = Base.getFileAsString(f);
+        if (kwd != null) {
+            for (String line : kwd.split("\n")) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length < 2) {
+                    continue;
+                }
+                Integer type = typeFromName(parts[1]);
+                if (type != null) {
+                    found.put(parts[0], type);
+                }
+            }
+        }
+
+        CachedFile c = new CachedFile();
+        c.modified = modified;
+        c.length = length;
+        c.table = new KeywordTable(found);
+        synchronized (fileCache) {
+            fileCache.put(f, c);
+        }
+        return c.table;
+    }
+
+    public static Integer typeFromName(String type) {
+        if (type.equals("LITERAL1")) {
+            return KeywordTypes.LITERAL1;
+        } else if (type.equals("LITERAL2")) {
+            return KeywordTypes.LITERAL2;
+        } else if (type.equals("LITERAL3")) {
+            return KeywordTypes.LITERAL3;
+        } else if (type.equals("KEYWORD1")) {
+            return KeywordTypes.KEYWORD1;
+        } else if (type.equals("KEYWORD2")) {
+            return KeywordTypes.KEYWORD2;
+        } else if (type.equals("KEYWORD3")) {
+            return KeywordTypes.KEYWORD3;
+        } else if (type.equals("OBJECT")) {
+            return KeywordTypes.OBJECT;
+        } else if (type.equals("VARIABLE")) {
+            return KeywordTypes.VARIABLE;
+        } else if (type.equals("FUNCTION")) {
+            return KeywordTypes.FUNCTION;
+        } else if (type.equals("DATATYPE")) {
+            return KeywordTypes.DATATYPE;
+        } else if (type.equals("RESERVED")) {
+            return KeywordTypes.RESERVED;
+        }
+        return null;
+    }
+}
@@ -352,6 +352,10 @@ public class Library implements Comparable {
         return sf;
     }
 
+    public TreeSet<File> getHeaderFiles() {
+        return headerFiles;
+    }
+
     public ArrayList<String> getRequiredLibraries() {
         return requiredLibraries;
     }
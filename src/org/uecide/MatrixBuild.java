@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/* Builds every combination of a set of sketches, boards and option
+ * settings in a single headless run.
+ *
+ * The matrix is described by a JSON file given with --matrix:
+ *
+ *   {
+ *     "sketches": ["examples/Blink", "examples/Fade"],
+ *     "boards": ["uno", {"board": "chipkit-uc32", "compiler": "pic32-tools"}],
+ *     "options": [{}, {"optimize": "O3"}],
+ *     "jobs": 4
+ *   }
+ *
+ * Sketch paths are relative to the folder the matrix file is in. A board
+ * can be just a name, or an object that also picks the core, compiler and
+ * programmer. Each entry in options is one set of menu option values to
+ * build with; without any the board's defaults are used.
+ *
+ * Every job gets its own Sketch, and so its own Context and build folder,
+ * and they are built concurrently by --matrix-jobs threads (default: one
+ * per processor). The boards, cores and libraries are only loaded once,
+ * and jobs for the same board share that board's compiled core and
+ * library archives. Selecting a board writes to the preferences, so the
+ * jobs are set up one at a time and only the builds themselves overlap.
+ *
+ * A summary table is printed at the end, and --matrix-report and
+ * --matrix-junit write the results as JSON or JUnit XML. The per-build
+ * reports (--diagnostics, --trace, --size-report and the --size-baseline
+ * read back) get the job's file tag added to their names, and size
+ * history is kept per board and option set, so jobs never share a file.
+ */
+
+public class MatrixBuild {
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED = 10;
+
+    public static class Job {
+        public File sketch;
+        public String board;
+        public String core;
+        public String compiler;
+        public String programmer;
+        public TreeMap<String, String> options = new TreeMap<String, String>();
+
+        public boolean success = false;
+        public long time = 0;
+        public String output = "";
+
+        Sketch s;
+        ByteArrayOutputStream buffer;
+
+        public String getName() {
+            if (options.size() == 0) {
+                return board;
+            }
+            StringBuilder sb = new StringBuilder(board);
+            sb.append("[");
+            boolean first = true;
+            for (String k : options.keySet()) {
+                if (!first) sb.append(",");
+                sb.append(k).append("=").append(options.get(k));
+                first = false;
+            }
+            sb.append("]");
+            return sb.toString();
+        }
+
+        // Added to the names of any --diagnostics, --trace or --size-report
+        // files so each job writes its own
+        public String getFileTag() {
+            return (sketch.getName() + "-" + getName()).replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+    }
+
+    ArrayList<Job> jobs = new ArrayList<Job>();
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    @SuppressWarnings("unchecked")
+    public MatrixBuild(File spec) throws IOException, ParseException {
+        JSONObject m = (JSONObject)new JSONParser().parse(Base.getFileAsString(spec));
+        File base = spec.getAbsoluteFile().getParentFile();
+
+        if (m.get("jobs") != null) {
+            threads = ((Number)m.get("jobs")).intValue();
+        }
+
+        ArrayList<File> sketches = new ArrayList<File>();
+        JSONArray sl = (JSONArray)m.get("sketches");
+        if (sl != null) {
+            for (Object o : sl) {
+                File f = new File((String)o);
+                if (!f.isAbsolute()) {
+                    f = new File(base, (String)o);
+                }
+                sketches.add(f);
+            }
+        }
+
+        ArrayList<JSONObject> boards = new ArrayList<JSONObject>();
+        JSONArray bl = (JSONArray)m.get("boards");
+        if (bl != null) {
+            for (Object o : bl) {
+                if (o instanceof JSONObject) {
+                    boards.add((JSONObject)o);
+                } else {
+                    JSONObject b = new JSONObject();
+                    b.put("board", o.toString());
+                    boards.add(b);
+                }
+            }
+        }
+
+        ArrayList<JSONObject> optionSets = new ArrayList<JSONObject>();
+        JSONArray ol = (JSONArray)m.get("options");
+        if (ol != null) {
+            for (Object o : ol) {
+                optionSets.add((JSONObject)o);
+            }
+        }
+        if (optionSets.size() == 0) {
+            optionSets.add(new JSONObject());
+        }
+
+        for (File sketch : sketches) {
+            for (JSONObject b : boards) {
+                for (JSONObject opts : optionSets) {
+                    Job j = new Job();
+                    j.sketch = sketch;
+                    j.board = (String)b.get("board");
+                    j.core = (String)b.get("core");
+                    j.compiler = (String)b.get("compiler");
+                    j.programmer = (String)b.get("programmer");
+                    for (Object k : opts.keySet()) {
+                        j.options.put(k.toString(), opts.get(k).toString());
+                    }
+                    jobs.add(j);
+                }
+            }
+        }
+    }
+
+    public void setThreads(int t) {
+        if (t > 0) {
+            threads = t;
+        }
+    }
+
+    public ArrayList<Job> getJobs() {
+        return jobs;
+    }
+
+    // Returns false if anything failed to build.
+    public boolean run() {
+        System.out.println(Base.i18n.string("msg.matrix.start", jobs.size(), threads));
+
+        ArrayList<Job> ready = new ArrayList<Job>();
+        for (Job j : jobs) {
+            if (setup(j)) {
+                ready.add(j);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<Future<?>> running = new ArrayList<Future<?>>();
+        for (final Job j : ready) {
+            running.add(pool.submit(new Runnable() {
+                public void run() {
+                    build(j);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                Base.error(e);
+            }
+        }
+
+        boolean ok = true;
+        for (Job j : jobs) {
+            if (!j.success) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    // Runs on the main thread: everything here touches shared state.
+    boolean setup(Job j) {
+        if (!j.sketch.exists()) {
+            j.output = Base.i18n.string("err.notfound", j.sketch.getPath()) + "\n";
+            return false;
+        }
+
+        if (j.board == null || Base.getBoard(j.board) == null) {
+            j.output = Base.i18n.string("err.matrix.noboard", j.board) + "\n";
+            return false;
+        }
+
+        Sketch s = new Sketch(j.sketch);
+        s.loadConfig();
+
+        j.buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(j.buffer, true);
+        s.setOutput(out, out);
+
+        s.setBoard(j.board);
+        if (j.core != null) {
+            s.setCore(j.core);
+        }
+        if (j.compiler != null) {
+            s.setCompiler(j.compiler);
+        }
+        if (j.programmer != null) {
+            s.setProgrammer(j.programmer);
+        }
+        for (String k : j.options.keySet()) {
+            s.overrideOption(k, j.options.get(k));
+        }
+
+        // The sketch may be set to build in its own folder, which the
+        // other jobs for the same sketch would be using too.
+        File bf = new File(Base.getTmpDir(), "matrix-" + UUID.randomUUID().toString());
+        s.setBuildFolder(bf);
+        s.setReportSuffix(j.getFileTag());
+
+        j.s = s;
+        return true;
+    }
+
+    void build(Job j) {
+        long start = System.currentTimeMillis();
+        try {
+            j.success = j.s.build();
+        } catch (Exception e) {
+            e.printStackTrace(new PrintStream(j.buffer, true));
+            j.success = false;
+        }
+        j.time = System.currentTimeMillis() - start;
+        j.output = j.buffer.toString();
+        Base.removeDir(j.s.getBuildFolder());
+        j.s = null;
+        j.buffer = null;
+    }
+
+    public void printSummary(PrintStream out) {
+        int nameWidth = 6;
+        int boardWidth = 5;
+        for (Job j : jobs) {
+            nameWidth = Math.max(nameWidth, j.sketch.getName().length());
+            boardWidth = Math.max(boardWidth, j.getName().length());
+        }
+
+        String fmt = "%-" + nameWidth + "s  %-" + boardWidth + "s  %-6s  %8s";
+        out.println(String.format(fmt, "Sketch", "Board", "Result", "Time"));
+
+        int passed = 0;
+        for (Job j : jobs) {
+            out.println(String.format(fmt, j.sketch.getName(), j.getName(),
+                j.success ? "ok" : "FAILED", String.format("%.1fs", j.time / 1000d)));
+            if (j.success) {
+                passed++;
+            }
+        }
+        out.println(Base.i18n.string("msg.matrix.done", passed, jobs.size()));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void writeReport(File f) throws IOException {
+        JSONArray results = new JSONArray();
+        for (Job j : jobs) {
+            JSONObject o = new JSONObject();
+            o.put("sketch", j.sketch.getPath());
+            o.put("board", j.board);
+            o.put("core", j.core);
+            o.put("compiler", j.compiler);
+            JSONObject opts = new JSONObject();
+            opts.putAll(j.options);
+            o.put("options", opts);
+            o.put("success", j.success);
+            o.put("time", j.time);
+            o.put("output", j.output);
+            results.add(o);
+        }
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+        pw.println(results.toJSONString());
+        pw.close();
+    }
+
+    public void writeJUnit(File f) throws IOException {
+        int failures = 0;
+        long total = 0;
+        for (Job j : jobs) {
+            if (!j.success) failures++;
+            total += j.time;
+        }
+
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), "UTF-8"));
+        pw.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        pw.println("<testsuite name=\"matrix\" tests=\"" + jobs.size() + "\" failures=\"" + failures +
+            "\" errors=\"0\" time=\"" + (total / 1000d) + "\">");
+        for (Job j : jobs) {
+            pw.print("  <testcase classname=\"" + xml(j.sketch.getName()) + "\" name=\"" + xml(j.getName()) +
+                "\" time=\"" + (j.time / 1000d) + "\"");
+            if (j.success) {
+                pw.println("/>");
+            } else {
+                pw.println(">");
+                pw.println("    <failure message=\"Build failed\">" + xml(j.output) + "</failure>");
+                pw.println("  </testcase>");
+            }
+        }
+        pw.println("</testsuite>");
+        pw.close();
+    }
+
+    static String xml(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                default:
+                    // Control characters (the colour escapes in particular)
+                    // aren't allowed in XML 1.0.
+                    if (c < 0x20 && c != '\n' && c != '\r' && c != '\t') {
+                        continue;
+                    }
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
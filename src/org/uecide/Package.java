@@ -36,6 +36,7 @@ import java.io.*;
 import java.net.*;
 
 import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.compress.archivers.ar.*;
 import org.apache.commons.compress.archivers.tar.*;
@@ -47,6 +48,11 @@ public class Package implements Comparable, Serializable {
     public HashMap<String, String> properties = new HashMap<String, String>();
     public boolean isValid = false;
     public AptPercentageListener pct = null;
+    AtomicLong byteCounter = null;
+    Version version = null;
+
+    // Transfer and extraction buffer size
+    static final int BUFFER = 65536;
 
     public int stateCode = 0;
 
@@ -63,6 +69,7 @@ public class Package implements Comparable, Serializable {
     }
 
     public void parseData(String data) {
+        version = null;
         String[] lines = data.split("\n");
         Pattern p = Pattern.compile("^([^:]+):\\s+(.*)$", Pattern.MULTILINE);
 
@@ -102,6 +109,38 @@ public class Package implements Comparable, Serializable {
         return pct;
     }
 
+    // Bytes downloaded and extracted are added to the counter as they
+    // go, so a batch install can report its combined throughput.
+    public void attachByteCounter(AtomicLong counter) {
+        byteCounter = counter;
+    }
+
+    public void detachByteCounter() {
+        byteCounter = null;
+    }
+
+    void countBytes(long n) {
+        if (byteCounter != null) {
+            byteCounter.addAndGet(n);
+        }
+    }
+
+    public long getSize() {
+        try {
+            return Long.parseLong(properties.get("Size"));
+        } catch (Exception ignored) {
+        }
+        return 0;
+    }
+
+    public long getInstalledSize() {
+        try {
+            return Long.parseLong(properties.get("Installed-Size")) * 1024L;
+        } catch (Exception ignored) {
+        }
+        return 0;
+    }
+
     public Package(String source, String data) {
         parseData(data);
 
@@ -124,8 +163,12 @@ public class Package implements Comparable, Serializable {
         return properties.get("Package") + " " + properties.get("Version");
     }
 
+    // Parsed once: the dependency resolver compares versions a lot
     public Version getVersion() {
-        return new Version(properties.get("Version"));
+        if (version == null) {
+            version = new Version(properties.get("Version"));
+        }
+        return version;
     }
 
     public String getName() {
@@ -322,7 +365,7 @@ System.out.println("Replaces: " + deps);
 
                     BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(downloadTo));
 
-                    byte[] buffer = new byte[1024];
+                    byte[] buffer = new byte[BUFFER];
                     int n;
                     long tot = 0;
                     int lastVal = -1;
@@ -336,6 +379,7 @@ System.out.println("Replaces: " + deps);
                             }
                         }
                         out.write(buffer, 0, n);
+                        countBytes(n);
                     }
                     in.close();
                     out.close();
@@ -362,7 +406,19 @@ System.out.println("Replaces: " + deps);
         return doExtractPackage(new File(cache, getFilename()), db, root);
     }
 
+    // Extract into a staging area. The files list records where each
+    // file will end up once the staging root is moved into installRoot.
+    // Unlike a direct install, any file that can't be extracted fails the
+    // whole package, so nothing half extracted gets committed.
+    public boolean stagePackage(File cache, File db, File root, File installRoot) {
+        return doExtractPackage(new File(cache, getFilename()), db, root, installRoot, true);
+    }
+
     public boolean doExtractPackage(File src, File db, File root) {
+        return doExtractPackage(src, db, root, root, false);
+    }
+
+    public boolean doExtractPackage(File src, File db, File root, File installRoot, boolean strict) {
         String control = "";
         String md5sums = "";
         HashMap<String, Integer> installedFiles = new HashMap<String, Integer>();
@@ -374,7 +430,7 @@ System.out.println("Replaces: " + deps);
 
             System.out.println("Extracting " + src.getName());
 
-            FileInputStream fis = new FileInputStream(src);
+            InputStream fis = new BufferedInputStream(new FileInputStream(src), BUFFER);
             ArArchiveInputStream ar = new ArArchiveInputStream(fis);
 
             ArArchiveEntry file = ar.getNextArEntry();
@@ -417,19 +473,19 @@ System.out.println("Replaces: " + deps);
                 if (name.equals("data.tar.gz")) {
                     GzipCompressorInputStream gzip = new GzipCompressorInputStream(ar);
                     TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-                    installedFiles = extractTarFile(tar, root, dataFileSize);
+                    installedFiles = extractTarFile(tar, root, installRoot, dataFileSize, strict);
                 }
                     
                 if (name.equals("data.tar.xz")) {
                     XZCompressorInputStream xzip = new XZCompressorInputStream(ar);
                     TarArchiveInputStream tar = new TarArchiveInputStream(xzip);
-                    installedFiles = extractTarFile(tar, root, dataFileSize);
+                    installedFiles = extractTarFile(tar, root, installRoot, dataFileSize, strict);
                 }
 
                 if (name.equals("data.tar.bz2")) {
                     BZip2CompressorInputStream bzip = new BZip2CompressorInputStream(ar);
                     TarArchiveInputStream tar = new TarArchiveInputStream(bzip);
-                    installedFiles = extractTarFile(tar, root, dataFileSize);
+                    installedFiles = extractTarFile(tar, root, installRoot, dataFileSize, strict);
                 }
 
                 file = ar.getNextArEntry();
@@ -476,26 +532,30 @@ System.out.println("Replaces: " + deps);
         }
     }
 
-    HashMap<String, Integer> extractTarFile(TarArchiveInputStream tar, File root, int dataFileSize) {
+    // A strict extraction throws on the first file it can't write; a
+    // lenient one reports it and carries on, as direct installs always have.
+    HashMap<String, Integer> extractTarFile(TarArchiveInputStream tar, File root, File installRoot, int dataFileSize, boolean strict) throws IOException {
         HashMap<String, Integer> installedFiles = new HashMap<String, Integer>();
         HashMap<String, String> symbolicLinks = new HashMap<String, String>();
         try {
             TarArchiveEntry te = tar.getNextTarEntry();
+            byte[] buffer = new byte[BUFFER];
 
             int copied = 0;
             while (te != null) {
                 int tsize = (int)te.getSize();
                 copied += tsize;
                 String tname = te.getName();
-                if (pct != null) {
+                if (pct != null && dataFileSize > 0) {
                     int tpct = (int)((copied * 100L) / dataFileSize);
                     reportPercentage(tpct);
                 }
 
                 File dest = new File(root, tname);
+                String installed = new File(installRoot, tname).getAbsolutePath();
                 if (te.isDirectory()) {
                     dest.mkdirs();
-                    installedFiles.put(dest.getAbsolutePath(), -1);
+                    installedFiles.put(installed, -1);
                 } else if (te.isLink()) {
                     String linkdest = te.getLinkName();
                     symbolicLinks.put(tname, linkdest);
@@ -504,20 +564,29 @@ System.out.println("Replaces: " + deps);
                     symbolicLinks.put(tname, linkdest);
                 } else {
                     try {
-                        byte[] buffer = new byte[1024];
                         int nread;
                         int toRead = tsize;
                         FileOutputStream fos = new FileOutputStream(dest);
-                        while ((nread = tar.read(buffer, 0, toRead > 1024 ? 1024 : toRead)) > 0) {
-                            toRead -= nread;
-                            fos.write(buffer, 0, nread);
+                        try {
+                            while ((nread = tar.read(buffer, 0, toRead > BUFFER ? BUFFER : toRead)) > 0) {
+                                toRead -= nread;
+                                fos.write(buffer, 0, nread);
+                                countBytes(nread);
+                            }
+                        } finally {
+                            fos.close();
+                        }
+                        if (toRead > 0) {
+                            throw new IOException("archive is truncated");
                         }
-                        fos.close();
                         dest.setExecutable((te.getMode() & 0100) == 0100);
                         dest.setWritable((te.getMode() & 0200) == 0200);
                         dest.setReadable((te.getMode() & 0400) == 0400);
-                        installedFiles.put(dest.getAbsolutePath(), tsize);
+                        installedFiles.put(installed, tsize);
                     } catch (Exception fex) {
+                        if (strict) {
+                            throw new IOException("Error extracting " + dest + ": " + fex.getMessage(), fex);
+                        }
                         Base.error("Error extracting " + dest + ": " + fex + " (ignoring)");
                     }
                 }
@@ -526,29 +595,47 @@ System.out.println("Replaces: " + deps);
             for (String link : symbolicLinks.keySet()) {
                 String tgt = symbolicLinks.get(link);
                 File linkFile = new File(root, link);
-                File linkParent = linkFile.getParentFile();
-                File troot = root;
-                if (!tgt.startsWith("./")) {
-                    troot = linkParent;
+                File tgtFile = linkTarget(root, link, tgt);
+                if (!tgtFile.exists()) {
+                    // Pointing into something that is already installed
+                    tgtFile = linkTarget(installRoot, link, tgt);
                 }
-                File tgtFile = new File(troot, tgt); //linkParent, tgt);
                 FileInputStream copyFrom = new FileInputStream(tgtFile);
-                FileOutputStream copyTo = new FileOutputStream(linkFile);
-                byte[] copyBuffer = new byte[1024];
-                int bytesCopied = 0;
-
-                while ((bytesCopied = copyFrom.read(copyBuffer, 0, 1024)) > 0) {
-                    copyTo.write(copyBuffer, 0, bytesCopied);
+                try {
+                    FileOutputStream copyTo = new FileOutputStream(linkFile);
+                    try {
+                        int bytesCopied = 0;
+                        while ((bytesCopied = copyFrom.read(buffer, 0, BUFFER)) > 0) {
+                            copyTo.write(buffer, 0, bytesCopied);
+                        }
+                    } finally {
+                        copyTo.close();
+                    }
+                } finally {
+                    copyFrom.close();
                 }
-                copyFrom.close();
-                copyTo.close();
                 linkFile.setExecutable(tgtFile.canExecute());
                 linkFile.setReadable(tgtFile.canRead());
                 linkFile.setWritable(tgtFile.canWrite());
+                installedFiles.put(new File(installRoot, link).getAbsolutePath(), (int)linkFile.length());
             }
         } catch (Exception e) {
+            if (strict) {
+                throw e instanceof IOException ? (IOException)e : new IOException(e.toString(), e);
+            }
             Base.error(e);
         }
         return installedFiles;
     }
+
+    // Where a link in the archive points, taking "./" names as relative
+    // to the top of the tree and anything else as relative to the link.
+    // The ".." in a relative link is taken off by name, as the folder the
+    // link is in may not exist under that root.
+    static File linkTarget(File root, String link, String tgt) throws IOException {
+        if (tgt.startsWith("./")) {
+            return new File(root, tgt).getCanonicalFile();
+        }
+        return new File(new File(root, link).getParentFile(), tgt).getCanonicalFile();
+    }
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* Installs a set of packages as one operation.
+ *
+ * Every package, and every dependency that is missing or out of date, is
+ * fetched and extracted into apt/staging concurrently. Nothing in the
+ * live tree is touched until all of them have staged cleanly. The staged
+ * trees are then moved into place with renames: whole directories where
+ * the target doesn't exist yet, single files where it does, with the file
+ * being replaced moved aside into apt/backup first.
+ *
+ * Each move is written to apt/transaction.journal, and flushed, before it
+ * is made, so a failure part way through - or a crash, picked up by
+ * recover() the next time the repository is opened - can be undone by
+ * walking the journal backwards. The last entry may be a move that never
+ * happened, so rolling back checks what is actually on disk. The journal
+ * also lists the packages being installed and removed, which is all that
+ * is needed to finish off a transaction that got as far as its commit
+ * point.
+ *
+ * Journal lines are tab separated:
+ *
+ *   P name          a package being installed
+ *   R name          a package being replaced and removed
+ *   B path backup   path is about to be moved aside to backup
+ *   M from to       from (in the staging area) is about to be moved to to
+ *   C               everything is in place
+ */
+
+public class PackageTransaction {
+    APT apt;
+    File stageFolder;
+    File backupFolder;
+    File journalFile;
+
+    ArrayList<Package> targets = new ArrayList<Package>();
+    ArrayList<Package> packages = new ArrayList<Package>();
+    DependencyGraph.Plan plan = null;
+    int threads = 0;
+
+    PrintStream journal = null;
+    int backups = 0;
+
+    AptPercentageListener listener = null;
+    Package listenerPackage = null;
+    PrintStream progress = null;
+
+    AtomicLong bytes = new AtomicLong(0);
+    AtomicInteger fetched = new AtomicInteger(0);
+    AtomicInteger staged = new AtomicInteger(0);
+    long totalBytes = 0;
+    long startTime = 0;
+    volatile String phase = "";
+
+    public PackageTransaction(APT a) {
+        apt = a;
+        stageFolder = new File(apt.aptFolder, "staging");
+        backupFolder = new File(apt.aptFolder, "backup");
+        journalFile = new File(apt.aptFolder, "transaction.journal");
+    }
+
+    public void setThreads(int t) {
+        if (t > 0) {
+            threads = t;
+        }
+    }
+
+    // The listener gets the overall percentage, reported against the
+    // given package.
+    public void setPercentageListener(Package p, AptPercentageListener l) {
+        listenerPackage = p;
+        listener = l;
+    }
+
+    // Prints a running progress line with the combined throughput.
+    public void setProgressStream(PrintStream s) {
+        progress = s;
+    }
+
+    // Add a package along with anything it needs that isn't installed
+    // or is out of date. Dependencies come before the packages that
+    // need them.
+    public void add(Package p) {
+        add(new Package[] { p });
+    }
+
+    public void add(Package[] pkgs) {
+        for (Package p : pkgs) {
+            if (p != null) {
+                targets.add(p);
+            }
+        }
+        plan = apt.getGraph().plan(targets);
+        packages = plan.getPackages();
+    }
+
+    public DependencyGraph.Plan getPlan() {
+        return plan;
+    }
+
+    public ArrayList<Package> getPackages() {
+        return packages;
+    }
+
+    public boolean run() {
+        if (packages.size() == 0) {
+            return true;
+        }
+
+        for (String m : plan.missing) {
+            System.err.println("Broken dependency: " + m);
+        }
+        if (!plan.isValid()) {
+            for (String c : plan.conflicts) {
+                System.err.println(c);
+            }
+            return false;
+        }
+
+        if (threads < 1) {
+            threads = Preferences.getInteger("network.install");
+        }
+        if (threads < 1) {
+            threads = 4;
+        }
+
+        apt.makeTree();
+        Base.removeDir(stageFolder);
+        Base.removeDir(backupFolder);
+        stageFolder.mkdirs();
+        backupFolder.mkdirs();
+
+        totalBytes = 0;
+        for (Package p : packages) {
+            totalBytes += p.getSize() + p.getInstalledSize();
+        }
+        startTime = System.currentTimeMillis();
+
+        Timer ticker = new Timer(true);
+        ticker.schedule(new TimerTask() {
+            public void run() {
+                report(false);
+            }
+        }, 250, 250);
+
+        try {
+            if (!stageAll()) {
+                cleanup();
+                return false;
+            }
+
+            phase = "commit";
+            try {
+                commitAll();
+            } catch (Exception e) {
+                Base.error(e);
+                rollback();
+                return false;
+            }
+
+            finish();
+            return true;
+        } finally {
+            ticker.cancel();
+            report(true);
+            apt.initRepository();
+        }
+    }
+
+    // Fetch and extract every package, several at a time. A package is
+    // extracted as soon as its own download is done.
+    boolean stageAll() {
+        phase = "fetch";
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, packages.size()));
+        ArrayList<Future<Boolean>> running = new ArrayList<Future<Boolean>>();
+        for (final Package p : packages) {
+            running.add(pool.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return stage(p);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        boolean ok = true;
+        for (int i = 0; i < running.size(); i++) {
+            try {
+                if (!running.get(i).get()) {
+                    ok = false;
+                }
+            } catch (Exception e) {
+                Base.error(e);
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    boolean stage(Package p) {
+        p.attachByteCounter(bytes);
+        try {
+            if (!p.fetchPackage(apt.cacheFolder)) {
+                System.err.println("Error downloading " + p);
+                return false;
+            }
+            fetched.incrementAndGet();
+
+            File dir = new File(stageFolder, p.getName());
+            if (!p.stagePackage(apt.cacheFolder, new File(dir, "db"), new File(dir, "root"), apt.root)) {
+                System.err.println("Error extracting " + p);
+                return false;
+            }
+            staged.incrementAndGet();
+            return true;
+        } finally {
+            p.detachByteCounter();
+        }
+    }
+
+    void commitAll() throws IOException {
+        journal = new PrintStream(new FileOutputStream(journalFile), true);
+        try {
+            for (Package p : packages) {
+                log("P\t" + p.getName());
+            }
+            for (Package r : plan.removals) {
+                log("R\t" + r.getName());
+            }
+            for (Package p : packages) {
+                File dir = new File(stageFolder, p.getName());
+                File db = new File(apt.packagesFolder, p.getName());
+
+                // The old database entry goes aside, the new one comes in
+                if (db.exists()) {
+                    moveAside(db);
+                }
+                merge(new File(dir, "root"), apt.root);
+                move(new File(new File(dir, "db"), p.getName()), db);
+            }
+            log("C");
+        } finally {
+            journal.close();
+        }
+    }
+
+    void merge(File from, File to) throws IOException {
+        File[] list = from.listFiles();
+        if (list == null) {
+            return;
+        }
+        for (File f : list) {
+            File dest = new File(to, f.getName());
+            if (f.isDirectory() && dest.isDirectory()) {
+                merge(f, dest);
+            } else {
+                if (dest.exists()) {
+                    moveAside(dest);
+                }
+                move(f, dest);
+            }
+        }
+    }
+
+    void move(File from, File to) throws IOException {
+        to.getParentFile().mkdirs();
+        log("M\t" + from.getAbsolutePath() + "\t" + to.getAbsolutePath());
+        if (!from.renameTo(to)) {
+            throw new IOException("Unable to move " + from + " to " + to);
+        }
+    }
+
+    void moveAside(File f) throws IOException {
+        File b = new File(backupFolder, Integer.toString(backups++));
+        log("B\t" + f.getAbsolutePath() + "\t" + b.getAbsolutePath());
+        if (!f.renameTo(b)) {
+            throw new IOException("Unable to move " + f + " aside");
+        }
+    }
+
+    void log(String line) throws IOException {
+        journal.println(line);
+        journal.flush();
+        if (journal.checkError()) {
+            throw new IOException("Unable to write " + journalFile);
+        }
+    }
+
+    // Everything is in place. Files that an upgrade no longer ships, and
+    // those of any package a new one replaces, can go along with the
+    // backups - unless one of the new packages installed the same path.
+    // Works only from the journal, so recover() can use it too.
+    void finish() {
+        List<String> lines = readJournal(journalFile);
+
+        HashSet<String> installed = new HashSet<String>();
+        ArrayList<String> stale = new ArrayList<String>();
+        ArrayList<String> removals = new ArrayList<String>();
+        String dbPath = apt.packagesFolder.getAbsolutePath() + File.separator;
+        for (String line : lines) {
+            String[] parts = line.split("\t");
+            if (parts[0].equals("P")) {
+                installed.addAll(readList(new File(new File(apt.packagesFolder, parts[1]), "files")));
+            } else if (parts[0].equals("R")) {
+                removals.add(parts[1]);
+            } else if (parts[0].equals("B") && parts[1].startsWith(dbPath)) {
+                stale.addAll(readList(new File(parts[2], "files")));
+            }
+        }
+
+        for (String r : removals) {
+            File db = new File(apt.packagesFolder, r);
+            if (db.exists()) {
+                stale.addAll(readList(new File(db, "files")));
+                Base.removeDir(db);
+            }
+        }
+
+        stale.removeAll(installed);
+        Collections.sort(stale);
+        Collections.reverse(stale);
+        for (String f : stale) {
+            new File(f).delete();
+        }
+
+        cleanup();
+    }
+
+    void rollback() {
+        List<String> lines = readJournal(journalFile);
+        Collections.reverse(lines);
+        for (String line : lines) {
+            String[] parts = line.split("\t");
+            if (parts[0].equals("M")) {
+                // Only undo the move if it was made: the staged copy has
+                // gone and the target is there
+                File from = new File(parts[1]);
+                File to = new File(parts[2]);
+                if (from.exists() || !to.exists()) {
+                    continue;
+                }
+                if (to.isDirectory()) {
+                    Base.removeDir(to);
+                } else {
+                    to.delete();
+                }
+            } else if (parts[0].equals("B")) {
+                File orig = new File(parts[1]);
+                File backup = new File(parts[2]);
+                if (!backup.exists()) {
+                    continue;
+                }
+                if (!backup.renameTo(orig)) {
+                    Base.error("Unable to restore " + orig);
+                }
+            }
+        }
+        cleanup();
+    }
+
+    void cleanup() {
+        Base.removeDir(stageFolder);
+        Base.removeDir(backupFolder);
+        journalFile.delete();
+    }
+
+    // Called when the repository is opened. A journal that is still
+    // there means an install was interrupted: if it got as far as its
+    // commit point it is finished off (stale files and replaced packages
+    // removed, backups cleared away), otherwise it is rolled back.
+    public static void recover(APT apt) {
+        PackageTransaction t = new PackageTransaction(apt);
+        if (!t.journalFile.exists()) {
+            return;
+        }
+        if (readJournal(t.journalFile).contains("C")) {
+            t.finish();
+        } else {
+            System.err.println("Rolling back interrupted package installation");
+            t.rollback();
+        }
+    }
+
+    static ArrayList<String> readJournal(File f) {
+        ArrayList<String> out = new ArrayList<String>();
+        if (!f.exists()) {
+            return out;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(f));
+            String line;
+            while ((line = in.readLine()) != null) {
+                // A torn last line from a crash is ignored
+                int fields = line.split("\t").length;
+                if (line.equals("C")
+                    || ((line.startsWith("P\t") || line.startsWith("R\t")) && fields == 2)
+                    || ((line.startsWith("M\t") || line.startsWith("B\t")) && fields == 3)) {
+                    out.add(line);
+                }
+            }
+            in.close();
+        } catch (Exception e) {
+            Base.error(e);
+        }
+        return out;
+    }
+
+    static ArrayList<String> readList(File f) {
+        ArrayList<String> out = new ArrayList<String>();
+        if (!f.exists()) {
+            return out;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(f));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.equals("")) {
+                    out.add(line);
+                }
+            }
+            in.close();
+        } catch (Exception e) {
+            Base.error(e);
+        }
+        return out;
+    }
+
+    void report(boolean last) {
+        long done = bytes.get();
+        if (listener != null && totalBytes > 0) {
+            listener.updatePercentage(listenerPackage, (int)(done * 100 / totalBytes));
+        }
+        if (progress != null) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            progress.print(String.format("\r%-6s %d/%d fetched %d/%d extracted %s %s/s    ",
+                phase, fetched.get(), packages.size(), staged.get(), packages.size(),
+                size(done), size(done * 1000 / elapsed)));
+            if (last) {
+                progress.println();
+            }
+            progress.flush();
+        }
+    }
+
+    static String size(long b) {
+        if (b < 1024 * 1024) {
+            return String.format("%.1fkB", b / 1024d);
+        }
+        return String.format("%.1fMB", b / (1024d * 1024d));
+    }
+}
@@ -1054,61 +1054,10 @@ public class PluginManager implements PropertyChangeListener
         startDownload(e, true);
     }
 
+    // Dependencies that are missing are added by the install transaction
+    // itself, so recurse is only kept for the callers.
     public void startDownload(Package pkg, boolean recurse) {
-
-        pkg = apt.getPackage(pkg.getName());
-
-        if (recurse) {
-            Package[] deps = apt.resolveDepends(pkg);
-            if (deps != null) {
-                for (Package p : deps) {
-                    if (!apt.isInstalled(p)) {
-                        startDownload(p, false);
-                    }
-                }
-            }
-        }
-
-        if (queue.getWorkerByName(pkg.getName()) != null) {
-            return;
-        }
-
-        QueueWorker downloader = new QueueWorker() {
-
-            @Override
-            public String getTaskName() {
-                Package p = (Package)getUserObject();
-                return p.getName();
-            }
-
-            @Override
-            public String getQueuedDescription() {
-                return "Download pending";
-            }
-
-            @Override
-            public String getActiveDescription() {
-                return "Downloading";
-            }
-
-            @Override
-            public Void doInBackground() {
-                Package p = (Package)getUserObject();
-                p.attachPercentageListener(this);
-                p.fetchPackage(Base.getDataFile("apt/cache"));
-                p.detachPercentageListener();
-                return null;
-            }
-
-            public void done() {
-                startInstall((Package)getUserObject());
-            }
-        };
-
-        downloader.setTaskCommand("download");
-        downloader.setUserObject(pkg);
-        pkg.setState(1);
-        queue.addTask(downloader);
+        startInstall(apt.getPackage(pkg.getName()));
     }
 
     public void startUninstall(Package pkg) {
@@ -1163,14 +1112,45 @@ public class PluginManager implements PropertyChangeListener
         queue.addTask(downloader);
     }
 
+    // Packages waiting to be installed. One worker at a time installs
+    // everything queued up as a single transaction, and keeps going until
+    // the queue is empty, so installs never overlap in the staging area.
+    final LinkedHashSet<Package> pendingInstalls = new LinkedHashSet<Package>();
+    QueueWorker installWorker = null;
+
     public void startInstall(Package pkg) {
+        startInstall(new Package[] { pkg });
+    }
 
-        QueueWorker downloader = new QueueWorker() {
+    public void startInstall(Package[] pkgs) {
+        synchronized (pendingInstalls) {
+            for (Package p : pkgs) {
+                if (p != null) {
+                    pendingInstalls.add(p);
+                    p.setState(2);
+                }
+            }
+        }
+        startInstallWorker();
+    }
+
+    void startInstallWorker() {
+        if (installWorker != null) {
+            return;
+        }
+        synchronized (pendingInstalls) {
+            if (pendingInstalls.size() == 0) {
+                return;
+            }
+        }
+
+        installWorker = new QueueWorker() {
+            ArrayList<Package> installed = new ArrayList<Package>();
+            volatile String current = "";
 
             @Override
             public String getTaskName() {
-                Package p = (Package)getUserObject();
-                return p.getName();
+                return current;
             }
 
             @Override
@@ -1185,45 +1165,51 @@ public class PluginManager implements PropertyChangeListener
 
             @Override
             public Void doInBackground() {
-                Package p = (Package)getUserObject();
-                p.attachPercentageListener(this);
-                if (apt.isInstalled(p)) {
-                    String ret = apt.uninstallPackage(p, true);
-                } 
-
-                String reps[] = p.getReplaces();
-                if (reps != null) {
-                    for (String rep : reps) {
-                        Package rp = apt.getPackage(rep);
-                        if (apt.isInstalled(rp)) {
-                            apt.uninstallPackage(rp, true);
+                while (true) {
+                    Package[] batch;
+                    synchronized (pendingInstalls) {
+                        batch = pendingInstalls.toArray(new Package[0]);
+                        pendingInstalls.clear();
+                    }
+                    if (batch.length == 0) {
+                        return null;
+                    }
+                    StringBuilder names = new StringBuilder();
+                    for (Package p : batch) {
+                        if (names.length() > 0) {
+                            names.append(", ");
                         }
+                        names.append(p.getName());
                     }
-                }
+                    current = names.toString();
 
-                p.extractPackage(Base.getDataFile("apt/cache"), Base.getDataFile("apt/db/packages"), Base.getDataFolder());
-                p.detachPercentageListener();
-                return null;
+                    batch[0].attachPercentageListener(this);
+                    try {
+                        apt.installPackages(batch);
+                    } finally {
+                        batch[0].detachPercentageListener();
+                    }
+                    installed.addAll(Arrays.asList(batch));
+                }
             }
 
             public void done() {
-                Package p = (Package)getUserObject();
-                p.setState(0);
+                for (Package p : installed) {
+                    p.setState(0);
+                }
+                installWorker = null;
                 updateTree();
+                // Anything queued after the worker found the queue empty
+                startInstallWorker();
             }
         };
 
-        downloader.setTaskCommand("install");
-        downloader.setUserObject(pkg);
-        pkg.setState(2);
-        queue.addTask(downloader);
+        installWorker.setTaskCommand("install");
+        queue.addTask(installWorker);
     }
 
     public void upgradeAll() {
-        Package[] outOfDate = apt.getUpgradeList();
-        for (Package p : outOfDate) {
-            startDownload(p, false);
-        }
+        startInstall(apt.getUpgradeList());
     }
 
     public Package findLibraryByInclude(Core core, String include) {
@@ -66,6 +66,17 @@ public class ProjectSearch {
 
 
     JTextField searchTerm;
+    JCheckBox matchCase;
+    JCheckBox wholeWord;
+    JCheckBox useRegex;
+    JCheckBox searchLibraries;
+    JCheckBox searchCore;
+    JButton stopButton;
+    JLabel status;
+    JPanel list;
+
+    FileSearch.Task currentTask = null;
+    int generation = 0;
 
     class SearchResult extends JButton {
         File file;
@@ -80,20 +91,21 @@ public class ProjectSearch {
         int line;
         public int getLine() { return line; }
 
-        SearchResult(File f, String t, String d, int l) {
-            file = f;
-            term = t;
-            data = d;
-            line = l;
+        SearchResult(FileSearch.Match m) {
+            file = m.getFile();
+            data = m.getText();
+            term = data.substring(m.getStart(), m.getEnd());
+            line = m.getLine();
 
             setLayout(new BorderLayout());
 
             JLabel top = new JLabel(file.getName() + " line " + line);
+            top.setToolTipText(file.getAbsolutePath());
             add(top, BorderLayout.NORTH);
 
-            String o = data.replace("<", "&lt;");
-            o = o.replace(">", "&gt;");
-            o = o.replaceAll("(?i)" + term, "<u>$0</u>");
+            String o = escape(data.substring(0, m.getStart())) +
+                "<u>" + escape(term) + "</u>" +
+                escape(data.substring(m.getEnd()));
 
             JTextPane descLabel = new JTextPane() {
                 @Override
@@ -138,6 +150,10 @@ public class ProjectSearch {
 
         }
 
+        String escape(String s) {
+            return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
@@ -176,33 +192,49 @@ public class ProjectSearch {
         });
 
         tb.add(searchButton);
+
+        stopButton = new JButton("Stop");
+        stopButton.setEnabled(false);
+        stopButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                stopSearch();
+            }
+        });
+        tb.add(stopButton);
+
         tb.setFloatable(false);
 
-        mainContainer.add(tb, BorderLayout.NORTH);
+        JToolBar opts = new JToolBar();
+        opts.setFloatable(false);
+        matchCase = new JCheckBox("Match case");
+        wholeWord = new JCheckBox("Whole word");
+        useRegex = new JCheckBox("Regex");
+        searchLibraries = new JCheckBox("Libraries");
+        searchCore = new JCheckBox("Core");
+        opts.add(matchCase);
+        opts.add(wholeWord);
+        opts.add(useRegex);
+        opts.addSeparator();
+        opts.add(searchLibraries);
+        opts.add(searchCore);
+
+        JPanel top = new JPanel();
+        top.setLayout(new BorderLayout());
+        top.add(tb, BorderLayout.NORTH);
+        top.add(opts, BorderLayout.SOUTH);
+        mainContainer.add(top, BorderLayout.NORTH);
 
         scroll = new JScrollPane();
+        scroll.getVerticalScrollBar().setUnitIncrement(16);
         mainContainer.add(scroll, BorderLayout.CENTER);
 
+        status = new JLabel(" ");
+        status.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
+        mainContainer.add(status, BorderLayout.SOUTH);
 
-        JPanel list = new JPanel();
+        list = new JPanel();
         list.setLayout(new BoxLayout(list, BoxLayout.PAGE_AXIS));
 
-//                            File f = new File(m.group(2));
-//                            int line = 0;
-//                            try {
-//                                line = Integer.parseInt(m.group(1));
-//                            } catch (Exception ee) {
-//                            }
-//                            if (line > 0) {
-//                                int tab = editor.openOrSelectFile(f);
-//                                if (tab >= 0) {
-//                                    EditorBase eb = editor.getTab(tab);
-//                                    eb.gotoLine(line-1);
-//                                    eb.requestFocus();
-//                                }
-//                            }
-//                        }
-
         scroll.setViewportView(list);
 
         //mainContainer.pack();
@@ -227,8 +259,15 @@ public class ProjectSearch {
         }
     }
 
+    public void stopSearch() {
+        if (currentTask != null) {
+            currentTask.cancel();
+        }
+    }
 
     public void doSearch() {
+        stopSearch();
+        final int gen = ++generation;
 
         for(int i = 0; i < editor.getTabCount(); i++) {
             EditorBase eb = editor.getTab(i);
@@ -240,50 +279,123 @@ public class ProjectSearch {
             }
         }
 
-        String term = searchTerm.getText().toLowerCase();
-        JPanel list = new JPanel();
+        list = new JPanel();
         list.setLayout(new BoxLayout(list, BoxLayout.PAGE_AXIS));
-        for(File f : editor.loadedSketch.sketchFiles) {
-            int tab = editor.getTabByFile(f);
-            EditorBase eb = null;
-            if (tab > -1) {
-                eb = editor.getTab(tab);
+        scroll.setViewportView(list);
+
+        String term = searchTerm.getText();
+        if (term.equals("")) {
+            status.setText(" ");
+            return;
+        }
+
+        FileSearch search;
+        try {
+            search = new FileSearch(term, useRegex.isSelected(), wholeWord.isSelected(), matchCase.isSelected());
+        } catch (PatternSyntaxException ex) {
+            status.setText(ex.getDescription());
+            return;
+        }
+
+        Sketch sketch = editor.loadedSketch;
+
+        // Open tabs may have unsaved changes, so search what's in them
+        HashMap<File, String> open = new HashMap<File, String>();
+        for(int i = 0; i < editor.getTabCount(); i++) {
+            EditorBase eb = editor.getTab(i);
+            if (eb != null && eb.getFile() != null) {
+                open.put(eb.getFile(), eb.getText());
+            }
+        }
+
+        LinkedHashSet<File> files = new LinkedHashSet<File>(sketch.sketchFiles);
+
+        if (searchLibraries.isSelected()) {
+            for (Library lib : sketch.getImportedLibraries()) {
+                files.addAll(lib.getSourceFiles(sketch));
+                files.addAll(lib.getHeaderFiles());
             }
+        }
 
-            String[] content = loadFileLines(f);
-            boolean foundText = false;
+        if (searchCore.isSelected() && sketch.getCore() != null && sketch.getCompiler() != null) {
+            TreeMap<String, ArrayList<File>> coreLibs = sketch.getCoreLibs();
+            for (ArrayList<File> folders : coreLibs.values()) {
+                for (File folder : folders) {
+                    for (File f : Sketch.findFilesInFolder(folder, null, true)) {
+                        if (sketch.isIndexable(f)) {
+                            files.add(f);
+                        }
+                    }
+                }
+            }
+        }
 
-            int lineno = 0;
-            ArrayList<Integer> finds = new ArrayList<Integer>();
+        // Only the tabs that belong to what is being searched
+        Iterator<File> it = open.keySet().iterator();
+        while (it.hasNext()) {
+            if (!files.contains(it.next())) {
+                it.remove();
+            }
+        }
 
-            for(String line : content) {
-                lineno++;
+        status.setText("Searching " + files.size() + " files...");
+        stopButton.setEnabled(true);
 
-                if(line.toLowerCase().contains(term)) {
-                    foundText = true;
-                    if (eb != null) {
-                        eb.highlightLine(lineno - 1, Base.getTheme().getColor("editor.searchall.bgcolor"));
+        currentTask = search.search(files, open, new FileSearch.Listener() {
+            public void found(final File f, final ArrayList<FileSearch.Match> matches) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (gen == generation) {
+                            showMatches(f, matches);
+                        }
                     }
+                });
+            }
 
-                    SearchResult res = new SearchResult(f, term, line, lineno);
-                    res.addActionListener(new ActionListener() {
-                        public void actionPerformed(ActionEvent e) {
-                            SearchResult r = (SearchResult)e.getSource();
-                            if (r.getLine() > 0) {
-                                int tab = editor.openOrSelectFile(r.getFile());
-                                if (tab >= 0) {
-                                    EditorBase eb = editor.getTab(tab);
-                                    eb.gotoLine(r.getLine()-1);
-                                    eb.requestFocus();
-                                }
-                            }
+            public void finished(final int scanned, final int found, final boolean cancelled) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (gen != generation) {
+                            return;
                         }
-                    });
-                    list.add(res);
-                }
+                        stopButton.setEnabled(false);
+                        status.setText(found + " matches in " + scanned + " files" + (cancelled ? " (stopped)" : ""));
+                    }
+                });
             }
-            scroll.setViewportView(list);
+        });
+    }
+
+    void showMatches(File f, ArrayList<FileSearch.Match> matches) {
+        int tab = editor.getTabByFile(f);
+        EditorBase eb = null;
+        if (tab > -1) {
+            eb = editor.getTab(tab);
+        }
+
+        for (FileSearch.Match m : matches) {
+            if (eb != null) {
+                eb.highlightLine(m.getLine() - 1, Base.getTheme().getColor("editor.searchall.bgcolor"));
+            }
+
+            SearchResult res = new SearchResult(m);
+            res.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    SearchResult r = (SearchResult)e.getSource();
+                    if (r.getLine() > 0) {
+                        int tab = editor.openOrSelectFile(r.getFile());
+                        if (tab >= 0) {
+                            EditorBase eb = editor.getTab(tab);
+                            eb.gotoLine(r.getLine()-1);
+                            eb.requestFocus();
+                        }
+                    }
+                }
+            });
+            list.add(res);
         }
+        list.revalidate();
+        list.repaint();
     }
 
     public String[] loadFileLines(File f) {
@@ -44,16 +44,14 @@ import javax.swing.border.*;
 
 import say.swing.*;
 
-import java.util.Timer;
-
 /*! The PropertyFile class stores a set of key/value pairs.  The keys can be
  *  used verbatim, or traversed and searched in the form of a tree.  Nodes in
  *  the tree are separated with a period.
  */
 public class PropertyFile {
 
-    TreeMap<String, String> defaultProperties;
-    TreeMap<String, String> properties;
+    PropertyStore defaultProperties;
+    PropertyStore properties;
     TreeMap<String, String> embedded;
     TreeMap<String, String> embeddedTypes;
     TreeMap<String, String> sources;
@@ -76,7 +74,7 @@ public class PropertyFile {
 
         try {
             BufferedReader br = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(user), "UTF-8"));
-            properties = new TreeMap<String, String>();
+            properties = new PropertyStore();
             embedded = new TreeMap<String, String>();
             embeddedTypes = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
@@ -84,6 +82,7 @@ public class PropertyFile {
             if(br != null) {
                 loadProperties(properties, br);
 //                properties.load(br);
+                properties.freeze();
             }
 
             br.close();
@@ -101,15 +100,16 @@ public class PropertyFile {
 
         try {
             BufferedReader br = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(defaults), "UTF-8"));
-            defaultProperties = new TreeMap<String, String>();
+            defaultProperties = new PropertyStore();
 
             if(br != null) {
                 loadProperties(defaultProperties, br);
 //                defaultProperties.load(br);
+                defaultProperties.freeze();
             }
 
             br.close();
-            properties = new TreeMap<String, String>(defaultProperties);
+            properties = new PropertyStore(defaultProperties);
             embedded = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
             embeddedTypes = new TreeMap<String, String>();
@@ -122,6 +122,8 @@ public class PropertyFile {
                     r.close();
                     fis.close();
                 }
+                replayJournal();
+                properties.freeze();
             }
         } catch(Exception e) {
             Base.error(e);
@@ -136,7 +138,7 @@ public class PropertyFile {
 
         userFile = user;
 
-        defaultProperties = new TreeMap<String, String>();
+        defaultProperties = new PropertyStore();
 
         if(defaults != null) {
             if(defaults.exists()) {
@@ -152,7 +154,7 @@ public class PropertyFile {
             }
         }
 
-        properties = new TreeMap<String, String>(defaultProperties);
+        properties = new PropertyStore(defaultProperties);
         embedded = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
         embeddedTypes = new TreeMap<String, String>();
@@ -169,14 +171,16 @@ public class PropertyFile {
                     Base.error(e);
                 }
             }
+            replayJournal();
+            properties.freeze();
         }
     }
 
     /*! Create a new empty PropertyFile. */
     public PropertyFile() {
         userFile = null;
-        defaultProperties = new TreeMap<String, String>();
-        properties = new TreeMap<String, String>();
+        defaultProperties = new PropertyStore();
+        properties = new PropertyStore();
         embedded = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
         embeddedTypes = new TreeMap<String, String>();
@@ -185,8 +189,8 @@ public class PropertyFile {
     /*! Create a new PropertyFile from a set of properties stored in a TreeMap<String, String> object. */
     public PropertyFile(TreeMap<String, String>data) {
         userFile = null;
-        defaultProperties = new TreeMap<String, String>();
-        properties = new TreeMap<String, String>();
+        defaultProperties = new PropertyStore();
+        properties = new PropertyStore();
         embedded = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
         embeddedTypes = new TreeMap<String, String>();
@@ -196,8 +200,8 @@ public class PropertyFile {
     /*! Create a new PropertyFile from the contents of an existing PropertyFile. */
     public PropertyFile(PropertyFile pf) {
         userFile = null;
-        defaultProperties = new TreeMap<String, String>();
-        properties = new TreeMap<String, String>();
+        defaultProperties = new PropertyStore();
+        properties = new PropertyStore();
         embedded = new TreeMap<String, String>();
             sources = new TreeMap<String, String>();
         embeddedTypes = new TreeMap<String, String>();
@@ -221,9 +225,17 @@ public class PropertyFile {
             return;
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            set(key, pf.getProperties().get(key));
-            setSource(key, pf.getSource(key));
+        // Merging into an empty file (getMerged does it all the time) can
+        // just share the other file's store.
+        if (properties.size() == 0 && !journal) {
+            properties = new PropertyStore(pf.properties);
+            sources.clear();
+            sources.putAll(pf.sources);
+        } else {
+            for(String key : pf.properties.keys()) {
+                set(key, pf.properties.get(key));
+                setSource(key, pf.getSource(key));
+            }
         }
 
         embeddedTypes.putAll(pf.getEmbeddedTypes());
@@ -240,8 +252,8 @@ public class PropertyFile {
             prefix += ".";
         }
 
-        for(String key : pf.getProperties().keySet()) {
-            set(prefix + key, pf.getProperties().get(key));
+        for(String key : pf.properties.keys()) {
+            set(prefix + key, pf.properties.get(key));
             setSource(prefix + key, pf.getSource(key));
         }
     }
@@ -249,66 +261,208 @@ public class PropertyFile {
     // Register a new backing file and save to it.
     public void save(File f) {
         userFile = f;
+        lastSaved = null;
         save();
     }
 
-    /*! Save the properties out to the currently registered backing file */
+    /*! Save the properties out to the currently registered backing file. The file is
+     *  only written if its contents would change, and is replaced in one go so that a crash
+     *  part way through can't leave it half written.
+     */
     public void save() {
         if(userFile != null) {
+            String content;
+            synchronized(this) {
+                content = render();
+                changes.clear();
+            }
+
             try {
-                String[] keylist = properties.keySet().toArray(new String[0]);
-                Arrays.sort(keylist);
-
-                FileWriter w = new FileWriter(userFile);
-                PrintWriter pw = new PrintWriter(w);
-                for (String k : keylist) {
-                    String v = properties.get(k);
-                    pw.println(k + "=" + v);
+                if (lastSaved == null && userFile.exists()) {
+                    lastSaved = Base.getFileAsString(userFile);
                 }
 
-                for (String embfile : embedded.keySet()) {
-                    String type = embeddedTypes.get(embfile);
-                    pw.println("@begin file=" + embfile + " format=type");
-                    pw.println(embedded.get(embfile));
-                    pw.println("@end");
-                    pw.println();
+                if (!content.equals(lastSaved)) {
+                    writeAtomic(userFile, content);
+                    lastSaved = content;
+                    Debug.message("Saved property file " + userFile.getAbsolutePath());
                 }
 
-                pw.close();
-                w.close();
-
-
-                Debug.message("Saved property file " + userFile.getAbsolutePath());
+                File j = getJournalFile();
+                if (j.exists()) {
+                    j.delete();
+                }
+                journalEntries = 0;
             } catch(Exception e) {
                 Base.error(e);
             }
         }
     }
 
-    Timer saveTimer = null;
+    String render() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+
+        for (String k : properties.keys()) {
+            String v = properties.get(k);
+            pw.println(k + "=" + v);
+        }
+
+        for (String embfile : embedded.keySet()) {
+            String type = embeddedTypes.get(embfile);
+            pw.println("@begin file=" + embfile + " format=type");
+            pw.println(embedded.get(embfile));
+            pw.println("@end");
+            pw.println();
+        }
+
+        pw.close();
+        return sw.toString();
+    }
+
+    // Write to a temporary file beside the real one, sync it, then rename it over the top.
+    static void writeAtomic(File f, String content) throws IOException {
+        File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!tmp.renameTo(f)) {
+            // Windows won't rename over an existing file
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Unable to replace " + f.getAbsolutePath());
+            }
+        }
+    }
 
     /*! Save the properties out to the currently registered backing file after a delay of 1 second.  If a save is already pending
-     *  then the new save's delay overrides it extending the delay.
+     *  then the new save's delay overrides it extending the delay.  All the files share one writer thread, see PropertyWriter.
      */
     public void saveDelay() {
-        if(saveTimer != null) {
-            try {
-                saveTimer.cancel();
-            } catch (Exception e) {
+        if (userFile != null) {
+            PropertyWriter.schedule(this);
+        }
+    }
+
+    /**************************************************************************
+     * Change journal.  With it turned on, a delayed save appends just the    *
+     * changed keys to a .journal file next to the backing file rather than   *
+     * rewriting the whole thing.  The journal is replayed when the file is   *
+     * loaded, and folded back in by a full save once it gets long.           *
+     **************************************************************************/
+
+    public static final int JOURNAL_MAX = 200;
+
+    String lastSaved = null;
+    boolean journal = false;
+    int journalEntries = 0;
+    ArrayList<String> changes = new ArrayList<String>();
+
+    public void setJournal(boolean j) {
+        journal = j;
+    }
+
+    File getJournalFile() {
+        return new File(userFile.getAbsoluteFile().getParentFile(), userFile.getName() + ".journal");
+    }
+
+    // Called by PropertyWriter when a delayed save comes due.
+    void writePending() {
+        if (!journal || userFile == null || !userFile.exists()) {
+            save();
+            return;
+        }
+
+        String entries;
+        int count;
+        synchronized(this) {
+            count = changes.size();
+            if (count == 0) {
+                return;
+            }
+            if (journalEntries + count > JOURNAL_MAX) {
+                entries = null;
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (String c : changes) {
+                    sb.append(c).append("\n");
+                }
+                entries = sb.toString();
+                changes.clear();
             }
+        }
 
+        if (entries == null) {
+            save();
+            return;
+        }
+
+        try {
+            FileOutputStream fos = new FileOutputStream(getJournalFile(), true);
             try {
-                saveTimer.purge();
-            } catch (Exception e) {
+                fos.write(entries.getBytes("UTF-8"));
+                fos.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
             }
+            journalEntries += count;
+        } catch (IOException e) {
+            Base.error(e);
+            save();
+        }
+    }
+
+    void recordChange(String change) {
+        if (journal) {
+            changes.add(change);
+        }
+    }
+
+    // Lines are +key=value to set a key, -key to unset it and *key to remove it and its children.
+    void replayJournal() {
+        if (userFile == null) {
+            return;
+        }
+        File j = getJournalFile();
+        if (!j.exists()) {
+            return;
         }
 
-        saveTimer = new Timer();
-        saveTimer.schedule(new TimerTask() {
-            public void run() {
-                save();
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(j), "UTF-8"));
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.length() < 2) {
+                    continue;
+                }
+                String entry = line.substring(1);
+                switch (line.charAt(0)) {
+                    case '+':
+                        int eq = entry.indexOf("=");
+                        if (eq > 0) {
+                            properties.put(entry.substring(0, eq), entry.substring(eq + 1));
+                        }
+                        break;
+                    case '-':
+                        properties.remove(entry);
+                        break;
+                    case '*':
+                        removeKeys(entry);
+                        break;
+                }
+                journalEntries++;
             }
-        }, 1000);
+            r.close();
+        } catch (IOException e) {
+            Base.error(e);
+        }
     }
 
     /*! Get a String value for the specified key after appending the OS details to the key.
@@ -417,7 +571,7 @@ public class PropertyFile {
     }
 
     /*! Set a key to the specified String value */
-    public void set(String attribute, String value) {
+    public synchronized void set(String attribute, String value) {
         if(value == null) {
             return;
         }
@@ -427,21 +581,25 @@ public class PropertyFile {
         }
 
         properties.put(attribute, value);
+        recordChange("+" + attribute + "=" + value);
     }
 
     /*! Unset a key. If a default exists that value will now be the current value. */
-    public void unset(String attribute) {
+    public synchronized void unset(String attribute) {
         properties.remove(attribute);
+        recordChange("-" + attribute);
     }
 
     /*! Remove a key and any children of that key */
-    public void removeAll(String key) {
+    public synchronized void removeAll(String key) {
+        removeKeys(key);
+        recordChange("*" + key);
+    }
+
+    void removeKeys(String key) {
         properties.remove(key);
-        String[] keys = properties.keySet().toArray(new String[0]);
-        for (String thiskey : keys) {
-            if (thiskey.startsWith(key + ".")) {
-                properties.remove(thiskey);
-            }
+        for (String thiskey : properties.range(key + ".")) {
+            properties.remove(thiskey);
         }
     }
 
@@ -673,9 +831,9 @@ public class PropertyFile {
         return font;
     }
 
-    /*! Return the internal Properties object used to store the data */
+    /*! Return a copy of all the properties as a TreeMap */
     public TreeMap<String, String> getProperties() {
-        return properties;
+        return properties.toTreeMap();
     }
 
     /*! Return all the properties as a TreeMap object */
@@ -689,7 +847,7 @@ public class PropertyFile {
     public TreeMap<String, String> toTreeMap(boolean ps) {
         TreeMap<String, String> map = new TreeMap<String, String>();
 
-        for(String name : properties.keySet()) {
+        for(String name : properties.keys()) {
             if(ps) {
                 if(name.endsWith("." + Base.getOSFullName())) {
                     name = name.substring(0, name.length() - Base.getOSFullName().length() - 1);
@@ -717,7 +875,7 @@ public class PropertyFile {
                     // want to muller the old properties, so we load them into a fresh
                     // properties object and only replace the old ones with the new if it
                     // is all successful.
-                    TreeMap<String, String> newProperties = new TreeMap<String, String>(defaultProperties);
+                    PropertyStore newProperties = new PropertyStore(defaultProperties);
                     FileInputStream fis = new FileInputStream(user);
                     BufferedReader r = new BufferedReader(new InputStreamReader(fis, "UTF-8"));
                     loadProperties(properties, r);
@@ -743,12 +901,7 @@ public class PropertyFile {
             path += ".";
         }
 
-        for(String key : properties.keySet()) {
-            if(key.startsWith(path)) {
-                subset.set(key.substring(path.length()), properties.get(key));
-            }
-        }
-
+        subset.properties = properties.view(path);
         return subset;
     }
 
@@ -760,19 +913,20 @@ public class PropertyFile {
      * it will return { "bar", "foo" }.
      */
     public String[] childKeys() {
-        ArrayList<String> keys = new ArrayList<String>();
+        TreeSet<String> keys = new TreeSet<String>();
+        String last = null;
 
-        for(String key : properties.keySet()) {
-            String[] bits = key.split("\\.");
+        for(String key : properties.keys()) {
+            int dot = key.indexOf('.');
+            String top = dot == -1 ? key : key.substring(0, dot);
 
-            if(keys.indexOf(bits[0]) == -1) {
-                keys.add(bits[0]);
+            if(!top.equals(last)) {
+                keys.add(top);
+                last = top;
             }
         }
 
-        String[] keyArray = keys.toArray(new String[0]);
-        Arrays.sort(keyArray);
-        return keyArray;
+        return keys.toArray(new String[0]);
     }
 
     /*! Return all the top-level child keys of the given path.  See: childKeys() */
@@ -788,11 +942,7 @@ public class PropertyFile {
 
     /*! Return a full Set of the keys in the user data. */
     public ArrayList<String> keySet() {
-        ArrayList<String> ks = new ArrayList<String>();
-        for (Object ob : properties.keySet()) {
-            ks.add((String)ob);
-        }
-        return ks;
+        return new ArrayList<String>(properties.keys());
     }
 
     /*! Find if a key exists, either as an entry in its
@@ -804,15 +954,7 @@ public class PropertyFile {
             return true;
         }
 
-        for(Object ko : properties.keySet()) {
-            String k = (String)ko;
-
-            if(k.startsWith(key + ".")) {
-                return true;
-            }
-        }
-
-        return false;
+        return properties.range(key + ".").size() > 0;
     }
 
     /*! Obtain the best match key for the current operating system. */
@@ -844,7 +986,7 @@ public class PropertyFile {
     public void fullyParseFile() {
         Context ctx = new Context();
         ctx.mergeSettings(this);
-        for (String key : properties.keySet()) {
+        for (String key : properties.keys()) {
             String data = get(key);
             data = ctx.parseString(data);
             set(key, data);
@@ -852,6 +994,15 @@ public class PropertyFile {
     }
 
     public boolean loadProperties(TreeMap<String, String> p, BufferedReader r) {
+        PropertyStore store = new PropertyStore();
+        boolean ok = loadProperties(store, r);
+        for (String k : store.keys()) {
+            p.put(k, store.get(k));
+        }
+        return ok;
+    }
+
+    public boolean loadProperties(PropertyStore p, BufferedReader r) {
         String line;
         Pattern keyval = Pattern.compile("^([^=\\s]+)\\s*=\\s*(.*)$");
         Pattern filename = Pattern.compile("file\\s*=\\s*([^\\s]+)");
@@ -977,7 +1128,7 @@ public class PropertyFile {
     }
 
     public void debugDump() {
-        for (String prop : properties.keySet()) {
+        for (String prop : properties.keys()) {
             String source = sources.get(prop);
             System.err.println(prop + " = " + properties.get(prop) + " (" + source + ")");
         }        
@@ -993,6 +1144,12 @@ public class PropertyFile {
     }
 
     public void setSource(String k, String s) {
+        if (s == null) {
+            if (sources.size() > 0) {
+                sources.remove(k);
+            }
+            return;
+        }
         sources.put(k, s);
     }
 
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.lang.ref.*;
+import java.util.*;
+
+/* The key/value storage behind PropertyFile.
+ *
+ * Once a file has been loaded it is frozen into a pair of sorted arrays,
+ * with every key and value interned through a shared pool: the hundreds
+ * of boards, cores and libraries installed all use the same few thousand
+ * keys (upload.protocol, compiler.library.*, options.*) and mostly the
+ * same values, so each of those strings is only held once. Copying a
+ * store shares the arrays rather than copying them.
+ *
+ * Changes go into a TreeMap overlay on top of the arrays, with removed
+ * keys marked by REMOVED, so nothing that shares the arrays sees them.
+ * freeze() folds the overlay back into new arrays.
+ *
+ * A store can also be a view of the keys below a prefix in another
+ * store's arrays (see view()), found with two binary searches and
+ * sharing the arrays, with the prefix taken off the keys as they are
+ * read.
+ */
+
+public class PropertyStore {
+    static final String[] NONE = new String[0];
+    static final String REMOVED = new String("\0removed");
+
+    static final WeakHashMap<String, WeakReference<String>> pool = new WeakHashMap<String, WeakReference<String>>();
+
+    String[] keys = NONE;
+    String[] values = NONE;
+    int lo = 0;                 // The part of the arrays this store sees
+    int hi = 0;
+    String prefix = "";         // Taken off the keys in the arrays
+    TreeMap<String, String> overlay = null;
+    int size = 0;
+
+    public PropertyStore() {
+    }
+
+    public PropertyStore(PropertyStore from) {
+        synchronized (from) {
+            from.freeze();
+            keys = from.keys;
+            values = from.values;
+            lo = from.lo;
+            hi = from.hi;
+            prefix = from.prefix;
+            size = from.size;
+        }
+    }
+
+    public static String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        synchronized (pool) {
+            WeakReference<String> ref = pool.get(s);
+            String i = ref == null ? null : ref.get();
+            if (i == null) {
+                pool.put(s, new WeakReference<String>(s));
+                i = s;
+            }
+            return i;
+        }
+    }
+
+    // A store holding everything below prefix (which ends in a period),
+    // with the prefix taken off.
+    public synchronized PropertyStore view(String p) {
+        freeze();
+        PropertyStore v = new PropertyStore();
+        v.keys = keys;
+        v.values = values;
+        v.prefix = prefix + p;
+        v.lo = lower(v.prefix);
+        v.hi = lower(v.prefix + Character.MAX_VALUE);
+        v.size = v.hi - v.lo;
+        return v;
+    }
+
+    int find(String key) {
+        return Arrays.binarySearch(keys, lo, hi, prefix.length() == 0 ? key : prefix + key);
+    }
+
+    // Index of the first key in the arrays not less than the full key k
+    int lower(String k) {
+        int i = Arrays.binarySearch(keys, lo, hi, k);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    String keyAt(int i) {
+        return prefix.length() == 0 ? keys[i] : keys[i].substring(prefix.length());
+    }
+
+    public synchronized String get(String key) {
+        if (key == null) {
+            return null;
+        }
+        if (overlay != null) {
+            String v = overlay.get(key);
+            if (v != null) {
+                return v == REMOVED ? null : v;
+            }
+        }
+        int i = find(key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    public synchronized void put(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        if (overlay == null) {
+            overlay = new TreeMap<String, String>();
+        }
+        String old = overlay.put(key, value);
+        if (old == null) {
+            if (find(key) < 0) {
+                size++;
+            }
+        } else if (old == REMOVED) {
+            size++;
+        }
+    }
+
+    public synchronized void remove(String key) {
+        if (get(key) == null) {
+            return;
+        }
+        if (find(key) >= 0) {
+            if (overlay == null) {
+                overlay = new TreeMap<String, String>();
+            }
+            overlay.put(key, REMOVED);
+        } else {
+            overlay.remove(key);
+        }
+        size--;
+    }
+
+    public synchronized void clear() {
+        keys = NONE;
+        values = NONE;
+        lo = 0;
+        hi = 0;
+        prefix = "";
+        overlay = null;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Fold the overlay into new sorted arrays of this store's own.
+    public synchronized void freeze() {
+        if (overlay == null) {
+            return;
+        }
+        String[] nk = new String[size];
+        String[] nv = new String[size];
+        int n = 0;
+        int i = lo;
+        if (overlay != null) {
+            for (Map.Entry<String, String> e : overlay.entrySet()) {
+                String k = e.getKey();
+                int c = -1;
+                while (i < hi && (c = keyAt(i).compareTo(k)) < 0) {
+                    nk[n] = intern(keyAt(i));
+                    nv[n++] = values[i++];
+                }
+                if (i < hi && c == 0) {
+                    i++;
+                }
+                if (e.getValue() != REMOVED) {
+                    nk[n] = intern(k);
+                    nv[n++] = intern(e.getValue());
+                }
+            }
+        }
+        while (i < hi) {
+            nk[n] = intern(keyAt(i));
+            nv[n++] = values[i++];
+        }
+        keys = nk;
+        values = nv;
+        lo = 0;
+        hi = n;
+        prefix = "";
+        overlay = null;
+    }
+
+    // All the keys, in order.
+    public List<String> keys() {
+        return range("");
+    }
+
+    // The keys starting with p, in order.
+    public synchronized List<String> range(String p) {
+        int a = lo;
+        int b = hi;
+        if (p.length() > 0) {
+            a = lower(prefix + p);
+            b = lower(prefix + p + Character.MAX_VALUE);
+        }
+
+        if (overlay == null) {
+            if (prefix.length() == 0) {
+                return Collections.unmodifiableList(Arrays.asList(keys).subList(a, b));
+            }
+            ArrayList<String> out = new ArrayList<String>(b - a);
+            for (int i = a; i < b; i++) {
+                out.add(keyAt(i));
+            }
+            return out;
+        }
+
+        SortedMap<String, String> over = p.length() == 0 ? overlay : overlay.subMap(p, p + Character.MAX_VALUE);
+        ArrayList<String> out = new ArrayList<String>(b - a + over.size());
+        Iterator<Map.Entry<String, String>> it = over.entrySet().iterator();
+        Map.Entry<String, String> next = it.hasNext() ? it.next() : null;
+        int i = a;
+        while (i < b || next != null) {
+            int c = i >= b ? 1 : next == null ? -1 : keyAt(i).compareTo(next.getKey());
+            if (c < 0) {
+                out.add(keyAt(i++));
+            } else {
+                if (c == 0) {
+                    i++;
+                }
+                if (next.getValue() != REMOVED) {
+                    out.add(next.getKey());
+                }
+                next = it.hasNext() ? it.next() : null;
+            }
+        }
+        return out;
+    }
+
+    public synchronized TreeMap<String, String> toTreeMap() {
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        for (String k : keys()) {
+            map.put(k, get(k));
+        }
+        return map;
+    }
+}
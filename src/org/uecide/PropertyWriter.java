@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Writes changed property files to disk in the background.
+ *
+ * PropertyFile.saveDelay() hands the file over to here. Nothing is
+ * written until the file has gone DELAY ms without another change, so a
+ * burst of settings turns into one write, but nothing waits longer than
+ * MAX_DELAY however busy it is. All the files share one thread, and
+ * anything still waiting is written out when the IDE exits.
+ */
+
+public class PropertyWriter {
+    public static final long DELAY = 1000;
+    public static final long MAX_DELAY = 5000;
+
+    static class Pending {
+        PropertyFile file;
+        long first;
+        long last;
+    }
+
+    static final IdentityHashMap<PropertyFile, Pending> pending = new IdentityHashMap<PropertyFile, Pending>();
+    static ScheduledExecutorService timer = null;
+
+    public static synchronized void schedule(PropertyFile pf) {
+        long now = System.currentTimeMillis();
+        Pending p = pending.get(pf);
+        if (p != null) {
+            p.last = now;
+            return;
+        }
+
+        p = new Pending();
+        p.file = pf;
+        p.first = now;
+        p.last = now;
+        pending.put(pf, p);
+        queue(p, DELAY);
+    }
+
+    public static synchronized boolean isPending(PropertyFile pf) {
+        return pending.get(pf) != null;
+    }
+
+    // Write everything that's waiting, now, on the calling thread.
+    public static void flush() {
+        ArrayList<PropertyFile> files;
+        synchronized (PropertyWriter.class) {
+            files = new ArrayList<PropertyFile>(pending.keySet());
+            pending.clear();
+        }
+        for (PropertyFile pf : files) {
+            pf.writePending();
+        }
+    }
+
+    static void queue(final Pending p, long delay) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Property writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+
+        timer.schedule(new Runnable() {
+            public void run() {
+                write(p);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static void write(Pending p) {
+        synchronized (PropertyWriter.class) {
+            if (pending.get(p.file) != p) {
+                return; // Already flushed
+            }
+            long wait = Math.min(p.last + DELAY, p.first + MAX_DELAY) - System.currentTimeMillis();
+            if (wait > 0) {
+                queue(p, wait);
+                return;
+            }
+            pending.remove(p.file);
+        }
+        p.file.writePending();
+    }
+}
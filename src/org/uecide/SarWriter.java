@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/* Writes a sketch archive without holding the files in memory.
+ *
+ * Each file is compressed by a task on a thread pool, into memory if it
+ * is small or a temporary file if not, and the results are written out
+ * in the order the files were added. Only a few entries are in flight
+ * at once. Files that are already compressed (images, archives and so
+ * on) are stored rather than deflated again, and a file that has the
+ * same name, size and time as an entry in the previous archive, and still
+ * has the same CRC, has that entry's data copied straight across. Zip
+ * times are only good to two seconds, so the time alone can't be trusted
+ * to show that the file hasn't changed.
+ *
+ * The zip structure is written here rather than by ZipOutputStream,
+ * which can't take data that is already deflated. It is plain zip: no
+ * zip64, no data descriptors, so ZipInputStream reads it back.
+ */
+
+public class SarWriter {
+    static final int BUFFER = 65536;
+    static final long SPOOL = 1024 * 1024;     // Larger entries compress to a temp file
+
+    static final HashSet<String> COMPRESSED = new HashSet<String>(Arrays.asList(new String[] {
+        "png", "jpg", "jpeg", "gif", "webp", "ico",
+        "zip", "jar", "sar", "gz", "tgz", "bz2", "xz", "7z", "lzma", "deb", "rar",
+        "mp3", "ogg", "mp4", "m4a", "flac", "pdf", "woff", "woff2"
+    }));
+
+    // Where an entry's data comes from and what it looks like once written
+    class Entry {
+        String name;
+        long time;
+        int method = ZipEntry.STORED;
+        long crc = 0;
+        long size = 0;
+        long csize = 0;
+        long offset = 0;
+
+        File source = null;         // Stored data, copied from the file
+        byte[] data = null;         // Deflated in memory
+        File spool = null;          // Deflated to a temporary file
+        OldEntry reuse = null;      // Copied from the previous archive
+    }
+
+    // An entry in the previous archive
+    static class OldEntry {
+        int method;
+        long time;
+        long crc;
+        long size;
+        long csize;
+        long offset;
+    }
+
+    OutputStream out;
+    long written = 0;
+
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+    ArrayDeque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+    ExecutorService pool;
+    int window;
+
+    volatile boolean aborted = false;
+
+    RandomAccessFile previous = null;
+    HashMap<String, OldEntry> previousEntries = new HashMap<String, OldEntry>();
+
+    public SarWriter(OutputStream o, File prev, int threads) {
+        out = new BufferedOutputStream(o, BUFFER);
+        threads = Math.max(1, threads);
+        pool = Executors.newFixedThreadPool(threads);
+        window = threads * 2;
+
+        if (prev != null && prev.exists()) {
+            try {
+                previous = new RandomAccessFile(prev, "r");
+                previousEntries = readDirectory(previous);
+            } catch (Exception e) {
+                // Not a usable archive, so nothing gets reused
+                previousEntries = new HashMap<String, OldEntry>();
+            }
+        }
+    }
+
+    public SarWriter(OutputStream o, File prev) {
+        this(o, prev, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void addDirectory(String name) throws IOException {
+        Entry e = new Entry();
+        e.name = name.endsWith("/") ? name : name + "/";
+        e.time = System.currentTimeMillis();
+        queue(e);
+    }
+
+    public void addBytes(String name, byte[] bytes) throws IOException {
+        final Entry e = new Entry();
+        e.name = name;
+        e.time = System.currentTimeMillis();
+        e.size = bytes.length;
+        e.method = ZipEntry.DEFLATED;
+        final byte[] b = bytes;
+        submit(new Callable<Entry>() {
+            public Entry call() throws IOException {
+                deflate(e, new ByteArrayInputStream(b));
+                return e;
+            }
+        });
+    }
+
+    public void addFile(File f, String name) throws IOException {
+        final Entry e = new Entry();
+        e.name = name;
+        e.time = f.lastModified();
+        e.size = f.length();
+        e.source = f;
+
+        OldEntry old = previousEntries.get(name);
+        if (old != null && (old.size != e.size || old.time != dosTime(e.time))) {
+            old = null;
+        }
+        final OldEntry candidate = old;
+
+        final boolean store = COMPRESSED.contains(extension(name));
+        submit(new Callable<Entry>() {
+            public Entry call() throws IOException {
+                if (candidate != null && reusable(e, candidate)) {
+                    return e;
+                }
+                InputStream in = new FileInputStream(e.source);
+                try {
+                    if (store) {
+                        e.method = ZipEntry.STORED;
+                        e.crc = checksum(in);
+                        e.csize = e.size;
+                    } else {
+                        e.method = ZipEntry.DEFLATED;
+                        deflate(e, in);
+                    }
+                } finally {
+                    in.close();
+                }
+                return e;
+            }
+        });
+    }
+
+    // Runs on the pool. Reading the file through for its CRC is still a
+    // lot cheaper than deflating it again.
+    boolean reusable(Entry e, OldEntry old) throws IOException {
+        InputStream in = new FileInputStream(e.source);
+        try {
+            if (checksum(in) != old.crc) {
+                return false;
+            }
+        } finally {
+            in.close();
+        }
+        e.reuse = old;
+        e.method = old.method;
+        e.crc = old.crc;
+        e.csize = old.csize;
+        return true;
+    }
+
+    // The same files Sketch.addTree always left out
+    public void addTree(File dir, String sofar) throws IOException {
+        String files[] = dir.list();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (String file : files) {
+            if (file.equals(".") || file.equals("..")) continue;
+            if (file.startsWith(".git")) continue;
+            if (file.startsWith(".svn")) continue;
+            if (file.startsWith(".csv")) continue;
+            if (file.startsWith(".SVN")) continue;
+            if (file.startsWith(".CSV")) continue;
+
+            File sub = new File(dir, file);
+            String nowfar = (sofar == null) ? file : (sofar + "/" + file);
+
+            if (sub.isDirectory()) {
+                addDirectory(nowfar);
+                addTree(sub, nowfar);
+            } else {
+                addFile(sub, nowfar);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            while (pending.size() > 0) {
+                writeNext();
+            }
+
+            long cdStart = written;
+            for (Entry e : entries) {
+                writeCentral(e);
+            }
+            long cdSize = written - cdStart;
+
+            if (entries.size() > 0xFFFF || written > 0xFFFFFFFFL) {
+                throw new IOException("Archive too large");
+            }
+
+            writeInt(0x06054b50);
+            writeShort(0);
+            writeShort(0);
+            writeShort(entries.size());
+            writeShort(entries.size());
+            writeInt(cdSize);
+            writeInt(cdStart);
+            writeShort(0);
+            out.close();
+        } finally {
+            abort();
+        }
+    }
+
+    // Stop the pool, drop anything not yet written and close the output.
+    // Tasks that never started are thrown away by shutdownNow() and will
+    // never finish, so only the finished ones are looked at; a task that
+    // was running stops at the next buffer and deletes its own spool file.
+    public void abort() {
+        aborted = true;
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+        }
+        for (Future<Entry> f : pending) {
+            if (!f.isDone()) {
+                continue;
+            }
+            try {
+                Entry e = f.get();
+                if (e.spool != null) {
+                    e.spool.delete();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+        pending.clear();
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+            }
+            previous = null;
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    void queue(Entry e) throws IOException {
+        FutureTask<Entry> done = new FutureTask<Entry>(new Runnable() {
+            public void run() {
+            }
+        }, e);
+        done.run();
+        pending.add(done);
+        drain();
+    }
+
+    void submit(Callable<Entry> task) throws IOException {
+        pending.add(pool.submit(task));
+        drain();
+    }
+
+    // Write out whatever is finished at the head of the queue, waiting
+    // for it if too many entries are in flight.
+    void drain() throws IOException {
+        while (pending.size() > 0 && (pending.size() > window || pending.peek().isDone())) {
+            writeNext();
+        }
+    }
+
+    void writeNext() throws IOException {
+        Entry e;
+        try {
+            e = pending.poll().get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause().toString());
+        } catch (InterruptedException ex) {
+            throw new IOException(ex.toString());
+        }
+        writeEntry(e);
+        entries.add(e);
+    }
+
+    void writeEntry(Entry e) throws IOException {
+        if (written > 0xFFFFFFFFL) {
+            throw new IOException("Archive too large");
+        }
+        e.offset = written;
+        byte[] name = e.name.getBytes("UTF-8");
+
+        writeInt(0x04034b50);
+        writeShort(e.method == ZipEntry.DEFLATED ? 20 : 10);
+        writeShort(0x0800);             // Names are UTF-8
+        writeShort(e.method);
+        writeInt(dosTime(e.time));
+        writeInt(e.crc);
+        writeInt(e.csize);
+        writeInt(e.size);
+        writeShort(name.length);
+        writeShort(0);
+        write(name, 0, name.length);
+
+        if (e.reuse != null) {
+            copyPrevious(e.reuse);
+        } else if (e.data != null) {
+            write(e.data, 0, e.data.length);
+            e.data = null;
+        } else if (e.spool != null) {
+            copy(e.spool, e.csize);
+            e.spool.delete();
+            e.spool = null;
+        } else if (e.source != null) {
+            copy(e.source, e.csize);
+        }
+    }
+
+    void writeCentral(Entry e) throws IOException {
+        byte[] name = e.name.getBytes("UTF-8");
+        writeInt(0x02014b50);
+        writeShort(20);
+        writeShort(e.method == ZipEntry.DEFLATED ? 20 : 10);
+        writeShort(0x0800);
+        writeShort(e.method);
+        writeInt(dosTime(e.time));
+        writeInt(e.crc);
+        writeInt(e.csize);
+        writeInt(e.size);
+        writeShort(name.length);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(e.offset);
+        write(name, 0, name.length);
+    }
+
+    // Runs on the pool
+    void deflate(Entry e, InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        OutputStream dest;
+        ByteArrayOutputStream mem = null;
+        if (e.size > SPOOL) {
+            e.spool = File.createTempFile("sar", ".tmp");
+            e.spool.deleteOnExit();
+            dest = new BufferedOutputStream(new FileOutputStream(e.spool), BUFFER);
+        } else {
+            mem = new ByteArrayOutputStream((int)Math.max(32, e.size / 2));
+            dest = mem;
+        }
+
+        DeflaterOutputStream dos = new DeflaterOutputStream(dest, def, BUFFER);
+        try {
+            byte[] buffer = new byte[BUFFER];
+            long total = 0;
+            int n;
+            while ((n = read(in, buffer)) > 0) {
+                crc.update(buffer, 0, n);
+                dos.write(buffer, 0, n);
+                total += n;
+            }
+            dos.finish();
+            dos.close();
+            e.size = total;
+            e.crc = crc.getValue();
+            e.csize = def.getBytesWritten();
+        } catch (IOException ex) {
+            try {
+                dos.close();
+            } catch (IOException ignored) {
+            }
+            if (e.spool != null) {
+                e.spool.delete();
+                e.spool = null;
+            }
+            throw ex;
+        } finally {
+            def.end();
+        }
+
+        if (mem != null) {
+            e.data = mem.toByteArray();
+        }
+    }
+
+    long checksum(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER];
+        int n;
+        while ((n = read(in, buffer)) > 0) {
+            crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    // Reads for the pool tasks, which give up once the archive is aborted
+    int read(InputStream in, byte[] buffer) throws IOException {
+        if (aborted) {
+            throw new IOException("Archive aborted");
+        }
+        return in.read(buffer);
+    }
+
+    void copy(File f, long len) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[BUFFER];
+            long left = len;
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+                if (n <= 0) {
+                    throw new IOException(f + " changed while it was being archived");
+                }
+                write(buffer, 0, n);
+                left -= n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    void copyPrevious(OldEntry old) throws IOException {
+        byte[] header = new byte[30];
+        previous.seek(old.offset);
+        previous.readFully(header);
+        long start = old.offset + 30 + getShort(header, 26) + getShort(header, 28);
+        previous.seek(start);
+
+        byte[] buffer = new byte[BUFFER];
+        long left = old.csize;
+        while (left > 0) {
+            int n = previous.read(buffer, 0, (int)Math.min(buffer.length, left));
+            if (n <= 0) {
+                throw new IOException("Previous archive is truncated");
+            }
+            write(buffer, 0, n);
+            left -= n;
+        }
+    }
+
+    // The central directory of an existing archive, by entry name
+    static HashMap<String, OldEntry> readDirectory(RandomAccessFile f) throws IOException {
+        HashMap<String, OldEntry> out = new HashMap<String, OldEntry>();
+        long len = f.length();
+        int tail = (int)Math.min(len, 65535 + 22);
+        byte[] end = new byte[tail];
+        f.seek(len - tail);
+        f.readFully(end);
+
+        int eocd = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (getInt(end, i) == 0x06054b50L) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return out;
+        }
+
+        int count = getShort(end, eocd + 10);
+        long cdSize = getInt(end, eocd + 12);
+        long cdStart = getInt(end, eocd + 16);
+        byte[] cd = new byte[(int)cdSize];
+        f.seek(cdStart);
+        f.readFully(cd);
+
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (getInt(cd, pos) != 0x02014b50L) {
+                break;
+            }
+            OldEntry e = new OldEntry();
+            e.method = getShort(cd, pos + 10);
+            e.time = getInt(cd, pos + 12);
+            e.crc = getInt(cd, pos + 16);
+            e.csize = getInt(cd, pos + 20);
+            e.size = getInt(cd, pos + 24);
+            int nameLen = getShort(cd, pos + 28);
+            int extraLen = getShort(cd, pos + 30);
+            int commentLen = getShort(cd, pos + 32);
+            e.offset = getInt(cd, pos + 42);
+            String name = new String(cd, pos + 46, nameLen, "UTF-8");
+            if (e.method == ZipEntry.STORED || e.method == ZipEntry.DEFLATED) {
+                out.put(name, e);
+            }
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+        return out;
+    }
+
+    static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return "";
+        }
+        return name.substring(dot + 1).toLowerCase();
+    }
+
+    static long dosTime(long t) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(t);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long)(year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) | (c.get(Calendar.DAY_OF_MONTH) << 16)
+            | (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    static int getShort(byte[] b, int off) {
+        return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+    }
+
+    static long getInt(byte[] b, int off) {
+        return (getShort(b, off) | ((long)getShort(b, off + 2) << 16)) & 0xFFFFFFFFL;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >> 8) & 0xFF);
+        written += 2;
+    }
+
+    void writeInt(long v) throws IOException {
+        writeShort((int)(v & 0xFFFF));
+        writeShort((int)((v >> 16) & 0xFFFF));
+    }
+}
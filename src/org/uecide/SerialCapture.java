@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/* Streams raw bytes received from a port to disk.
+ *
+ * The data file holds the bytes exactly as they were received. Alongside
+ * it an index file (the same name with ".idx" appended) holds a small
+ * header followed by fixed size records pairing the time since the start
+ * of the capture with the data offset received at that time, so a reader
+ * can find any time offset with a binary search.
+ *
+ * Incoming data is copied into one of a small pool of large direct
+ * buffers; full buffers are written out by a background thread so the
+ * port's event thread never waits on the disk.
+ *
+ * Writers are serialised on writeLock, which is held while waiting for a
+ * free buffer. The shared buffer state is guarded by the object's own
+ * monitor, which is never held while waiting, so the writer thread can
+ * always take it to flush.
+ */
+
+public class SerialCapture implements Runnable {
+    public static final int INDEX_MAGIC = 0x55434150; // "UCAP"
+    public static final int INDEX_VERSION = 1;
+    public static final int INDEX_HEADER_SIZE = 24;
+    public static final int INDEX_RECORD_SIZE = 16;
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+    static final int BUFFER_COUNT = 4;
+    static final long FLUSH_INTERVAL = 1000; // ms
+
+    File dataFile;
+    File indexFile;
+    FileChannel dataChannel;
+    FileChannel indexChannel;
+
+    LinkedBlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+    LinkedBlockingQueue<ByteBuffer> fullBuffers = new LinkedBlockingQueue<ByteBuffer>();
+    ByteBuffer activeBuffer;
+    ByteBuffer indexBuffer;
+
+    long startNanos;
+    long lastIndexNanos = -1;
+    long indexInterval = 20000000L; // 20ms
+    long bytesCaptured = 0;
+    long lastFlush;
+
+    Thread writerThread;
+    volatile boolean running = true;
+    volatile IOException writeError = null;
+
+    final Object writeLock = new Object();
+
+    public SerialCapture(File file, int baud) throws IOException {
+        dataFile = file;
+        indexFile = getIndexFile(file);
+
+        dataChannel = new FileOutputStream(dataFile).getChannel();
+        indexChannel = new FileOutputStream(indexFile).getChannel();
+
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        activeBuffer = freeBuffers.poll();
+        indexBuffer = ByteBuffer.allocateDirect(INDEX_RECORD_SIZE * 4096);
+
+        startNanos = System.nanoTime();
+        lastFlush = System.currentTimeMillis();
+
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        header.putInt(INDEX_MAGIC);
+        header.putInt(INDEX_VERSION);
+        header.putLong(System.currentTimeMillis());
+        header.putInt(baud);
+        header.putInt(0);
+        header.flip();
+        while (header.hasRemaining()) {
+            indexChannel.write(header);
+        }
+
+        writerThread = new Thread(this, "Serial capture " + dataFile.getName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    public File getFile() {
+        return dataFile;
+    }
+
+    public long getBytesCaptured() {
+        return bytesCaptured;
+    }
+
+    // Set the minimum time between index records. Shorter intervals give
+    // finer grained seeking and replay at the cost of a larger index.
+    public void setIndexInterval(long ms) {
+        indexInterval = ms * 1000000L;
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            if (writeError != null) {
+                throw writeError;
+            }
+            if (!running) {
+                return;
+            }
+
+            synchronized (this) {
+                long now = System.nanoTime() - startNanos;
+                if (lastIndexNanos < 0 || (now - lastIndexNanos) >= indexInterval) {
+                    if (!indexBuffer.hasRemaining()) {
+                        writeIndex();
+                    }
+                    indexBuffer.putLong(now);
+                    indexBuffer.putLong(bytesCaptured);
+                    lastIndexNanos = now;
+                }
+            }
+
+            while (length > 0) {
+                boolean full;
+                synchronized (this) {
+                    int chunk = Math.min(length, activeBuffer.remaining());
+                    activeBuffer.put(data, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                    bytesCaptured += chunk;
+                    full = !activeBuffer.hasRemaining();
+                    if (full) {
+                        fullBuffers.add(activeBuffer);
+                        activeBuffer = freeBuffers.poll();
+                        full = activeBuffer == null;
+                    }
+                }
+                if (full) {
+                    // Wait outside the monitor for the writer to free one
+                    ByteBuffer next = takeFreeBuffer();
+                    synchronized (this) {
+                        activeBuffer = next;
+                    }
+                }
+            }
+        }
+    }
+
+    ByteBuffer takeFreeBuffer() throws IOException {
+        try {
+            while (true) {
+                ByteBuffer b = freeBuffers.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (b != null) {
+                    return b;
+                }
+                if (writeError != null) {
+                    throw writeError;
+                }
+                if (!writerThread.isAlive()) {
+                    throw new IOException("Capture writer has stopped");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for capture buffer");
+        }
+    }
+
+    synchronized void writeIndex() throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            indexChannel.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    // Pass any partially filled buffer to the writer so that no more than
+    // FLUSH_INTERVAL worth of data is ever held only in memory.
+    synchronized void flushPending() throws IOException {
+        // A null buffer means write() is waiting for one to come free
+        if (activeBuffer != null && activeBuffer.position() > 0) {
+            // Never wait for a free buffer here: only the writer thread
+            // can free one. If none is available the writer is busy anyway.
+            ByteBuffer next = freeBuffers.poll();
+            if (next != null) {
+                fullBuffers.add(activeBuffer);
+                activeBuffer = next;
+            }
+        }
+        writeIndex();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    public void run() {
+        try {
+            while (running || !fullBuffers.isEmpty()) {
+                ByteBuffer buffer = fullBuffers.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (buffer != null && buffer.capacity() > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        dataChannel.write(buffer);
+                    }
+                    buffer.clear();
+                    freeBuffers.add(buffer);
+                }
+                if (running && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                    flushPending();
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            writeError = e;
+            Base.error(e);
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (!running) {
+                    return;
+                }
+                if (activeBuffer.position() > 0) {
+                    fullBuffers.add(activeBuffer);
+                }
+                activeBuffer = null;
+                try {
+                    writeIndex();
+                } finally {
+                    running = false;
+                    // Wake the writer thread in case it is idle
+                    fullBuffers.add(ByteBuffer.allocate(0));
+                }
+            }
+        }
+
+        // Bounded, in case the writer is stuck on a dead disk
+        try {
+            writerThread.join(30000);
+        } catch (InterruptedException e) {
+        }
+        if (writerThread.isAlive() && writeError == null) {
+            writeError = new IOException("Timed out writing " + dataFile);
+        }
+        try {
+            dataChannel.force(true);
+            indexChannel.force(true);
+        } finally {
+            dataChannel.close();
+            indexChannel.close();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+}
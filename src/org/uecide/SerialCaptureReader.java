@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/* Reads back a capture written by SerialCapture.
+ *
+ * The index file is memory mapped and searched with a binary search, so
+ * seeking to any point in an arbitrarily long capture costs a handful of
+ * page reads rather than a scan of the data.
+ */
+
+public class SerialCaptureReader {
+    File dataFile;
+    FileChannel dataChannel;
+    MappedByteBuffer index;
+    int records;
+    long startTime;
+    int baudRate;
+    long dataSize;
+
+    public SerialCaptureReader(File file) throws IOException {
+        dataFile = file;
+        File indexFile = SerialCapture.getIndexFile(file);
+
+        RandomAccessFile idx = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel indexChannel = idx.getChannel();
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        } finally {
+            idx.close();
+        }
+
+        if (index.capacity() < SerialCapture.INDEX_HEADER_SIZE || index.getInt(0) != SerialCapture.INDEX_MAGIC) {
+            throw new IOException(indexFile.getName() + " is not a capture index");
+        }
+        if (index.getInt(4) != SerialCapture.INDEX_VERSION) {
+            throw new IOException(indexFile.getName() + " has an unsupported version");
+        }
+        startTime = index.getLong(8);
+        baudRate = index.getInt(16);
+        records = (index.capacity() - SerialCapture.INDEX_HEADER_SIZE) / SerialCapture.INDEX_RECORD_SIZE;
+
+        dataChannel = new RandomAccessFile(dataFile, "r").getChannel();
+        dataSize = dataChannel.size();
+    }
+
+    public File getFile() {
+        return dataFile;
+    }
+
+    // Wall clock time (ms) the capture was started
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public long getSize() {
+        return dataSize;
+    }
+
+    public int getRecordCount() {
+        return records;
+    }
+
+    // Time of an index record in nanoseconds from the start of the capture
+    public long getRecordTime(int record) {
+        return index.getLong(SerialCapture.INDEX_HEADER_SIZE + record * SerialCapture.INDEX_RECORD_SIZE);
+    }
+
+    // Data offset of an index record. A capture that was not closed cleanly
+    // may have index records pointing past the end of the data, so these
+    // are clamped to the data actually present.
+    public long getRecordOffset(int record) {
+        if (record >= records) {
+            return dataSize;
+        }
+        long offset = index.getLong(SerialCapture.INDEX_HEADER_SIZE + record * SerialCapture.INDEX_RECORD_SIZE + 8);
+        return Math.min(offset, dataSize);
+    }
+
+    // Length of the capture in nanoseconds
+    public long getDuration() {
+        if (records == 0) {
+            return 0;
+        }
+        return getRecordTime(records - 1);
+    }
+
+    // Find the last index record at or before the given time
+    public int findRecord(long nanos) {
+        int low = 0;
+        int high = records - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getRecordTime(mid) <= nanos) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public long offsetAt(long nanos) {
+        if (records == 0) {
+            return 0;
+        }
+        return getRecordOffset(findRecord(nanos));
+    }
+
+    public int read(long position, ByteBuffer dst) throws IOException {
+        return dataChannel.read(dst, position);
+    }
+
+    public void close() throws IOException {
+        dataChannel.close();
+    }
+
+    /* Replays a capture into a listener in a background thread. A speed of
+     * 1.0 replays in real time, larger values faster; a speed of 0 delivers
+     * the data as fast as the listener can take it.
+     */
+    public Replay replay(long fromNanos, double speed, CommsListener listener) {
+        Replay r = new Replay(fromNanos, speed, listener);
+        Thread t = new Thread(r, "Capture replay " + dataFile.getName());
+        t.setDaemon(true);
+        t.start();
+        return r;
+    }
+
+    public class Replay implements Runnable {
+        long from;
+        double speed;
+        CommsListener listener;
+        volatile boolean running = true;
+
+        Replay(long f, double s, CommsListener l) {
+            from = f;
+            speed = s;
+            listener = l;
+        }
+
+        public void stop() {
+            running = false;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(SerialCapture.BUFFER_SIZE);
+            try {
+                int record = findRecord(from);
+                long baseTime = records > 0 ? getRecordTime(record) : 0;
+                long started = System.nanoTime();
+
+                while (running && record < records) {
+                    if (speed > 0) {
+                        long due = started + (long)((getRecordTime(record) - baseTime) / speed);
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                        }
+                    }
+
+                    long start = getRecordOffset(record);
+                    long end = getRecordOffset(record + 1);
+                    while (running && start < end) {
+                        buffer.clear();
+                        buffer.limit((int)Math.min(buffer.capacity(), end - start));
+                        int got = read(start, buffer);
+                        if (got <= 0) {
+                            break;
+                        }
+                        buffer.flip();
+                        byte[] data = new byte[got];
+                        buffer.get(data);
+                        listener.commsDataReceived(data);
+                        start += got;
+                    }
+                    record++;
+                }
+            } catch (InterruptedException e) {
+            } catch (IOException e) {
+                // Stopping a replay may close the capture under us
+                if (running) {
+                    Base.error(e);
+                }
+            }
+            running = false;
+        }
+    }
+}
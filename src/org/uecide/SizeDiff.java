@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import org.json.simple.*;
+
+/* The difference between two SizeReports, by library, by object file and
+ * by symbol. Only things that changed are listed, largest change first.
+ *
+ * A symbol is matched between the builds by its name, object and library,
+ * so moving a function to another file shows as one removed and one added.
+ */
+
+public class SizeDiff {
+    public static class Change {
+        public String name;
+        public String object;
+        public String library;
+        public long oldFlash;
+        public long newFlash;
+        public long oldRam;
+        public long newRam;
+
+        public long getFlashDelta() { return newFlash - oldFlash; }
+        public long getRamDelta() { return newRam - oldRam; }
+
+        public String getStatus() {
+            if (oldFlash == 0 && oldRam == 0) {
+                return "added";
+            }
+            if (newFlash == 0 && newRam == 0) {
+                return "removed";
+            }
+            return "changed";
+        }
+
+        long weight() {
+            return Math.abs(getFlashDelta()) + Math.abs(getRamDelta());
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJSON() {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            if (object != null) {
+                o.put("object", object);
+            }
+            if (library != null) {
+                o.put("library", library);
+            }
+            o.put("status", getStatus());
+            o.put("flash.old", oldFlash);
+            o.put("flash.new", newFlash);
+            o.put("flash.delta", getFlashDelta());
+            o.put("ram.old", oldRam);
+            o.put("ram.new", newRam);
+            o.put("ram.delta", getRamDelta());
+            return o;
+        }
+    }
+
+    static final Comparator<Change> LARGEST_FIRST = new Comparator<Change>() {
+        public int compare(Change a, Change b) {
+            long wa = a.weight();
+            long wb = b.weight();
+            if (wa != wb) {
+                return wa > wb ? -1 : 1;
+            }
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    SizeReport from;
+    SizeReport to;
+    ArrayList<Change> libraries;
+    ArrayList<Change> objects;
+    ArrayList<Change> symbols;
+
+    public SizeDiff(SizeReport a, SizeReport b) {
+        from = a;
+        to = b;
+        libraries = compareTotals(a.getLibraries(), b.getLibraries());
+        objects = compareTotals(a.getObjects(), b.getObjects());
+        symbols = compareSymbols(a.getSymbols(), b.getSymbols());
+    }
+
+    static ArrayList<Change> compareTotals(Map<String, long[]> a, Map<String, long[]> b) {
+        ArrayList<Change> out = new ArrayList<Change>();
+        TreeSet<String> keys = new TreeSet<String>(a.keySet());
+        keys.addAll(b.keySet());
+        for (String k : keys) {
+            long[] o = a.get(k);
+            long[] n = b.get(k);
+            Change c = new Change();
+            c.name = k;
+            if (o != null) {
+                c.oldFlash = o[0];
+                c.oldRam = o[1];
+            }
+            if (n != null) {
+                c.newFlash = n[0];
+                c.newRam = n[1];
+            }
+            if (c.weight() != 0) {
+                out.add(c);
+            }
+        }
+        Collections.sort(out, LARGEST_FIRST);
+        return out;
+    }
+
+    static ArrayList<Change> compareSymbols(Map<String, SizeReport.Entry> a, Map<String, SizeReport.Entry> b) {
+        ArrayList<Change> out = new ArrayList<Change>();
+        HashSet<String> keys = new HashSet<String>(a.keySet());
+        keys.addAll(b.keySet());
+        for (String k : keys) {
+            SizeReport.Entry o = a.get(k);
+            SizeReport.Entry n = b.get(k);
+            SizeReport.Entry e = n != null ? n : o;
+            Change c = new Change();
+            c.name = e.name;
+            c.object = e.object;
+            c.library = e.library;
+            if (o != null) {
+                c.oldFlash = o.flash;
+                c.oldRam = o.ram;
+            }
+            if (n != null) {
+                c.newFlash = n.flash;
+                c.newRam = n.ram;
+            }
+            if (c.weight() != 0) {
+                out.add(c);
+            }
+        }
+        Collections.sort(out, LARGEST_FIRST);
+        return out;
+    }
+
+    public SizeReport getFrom() { return from; }
+    public SizeReport getTo() { return to; }
+    public long getFlashDelta() { return to.getFlash() - from.getFlash(); }
+    public long getRamDelta() { return to.getRam() - from.getRam(); }
+    public ArrayList<Change> getLibraries() { return libraries; }
+    public ArrayList<Change> getObjects() { return objects; }
+    public ArrayList<Change> getSymbols() { return symbols; }
+
+    public boolean isEmpty() {
+        return getFlashDelta() == 0 && getRamDelta() == 0 && symbols.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("from", summary(from));
+        o.put("to", summary(to));
+        o.put("flash.delta", getFlashDelta());
+        o.put("ram.delta", getRamDelta());
+        o.put("libraries", list(libraries));
+        o.put("objects", list(objects));
+        o.put("symbols", list(symbols));
+        return o;
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONObject summary(SizeReport r) {
+        JSONObject o = new JSONObject();
+        o.put("sketch", r.getSketch());
+        o.put("board", r.getBoard());
+        o.put("time", r.getTime());
+        o.put("text", r.getText());
+        o.put("data", r.getData());
+        o.put("bss", r.getBss());
+        o.put("flash", r.getFlash());
+        o.put("ram", r.getRam());
+        return o;
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONArray list(ArrayList<Change> changes) {
+        JSONArray a = new JSONArray();
+        for (Change c : changes) {
+            a.add(c.toJSON());
+        }
+        return a;
+    }
+
+    public void save(File f) throws IOException {
+        SizeReport.writeJSON(toJSON(), f);
+    }
+
+    // A signed byte count for reports: +12, -4, 0
+    public static String signed(long v) {
+        return v > 0 ? "+" + v : Long.toString(v);
+    }
+}
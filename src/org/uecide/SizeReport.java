@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.regex.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/* Where the flash and RAM of a build went.
+ *
+ * Every sized symbol in the linked ELF file is charged to the section it
+ * lives in: flash for read-only sections, RAM for ones that take no space
+ * in the file (.bss), and both for initialised data, which is stored in
+ * flash and copied to RAM at startup. This is the same split compileSize
+ * reports, so the entries always add up to the totals shown there.
+ *
+ * Each symbol is then traced back to the object file and library it came
+ * from using the symbol tables of the sketch's own objects and of the
+ * core and library archives that were linked. Global symbols are matched
+ * by name; local ones by the STT_FILE symbol that precedes them in the
+ * linked file. Anything the linker pulled in from elsewhere (libc, libgcc)
+ * is put down to (toolchain), and space in a section that no symbol covers
+ * (alignment padding, unnamed tables) to (unattributed).
+ *
+ * Reports are saved as JSON in a history folder per sketch and target
+ * (board, core, compiler and options) so that any two builds can be
+ * compared with SizeDiff.
+ */
+
+public class SizeReport {
+    public static final String SKETCH = "(sketch)";
+    public static final String TOOLCHAIN = "(toolchain)";
+    public static final String UNATTRIBUTED = "(unattributed)";
+
+    public static class Entry {
+        public String name;
+        public String section;
+        public String object;
+        public String library;
+        public long flash;
+        public long ram;
+
+        // Identifies the same symbol in another build
+        public String getKey() {
+            return library + "\u0000" + object + "\u0000" + name;
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJSON() {
+            JSONObject o = new JSONObject();
+            o.put("name", name);
+            o.put("section", section);
+            o.put("object", object);
+            o.put("library", library);
+            o.put("flash", flash);
+            o.put("ram", ram);
+            return o;
+        }
+    }
+
+    // Where a symbol was defined
+    static class Owner {
+        String object;
+        String library;
+
+        Owner(String o, String l) {
+            object = o;
+            library = l;
+        }
+    }
+
+    String sketch = "";
+    String board = "";
+    String core = "";
+    String compiler = "";
+    long time = 0;
+    long text = 0;
+    long data = 0;
+    long bss = 0;
+    ArrayList<Entry> entries = new ArrayList<Entry>();
+
+    HashMap<String, Owner> globals = new HashMap<String, Owner>();
+    HashMap<String, Owner> files = new HashMap<String, Owner>();
+    HashSet<String> weak = new HashSet<String>();
+
+    public SizeReport() {
+        time = System.currentTimeMillis();
+    }
+
+    /* Analyse a linked ELF file. The objects are the sketch's own object
+     * files; the archives map a library name to the archive it was linked
+     * from. Sections named in ignore aren't counted. */
+    public static SizeReport analyse(File elf, Collection<File> objects, Map<String, File> archives, Collection<String> ignore) throws IOException {
+        SizeReport r = new SizeReport();
+
+        if (objects != null) {
+            for (File f : objects) {
+                if (!ElfFile.isElf(f)) {
+                    continue;
+                }
+                ElfFile ef = new ElfFile(f);
+                try {
+                    r.addOwners(ef, new Owner(f.getName(), SKETCH));
+                } finally {
+                    ef.close();
+                }
+            }
+        }
+
+        if (archives != null) {
+            for (Map.Entry<String, File> a : archives.entrySet()) {
+                if (a.getValue().isFile()) {
+                    r.addArchive(a.getKey(), a.getValue());
+                }
+            }
+        }
+
+        ElfFile ef = new ElfFile(elf);
+        try {
+            r.attribute(ef, ignore);
+        } finally {
+            ef.close();
+        }
+
+        r.globals = null;
+        r.files = null;
+        r.weak = null;
+        return r;
+    }
+
+    void addOwners(ElfFile ef, Owner owner) {
+        for (ElfFile.Symbol s : ef.getSymbols()) {
+            int type = s.getType();
+            if (type == ElfFile.STT_FILE) {
+                String n = baseName(s.getName());
+                if (!files.containsKey(n)) {
+                    files.put(n, owner);
+                }
+                continue;
+            }
+            if (s.shndx == ElfFile.SHN_UNDEF || s.getBinding() == ElfFile.STB_LOCAL) {
+                continue;
+            }
+            if (type != ElfFile.STT_FUNC && type != ElfFile.STT_OBJECT && type != ElfFile.STT_NOTYPE) {
+                continue;
+            }
+            String n = s.getName();
+            // A strong definition beats a weak one wherever it was found,
+            // otherwise the first one wins as it does for the linker.
+            Owner prev = globals.get(n);
+            if (prev == null || (s.getBinding() == ElfFile.STB_GLOBAL && weak.contains(n))) {
+                globals.put(n, owner);
+                if (s.getBinding() == ElfFile.STB_WEAK) {
+                    weak.add(n);
+                } else {
+                    weak.remove(n);
+                }
+            }
+        }
+    }
+
+    // Read every ELF member of a Unix ar archive, GNU or BSD flavour
+    void addArchive(String library, File archive) throws IOException {
+        byte[] raw = Base.loadBytesRaw(archive);
+        if (raw == null) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+
+        if (raw.length < 8 || !new String(raw, 0, 8, "ISO-8859-1").equals("!<arch>\n")) {
+            Debug.message(archive.getName() + " is not an archive");
+            return;
+        }
+
+        String longNames = null;
+        int pos = 8;
+        while (pos + 60 <= raw.length) {
+            String name = new String(raw, pos, 16, "ISO-8859-1").trim();
+            long size;
+            try {
+                size = Long.parseLong(new String(raw, pos + 48, 10, "ISO-8859-1").trim());
+            } catch (NumberFormatException e) {
+                Debug.message(archive.getName() + ": bad member header at " + pos);
+                return;
+            }
+            int start = pos + 60;
+            int end = (int)Math.min(raw.length, start + size);
+            pos = end + (end & 1);
+
+            if (name.equals("//")) {
+                longNames = new String(raw, start, end - start, "ISO-8859-1");
+                continue;
+            }
+            if (name.equals("/") || name.startsWith("__.SYMDEF") || name.equals("/SYM64/")) {
+                continue;
+            }
+            if (name.startsWith("#1/")) {
+                // BSD: the name follows the header and counts towards the size
+                int len = Integer.parseInt(name.substring(3));
+                name = new String(raw, start, Math.min(len, end - start), "ISO-8859-1").trim();
+                int nul = name.indexOf(0);
+                if (nul >= 0) {
+                    name = name.substring(0, nul);
+                }
+                start += len;
+            } else if (name.startsWith("/") && longNames != null) {
+                int off = Integer.parseInt(name.substring(1));
+                int e = longNames.indexOf('\n', off);
+                name = longNames.substring(off, e < 0 ? longNames.length() : e);
+            }
+            if (name.endsWith("/")) {
+                name = name.substring(0, name.length() - 1);
+            }
+
+            if (end - start < 52 || buf.getInt(start) != 0x7F454C46) {
+                continue;
+            }
+            buf.position(start);
+            buf.limit(end);
+            try {
+                ElfFile ef = new ElfFile(name, buf);
+                try {
+                    addOwners(ef, new Owner(name, library));
+                } finally {
+                    ef.close();
+                }
+            } catch (Exception e) {
+                Debug.message(archive.getName() + "(" + name + "): " + e.getMessage());
+            }
+            buf.clear();
+        }
+    }
+
+    void attribute(ElfFile ef, Collection<String> ignore) {
+        long[] sizes = ef.getSizes(ignore);
+        text = sizes[0];
+        data = sizes[1];
+        bss = sizes[2];
+
+        ElfFile.Section[] sections = ef.getSections();
+        long[] covered = new long[sections.length];
+        HashSet<String> seen = new HashSet<String>();
+        String currentFile = null;
+
+        for (ElfFile.Symbol s : ef.getSymbols()) {
+            int type = s.getType();
+            if (type == ElfFile.STT_FILE) {
+                currentFile = baseName(s.getName());
+                continue;
+            }
+            if (s.size == 0 || s.shndx == ElfFile.SHN_UNDEF || s.shndx >= ElfFile.SHN_LORESERVE) {
+                continue;
+            }
+            if (type != ElfFile.STT_FUNC && type != ElfFile.STT_OBJECT && type != ElfFile.STT_NOTYPE) {
+                continue;
+            }
+            ElfFile.Section sec = s.getSection();
+            if (sec == null || !sec.isAlloc() || !counts(sec, ignore)) {
+                continue;
+            }
+            // Aliases (weak and strong names for one function, C++
+            // constructor variants) share their storage.
+            if (!seen.add(s.shndx + ":" + s.value + ":" + s.size)) {
+                continue;
+            }
+
+            Owner owner;
+            if (s.getBinding() == ElfFile.STB_LOCAL) {
+                owner = currentFile == null ? null : files.get(currentFile);
+                if (owner == null) {
+                    owner = new Owner(currentFile == null ? "" : currentFile, TOOLCHAIN);
+                }
+            } else {
+                owner = globals.get(s.getName());
+                if (owner == null) {
+                    owner = new Owner("", TOOLCHAIN);
+                }
+            }
+
+            add(s.getName(), sec, owner.object, owner.library, s.size);
+            covered[s.shndx] += s.size;
+        }
+
+        for (ElfFile.Section sec : sections) {
+            if (!sec.isAlloc() || !counts(sec, ignore)) {
+                continue;
+            }
+            long rest = sec.size - covered[sec.getIndex()];
+            if (rest > 0) {
+                add(sec.getName(), sec, "", UNATTRIBUTED, rest);
+            }
+        }
+    }
+
+    boolean counts(ElfFile.Section sec, Collection<String> ignore) {
+        return sec.size > 0 && (ignore == null || !ignore.contains(sec.getName()));
+    }
+
+    void add(String name, ElfFile.Section sec, String object, String library, long size) {
+        Entry e = new Entry();
+        e.name = name;
+        e.section = sec.getName();
+        e.object = object;
+        e.library = library;
+        if (sec.isNoBits()) {
+            e.ram = size;
+        } else if (sec.isWritable()) {
+            e.flash = size;
+            e.ram = size;
+        } else {
+            e.flash = size;
+        }
+        entries.add(e);
+    }
+
+    static String baseName(String path) {
+        int i = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return i < 0 ? path : path.substring(i + 1);
+    }
+
+    public void setBuild(String sketchName, String boardName, String coreName, String compilerName) {
+        sketch = sketchName == null ? "" : sketchName;
+        board = boardName == null ? "" : boardName;
+        core = coreName == null ? "" : coreName;
+        compiler = compilerName == null ? "" : compilerName;
+    }
+
+    public String getSketch() { return sketch; }
+    public String getBoard() { return board; }
+    public String getCore() { return core; }
+    public String getCompiler() { return compiler; }
+    public long getTime() { return time; }
+    public long getText() { return text; }
+    public long getData() { return data; }
+    public long getBss() { return bss; }
+    public long getFlash() { return text + data; }
+    public long getRam() { return data + bss; }
+    public ArrayList<Entry> getEntries() { return entries; }
+
+    // Totals { flash, ram } per library
+    public TreeMap<String, long[]> getLibraries() {
+        TreeMap<String, long[]> out = new TreeMap<String, long[]>();
+        for (Entry e : entries) {
+            total(out, e.library, e);
+        }
+        return out;
+    }
+
+    // Totals { flash, ram } per object, keyed library/object
+    public TreeMap<String, long[]> getObjects() {
+        TreeMap<String, long[]> out = new TreeMap<String, long[]>();
+        for (Entry e : entries) {
+            total(out, e.object.equals("") ? e.library : e.library + "/" + e.object, e);
+        }
+        return out;
+    }
+
+    // Totals { flash, ram } per symbol
+    public HashMap<String, Entry> getSymbols() {
+        HashMap<String, Entry> out = new HashMap<String, Entry>();
+        for (Entry e : entries) {
+            Entry t = out.get(e.getKey());
+            if (t == null) {
+                t = new Entry();
+                t.name = e.name;
+                t.section = e.section;
+                t.object = e.object;
+                t.library = e.library;
+                out.put(e.getKey(), t);
+            }
+            t.flash += e.flash;
+            t.ram += e.ram;
+        }
+        return out;
+    }
+
+    static void total(Map<String, long[]> map, String key, Entry e) {
+        long[] t = map.get(key);
+        if (t == null) {
+            t = new long[2];
+            map.put(key, t);
+        }
+        t[0] += e.flash;
+        t[1] += e.ram;
+    }
+
+    @SuppressWarnings("unchecked")
+    public JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("sketch", sketch);
+        o.put("board", board);
+        o.put("core", core);
+        o.put("compiler", compiler);
+        o.put("time", time);
+        o.put("text", text);
+        o.put("data", data);
+        o.put("bss", bss);
+        o.put("flash", getFlash());
+        o.put("ram", getRam());
+        JSONArray list = new JSONArray();
+        for (Entry e : entries) {
+            list.add(e.toJSON());
+        }
+        o.put("symbols", list);
+        return o;
+    }
+
+    public static SizeReport fromJSON(JSONObject o) {
+        SizeReport r = new SizeReport();
+        r.sketch = string(o, "sketch");
+        r.board = string(o, "board");
+        r.core = string(o, "core");
+        r.compiler = string(o, "compiler");
+        r.time = number(o, "time");
+        r.text = number(o, "text");
+        r.data = number(o, "data");
+        r.bss = number(o, "bss");
+        Object list = o.get("symbols");
+        if (list instanceof JSONArray) {
+            for (Object i : (JSONArray)list) {
+                if (!(i instanceof JSONObject)) {
+                    continue;
+                }
+                JSONObject so = (JSONObject)i;
+                Entry e = new Entry();
+                e.name = string(so, "name");
+                e.section = string(so, "section");
+                e.object = string(so, "object");
+                e.library = string(so, "library");
+                e.flash = number(so, "flash");
+                e.ram = number(so, "ram");
+                r.entries.add(e);
+            }
+        }
+        return r;
+    }
+
+    static String string(JSONObject o, String key) {
+        Object v = o.get(key);
+        return v == null ? "" : v.toString();
+    }
+
+    static long number(JSONObject o, String key) {
+        Object v = o.get(key);
+        return v instanceof Number ? ((Number)v).longValue() : 0;
+    }
+
+    public void save(File f) throws IOException {
+        writeJSON(toJSON(), f);
+    }
+
+    public static SizeReport load(File f) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+        try {
+            Object o = new JSONParser().parse(in);
+            if (!(o instanceof JSONObject)) {
+                throw new IOException(f.getName() + " is not a size report");
+            }
+            return fromJSON((JSONObject)o);
+        } catch (ParseException e) {
+            throw new IOException(f.getName() + ": " + e.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeJSON(JSONObject o, File f) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            o.writeJSONString(out);
+            out.write("\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /* History. Each sketch gets a folder of reports for every board, core,
+     * compiler and set of option overrides it is built with, so the
+     * "previous build" is always one for the same target. The folder name includes a hash of the sketch's
+     * path and the target so two sketches with the same name don't share
+     * one. Reports are named by build time plus a sequence number to keep
+     * builds in the same millisecond apart. */
+
+    static final Pattern historyName = Pattern.compile("(\\d+)(?:-(\\d+))?\\.json");
+
+    public static File getHistoryFolder(String sketchName, File sketchFolder, String board, String core, String compiler, String options) {
+        String key = sketchFolder.getAbsolutePath() + "\u0000" + board + "\u0000" + core + "\u0000" + compiler + "\u0000" + options;
+        String hash = Integer.toHexString(key.hashCode());
+        return new File(Base.getDataFolder("sizes"), sketchName + "-" + hash);
+    }
+
+    // The saved reports, oldest first
+    public static File[] getHistory(File folder) {
+        File[] list = folder.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isFile() && historyName.matcher(f.getName()).matches();
+            }
+        });
+        if (list == null) {
+            return new File[0];
+        }
+        Arrays.sort(list, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long[] ka = historyKey(a);
+                long[] kb = historyKey(b);
+                if (ka[0] != kb[0]) {
+                    return ka[0] < kb[0] ? -1 : 1;
+                }
+                return ka[1] < kb[1] ? -1 : ka[1] > kb[1] ? 1 : 0;
+            }
+        });
+        return list;
+    }
+
+    // { time, sequence } from a history file name
+    static long[] historyKey(File f) {
+        Matcher m = historyName.matcher(f.getName());
+        if (!m.matches()) {
+            return new long[] { 0, 0 };
+        }
+        return new long[] { Long.parseLong(m.group(1)), m.group(2) == null ? 0 : Long.parseLong(m.group(2)) };
+    }
+
+    // Save this report into the history, keeping at most keep of them
+    public File record(File folder, int keep) throws IOException {
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        // createNewFile() is atomic, so concurrent builds each get their own
+        int seq = 0;
+        File f = new File(folder, time + "-" + seq + ".json");
+        while (!f.createNewFile()) {
+            seq++;
+            f = new File(folder, time + "-" + seq + ".json");
+        }
+        save(f);
+        File[] all = getHistory(folder);
+        for (int i = 0; i < all.length - keep; i++) {
+            all[i].delete();
+        }
+        return f;
+    }
+}
@@ -57,6 +57,7 @@ import javax.swing.border.TitledBorder;
 import org.uecide.Compiler;
 
 import javax.script.*;
+import org.json.simple.JSONObject;
 
 /**
  * The sketch class is the heart of the IDE.  It manages not only what files a
@@ -119,7 +120,35 @@ public class Sketch {
 
     HashMap<File, HashMap<Integer, String>>lineComments = new HashMap<File, HashMap<Integer, String>>();
 
+    DiagnosticsEngine diagnostics = null;
+    ArrayList<File> linkedObjects = null;
+    SymbolIndex symbolIndex = new SymbolIndex();
+
+    DataStreamParser diagnosticParser = new DataStreamParser() {
+        public String parseStreamMessage(Context ctx, String m) {
+            if (parseLineForWarningMessage(ctx, m)) {
+                return "";
+            }
+            return m;
+        }
+        public String parseStreamError(Context ctx, String m) {
+            if (parseLineForDiagnostic(ctx, m)) {
+                return "";
+            }
+            if (getDiagnosticsEngine().attachNote(m) < 0) {
+                // Note belonging to a repeated diagnostic
+                return "";
+            }
+            return m;
+        }
+    };
+
     HashMap<String, Integer>keywords = new HashMap<String, Integer>();
+    KeywordTable keywordTable = KeywordTable.EMPTY;
+
+    // The keywords files last merged, with their dates, and what they gave
+    String keywordSources = null;
+    HashMap<String, Integer> keywordBase = new HashMap<String, Integer>();
 
     public void setLineComment(File file, int line, String comment) {
         HashMap<Integer, String> comments = lineComments.get(file);
@@ -872,23 +901,40 @@ public class Sketch {
 
     TreeMap<File, String> cleanedFiles;
 
+    // The last parse of each file, reused for as long as its text stays
+    // the same. The function list, library scan and compile all share it.
+    HashMap<File, SourceLexer> lexedFiles = new HashMap<File, SourceLexer>();
+
+    public SourceLexer getLexedFile(File f) {
+        String data = getFileContent(f);
+        synchronized(lexedFiles) {
+            SourceLexer lex = lexedFiles.get(f);
+            if(lex != null && lex.getSource().equals(data)) {
+                return lex;
+            }
+        }
+        SourceLexer lex = SourceLexer.parse(data);
+        synchronized(lexedFiles) {
+            lexedFiles.put(f, lex);
+        }
+        return lex;
+    }
+
     public boolean cleanFiles() {
         cleanedFiles = new TreeMap<File, String>();
 
+        synchronized(lexedFiles) {
+            lexedFiles.keySet().retainAll(sketchFiles);
+        }
+
+        synchronized(todoFound) {
+            todoSource.keySet().retainAll(sketchFiles);
+            todoFound.keySet().retainAll(sketchFiles);
+        }
+
         for(File f : sketchFiles) {
             if(FileType.getType(f) == FileType.SKETCH) {
-                String data = getFileContent(f);
-                String cleanData = stripComments(data);
-                String[] lines = cleanData.split("\n");
-                int lineno = 1;
-                StringBuilder out = new StringBuilder();
-
-                for(String line : lines) {
-                    line = line.trim();
-                    out.append(line + "\n");
-                }
-
-                cleanedFiles.put(f, out.toString());
+                cleanedFiles.put(f, getLexedFile(f).getCleaned());
             } else {
                 cleanedFiles.put(f, getFileContent(f));
             }
@@ -901,54 +947,6 @@ public class Sketch {
         return l.split("\n").length;
     }
 
-    public String stripBlock(String in, String start, String end) {
-        String regexp;
-        String mid;
-
-        if(start.equals(end)) {
-            mid = start;
-        } else {
-            mid = start + end;
-        }
-
-        if(start == "{") start = "\\" + start;
-
-        if(end == "}") end = "\\" + end;
-
-        regexp = "(?s)" + start + "[^" + mid + "]*" + end;
-
-        boolean done = false;
-        String out = in;
-        int pass = 1;
-
-        while(!done) {
-            String rep = out.replaceFirst(regexp, "");
-            int lines = linesInString(out);
-            int newLines = linesInString(rep);
-            int rets = lines - newLines;
-            String retStr = "";
-
-            for(int i = 0; i < rets; i++) {
-                retStr += "\n";
-            }
-
-            rep = out.replaceFirst(regexp, retStr);
-
-            String[] left = out.split("\n");
-            String[] right = out.split("\n");
-
-            if(rep.equals(out)) {
-                done = true;
-            } else {
-                out = rep;
-            }
-
-            pass++;
-        }
-
-        return out;
-    }
-
     // Locate a library by its header file.  Scan through all the known
     // libraries for the right file.  First pass looks for libraries named
     // after the included file.  Second pass looks through all the
@@ -1074,10 +1072,7 @@ public class Sketch {
             case FileType.SKETCH:
             case FileType.CSOURCE:
             case FileType.CPPSOURCE:
-                data = getFileContent(f);
-                data = stripComments(data);
-                funcs = findFunctions(data);
-                functionList.put(f, funcs);
+                functionList.put(f, getLexedFile(f).getFunctions());
                 break;
 
             case FileType.ASMSOURCE:
@@ -1087,69 +1082,74 @@ public class Sketch {
                 break;
             }
         }
-    }
 
-    public HashMap<Integer, String> findFunctions(String in) {
-        HashMap<Integer, String> funcs = new HashMap<Integer, String>();
-
-        String out = in.replaceAll("\\\\.", "");
-
-        out = out.replaceAll("'[^'\\n\\r]*'", "");
-        out = out.replaceAll("\"[^\"\\n\\r]*\"", "");
-        out = stripBlock(out, "{", "}");
-        String[] s = out.split("\n");
-        StringBuilder decimated = new StringBuilder();
-        boolean continuation = false;
-        int lineno = 0;
+        updateSymbolIndex();
+    }
 
-        for(String line : s) {
-            line = line.trim();
-            lineno++;
+    public SymbolIndex getSymbolIndex() {
+        return symbolIndex;
+    }
 
-            if(line.equals("")) {
-                continue;
-            }
+    /* Bring the symbol index up to date with the sketch files, the core
+     * library folders and the sources and headers of the imported
+     * libraries. Only files that have changed are parsed again. */
+    public void updateSymbolIndex() {
+        HashSet<File> present = new HashSet<File>();
 
-            if(line.startsWith("#")) {
-                continue;
+        for(File f : sketchFiles) {
+            switch(FileType.getType(f)) {
+            case FileType.SKETCH:
+            case FileType.CSOURCE:
+            case FileType.CPPSOURCE:
+            case FileType.HEADER:
+                symbolIndex.update(f, SymbolIndex.SKETCH, getLexedFile(f));
+                present.add(f);
+                break;
             }
+        }
 
-            if(continuation) {
-                decimated.append(line);
+        if(getCore() != null && getCompiler() != null) {
+            TreeMap<String, ArrayList<File>> coreLibs = getCoreLibs();
 
-                if(line.endsWith(")")) {
-                    continuation = false;
-                    funcs.put(lineno - 1, decimated.toString());
-                    decimated = new StringBuilder();
+            for(String lib : coreLibs.keySet()) {
+                for(File folder : coreLibs.get(lib)) {
+                    for(File f : findFilesInFolder(folder, null, false)) {
+                        if(isIndexable(f)) {
+                            symbolIndex.update(f, "Core_" + lib);
+                            present.add(f);
+                        }
+                    }
                 }
-
-                continue;
             }
+        }
 
-            if(line.endsWith(";")) {
-                continue;
-            }
+        for(Library lib : importedLibraries.values()) {
+            TreeSet<File> libFiles = lib.getSourceFiles(this);
+            libFiles.addAll(lib.getHeaderFiles());
 
-            if(line.indexOf("(") == -1) {
-                continue;
+            for(File f : libFiles) {
+                if(isIndexable(f)) {
+                    symbolIndex.update(f, lib.getName());
+                    present.add(f);
+                }
             }
+        }
 
-            Pattern p = Pattern.compile("[a-zA-Z0-9_\\*]+\\s+[a-zA-Z0-9_\\*]+\\s*\\(");
-            Matcher m = p.matcher(line);
-
-            if(m.find()) {
-                decimated.append(line);
+        symbolIndex.retain(present);
+    }
 
-                if(!line.endsWith(")")) {
-                    continuation = true;
-                } else {
-                    funcs.put(lineno - 1, decimated.toString());
-                    decimated = new StringBuilder();
-                }
-            }
+    boolean isIndexable(File f) {
+        switch(FileType.getType(f)) {
+        case FileType.HEADER:
+        case FileType.CSOURCE:
+        case FileType.CPPSOURCE:
+            return true;
         }
+        return false;
+    }
 
-        return funcs;
+    public HashMap<Integer, String> findFunctions(String in) {
+        return SourceLexer.parse(in).getFunctions();
     }
 
     public static final int LIB_PENDING = 0;
@@ -1166,7 +1166,6 @@ public class Sketch {
         unknownLibraries = new ArrayList<String>();
         includeOrder = new ArrayList<String>();
         HashMap<String, Integer> inclist = new HashMap<String, Integer>();
-        Pattern inc = Pattern.compile("^#\\s*include\\s+[<\"](.*)[>\"]");
 
         for(File f : cleanedFiles.keySet()) {
             try {
@@ -1188,29 +1187,25 @@ public class Sketch {
                 pw.print(data);
                 pw.close();
                 
+                BuildTrace.Span span = trace.begin("hunt " + f.getName(), BuildTrace.KEY);
                 boolean haveHunted = huntForLibraries(tempFile, importedLibraries, unknownLibraries);
+                trace.end(span);
 
                 tempFile.delete();
 
-                String lines[] = data.split("\n");
-
-                for(String line : lines) {
-                    Matcher match = inc.matcher(line.trim());
-
-                    if (match.find()) {
-                        if (!haveHunted) {
-                            Library lib = findLibrary(match.group(1));
-                            if (lib != null) {
-                                importedLibraries.put(match.group(1), lib);
-                            } else {
-                                if(unknownLibraries.indexOf(match.group(1)) == -1) {
-                                    unknownLibraries.add(match.group(1));
-                                }
+                for(String include : getLexedFile(f).getIncludes()) {
+                    if (!haveHunted) {
+                        Library lib = findLibrary(include);
+                        if (lib != null) {
+                            importedLibraries.put(include, lib);
+                        } else {
+                            if(unknownLibraries.indexOf(include) == -1) {
+                                unknownLibraries.add(include);
                             }
                         }
-                        if(includeOrder.indexOf(match.group(1)) == -1) {
-                            includeOrder.add(match.group(1));
-                        }
+                    }
+                    if(includeOrder.indexOf(include) == -1) {
+                        includeOrder.add(include);
                     }
                 }
             } catch (Exception e) {
@@ -1320,7 +1315,9 @@ public class Sketch {
         }
 
         updateSketchConfig();
+        BuildTrace.Span span = trace.begin("libraries scan");
         updateLibraryList();
+        trace.end(span);
 
         if (Preferences.getBoolean("compiler.generate_makefile")) {
             if (props.get("makefile.template") != null) {
@@ -1364,43 +1361,53 @@ public class Sketch {
         // do it properly, really, looking for the first function in the
         // file and placing the prototypes directly before that.
 
-        Pattern pragma = Pattern.compile("^#pragma\\s+parameter\\s+([^=]+)\\s*=\\s*(.*)\\s*$");
         Pattern paramsplit = Pattern.compile("(?:\"[^\"]*\"|[^\\s\"])+");
+        HashMap<File, SourceLexer> parsed = new HashMap<File, SourceLexer>();
 
         for(File f : cleanedFiles.keySet()) {
             if(FileType.getType(f) == FileType.SKETCH) {
-                HashMap<Integer, String> funcs = findFunctions(cleanedFiles.get(f));
+                SourceLexer lex = SourceLexer.parse(cleanedFiles.get(f));
+                parsed.put(f, lex);
+                HashMap<Integer, String> funcs = lex.getFunctions();
 
-                Integer ffLineNo = Integer.MAX_VALUE;
-                String firstFunction = "";
+                int firstFunction = -1;
+                if(!Preferences.getBoolean("compiler.disable_prototypes")) {
+                    firstFunction = lex.getFirstFunctionLine();
+                }
 
-                for(Integer i : funcs.keySet()) {
-                    if(i < ffLineNo) {
-                        ffLineNo = i;
-                        firstFunction = funcs.get(i);
+                HashMap<Integer, String[]> parameters = new HashMap<Integer, String[]>();
+                for(SourceLexer.Directive d : lex.getDirectives()) {
+                    String[] param = d.getParameter();
+                    if(param != null) {
+                        parameters.put(d.getLine(), param);
                     }
                 }
 
+                int lines = lex.getLineCount();
+                if(lines > 0 && lex.getLine(lines - 1).equals("")) {
+                    lines--;
+                }
+
                 int line = 1;
-                StringBuilder munged = new StringBuilder();
-
-                for(String l : cleanedFiles.get(f).split("\n")) {
-                    if(!Preferences.getBoolean("compiler.disable_prototypes")) {
-                        if(l.trim().startsWith(firstFunction)) {
-                            for(String func : funcs.values()) {
-                                func = func.replaceAll("=[^,)]+", "");
-                                munged.append(func + ";\n");
-                            }
+                StringBuilder munged = new StringBuilder(cleanedFiles.get(f).length() + 1024);
+
+                for(int i = 0; i < lines; i++) {
+                    String l = lex.getLine(i);
 
-                            if(!Preferences.getBoolean("compiler.disableline")) munged.append("#line " + line + " \"" + f.getAbsolutePath().replaceAll("\\\\", "\\\\\\\\") + "\"\n");
+                    if(i == firstFunction) {
+                        for(String func : funcs.values()) {
+                            munged.append(SourceLexer.prototype(func));
+                            munged.append(";\n");
                         }
+
+                        if(!Preferences.getBoolean("compiler.disableline")) munged.append("#line " + line + " \"" + f.getAbsolutePath().replaceAll("\\\\", "\\\\\\\\") + "\"\n");
                     }
 
-                    Matcher mtch = pragma.matcher(l.trim());
+                    String[] param = parameters.get(i);
 
-                    if(mtch.find()) {
+                    if(param != null) {
                         l = "// " + l;
-                        Matcher part = paramsplit.matcher(mtch.group(2).trim());
+                        Matcher part = paramsplit.matcher(param[1]);
                         String parms = "";
 
                         while(part.find()) {
@@ -1411,17 +1418,18 @@ public class Sketch {
                             parms += part.group(0);
                         }
 
-                        ctx.set(mtch.group(1), parms);
+                        ctx.set(param[0], parms);
                     }
 
-                    munged.append(l + "\n");
+                    munged.append(l);
+                    munged.append("\n");
 
                     if(!l.startsWith("#line 1 ")) {
                         line++;
                     }
-
-                    cleanedFiles.put(f, munged.toString());
                 }
+
+                cleanedFiles.put(f, munged.toString());
             }
         }
 
@@ -1450,19 +1458,10 @@ public class Sketch {
                     pw.write("\n");
 
                     if(props.get("core.header") != null) {
-                        boolean gotHeader = false;
                         String hdr = ctx.parseString(props.get("core.header"));
-                        String[] lines = cleanedFiles.get(f).split("\n");
-                        Pattern inc = Pattern.compile("^#\\s*include\\s+[<\"](.*)[>\"]");
-                        for (String l : lines) {
-                            Matcher m = inc.matcher(l);
-                            if (m.find()) {
-                                if (m.group(1).equals(hdr)) {
-                                    gotHeader = true;
-                                }
-                            }
-                        }
-                        
+                        SourceLexer lex = parsed.get(f);
+                        boolean gotHeader = lex != null && lex.getIncludes().contains(hdr);
+
                         if (!gotHeader) {
                             pw.write("#include <" + hdr + ">\n");
                         }
@@ -1503,116 +1502,75 @@ public class Sketch {
     }
 
     public String stripComments(String data) {
-        int cpos = 0;
-        boolean inString = false;
-        boolean inEscape = false;
-        boolean inMultiComment = false;
-        boolean inSingleComment = false;
-
-        // We'll work through the string a character at a time pushing it on to the
-        // string builder if we want it, or pushing a space if we don't.
-
-        StringBuilder out = new StringBuilder();
-
-        while (cpos < data.length()) {
-            char thisChar = data.charAt(cpos);
-            char nextChar = ' ';
-            if (cpos < data.length() - 1) {
-                nextChar = data.charAt(cpos + 1);
-            }
-
-            // Don't process any escaped characters - just add them verbatim.
-            if (thisChar == '\\') {
-                if (!inSingleComment && !inMultiComment)
-                    out.append(thisChar);
-                cpos++;
-                if (cpos < data.length()) {
-                    if (!inSingleComment && !inMultiComment)
-                        out.append(data.charAt(cpos));
-                    cpos++;
-                }
-                continue;
-            }
+        return SourceLexer.parse(data).getStripped();
+    }
 
-            // If we're currently in a string then keep moving on until the end of the string.
-            // If we hit the closing quote we still want to move on since it'll start a new
-            // string otherwise.
-            if (inString) {
-                out.append(thisChar);
-                if (thisChar == '"') {
-                    inString = false;
-                }
-                cpos++;
-                continue;
-            }
-            
-            // If we're in a single line comment then keep skipping until we hit the end of the line.
-            if (inSingleComment) {
-                if (thisChar == '\n') {
-                    out.append(thisChar);
-                    inSingleComment = false;
-                    cpos++;
-                    continue;
-                }
-                cpos++;
-                continue;
-            }
+    public boolean upload() {
+        boolean ret = runUpload();
+        reportTrace();
+        return ret;
+    }
 
-            // If we're in a multi-line comment then keep skipping until we
-            // hit the end of comment sequence.  Preserve newlines.
-            if (inMultiComment) {
-                if  (thisChar == '*' && nextChar == '/') {
-                    inMultiComment = false;
-                    cpos++;
-                    cpos++;
-                    continue;
-                }
-                if (thisChar == '\n') {
-                    out.append(thisChar);
-                    cpos++;
-                    continue;
-                }
-                cpos++;
-                continue;
-            }
+    // Build and then upload, reporting the trace of both once at the end
+    public boolean buildAndUpload() {
+        boolean ret = runTracedBuild() && runUpload();
+        reportTrace();
+        return ret;
+    }
 
-            // Is this the start of a quote?
-            if (thisChar == '"') {
-                out.append(thisChar);
-                cpos++;
-                inString = true;
-                continue;
-            }
+    boolean runUpload() {
+        // An upload straight after a build adds to that build's trace.
+        if (!trace.isEnabled()) {
+            trace = new BuildTrace(isTracing());
+        }
+        BuildTrace.Span span = trace.begin("upload");
+        try {
+            ctx.executeKey("upload.precmd");
+            boolean ret = programFile(getProgrammer(), sketchName);
+            ctx.executeKey("upload.postcmd");
+            return ret;
+        } finally {
+            trace.end(span);
+        }
+    }
 
-            // How about the start of a single line comment?
-            if (thisChar == '/' && nextChar == '/') {
-                inSingleComment = true;
-                out.append(" ");
-                cpos++;
-                continue;
-            }
-  
-            // The start of a muti-line comment?
-            if (thisChar == '/' && nextChar == '*') {
-                inMultiComment = true;
-                out.append(" ");
-                cpos++;
-                continue;
-            }
+    /**************************************************************************
+     * TRACING                                                                *
+     *                                                                        *
+     * Timing of the build phases and the commands they run. Turned on with   *
+     * --trace or --trace-summary, or the compiler.trace preference.          *
+     **************************************************************************/
 
-            // None of those? Then let's just append.
-            out.append(thisChar);
-            cpos++;
-        }
-                
-        return out.toString();
+    BuildTrace trace = new BuildTrace(false);
+
+    public BuildTrace getTrace() {
+        return trace;
     }
 
-    public boolean upload() {
-        ctx.executeKey("upload.precmd");
-        boolean ret = programFile(getProgrammer(), sketchName);
-        ctx.executeKey("upload.postcmd");
-        return ret;
+    boolean isTracing() {
+        return Base.cli.isSet("trace") || Base.cli.isSet("trace-summary") || Preferences.getBoolean("compiler.trace");
+    }
+
+    void reportTrace() {
+        if (!trace.isEnabled()) {
+            return;
+        }
+
+        if (Base.cli.isSet("trace-summary") || Preferences.getBoolean("compiler.trace")) {
+            heading(Base.i18n.string("msg.trace.summary"));
+            for (String line : trace.getSummary()) {
+                message(line);
+            }
+        }
+
+        File file = getReportFile("trace");
+        if (file != null) {
+            try {
+                trace.writeChromeTrace(file);
+            } catch (IOException e) {
+                error(e);
+            }
+        }
     }
 
     public boolean performSerialReset(boolean dtr, boolean rts, int speed, int predelay, int delay, int postdelay) {
@@ -1677,6 +1635,22 @@ public class Sketch {
     }
 
     public boolean build() {
+        boolean ret = runTracedBuild();
+        reportTrace();
+        return ret;
+    }
+
+    boolean runTracedBuild() {
+        trace = new BuildTrace(isTracing());
+        BuildTrace.Span span = trace.begin("build");
+        try {
+            return runBuild();
+        } finally {
+            trace.end(span);
+        }
+    }
+
+    boolean runBuild() {
         if(Preferences.getBoolean("editor.external.command")) {
             //reloadAllFiles();
         }
@@ -1700,7 +1674,10 @@ public class Sketch {
 
         if (!Base.isQuiet()) bullet(Base.i18n.string("msg.preprocessing"));
         try {
-            if(!prepare()) {
+            BuildTrace.Span span = trace.begin("prepare");
+            boolean prepared = prepare();
+            trace.end(span);
+            if(!prepared) {
                 error(Base.i18n.string("err.compiling.failed"));
                 setCompilingProgress(0);
                 return false;
@@ -1713,9 +1690,71 @@ public class Sketch {
 
         boolean done = compile();
         setCompilingProgress(0);
+        flushDiagnostics();
+        writeDiagnosticsReport(done);
         return done;
     }
 
+    public DiagnosticsEngine getDiagnosticsEngine() {
+        if (diagnostics == null) {
+            diagnostics = new DiagnosticsEngine(ctx.getMerged());
+        }
+        return diagnostics;
+    }
+
+    // Write the diagnostics from the last build as JSON if --diagnostics
+    // was given on the command line.
+    void writeDiagnosticsReport(boolean success) {
+        File report = getReportFile("diagnostics");
+        if (report == null) {
+            return;
+        }
+        try {
+            getDiagnosticsEngine().writeReport(report, sketchName, success);
+        } catch (IOException e) {
+            error(e);
+        }
+    }
+
+    // Pass any diagnostics found since the last call to the editor in one go
+    public void flushDiagnostics() {
+        final ArrayList<Diagnostic> batch = getDiagnosticsEngine().takePending();
+        if (batch == null || editor == null) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                flagDiagnostics(batch);
+            }
+        });
+    }
+
+    void flagDiagnostics(ArrayList<Diagnostic> batch) {
+        if (editor == null) {
+            return;
+        }
+        PropertyFile theme = Base.getTheme();
+        Color errorColor = theme.getColor("editor.compile.error.bgcolor");
+        Color warningColor = theme.getColor("editor.compile.warning.bgcolor");
+        ImageIcon errorIcon = Base.getIcon("flags", "fixme", 16);
+        ImageIcon warningIcon = Base.getIcon("flags", "todo", 16);
+
+        for (Diagnostic d : batch) {
+            int tabNumber = editor.getTabByFile(d.getFile());
+            if (tabNumber < 0) {
+                continue;
+            }
+            EditorBase eb = editor.getTab(tabNumber);
+            if (d.isError()) {
+                eb.highlightLine(d.getLine() - 1, errorColor);
+                eb.flagLine(d.getLine() - 1, errorIcon, 0x1000);
+            } else {
+                eb.highlightLine(d.getLine() - 1, warningColor);
+                eb.flagLine(d.getLine() - 1, warningIcon, 0x1001);
+            }
+        }
+    }
+
     public boolean saveAs(File newPath) {
         if(newPath.exists()) {
             return false;
@@ -1952,21 +1991,11 @@ public class Sketch {
     public void checkForSettings() {
         File mainFile = getMainFile();
 
-        Pattern p = Pattern.compile("^#pragma\\s+parameter\\s+([^\\s]+)\\s*=\\s*(.*)$");
-
-        String[] data = getFileContent(mainFile).split("\n");
-
-        for(String line : data) {
-            line = line.trim();
-            Matcher m = p.matcher(line);
-
-            if(m.find()) {
-                String key = m.group(1);
-                String value = m.group(2);
+        for(SourceLexer.Directive d : getLexedFile(mainFile).getDirectives()) {
+            String[] param = d.getParameter();
 
-                if(key.equals("board")) {
-                    setBoard(value);
-                }
+            if(param != null && param[0].equals("board")) {
+                setBoard(param[1]);
             }
         }
     }
@@ -1979,6 +2008,17 @@ public class Sketch {
         return buildFolder;
     }
 
+    public void setBuildFolder(File f) {
+        if(!f.exists()) {
+            f.mkdirs();
+        }
+        // Don't leave the temporary folder the constructor made behind
+        if (buildFolder != null && !buildFolder.equals(f) && buildFolder.getName().equals("build-" + uuid)) {
+            Base.removeDir(buildFolder);
+        }
+        buildFolder = f;
+    }
+
     public String getBuildPath() {
         return buildFolder.getAbsolutePath();
     }
@@ -2173,27 +2213,18 @@ public class Sketch {
         return libs;
     }
 
-    public void installLibrary(APT apt, Package pkg, boolean recurse) {
-        pkg = apt.getPackage(pkg.getName());
-
-        if (recurse) {
-            Package[] deps = apt.resolveDepends(pkg);
-            if (deps != null) {
-                for (Package p : deps) {
-                    if (!apt.isInstalled(p)) {
-                        installLibrary(apt, p, false);
-                    }
-                }
+    // Install a set of libraries, and anything they need, as a single
+    // transaction
+    public boolean installLibraries(APT apt, Collection<Package> pkgs) {
+        ArrayList<Package> list = new ArrayList<Package>();
+        for (Package p : pkgs) {
+            Package pkg = apt.getPackage(p.getName());
+            if (pkg != null && !apt.isInstalled(pkg)) {
+                bullet2("Installing " + pkg.getName());
+                list.add(pkg);
             }
         }
-
-        if (!apt.isInstalled(pkg)) {
-            bullet2("Downloading " + pkg.getName());
-            pkg.fetchPackage(Base.getDataFile("apt/cache"));
-        
-            bullet2("Installing " + pkg.getName());
-            pkg.extractPackage(Base.getDataFile("apt/cache"), Base.getDataFile("apt/db/packages"), Base.getDataFolder());
-        }
+        return apt.installPackages(list.toArray(new Package[0]));
     }
 
     public boolean compile() {
@@ -2205,6 +2236,7 @@ public class Sketch {
 
         ctx.set("cache.root", getCacheFolder().getAbsolutePath());
         clearLineComments();
+        diagnostics = new DiagnosticsEngine(props);
 
         if (props.getBoolean("purge")) {
             doPrePurge = true;
@@ -2292,9 +2324,7 @@ public class Sketch {
                             APT apt = pm.getApt();
                             apt.update();
                             bullet("Installing missing libraries...");
-                            for (Package p : foundPackages.values()) {
-                                installLibrary(pm.getApt(), p, true);
-                            }
+                            installLibraries(apt, foundPackages.values());
                             Base.rescanLibraries();
                             ctx.set("includes", generateIncludes());
                         }
@@ -2373,35 +2403,55 @@ public class Sketch {
 
         if (!Base.isQuiet()) bullet("Compiling sketch...");
         setCompilingProgress(10);
+        BuildTrace.Span span = trace.begin("sketch");
         ArrayList<File>sketchObjects = compileSketch();
+        trace.end(span);
 
         if(sketchObjects == null) {
             error(Base.i18n.string("err.compiling.failed"));
             return false;
         }
 
+        linkedObjects = sketchObjects;
+
         if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.core"));
         setCompilingProgress(20);
 
-        if(!compileCore()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
-        }
+        // The core and libraries are cached per board, so builds for the
+        // same board running at the same time take turns at them.
+        span = trace.begin("cache lock");
+        synchronized(getCacheLock()) {
+            trace.end(span);
 
-        setCompilingProgress(30);
+            span = trace.begin("core");
+            boolean ok = compileCore();
+            trace.end(span);
+            if(!ok) {
+                error(Base.i18n.string("err.compiling.failed"));
+                return false;
+            }
 
-        if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.libraries"));
+            setCompilingProgress(30);
 
-        if(!compileLibraries()) {
-            error(Base.i18n.string("err.compiling.failed"));
-            return false;
+            if (!Base.isQuiet()) bullet(Base.i18n.string("msg.compiling.libraries"));
+
+            span = trace.begin("libraries");
+            ok = compileLibraries();
+            trace.end(span);
+            if(!ok) {
+                error(Base.i18n.string("err.compiling.failed"));
+                return false;
+            }
         }
 
         setCompilingProgress(40);
 
         if (!Base.isQuiet()) bullet(Base.i18n.string("msg.linking"));
 
-        if(!compileLink(sketchObjects)) {
+        span = trace.begin("link");
+        boolean linked = compileLink(sketchObjects);
+        trace.end(span);
+        if(!linked) {
             error(Base.i18n.string("err.compiling.failed"));
             return false;
         }
@@ -2419,7 +2469,9 @@ public class Sketch {
 
             for (String type : types) {
                 ctx.bullet2(Base.i18n.string("msg.compiling.genfile", type));
+                span = trace.begin(type);
                 ctx.executeKey("compile.autogen." + type);
+                trace.end(span);
                 pct += steps;
                 setCompilingProgress(pct);
             }
@@ -2474,7 +2526,9 @@ public class Sketch {
         }
 
 
+        span = trace.begin("size");
         compileSize();
+        trace.end(span);
 
         long endTime = System.currentTimeMillis();
         double compileTime = (double)(endTime - startTime) / 1000d;
@@ -2483,46 +2537,234 @@ public class Sketch {
         return true;
     }
 
+    // The linked program. Normally sketch.elf in the build folder, but a
+    // core can say otherwise with compile.elf.
+    public File getElfFile() {
+        String name = ctx.getMerged().get("compile.elf");
+        if (name != null) {
+            return new File(ctx.parseString(name));
+        }
+        return new File(buildFolder, sketchName + ".elf");
+    }
+
+    // Section sizes { text, data, bss } read straight from the linked ELF
+    // file, or null if there isn't one that can be read.
+    long[] getElfSizes(PropertyFile props) {
+        if (props.getBoolean("compile.size.external")) {
+            return null;
+        }
+        File elf = getElfFile();
+        if (!ElfFile.isElf(elf)) {
+            return null;
+        }
+        try {
+            ElfFile ef = new ElfFile(elf);
+            try {
+                return ef.getSizes(getSizeIgnore(props));
+            } finally {
+                ef.close();
+            }
+        } catch (Exception e) {
+            Debug.message("Unable to read " + elf.getAbsolutePath() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // Sections that don't count towards the program or memory size
+    List<String> getSizeIgnore(PropertyFile props) {
+        return Arrays.asList(props.get("compiler.size.ignore", ".eeprom::.fuse::.lock::.signature").split("::"));
+    }
+
+    // The archives the sketch was linked against, by library name
+    public LinkedHashMap<String, File> getLinkedArchives() {
+        PropertyFile props = ctx.getMerged();
+        LinkedHashMap<String, File> out = new LinkedHashMap<String, File>();
+        for (Library lib : importedLibraries.values()) {
+            out.put(lib.getName(), getCacheFile(getArchiveName(lib)));
+        }
+        String prefix = ctx.parseString(props.get("compiler.library.prefix","lib"));
+        String suffix = ctx.parseString(props.get("compiler.library", "a"));
+        for (String lib : getCoreLibs().keySet()) {
+            out.put("Core_" + lib, getCacheFile(prefix + "Core_" + lib + "." + suffix));
+        }
+        return out;
+    }
+
+    // History is kept per target so the previous build compared against
+    // is always one for the same board, core and compiler
+    public File getSizeHistoryFolder() {
+        Board b = getBoard();
+        Core c = getCore();
+        Compiler cc = getCompiler();
+        return SizeReport.getHistoryFolder(sketchName, sketchFolder,
+            b == null ? "" : b.getName(),
+            c == null ? "" : c.getName(),
+            cc == null ? "" : cc.getName(),
+            optionOverrides.size() == 0 ? "" : optionOverrides.toString());
+    }
+
+    String reportSuffix = null;
+
+    // Sketches built side by side (--matrix) each add their own suffix to
+    // the report files named on the command line, so they don't all write
+    // to the same one.
+    public void setReportSuffix(String suffix) {
+        reportSuffix = suffix;
+    }
+
+    // The file given to a --diagnostics style option, or null if it wasn't
+    // given. With a suffix set, report.json becomes report-<suffix>.json.
+    File getReportFile(String option) {
+        String name = Base.cli.getString(option);
+        if (name == null) {
+            return null;
+        }
+        File f = new File(name);
+        if (reportSuffix == null) {
+            return f;
+        }
+        String base = f.getName();
+        int dot = base.lastIndexOf(".");
+        if (dot > 0) {
+            base = base.substring(0, dot) + "-" + reportSuffix + base.substring(dot);
+        } else {
+            base = base + "-" + reportSuffix;
+        }
+        return new File(f.getParentFile(), base);
+    }
+
+    /* Break the program size down by symbol, object and library, add it to
+     * the sketch's size history and show what changed since the previous
+     * build (or since the --size-baseline report). --size-report writes
+     * both out as JSON for build servers to check. */
+    @SuppressWarnings("unchecked")
+    void recordSizes(PropertyFile props) {
+        int keep = Preferences.getInteger("compiler.size.history");
+        File reportFile = getReportFile("size-report");
+        File baseline = getReportFile("size-baseline");
+
+        if (keep <= 0 && reportFile == null) {
+            return;
+        }
+
+        SizeReport report;
+        try {
+            report = SizeReport.analyse(getElfFile(), linkedObjects, getLinkedArchives(), getSizeIgnore(props));
+        } catch (Exception e) {
+            Debug.message("Unable to analyse " + getElfFile().getAbsolutePath() + ": " + e.getMessage());
+            return;
+        }
+        report.setBuild(sketchName, getBoard().getName(), getCore().getName(), getCompiler().getName());
+
+        SizeReport previous = null;
+        File folder = getSizeHistoryFolder();
+        try {
+            if (baseline != null) {
+                previous = SizeReport.load(baseline);
+            } else {
+                File[] history = SizeReport.getHistory(folder);
+                if (history.length > 0) {
+                    previous = SizeReport.load(history[history.length - 1]);
+                }
+            }
+        } catch (IOException e) {
+            error(e);
+        }
+
+        try {
+            if (keep > 0) {
+                report.record(folder, keep);
+            }
+        } catch (IOException e) {
+            error(e);
+        }
+
+        SizeDiff diff = previous == null ? null : new SizeDiff(previous, report);
+
+        if (diff != null && !diff.isEmpty() && !Base.isQuiet() && Preferences.getBoolean("compiler.size.report")) {
+            showSizeDiff(diff, 5, 10);
+        }
+
+        if (reportFile != null) {
+            JSONObject out = new JSONObject();
+            out.put("report", report.toJSON());
+            out.put("diff", diff == null ? null : diff.toJSON());
+            try {
+                SizeReport.writeJSON(out, reportFile);
+            } catch (IOException e) {
+                error(e);
+            }
+        }
+    }
+
+    public void showSizeDiff(SizeDiff diff, int libraries, int symbols) {
+        bullet(Base.i18n.string("msg.compiling.sizediff", SizeDiff.signed(diff.getFlashDelta()), SizeDiff.signed(diff.getRamDelta())));
+        int n = 0;
+        for (SizeDiff.Change c : diff.getLibraries()) {
+            if (n++ == libraries) {
+                break;
+            }
+            bullet2(Base.i18n.string("msg.compiling.sizediff.library", c.name, SizeDiff.signed(c.getFlashDelta()), SizeDiff.signed(c.getRamDelta())));
+        }
+        n = 0;
+        for (SizeDiff.Change c : diff.getSymbols()) {
+            if (n++ == symbols) {
+                break;
+            }
+            String where = c.object.equals("") ? c.library : c.library + "/" + c.object;
+            bullet3(Base.i18n.string("msg.compiling.sizediff.symbol", c.name, where, SizeDiff.signed(c.getFlashDelta()), SizeDiff.signed(c.getRamDelta())));
+        }
+    }
+
     public boolean compileSize() {
         PropertyFile props = ctx.getMerged();
 
-        if (props.get("compile.size") != null) {
+        long[] elfSizes = getElfSizes(props);
+
+        if (elfSizes != null || props.get("compile.size") != null) {
             if (!Base.isQuiet()) heading(Base.i18n.string("msg.compiling.memory"));
 
-            ctx.startBuffer();
-            ctx.executeKey("compile.size");
-            String output = ctx.endBuffer();
-
-            String reg = props.get("compiler.size.regex", "^\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)");
-            int tpos = props.getInteger("compiler.size.text", 1);
-            int rpos = props.getInteger("compiler.size.rodata", 0);
-            int dpos = props.getInteger("compiler.size.data", 2);
-            int bpos = props.getInteger("compiler.size.bss", 3);
-            String[] lines = output.split("\n");
-            Pattern p = Pattern.compile(reg);
             int textSize = 0;
             int rodataSize = 0;
             int dataSize = 0;
             int bssSize = 0;
-            for (String line : lines) {
 
-                try {
-                    Matcher m = p.matcher(line);
-                    if (m.find()) {
-                        if (tpos > 0) {
-                            textSize = Integer.parseInt(m.group(tpos));
-                        }
-                        if (rpos > 0) {
-                            rodataSize = Integer.parseInt(m.group(rpos));
-                        }
-                        if (dpos > 0) {
-                            dataSize = Integer.parseInt(m.group(dpos));
-                        }
-                        if (bpos > 0) {
-                            bssSize = Integer.parseInt(m.group(bpos));
+            if (elfSizes != null) {
+                textSize = (int)elfSizes[0];
+                dataSize = (int)elfSizes[1];
+                bssSize = (int)elfSizes[2];
+            } else {
+                ctx.startBuffer();
+                ctx.executeKey("compile.size");
+                String output = ctx.endBuffer();
+
+                String reg = props.get("compiler.size.regex", "^\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)");
+                int tpos = props.getInteger("compiler.size.text", 1);
+                int rpos = props.getInteger("compiler.size.rodata", 0);
+                int dpos = props.getInteger("compiler.size.data", 2);
+                int bpos = props.getInteger("compiler.size.bss", 3);
+                String[] lines = output.split("\n");
+                Pattern p = Pattern.compile(reg);
+                for (String line : lines) {
+
+                    try {
+                        Matcher m = p.matcher(line);
+                        if (m.find()) {
+                            if (tpos > 0) {
+                                textSize = Integer.parseInt(m.group(tpos));
+                            }
+                            if (rpos > 0) {
+                                rodataSize = Integer.parseInt(m.group(rpos));
+                            }
+                            if (dpos > 0) {
+                                dataSize = Integer.parseInt(m.group(dpos));
+                            }
+                            if (bpos > 0) {
+                                bssSize = Integer.parseInt(m.group(bpos));
+                            }
                         }
+                    } catch (Exception e) {
                     }
-                } catch (Exception e) {
                 }
             }
 
@@ -2552,6 +2794,10 @@ public class Sketch {
                     bullet(Base.i18n.string("msg.compiling.ramsize", (bssSize + dataSize))); 
                 }
             }
+
+            if (elfSizes != null) {
+                recordSizes(props);
+            }
         }
         return true;
     }
@@ -2626,30 +2872,16 @@ public class Sketch {
         ctx.set("source.name", src.getAbsolutePath());
         ctx.set("object.name", dest.getAbsolutePath());
 
-        ctx.addDataStreamParser(new DataStreamParser() {
-            public String parseStreamMessage(Context ctx, String m) {
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-            public String parseStreamError(Context ctx, String m) {
-                if (parseLineForErrorMessage(ctx, m)) {
-                    return "";
-                }
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-        });
+        ctx.addDataStreamParser(diagnosticParser);
 
         String output = "";
         if(!(Boolean)ctx.executeKey(recipe)) {
             ctx.removeDataStreamParser();
+            flushDiagnostics();
             return null;
         }
         ctx.removeDataStreamParser();
+        flushDiagnostics();
 
         if(!dest.exists()) {
             return null;
@@ -2674,6 +2906,11 @@ public class Sketch {
             }
         }
 
+        // Overridden options may change the flags, so don't share their objects
+        if (optionOverrides.size() > 0) {
+            boardCache = new File(boardCache, "options-" + Integer.toHexString(optionOverrides.toString().hashCode()));
+        }
+
         if(!boardCache.exists()) {
             boardCache.mkdirs();
         }
@@ -2681,6 +2918,20 @@ public class Sketch {
         return boardCache;
     }
 
+    static final HashMap<String, Object> cacheLocks = new HashMap<String, Object>();
+
+    Object getCacheLock() {
+        String path = getCacheFolder().getAbsolutePath();
+        synchronized(cacheLocks) {
+            Object lock = cacheLocks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                cacheLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
     public File getCacheFile(String fileName) {
         File cacheFolder = getCacheFolder();
         File out = new File(cacheFolder, fileName);
@@ -2921,23 +3172,7 @@ public class Sketch {
         ctx.set("build.path", dest.getAbsolutePath());
         String objExt = ctx.parseString(props.get("compiler.object","o"));
 
-        ctx.addDataStreamParser(new DataStreamParser() {
-            public String parseStreamMessage(Context ctx, String m) {
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-            public String parseStreamError(Context ctx, String m) {
-                if (parseLineForErrorMessage(ctx, m)) {
-                    return "";
-                }
-                if (parseLineForWarningMessage(ctx, m)) {
-                    return "";
-                }
-                return m;
-            }
-        });
+        ctx.addDataStreamParser(diagnosticParser);
 
         for(File file : sources) {
             String fileName = file.getName();
@@ -2952,7 +3187,10 @@ public class Sketch {
                 continue;
             }
 
-            if(!(Boolean)ctx.executeKey(key)) {
+            boolean compiled = (Boolean)ctx.executeKey(key);
+            flushDiagnostics();
+
+            if(!compiled) {
                 ctx.removeDataStreamParser();
                 return null;
             }
@@ -3326,21 +3564,7 @@ public class Sketch {
      **************************************************************************/
 
     public boolean isWarningMessage(String s) {
-        PropertyFile props = ctx.getMerged();
-        String wRec = props.get("compiler.warning");
-        int wFilename = props.getInteger("compiler.warning.filename", 1);
-        int wLine = props.getInteger("compiler.warning.line", 2);
-        int wMessage = props.getInteger("compiler.warning.message", 3);
-
-        if(wRec != null) {
-            Pattern wPat = Pattern.compile(wRec);
-            Matcher wMat = wPat.matcher(s);
-
-            if(wMat.find()) {
-                return true;
-            }
-        }
-        return false;
+        return getDiagnosticsEngine().matchWarning(s) != null;
     }
 
     public void flagError(String s) {
@@ -3348,75 +3572,21 @@ public class Sketch {
             return;
         }
 
-        PropertyFile theme = Base.getTheme();
-        PropertyFile props = ctx.getMerged();
-
-        String eRec = props.get("compiler.error");
-        int eFilename = props.getInteger("compiler.error.filename", 1);
-        int eLine = props.getInteger("compiler.error.line", 2);
-        int eMessage = props.getInteger("compiler.error.message", 3);
-
-        String wRec = props.get("compiler.warning");
-        int wFilename = props.getInteger("compiler.warning.filename", 1);
-        int wLine = props.getInteger("compiler.warning.line", 2);
-        int wMessage = props.getInteger("compiler.warning.message", 3);
-
-        if(eRec != null) {
-            Pattern ePat = Pattern.compile(eRec);
-            Matcher eMat = ePat.matcher(s);
-
-            if(eMat.find()) {
-                try {
-                    int errorLineNumber = Integer.parseInt(eMat.group(eLine));
-
-                    File errorFile = new File(eMat.group(eFilename));
-
-                    if(errorFile != null) {
-                        int tabNumber = editor.getTabByFile(errorFile);
-
-                        if(tabNumber > -1) {
-                            EditorBase eb = editor.getTab(tabNumber);
-                            eb.highlightLine(errorLineNumber - 1, theme.getColor("editor.compile.error.bgcolor"));
-                            eb.flagLine(errorLineNumber - 1, Base.getIcon("flags", "fixme", 16), 0x1000);
-                        }
-
-                        link("uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath() + "|Error at line " + errorLineNumber + " in file " + errorFile.getName());
+        DiagnosticsEngine engine = getDiagnosticsEngine();
+        Diagnostic d = engine.match(s);
 
-                        setLineComment(errorFile, errorLineNumber, eMat.group(eMessage));
-                    }
-                } catch(Exception e) {
-                    Base.error(e);
-                }
-            }
+        if (d == null || !engine.record(d)) {
+            return;
         }
 
-        if(wRec != null) {
-            Pattern wPat = Pattern.compile(wRec);
-            Matcher wMat = wPat.matcher(s);
-
-            if(wMat.find()) {
-                try {
-                    int warningLineNumber = Integer.parseInt(wMat.group(wLine));
-
-                    File warningFile = new File(wMat.group(wFilename));
-
-                    if(warningFile != null) {
-                        int tabNumber = editor.getTabByFile(warningFile);
-
-                        if(tabNumber > -1) {
-                            EditorBase eb = editor.getTab(tabNumber);
-                            eb.highlightLine(warningLineNumber - 1, theme.getColor("editor.compile.warning.bgcolor"));
-                            eb.flagLine(warningLineNumber - 1, Base.getIcon("flags", "todo", 16), 0x1001);
-                            link("uecide://error/" + warningLineNumber + "/" + warningFile.getAbsolutePath() + "|Warning at line " + warningLineNumber + " in file " + warningFile.getName());
-                        }
-
-                        setLineComment(warningFile, warningLineNumber, wMat.group(wMessage));
-                    }
-                } catch(Exception e) {
-                    Base.error(e);
-                }
-            }
+        if (d.isError()) {
+            link("uecide://error/" + d.getLine() + "/" + d.getFile().getAbsolutePath() + "|Error at line " + d.getLine() + " in file " + d.getFile().getName());
+        } else if (editor.getTabByFile(d.getFile()) > -1) {
+            link("uecide://error/" + d.getLine() + "/" + d.getFile().getAbsolutePath() + "|Warning at line " + d.getLine() + " in file " + d.getFile().getName());
         }
+
+        setLineComment(d.getFile(), d.getLine(), d.getMessage());
+        flushDiagnostics();
     }
 
     String mBuffer = "";
@@ -3536,7 +3706,7 @@ public class Sketch {
         if(editor != null) {
             editor.command(s);
         } else {
-            System.out.print(s);
+            out().print(s);
         }
     }        
 
@@ -3547,7 +3717,7 @@ public class Sketch {
         if(editor != null) {
             editor.bullet(s);
         } else {
-            System.out.print("    * " + s);
+            out().print("    * " + s);
         }
     }        
 
@@ -3558,7 +3728,7 @@ public class Sketch {
         if(editor != null) {
             editor.bullet2(s);
         } else {
-            System.out.print("      > " + s);
+            out().print("      > " + s);
         }
     }        
 
@@ -3569,7 +3739,7 @@ public class Sketch {
         if(editor != null) {
             editor.bullet3(s);
         } else {
-            System.out.print("        o " + s);
+            out().print("        o " + s);
         }
     }        
 
@@ -3580,11 +3750,11 @@ public class Sketch {
         if(editor != null) {
             editor.heading(s);
         } else {
-            System.out.print(s);
+            out().print(s);
             for (int i = 0; i < s.trim().length(); i++) {
-                System.out.print("=");
+                out().print("=");
             }
-            System.out.println();
+            out().println();
         }
     }        
 
@@ -3625,7 +3795,7 @@ public class Sketch {
         if(editor != null) {
             editor.message(s);
         } else {
-            System.out.print(s);
+            out().print(s);
         }
     }
 
@@ -3639,7 +3809,7 @@ public class Sketch {
         if(editor != null) {
             editor.warning(s);
         } else {
-            System.out.print(s);
+            out().print(s);
         }
     }
 
@@ -3683,7 +3853,7 @@ public class Sketch {
         if(editor != null) {
             editor.error(s);
         } else {
-            System.err.print(s);
+            err().print(s);
         }
     }
 
@@ -3701,7 +3871,19 @@ public class Sketch {
      * routines.                                                              *
      **************************************************************************/
 
+    // Option values for this sketch only, which aren't saved and take
+    // precedence over the board's settings.
+    TreeMap<String, String> optionOverrides = new TreeMap<String, String>();
+
+    public void overrideOption(String opt, String val) {
+        optionOverrides.put(opt, val);
+    }
+
     public String getOption(String opt) {
+        if (optionOverrides.get(opt) != null) {
+            return optionOverrides.get(opt);
+        }
+
         PropertyFile props = ctx.getMerged();
         PropertyFile opts = Base.preferences.getChildren("board." + selectedBoard.getName() + ".options");
         String optval = opts.get(opt);
@@ -3984,20 +4166,18 @@ public class Sketch {
         ctx.killRunningProcess();
     }
 
+    // The archive is written next to the old one and renamed over it at
+    // the end. Files that haven't changed since the old one was made are
+    // copied out of it as they are.
     public boolean generateSarFile(File archiveFile) {
+        File tmp = new File(archiveFile.getAbsolutePath() + ".tmp");
+        SarWriter sar = null;
         try {
-            if(archiveFile.exists()) {
-                archiveFile.delete();
-            }
-
-            FileOutputStream outfile = new FileOutputStream(archiveFile);
-            ZipOutputStream sar = new ZipOutputStream(outfile);
-            sar.putNextEntry(new ZipEntry(sketchFolder.getName() + "/"));
-            sar.closeEntry();
-            addTree(sketchFolder, sketchFolder.getName(), sar);
+            sar = new SarWriter(new FileOutputStream(tmp), archiveFile);
+            sar.addDirectory(sketchFolder.getName());
+            sar.addTree(sketchFolder, sketchFolder.getName());
 
-            sar.putNextEntry(new ZipEntry("libraries" + "/"));
-            sar.closeEntry();
+            sar.addDirectory("libraries");
 
             prepare();
 
@@ -4005,9 +4185,8 @@ public class Sketch {
 
             for(Library lib : getImportedLibraries()) {
                 if(lib.isContributed()) {
-                    sar.putNextEntry(new ZipEntry("libraries" + "/" + lib.getFolder().getName() + "/"));
-                    sar.closeEntry();
-                    addTree(lib.getFolder(), "libraries/" + lib.getFolder().getName(), sar);
+                    sar.addDirectory("libraries" + "/" + lib.getFolder().getName());
+                    sar.addTree(lib.getFolder(), "libraries/" + lib.getFolder().getName());
 
                     if(libList.equals("")) {
                         libList = lib.getFolder().getName();
@@ -4017,9 +4196,7 @@ public class Sketch {
                 }
             }
 
-            sar.putNextEntry(new ZipEntry("META-INF/"));
-            sar.closeEntry();
-            sar.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            sar.addDirectory("META-INF");
 
             String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime());
 
@@ -4032,13 +4209,21 @@ public class Sketch {
             mf.append("Core: " + getCore().getName() + "\n");
             mf.append("Archived: " + timeStamp + "\n");
 
-            String mfData = mf.toString();
-            byte[] bytes = mfData.getBytes();
-            sar.write(bytes, 0, bytes.length);
-            sar.closeEntry();
-            sar.flush();
+            sar.addBytes("META-INF/MANIFEST.MF", mf.toString().getBytes());
             sar.close();
+            sar = null;
+
+            if (!tmp.renameTo(archiveFile)) {
+                archiveFile.delete();
+                if (!tmp.renameTo(archiveFile)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + archiveFile);
+                }
+            }
         } catch(Exception e) {
+            if (sar != null) {
+                sar.abort();
+            }
+            tmp.delete();
             Base.error(e);
             return false;
         }
@@ -4076,7 +4261,13 @@ public class Sketch {
                 ZipEntry entry = new ZipEntry(nowfar);
                 entry.setTime(sub.lastModified());
                 zos.putNextEntry(entry);
-                zos.write(Base.loadBytesRaw(sub));
+                InputStream in = new FileInputStream(sub);
+                byte[] buffer = new byte[SarWriter.BUFFER];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    zos.write(buffer, 0, n);
+                }
+                in.close();
                 zos.closeEntry();
             }
         }
@@ -4167,20 +4358,36 @@ public class Sketch {
         return getBoard().get("family");
     }
 
+    static final Pattern todoPattern = Pattern.compile("(?i)\\/\\/\\s*(TODO|NOTE|FIXME):\\s*(.*)$");
+
+    // The last content each file's notes were found in, and what was found
+    HashMap<File, String> todoSource = new HashMap<File, String>();
+    HashMap<File, ArrayList<TodoEntry>> todoFound = new HashMap<File, ArrayList<TodoEntry>>();
+
     public ArrayList<TodoEntry> todo(File f) {
         if (sketchFiles.indexOf(f) == -1) {
             return null;
         }
 
-        Pattern p = Pattern.compile("(?i)\\/\\/\\s*(TODO|NOTE|FIXME):\\s*(.*)$");
+        String content = getFileContent(f);
+
+        synchronized (todoFound) {
+            String last = todoSource.get(f);
+            if (last != null && last.equals(content)) {
+                return new ArrayList<TodoEntry>(todoFound.get(f));
+            }
+        }
 
         ArrayList<TodoEntry> found = new ArrayList<TodoEntry>();
 
-        String content = getFileContent(f);
         String[] lines = content.split("\n");
         int lineno = 0;
         for (String line : lines) {
-            Matcher m = p.matcher(line);
+            if (line.indexOf("//") == -1) {
+                lineno++;
+                continue;
+            }
+            Matcher m = todoPattern.matcher(line);
             if (m.find()) {
                 String type = m.group(1).trim().toLowerCase();
                 String comment = m.group(2).trim();
@@ -4200,61 +4407,52 @@ public class Sketch {
             lineno++;
         }
 
-        return found;
+        synchronized (todoFound) {
+            todoSource.put(f, content);
+            todoFound.put(f, found);
+        }
+
+        return new ArrayList<TodoEntry>(found);
     }
 
     public void addKeywordsFromFile(File f) {
-        String kwd = Base.getFileAsString(f);
-
-        String[] lines = kwd.split("\n");
-        Pattern p = Pattern.compile("^\\s*([^\\s]+)\\s+([^\\s]+)");
-        for (String line : lines) {
-            Matcher m = p.matcher(line);
-            if (m.find()) {
-                String name = m.group(1);
-                String type = m.group(2);
-                if (type.equals("LITERAL1")) {
-                    keywords.put(name, KeywordTypes.LITERAL1);
-                } else if (type.equals("LITERAL2")) {
-                    keywords.put(name, KeywordTypes.LITERAL2);
-                } else if (type.equals("LITERAL3")) {
-                    keywords.put(name, KeywordTypes.LITERAL3);
-                } else if (type.equals("KEYWORD1")) {
-                    keywords.put(name, KeywordTypes.KEYWORD1);
-                } else if (type.equals("KEYWORD2")) {
-                    keywords.put(name, KeywordTypes.KEYWORD2);
-                } else if (type.equals("KEYWORD3")) {
-                    keywords.put(name, KeywordTypes.KEYWORD3);
-                } else if (type.equals("OBJECT")) {
-                    keywords.put(name, KeywordTypes.OBJECT);
-                } else if (type.equals("VARIABLE")) {
-                    keywords.put(name, KeywordTypes.VARIABLE);
-                } else if (type.equals("FUNCTION")) {
-                    keywords.put(name, KeywordTypes.FUNCTION);
-                } else if (type.equals("DATATYPE")) {
-                    keywords.put(name, KeywordTypes.DATATYPE);
-                } else if (type.equals("RESERVED")) {
-                    keywords.put(name, KeywordTypes.RESERVED);
-                }
-            }
-        }
+        keywords.putAll(KeywordTable.load(f).getMap());
     }
 
-
     public void updateKeywords() {
-        keywords.clear();
+        ArrayList<File> files = new ArrayList<File>();
         if (selectedCompiler != null) {
-            addKeywordsFromFile(selectedCompiler.getKeywords());
+            files.add(selectedCompiler.getKeywords());
         }
         if (selectedCore != null) {
-            addKeywordsFromFile(selectedCore.getKeywords());
+            files.add(selectedCore.getKeywords());
         }
         if (selectedBoard != null) {
-            addKeywordsFromFile(selectedBoard.getKeywords());
+            files.add(selectedBoard.getKeywords());
         }
         for (Library l : importedLibraries.values()) {
-            addKeywordsFromFile(l.getKeywords());
+            files.add(l.getKeywords());
+        }
+
+        // Only merge the files again if the set of them, or one of them, has changed
+        StringBuilder sources = new StringBuilder();
+        for (File f : files) {
+            if (f != null) {
+                sources.append(f.getAbsolutePath()).append(':').append(f.lastModified()).append(':').append(f.length());
+            }
+            sources.append('\n');
+        }
+        if (!sources.toString().equals(keywordSources)) {
+            HashMap<String, Integer> base = new HashMap<String, Integer>();
+            for (File f : files) {
+                base.putAll(KeywordTable.load(f).getMap());
+            }
+            keywordBase = base;
+            keywordSources = sources.toString();
         }
+
+        HashMap<String, Integer> keywords = new HashMap<String, Integer>(keywordBase);
+
         TreeSet<String> fl = getAllFunctionNames();
         for (String s : fl) {
             FunctionBookmark bm = new FunctionBookmark(null, 0, s);
@@ -4262,12 +4460,40 @@ public class Sketch {
             keywords.put(bm.getName(), KeywordTypes.KEYWORD3);
         }
 
+        // Anything the core and libraries define that their keywords
+        // files don't mention
+        for (SymbolIndex.Symbol s : symbolIndex.getSymbols()) {
+            if (s.getOrigin().equals(SymbolIndex.SKETCH) || keywords.containsKey(s.getName())) {
+                continue;
+            }
+            switch (s.getKind()) {
+                case SymbolIndex.FUNCTION:
+                    keywords.put(s.getName(), KeywordTypes.KEYWORD2);
+                    break;
+                case SymbolIndex.CLASS:
+                    keywords.put(s.getName(), KeywordTypes.KEYWORD1);
+                    break;
+                case SymbolIndex.MACRO:
+                    keywords.put(s.getName(), KeywordTypes.LITERAL1);
+                    break;
+            }
+        }
+
+        // Editors only need telling if something actually changed
+        if (!keywords.equals(this.keywords)) {
+            keywordTable = new KeywordTable(keywords);
+            this.keywords = keywords;
+        }
     }
 
     public HashMap<String, Integer> getKeywords() {
         return keywords;
     }
 
+    public KeywordTable getKeywordTable() {
+        return keywordTable;
+    }
+
     public ImageIcon getIcon() {
         PropertyFile m = ctx.getMerged();
         if ((m.get("sketch.icon") != null) && !(m.get("sketch.icon").equals(""))) {
@@ -4315,88 +4541,53 @@ public class Sketch {
     }
 
     public boolean parseLineForErrorMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.error"));
-        Matcher m = p.matcher(mess);
-        if (m.find()) {
-            File errorFile = new File(m.group(1));
-            int errorLineNumber = Integer.parseInt(m.group(2));
-            if (editor != null) {
-                try {
-                    PropertyFile theme = Base.getTheme();
-                    int tabNumber = editor.getTabByFile(errorFile);
-
-                    if(tabNumber > -1) {
-                        EditorBase eb = editor.getTab(tabNumber);
-                        eb.highlightLine(errorLineNumber - 1, theme.getColor("editor.compile.error.bgcolor"));
-                        eb.flagLine(errorLineNumber - 1, Base.getIcon("flags", "fixme", 16), 0x1000);
-                    }
-
-                    String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
-
-                    if (containsFile(errorFile)) {
-                        String errmess = String.format(
-                            "{\\bullet}{\\error Error at }{\\link %s|line %d in file %s}{\\error :}\n",
-                                linkUrl, errorLineNumber, errorFile.getName());
-
-                        ctx.parsedMessage(errmess);
-
-                    } else {
-                        ctx.parsedMessage("{\\bullet}{\\error Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-                    }
-
-                } catch (Exception execpt) {
-                }
-            } else {
-                ctx.parsedMessage("{\\bullet}{\\error Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-            }
-            ctx.parsedMessage("{\\bullet2}{\\error " + m.group(3) + "}\n");
-            setLineComment(errorFile, errorLineNumber, m.group(3));
-            return true;
+        Diagnostic d = getDiagnosticsEngine().matchError(mess);
+        if (d == null) {
+            return false;
         }
-        return false;
+        reportDiagnostic(ctx, d);
+        return true;
     }
 
     public boolean parseLineForWarningMessage(Context ctx, String mess) {
-        PropertyFile props = ctx.getMerged();
-        Pattern p = Pattern.compile(props.get("compiler.warning"));
-        Matcher m = p.matcher(mess);
-        if (m.find()) {
-            File errorFile = new File(m.group(1));
-            int errorLineNumber = Integer.parseInt(m.group(2));
-            if (editor != null) {
-                try {
-                    PropertyFile theme = Base.getTheme();
-                    int tabNumber = editor.getTabByFile(errorFile);
+        Diagnostic d = getDiagnosticsEngine().matchWarning(mess);
+        if (d == null) {
+            return false;
+        }
+        reportDiagnostic(ctx, d);
+        return true;
+    }
 
-                    if(tabNumber > -1) {
-                        EditorBase eb = editor.getTab(tabNumber);
-                        eb.highlightLine(errorLineNumber - 1, theme.getColor("editor.compile.warning.bgcolor"));
-                        eb.flagLine(errorLineNumber - 1, Base.getIcon("flags", "todo", 16), 0x1001);
-                    }
-                    String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
+    // Check a line for either an error or a warning
+    public boolean parseLineForDiagnostic(Context ctx, String mess) {
+        Diagnostic d = getDiagnosticsEngine().match(mess);
+        if (d == null) {
+            return false;
+        }
+        reportDiagnostic(ctx, d);
+        return true;
+    }
 
-                    if (containsFile(errorFile)) {
-                        String errmess = String.format(
-                            "{\\bullet}{\\warning Warning at }{\\link %s|line %d in file %s}{\\warning :}\n",
-                                linkUrl, errorLineNumber, errorFile.getName());
+    // Print a diagnostic to the console the first time it is seen. The
+    // editor is flagged later, a batch at a time, by flushDiagnostics().
+    void reportDiagnostic(Context ctx, Diagnostic d) {
+        if (!getDiagnosticsEngine().record(d)) {
+            return;
+        }
 
-                        ctx.parsedMessage(errmess);
+        String type = d.isError() ? "error" : "warning";
+        String title = d.isError() ? "Error" : "Warning";
+        File errorFile = d.getFile();
+        int errorLineNumber = d.getLine();
 
-                    } else {
-                        ctx.parsedMessage("{\\bullet}{\\warning Error at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-                    }
-
-                } catch (Exception execpt) {
-                }
-            } else {
-                ctx.parsedMessage("{\\bullet}{\\warning Warning at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
-            }
-            ctx.parsedMessage("{\\bullet2}{\\warning " + m.group(3) + "}\n");
-            setLineComment(errorFile, errorLineNumber, m.group(3));
-            return true;
+        if ((editor != null) && containsFile(errorFile)) {
+            String linkUrl = "uecide://error/" + errorLineNumber + "/" + errorFile.getAbsolutePath();
+            ctx.parsedMessage("{\\bullet}{\\" + type + " " + title + " at }{\\link " + linkUrl + "|line " + errorLineNumber + " in file " + errorFile.getName() + "}{\\" + type + " :}\n");
+        } else {
+            ctx.parsedMessage("{\\bullet}{\\" + type + " " + title + " at line " + errorLineNumber + " in file " + errorFile.getName() + ":}\n");
         }
-        return false;
+        ctx.parsedMessage("{\\bullet2}{\\" + type + " " + d.getMessage() + "}\n");
+        setLineComment(errorFile, errorLineNumber, d.getMessage());
     }
 
     public boolean containsFile(File f) {
@@ -4409,7 +4600,7 @@ public class Sketch {
     }
 
     public void parsedMessage(String e) {
-        ctx.printParsed(e);
+        ctx.printParsed(e, out(), err());
     }
 
     public boolean huntForLibraries(File f, HashMap<String, Library>foundLibs, ArrayList<String> missingLibs) {
@@ -4499,11 +4690,29 @@ public class Sketch {
     }
 
     public void outputErrorStream(String msg) {
-        System.err.print(msg);
+        err().print(msg);
     }
    
     public void outputMessageStream(String msg) {
-        System.out.print(msg);
+        out().print(msg);
+    }
+
+    // Where output goes when there is no editor. Normally the console, but
+    // a build running alongside others can keep its output to itself.
+    PrintStream outStream = null;
+    PrintStream errStream = null;
+
+    public void setOutput(PrintStream out, PrintStream err) {
+        outStream = out;
+        errStream = err;
+    }
+
+    PrintStream out() {
+        return outStream != null ? outStream : System.out;
+    }
+
+    PrintStream err() {
+        return errStream != null ? errStream : System.err;
     }
 
 }
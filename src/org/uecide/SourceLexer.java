@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import java.util.regex.*;
+
+/* One pass over a C or C++ source file that collects everything the
+ * sketch preprocessing needs:
+ *
+ *   - the text with comments blanked out (newlines kept so line numbers
+ *     still match), both as-is and with every line trimmed;
+ *   - the preprocessor directives, with their line numbers;
+ *   - the brace depth at the start of each line;
+ *   - the function signatures at file scope;
+ *   - the file scope declarations, split at ";" and "{".
+ *
+ * Strings and character literals are followed properly, so a quote or a
+ * comment marker inside one doesn't upset anything, and backslash escapes
+ * are skipped wherever they appear.
+ *
+ * Function signatures are found the same way they always have been: with
+ * everything inside braces, strings and character literals removed, a
+ * line that contains a "type name(" pattern and doesn't end with ";"
+ * starts a signature, which runs until a line ends with ")". Signatures
+ * are keyed by the (zero based) line they start on.
+ *
+ * Declarations, and a second set of signatures, also look inside
+ * namespace and extern "C" blocks as if they were file scope. That is
+ * what the symbol index wants; prototypes must only ever be made for, and
+ * placed before, the functions that really are at file scope.
+ *
+ * A result holds on to the source it was made from so callers can cache
+ * it and check whether the text has changed before parsing it again.
+ */
+
+public class SourceLexer {
+    static final Pattern SIGNATURE = Pattern.compile("[a-zA-Z0-9_\\*]+\\s+[a-zA-Z0-9_\\*]+\\s*\\(");
+
+    static final int CODE = 0;
+    static final int LINE_COMMENT = 1;
+    static final int BLOCK_COMMENT = 2;
+    static final int STRING = 3;
+    static final int CHARACTER = 4;
+
+    // A file scope statement: the text up to a ";" or the header of a
+    // "{" block, with strings and character literals removed.
+    public static class Declaration {
+        int line;
+        String text;
+        char terminator;
+        String after;
+
+        // Zero based line the statement starts on
+        public int getLine() { return line; }
+
+        public String getText() { return text; }
+
+        // ';' or '{'
+        public char getTerminator() { return terminator; }
+
+        // For a statement straight after a block, such as the name in
+        // "typedef struct { ... } name;", the header of that block.
+        public String getBlockHeader() { return after; }
+    }
+
+    // Finds function signatures in the text it is given a line at a time
+    static class SignatureFinder {
+        StringBuilder text = new StringBuilder();
+        StringBuilder signature = new StringBuilder();
+        int signatureLine = -1;
+        HashMap<Integer, String> found = new HashMap<Integer, String>();
+
+        // The text of a line is complete; see if it's (part of) a
+        // function signature.
+        void endLine(int line, boolean directive) {
+            String t = text.toString().trim();
+            text.setLength(0);
+
+            if (directive || t.length() == 0) {
+                return;
+            }
+
+            if (signatureLine >= 0) {
+                signature.append(t);
+                if (t.endsWith(")")) {
+                    found.put(signatureLine, signature.toString());
+                    signature.setLength(0);
+                    signatureLine = -1;
+                }
+                return;
+            }
+
+            if (t.endsWith(";") || t.indexOf('(') < 0) {
+                return;
+            }
+
+            if (SIGNATURE.matcher(t).find()) {
+                if (t.endsWith(")")) {
+                    found.put(line, t);
+                } else {
+                    signature.append(t);
+                    signatureLine = line;
+                }
+            }
+        }
+
+        void done() {
+            text = null;
+            signature = null;
+        }
+    }
+
+    public static class Directive {
+        int line;
+        String text;
+        String keyword;
+        String argument;
+
+        // Zero based line number
+        public int getLine() { return line; }
+
+        // The whole directive line, trimmed and without comments
+        public String getText() { return text; }
+
+        // "include", "pragma", "define" etc.
+        public String getKeyword() { return keyword; }
+
+        // Everything after the keyword
+        public String getArgument() { return argument; }
+
+        // The file named by an #include, or null
+        public String getInclude() {
+            if (!keyword.equals("include") || argument.length() < 2) {
+                return null;
+            }
+            char open = argument.charAt(0);
+            char close;
+            if (open == '<') {
+                close = '>';
+            } else if (open == '"') {
+                close = '"';
+            } else {
+                return null;
+            }
+            int end = argument.indexOf(close, 1);
+            if (end < 0) {
+                return null;
+            }
+            return argument.substring(1, end);
+        }
+
+        // { key, value } of a "#pragma parameter key = value", or null
+        public String[] getParameter() {
+            if (!keyword.equals("pragma") || !argument.startsWith("parameter")) {
+                return null;
+            }
+            String rest = argument.substring(9);
+            if (rest.length() == 0 || !Character.isWhitespace(rest.charAt(0))) {
+                return null;
+            }
+            int eq = rest.indexOf('=');
+            if (eq < 0) {
+                return null;
+            }
+            String key = rest.substring(0, eq).trim();
+            if (key.length() == 0) {
+                return null;
+            }
+            return new String[] { key, rest.substring(eq + 1).trim() };
+        }
+    }
+
+    String source;
+    String stripped;
+    String cleaned;
+    int[] lineStarts;
+    int[] depths;
+    int lineCount;
+    ArrayList<Directive> directives = new ArrayList<Directive>();
+    ArrayList<Declaration> declarations = new ArrayList<Declaration>();
+
+    // Scratch state for the function finders: one for file scope, one
+    // that also looks inside namespace and extern blocks
+    SignatureFinder fileScope = new SignatureFinder();
+    SignatureFinder blockScope = new SignatureFinder();
+    StringBuilder statement = new StringBuilder();
+    int statementLine = -1;
+    String openBlock = null;
+    String lastBlock = null;
+
+    public static SourceLexer parse(String source) {
+        SourceLexer l = new SourceLexer(source == null ? "" : source);
+        l.run();
+        return l;
+    }
+
+    SourceLexer(String s) {
+        source = s;
+    }
+
+    void run() {
+        int len = source.length();
+        char[] in = source.toCharArray();
+        StringBuilder strip = new StringBuilder(len);
+        StringBuilder clean = new StringBuilder(len);
+
+        int[] starts = new int[64];
+        int[] depth = new int[64];
+        int line = 0;
+        starts[0] = 0;
+
+        int state = CODE;
+        int braces = 0;
+        int level = 0;                  // Depth not counting namespace and extern blocks
+        boolean[] transparent = new boolean[16];
+        int cleanLineStart = 0;
+        boolean lineStart = true;       // Nothing but whitespace so far on this line
+        boolean directive = false;      // This line is (part of) a directive
+        boolean continued = false;      // The previous directive line ended with a backslash
+
+        for (int i = 0; i < len; i++) {
+            char c = in[i];
+            char next = i + 1 < len ? in[i + 1] : 0;
+
+            if (c == '\n') {
+                // Only block comments carry on past the end of a line; an
+                // unterminated literal is abandoned rather than swallowing
+                // the rest of the file.
+                if (state != BLOCK_COMMENT) {
+                    state = CODE;
+                }
+                strip.append('\n');
+
+                while (clean.length() > cleanLineStart && clean.charAt(clean.length() - 1) <= ' ') {
+                    clean.setLength(clean.length() - 1);
+                }
+                if (directive) {
+                    addDirective(line, clean.substring(cleanLineStart));
+                    continued = clean.length() > cleanLineStart && clean.charAt(clean.length() - 1) == '\\';
+                } else {
+                    continued = false;
+                }
+                clean.append('\n');
+                cleanLineStart = clean.length();
+
+                if (!directive && level == 0 && statement.length() > 0) {
+                    statement.append(' ');
+                }
+                fileScope.endLine(line, directive);
+                blockScope.endLine(line, directive);
+                line++;
+                if (line == starts.length) {
+                    starts = Arrays.copyOf(starts, line * 2);
+                    depth = Arrays.copyOf(depth, line * 2);
+                }
+                starts[line] = i + 1;
+                depth[line] = braces;
+                lineStart = true;
+                directive = continued;
+                continue;
+            }
+
+            switch (state) {
+                case LINE_COMMENT:
+                    continue;
+
+                case BLOCK_COMMENT:
+                    if (c == '*' && next == '/') {
+                        state = CODE;
+                        i++;
+                    }
+                    continue;
+
+                case STRING:
+                case CHARACTER:
+                    strip.append(c);
+                    clean.append(c);
+                    if (c == '\\' && next != 0 && next != '\n') {
+                        strip.append(next);
+                        clean.append(next);
+                        i++;
+                    } else if ((state == STRING && c == '"') || (state == CHARACTER && c == '\'')) {
+                        state = CODE;
+                    }
+                    continue;
+            }
+
+            // Plain code from here on
+            if (c == '/' && next == '/') {
+                state = LINE_COMMENT;
+                strip.append(' ');
+                if (!lineStart) {
+                    clean.append(' ');
+                }
+                i++;
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                state = BLOCK_COMMENT;
+                strip.append(' ');
+                if (!lineStart) {
+                    clean.append(' ');
+                }
+                i++;
+                continue;
+            }
+
+            strip.append(c);
+
+            if (c <= ' ') {
+                if (!lineStart) {
+                    clean.append(c);
+                }
+                if (!directive && level == 0) {
+                    blockScope.text.append(c);
+                    if (braces == 0) {
+                        fileScope.text.append(c);
+                    }
+                    if (statement.length() > 0) {
+                        statement.append(c);
+                    }
+                }
+                continue;
+            }
+
+            if (lineStart && c == '#') {
+                directive = true;
+            }
+            lineStart = false;
+            clean.append(c);
+
+            if (c == '\\') {
+                if (next != 0 && next != '\n') {
+                    strip.append(next);
+                    clean.append(next);
+                    i++;
+                }
+                continue;
+            }
+
+            if (c == '"') {
+                state = STRING;
+                continue;
+            }
+            if (c == '\'') {
+                state = CHARACTER;
+                continue;
+            }
+
+            if (directive) {
+                continue;
+            }
+
+            if (c == '{') {
+                boolean open = false;
+                if (level == 0) {
+                    String header = endStatement('{');
+                    open = header.startsWith("namespace") || header.equals("extern");
+                    openBlock = header;
+                    lastBlock = null;
+                }
+                if (braces == transparent.length) {
+                    transparent = Arrays.copyOf(transparent, braces * 2);
+                }
+                transparent[braces++] = open;
+                if (!open) {
+                    level++;
+                }
+                continue;
+            }
+            if (c == '}') {
+                if (braces > 0) {
+                    braces--;
+                    if (!transparent[braces] && level > 0) {
+                        level--;
+                        // Anything but a function body can have declarators
+                        // after it
+                        if (level == 0 && openBlock != null && openBlock.indexOf('(') < 0) {
+                            lastBlock = openBlock;
+                        }
+                    } else if (transparent[braces]) {
+                        lastBlock = null;
+                    }
+                }
+                continue;
+            }
+            if (level == 0) {
+                blockScope.text.append(c);
+                if (braces == 0) {
+                    fileScope.text.append(c);
+                }
+                if (c == ';') {
+                    endStatement(';');
+                    lastBlock = null;
+                    continue;
+                }
+                if (statement.length() == 0) {
+                    statementLine = line;
+                }
+                statement.append(c);
+            }
+        }
+
+        while (clean.length() > cleanLineStart && clean.charAt(clean.length() - 1) <= ' ') {
+            clean.setLength(clean.length() - 1);
+        }
+        if (directive) {
+            addDirective(line, clean.substring(cleanLineStart));
+        }
+        fileScope.endLine(line, directive);
+        blockScope.endLine(line, directive);
+
+        stripped = strip.toString();
+        cleaned = clean.toString();
+        lineCount = line + 1;
+        lineStarts = starts;
+        depths = depth;
+        fileScope.done();
+        blockScope.done();
+        statement = null;
+    }
+
+    // Record the statement so far, returning its text
+    String endStatement(char terminator) {
+        String t = statement.toString().trim();
+        statement.setLength(0);
+        if (t.length() > 0 || terminator == '{') {
+            Declaration d = new Declaration();
+            d.line = statementLine < 0 ? 0 : statementLine;
+            d.text = t;
+            d.terminator = terminator;
+            d.after = terminator == ';' ? lastBlock : null;
+            declarations.add(d);
+        }
+        statementLine = -1;
+        return t;
+    }
+
+    void addDirective(int line, String text) {
+        Directive d = new Directive();
+        d.line = line;
+        d.text = text;
+        int p = 0;
+        int n = text.length();
+        if (p < n && text.charAt(p) == '#') {
+            p++;
+            while (p < n && text.charAt(p) <= ' ') {
+                p++;
+            }
+            int k = p;
+            while (p < n && Character.isLetterOrDigit(text.charAt(p))) {
+                p++;
+            }
+            d.keyword = text.substring(k, p);
+            d.argument = text.substring(p).trim();
+        } else {
+            // A continuation line of a multi-line directive
+            d.keyword = "";
+            d.argument = text;
+        }
+        directives.add(d);
+    }
+
+    public String getSource() { return source; }
+
+    // The source with comments replaced by a space
+    public String getStripped() { return stripped; }
+
+    // As getStripped, with leading and trailing space removed from each line
+    public String getCleaned() { return cleaned; }
+
+    public int getLineCount() { return lineCount; }
+
+    // Brace depth at the start of the given (zero based) line
+    public int getDepth(int line) {
+        return line < 0 || line >= lineCount ? 0 : depths[line];
+    }
+
+    // A line of the original source, without its newline
+    public String getLine(int line) {
+        int start = lineStarts[line];
+        int end = line + 1 < lineCount ? lineStarts[line + 1] - 1 : source.length();
+        return source.substring(start, end);
+    }
+
+    public ArrayList<Directive> getDirectives() { return directives; }
+
+    // The file named by each #include, in order
+    public ArrayList<String> getIncludes() {
+        ArrayList<String> out = new ArrayList<String>();
+        for (Directive d : directives) {
+            String inc = d.getInclude();
+            if (inc != null) {
+                out.add(inc);
+            }
+        }
+        return out;
+    }
+
+    // Function signatures at file scope by the line they start on
+    public HashMap<Integer, String> getFunctions() { return fileScope.found; }
+
+    // As getFunctions, including those inside namespace and extern blocks
+    public HashMap<Integer, String> getScopedFunctions() { return blockScope.found; }
+
+    public ArrayList<Declaration> getDeclarations() { return declarations; }
+
+    // The line of the first function, or -1 if there are none
+    public int getFirstFunctionLine() {
+        int first = -1;
+        for (Integer l : fileScope.found.keySet()) {
+            if (first < 0 || l < first) {
+                first = l;
+            }
+        }
+        return first;
+    }
+
+    // A signature made into a prototype: default arguments removed
+    public static String prototype(String signature) {
+        int eq = signature.indexOf('=');
+        if (eq < 0) {
+            return signature;
+        }
+        StringBuilder out = new StringBuilder(signature.length());
+        int i = 0;
+        int n = signature.length();
+        while (i < n) {
+            char c = signature.charAt(i);
+            if (c == '=' && i + 1 < n && signature.charAt(i + 1) != ',' && signature.charAt(i + 1) != ')') {
+                i++;
+                while (i < n && signature.charAt(i) != ',' && signature.charAt(i) != ')') {
+                    i++;
+                }
+                continue;
+            }
+            out.append(c);
+            i++;
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/* Functions, classes, macros and variables defined at file scope in the
+ * sketch, its core and the libraries it uses, looked up by name or by
+ * the start of a name.
+ *
+ * The index is updated a file at a time. Sketch files are handed in
+ * already parsed (Sketch keeps the last parse of each file) and are only
+ * re-indexed when that parse changes. Core and library files are read
+ * from disk and only re-read when their size or date changes; their
+ * symbols are shared between every sketch that uses them.
+ */
+
+public class SymbolIndex {
+    public static final int FUNCTION = 1;
+    public static final int CLASS = 2;
+    public static final int MACRO = 3;
+    public static final int VARIABLE = 4;
+
+    // Where a file's symbols came from
+    public static final String SKETCH = "sketch";
+
+    static final Pattern CLASS_HEAD = Pattern.compile("^(?:template\\s*<.*>\\s*)?(?:typedef\\s+)?(?:class|struct|union|enum)(?:\\s+class)?\\s+([A-Za-z_]\\w*)");
+
+    public static class Symbol {
+        String name;
+        int kind;
+        File file;
+        int line;
+        String text;
+        String origin;
+
+        public String getName() { return name; }
+        public int getKind() { return kind; }
+        public File getFile() { return file; }
+        // Zero based
+        public int getLine() { return line; }
+        // The signature or declaration it was found in
+        public String getText() { return text; }
+        // SKETCH, a core library name or a library name
+        public String getOrigin() { return origin; }
+
+        public String toString() {
+            return text;
+        }
+    }
+
+    static class FileSymbols {
+        File file;
+        String origin;
+        long modified;
+        long length;
+        SourceLexer source;
+        ArrayList<Symbol> symbols;
+    }
+
+    // Parsed core and library files, shared by all indexes
+    static final HashMap<File, FileSymbols> shared = new HashMap<File, FileSymbols>();
+
+    HashMap<File, FileSymbols> files = new HashMap<File, FileSymbols>();
+    TreeMap<String, ArrayList<Symbol>> names = new TreeMap<String, ArrayList<Symbol>>();
+
+    // Index a file from its parsed text
+    public void update(File f, String origin, SourceLexer lex) {
+        synchronized (this) {
+            FileSymbols fs = files.get(f);
+            if (fs != null && fs.source == lex) {
+                return;
+            }
+        }
+        FileSymbols fs = new FileSymbols();
+        fs.file = f;
+        fs.origin = origin;
+        fs.source = lex;
+        fs.symbols = extract(f, origin, lex);
+        install(fs);
+    }
+
+    // Index a file from disk if it has changed since it was last read
+    public void update(File f, String origin) {
+        FileSymbols fs;
+        synchronized (shared) {
+            fs = shared.get(f);
+        }
+        if (fs == null || fs.modified != f.lastModified() || fs.length != f.length() || !fs.origin.equals(origin)) {
+            fs = new FileSymbols();
+            fs.file = f;
+            fs.origin = origin;
+            fs.modified = f.lastModified();
+            fs.length = f.length();
+            byte[] data = Base.loadBytesRaw(f);
+            String text = "";
+            if (data != null) {
+                try {
+                    text = new String(data, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                }
+            }
+            fs.symbols = extract(f, origin, SourceLexer.parse(text));
+            synchronized (shared) {
+                shared.put(f, fs);
+            }
+        }
+        install(fs);
+    }
+
+    synchronized void install(FileSymbols fs) {
+        FileSymbols old = files.get(fs.file);
+        if (old == fs) {
+            return;
+        }
+        if (old != null) {
+            unlink(old);
+        }
+        files.put(fs.file, fs);
+        for (Symbol s : fs.symbols) {
+            ArrayList<Symbol> list = names.get(s.name);
+            if (list == null) {
+                list = new ArrayList<Symbol>(1);
+                names.put(s.name, list);
+            }
+            list.add(s);
+        }
+    }
+
+    void unlink(FileSymbols fs) {
+        for (Symbol s : fs.symbols) {
+            ArrayList<Symbol> list = names.get(s.name);
+            if (list == null) {
+                continue;
+            }
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == s) {
+                    list.remove(i);
+                    break;
+                }
+            }
+            if (list.isEmpty()) {
+                names.remove(s.name);
+            }
+        }
+    }
+
+    // Drop every file that isn't in the given set
+    public synchronized void retain(Set<File> keep) {
+        Iterator<Map.Entry<File, FileSymbols>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, FileSymbols> e = it.next();
+            if (!keep.contains(e.getKey())) {
+                unlink(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Everything defined with exactly this name
+    public synchronized ArrayList<Symbol> lookup(String name) {
+        ArrayList<Symbol> list = names.get(name);
+        return list == null ? new ArrayList<Symbol>() : new ArrayList<Symbol>(list);
+    }
+
+    // Up to max symbols whose names start with prefix, in name order
+    public synchronized ArrayList<Symbol> find(String prefix, int max) {
+        ArrayList<Symbol> out = new ArrayList<Symbol>();
+        for (ArrayList<Symbol> list : names.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            for (Symbol s : list) {
+                if (out.size() >= max) {
+                    return out;
+                }
+                out.add(s);
+            }
+        }
+        return out;
+    }
+
+    // The symbols of one file, in the order they were found
+    public synchronized ArrayList<Symbol> getSymbols(File f) {
+        FileSymbols fs = files.get(f);
+        return fs == null ? new ArrayList<Symbol>() : new ArrayList<Symbol>(fs.symbols);
+    }
+
+    // Every symbol in the index
+    public synchronized ArrayList<Symbol> getSymbols() {
+        ArrayList<Symbol> out = new ArrayList<Symbol>();
+        for (FileSymbols fs : files.values()) {
+            out.addAll(fs.symbols);
+        }
+        return out;
+    }
+
+    public synchronized int size() {
+        int n = 0;
+        for (FileSymbols fs : files.values()) {
+            n += fs.symbols.size();
+        }
+        return n;
+    }
+
+    /* Pulling the definitions out of a parsed file */
+
+    static ArrayList<Symbol> extract(File f, String origin, SourceLexer lex) {
+        ArrayList<Symbol> out = new ArrayList<Symbol>();
+
+        for (Map.Entry<Integer, String> fn : lex.getScopedFunctions().entrySet()) {
+            String sig = fn.getValue();
+            String name = lastIdentifier(sig.substring(0, sig.indexOf('(')));
+            if (name != null) {
+                symbol(out, name, FUNCTION, f, fn.getKey(), sig, origin);
+            }
+        }
+
+        for (SourceLexer.Directive d : lex.getDirectives()) {
+            if (d.getKeyword().equals("define")) {
+                String name = firstIdentifier(d.getArgument());
+                if (name != null) {
+                    symbol(out, name, MACRO, f, d.getLine(), d.getText(), origin);
+                }
+            }
+        }
+
+        for (SourceLexer.Declaration d : lex.getDeclarations()) {
+            declaration(out, d, f, origin);
+        }
+
+        Collections.sort(out, new Comparator<Symbol>() {
+            public int compare(Symbol a, Symbol b) {
+                return a.line - b.line;
+            }
+        });
+        return out;
+    }
+
+    static void declaration(ArrayList<Symbol> out, SourceLexer.Declaration d, File f, String origin) {
+        String t = d.getText();
+        if (t.length() == 0) {
+            return;
+        }
+
+        if (d.getTerminator() == '{') {
+            Matcher m = CLASS_HEAD.matcher(t);
+            if (m.find()) {
+                symbol(out, m.group(1), CLASS, f, d.getLine(), t, origin);
+            } else if (t.endsWith("=")) {
+                variables(out, t.substring(0, t.length() - 1), true, d, f, origin);
+            }
+            return;
+        }
+
+        String after = d.getBlockHeader();
+        if (after != null) {
+            // The names after "struct { ... }": types if it was a typedef,
+            // otherwise variables of that type
+            if (after.startsWith("typedef")) {
+                for (String part : t.split(",")) {
+                    String name = lastIdentifier(part);
+                    if (name != null) {
+                        symbol(out, name, CLASS, f, d.getLine(), after + " " + t, origin);
+                    }
+                }
+            } else if (!after.endsWith("=")) {
+                variables(out, t, false, d, f, origin);
+            }
+            return;
+        }
+
+        if (t.startsWith("typedef")) {
+            int p = t.indexOf("(*");
+            String name;
+            if (p >= 0) {
+                name = firstIdentifier(t.substring(p + 2));
+            } else {
+                name = lastIdentifier(t.replaceAll("\\[[^\\]]*\\]", ""));
+            }
+            if (name != null) {
+                symbol(out, name, CLASS, f, d.getLine(), t, origin);
+            }
+            return;
+        }
+
+        if (t.startsWith("extern") || t.startsWith("using") || t.startsWith("friend") || t.startsWith("template") || t.startsWith("static_assert")) {
+            return;
+        }
+
+        int paren = t.indexOf('(');
+        int eq = t.indexOf('=');
+        if (paren >= 0 && (eq < 0 || paren < eq)) {
+            // A prototype, or something too clever to be sure about
+            return;
+        }
+
+        Matcher m = CLASS_HEAD.matcher(t);
+        if (m.find() && m.end() == t.length()) {
+            // Forward declaration
+            return;
+        }
+
+        variables(out, t, true, d, f, origin);
+    }
+
+    // The names declared by "type a = 1, *b, c[4]"
+    static void variables(ArrayList<Symbol> out, String t, boolean typed, SourceLexer.Declaration d, File f, String origin) {
+        String[] parts = stripInitialisers(t).split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].replaceAll("\\[[^\\]]*\\]", "").trim();
+            if (i == 0 && typed && part.indexOf(' ') < 0 && part.indexOf('*') < 0 && part.indexOf('&') < 0) {
+                // Need at least a type and a name
+                return;
+            }
+            String name = lastIdentifier(part);
+            if (name != null) {
+                symbol(out, name, VARIABLE, f, d.getLine(), d.getText(), origin);
+            }
+        }
+    }
+
+    // Remove "= value" from each declarator, leaving the commas between them
+    static String stripInitialisers(String t) {
+        StringBuilder out = new StringBuilder(t.length());
+        int depth = 0;
+        boolean skipping = false;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (c == '(' || c == '[' || c == '<') {
+                depth++;
+            } else if ((c == ')' || c == ']' || c == '>') && depth > 0) {
+                depth--;
+            }
+            if (depth == 0 && c == ',') {
+                skipping = false;
+            } else if (depth == 0 && c == '=') {
+                skipping = true;
+            }
+            if (!skipping) {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    static Symbol symbol(ArrayList<Symbol> out, String name, int kind, File f, int line, String text, String origin) {
+        Symbol s = new Symbol();
+        s.name = name;
+        s.kind = kind;
+        s.file = f;
+        s.line = line;
+        s.text = text;
+        s.origin = origin;
+        out.add(s);
+        return s;
+    }
+
+    static boolean identChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    static String firstIdentifier(String s) {
+        int i = 0;
+        int n = s.length();
+        while (i < n && !identChar(s.charAt(i))) {
+            i++;
+        }
+        int start = i;
+        while (i < n && identChar(s.charAt(i))) {
+            i++;
+        }
+        if (start == i || Character.isDigit(s.charAt(start))) {
+            return null;
+        }
+        return s.substring(start, i);
+    }
+
+    static String lastIdentifier(String s) {
+        int i = s.length() - 1;
+        while (i >= 0 && !identChar(s.charAt(i))) {
+            i--;
+        }
+        int end = i + 1;
+        while (i >= 0 && identChar(s.charAt(i))) {
+            i--;
+        }
+        if (end == i + 1 || Character.isDigit(s.charAt(i + 1))) {
+            return null;
+        }
+        return s.substring(i + 1, end);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.util.*;
+import javax.swing.tree.*;
+
+/* Brings a node of a live tree into line with a freshly built copy.
+ *
+ * Children are matched by the class and string form of their user
+ * objects. Matched nodes stay in the tree, with just their user object
+ * swapped for the new one, so selection and expansion are untouched;
+ * everything else is inserted or removed with the model told about each
+ * change as it happens rather than reloading the whole branch.
+ *
+ * A kept node is only reported as changed if its new user object isn't
+ * equal to the old one, or if refresh is set - for objects such as
+ * libraries whose rendering depends on state that changes in place.
+ */
+
+public class TreeSync {
+
+    // Puts the children of every node below root into order
+    public static void sort(DefaultMutableTreeNode root, Comparator<? super DefaultMutableTreeNode> order) {
+        int n = root.getChildCount();
+        if (n == 0) {
+            return;
+        }
+        ArrayList<DefaultMutableTreeNode> kids = new ArrayList<DefaultMutableTreeNode>(n);
+        for (int i = 0; i < n; i++) {
+            kids.add((DefaultMutableTreeNode)root.getChildAt(i));
+        }
+        Collections.sort(kids, order);
+        root.removeAllChildren();
+        for (DefaultMutableTreeNode kid : kids) {
+            root.add(kid);
+            sort(kid, order);
+        }
+    }
+
+    static String key(DefaultMutableTreeNode node) {
+        Object o = node.getUserObject();
+        if (o == null) {
+            return "";
+        }
+        return o.getClass().getName() + ":" + o.toString();
+    }
+
+    public static boolean sync(DefaultTreeModel model, DefaultMutableTreeNode dst, DefaultMutableTreeNode src) {
+        return sync(model, dst, src, false);
+    }
+
+    /* Make the children of dst match those of src, in src's order. The
+     * nodes of src are used up in the process. Returns true if anything
+     * was added, removed or moved. */
+    public static boolean sync(DefaultTreeModel model, DefaultMutableTreeNode dst, DefaultMutableTreeNode src, boolean refresh) {
+        boolean changed = false;
+
+        ArrayList<DefaultMutableTreeNode> want = new ArrayList<DefaultMutableTreeNode>();
+        HashMap<String, Integer> wanted = new HashMap<String, Integer>();
+        for (int i = 0; i < src.getChildCount(); i++) {
+            DefaultMutableTreeNode n = (DefaultMutableTreeNode)src.getChildAt(i);
+            want.add(n);
+            String k = key(n);
+            Integer c = wanted.get(k);
+            wanted.put(k, c == null ? 1 : c + 1);
+        }
+
+        // Drop what's no longer there, as one event
+        ArrayList<Integer> gone = new ArrayList<Integer>();
+        for (int i = 0; i < dst.getChildCount(); i++) {
+            String k = key((DefaultMutableTreeNode)dst.getChildAt(i));
+            Integer c = wanted.get(k);
+            if (c == null || c == 0) {
+                gone.add(i);
+            } else {
+                wanted.put(k, c - 1);
+            }
+        }
+        if (gone.size() > 0) {
+            int[] idx = new int[gone.size()];
+            Object[] nodes = new Object[gone.size()];
+            for (int i = gone.size() - 1; i >= 0; i--) {
+                idx[i] = gone.get(i);
+                nodes[i] = dst.getChildAt(idx[i]);
+                dst.remove(idx[i]);
+            }
+            model.nodesWereRemoved(dst, idx, nodes);
+            changed = true;
+        }
+
+        ArrayList<Integer> touched = new ArrayList<Integer>();
+
+        // Walk the wanted list, keeping, moving or adding nodes to suit
+        for (int i = 0; i < want.size(); i++) {
+            DefaultMutableTreeNode w = want.get(i);
+            String k = key(w);
+
+            int at = -1;
+            for (int j = i; j < dst.getChildCount(); j++) {
+                if (key((DefaultMutableTreeNode)dst.getChildAt(j)).equals(k)) {
+                    at = j;
+                    break;
+                }
+            }
+
+            if (at == -1) {
+                src.remove(w);
+                dst.insert(w, i);
+                model.nodesWereInserted(dst, new int[] { i });
+                changed = true;
+                continue;
+            }
+
+            DefaultMutableTreeNode have = (DefaultMutableTreeNode)dst.getChildAt(at);
+            if (at != i) {
+                dst.remove(at);
+                model.nodesWereRemoved(dst, new int[] { at }, new Object[] { have });
+                dst.insert(have, i);
+                model.nodesWereInserted(dst, new int[] { i });
+                changed = true;
+            }
+
+            Object o = w.getUserObject();
+            Object old = have.getUserObject();
+            if (old != o) {
+                have.setUserObject(o);
+            }
+            if (refresh || (o == null ? old != null : !o.equals(old))) {
+                touched.add(i);
+            }
+
+            if (sync(model, have, w, refresh)) {
+                changed = true;
+            }
+        }
+
+        if (touched.size() > 0) {
+            int[] idx = new int[touched.size()];
+            for (int i = 0; i < idx.length; i++) {
+                idx[i] = touched.get(i);
+            }
+            model.nodesChanged(dst, idx);
+        }
+
+        return changed;
+    }
+}
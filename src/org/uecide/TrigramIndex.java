@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide;
+
+import java.io.*;
+import java.util.*;
+
+/* Which three character sequences each file contains.
+ *
+ * A file can only contain a literal search term if it contains every
+ * trigram of that term, so once a file has been indexed most searches can
+ * rule it out without reading it. Files are indexed as a side effect of
+ * being searched and are dropped from consideration as soon as their size
+ * or date changes.
+ *
+ * Trigrams are taken over the raw bytes of the file with ASCII letters
+ * folded to lower case, so the same index serves case sensitive and
+ * insensitive searches. Characters are packed ten bits apiece; anything
+ * that collides only makes a file look like a candidate when it isn't,
+ * never the other way round.
+ */
+
+public class TrigramIndex {
+    static class Entry {
+        long modified;
+        long length;
+        int[] grams;
+    }
+
+    HashMap<File, Entry> files = new HashMap<File, Entry>();
+
+    static int fold(int c) {
+        if (c >= 'A' && c <= 'Z') {
+            return c + 32;
+        }
+        return c & 0x3FF;
+    }
+
+    // The distinct trigrams of some text, sorted. Duplicates are dropped
+    // through an open addressed set first, since source text repeats most
+    // of its trigrams many times over.
+    public static int[] trigrams(CharSequence s) {
+        int n = s.length();
+        if (n < 3) {
+            return new int[0];
+        }
+        int[] table = new int[1024];    // Trigram + 1, so 0 is empty
+        int mask = table.length - 1;
+        int count = 0;
+        int g = (fold(s.charAt(0)) << 10) | fold(s.charAt(1));
+        for (int i = 2; i < n; i++) {
+            g = ((g << 10) | fold(s.charAt(i))) & 0x3FFFFFFF;
+            int v = g + 1;
+            int h = (v * 0x9E3779B1) >>> 8;
+            while (true) {
+                int slot = h & mask;
+                if (table[slot] == v) {
+                    break;
+                }
+                if (table[slot] == 0) {
+                    table[slot] = v;
+                    count++;
+                    if (count * 2 > table.length) {
+                        table = grow(table);
+                        mask = table.length - 1;
+                    }
+                    break;
+                }
+                h++;
+            }
+        }
+        int[] out = new int[count];
+        int o = 0;
+        for (int v : table) {
+            if (v != 0) {
+                out[o++] = v - 1;
+            }
+        }
+        Arrays.sort(out);
+        return out;
+    }
+
+    static int[] grow(int[] table) {
+        int[] bigger = new int[table.length * 2];
+        int mask = bigger.length - 1;
+        for (int v : table) {
+            if (v != 0) {
+                int h = (v * 0x9E3779B1) >>> 8;
+                while (bigger[h & mask] != 0) {
+                    h++;
+                }
+                bigger[h & mask] = v;
+            }
+        }
+        return bigger;
+    }
+
+    // The trigrams a term is made of, taken from its UTF-8 bytes to match
+    // the way files are indexed.
+    public static int[] termTrigrams(String term) {
+        try {
+            byte[] b = term.getBytes("UTF-8");
+            char[] c = new char[b.length];
+            for (int i = 0; i < b.length; i++) {
+                c[i] = (char)(b[i] & 0xFF);
+            }
+            return trigrams(new String(c));
+        } catch (UnsupportedEncodingException e) {
+            return new int[0];
+        }
+    }
+
+    public synchronized boolean isIndexed(File f) {
+        Entry e = files.get(f);
+        return e != null && e.modified == f.lastModified() && e.length == f.length();
+    }
+
+    // Index a file's content, which must be its bytes viewed as ISO-8859-1
+    public void add(File f, long modified, long length, CharSequence content) {
+        Entry e = new Entry();
+        e.modified = modified;
+        e.length = length;
+        e.grams = trigrams(content);
+        synchronized (this) {
+            files.put(f, e);
+        }
+    }
+
+    /* True if the file is indexed, hasn't changed, and is missing at least
+     * one of the trigrams - so can't contain the term they came from. */
+    public boolean excludes(File f, int[] term) {
+        if (term.length == 0) {
+            return false;
+        }
+        Entry e;
+        synchronized (this) {
+            e = files.get(f);
+        }
+        if (e == null || e.modified != f.lastModified() || e.length != f.length()) {
+            return false;
+        }
+        for (int g : term) {
+            if (Arrays.binarySearch(e.grams, g) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        files.clear();
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+}
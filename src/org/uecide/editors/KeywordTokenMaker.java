@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015, Majenko Technologies
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer in the documentation and/or
+ *   other materials provided with the distribution.
+ *
+ * * Neither the name of Majenko Technologies nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.uecide.editors;
+
+import org.uecide.*;
+
+import org.fife.ui.rsyntaxtextarea.*;
+import org.fife.ui.rsyntaxtextarea.modes.*;
+
+/* The C++ token maker with the sketch's keywords looked up in a shared
+ * KeywordTable rather than copied into a map of its own. Registered in
+ * place of the stock extendable C++ token maker, so every editor using
+ * that style gets one.
+ */
+
+public class KeywordTokenMaker extends ExtendableCPlusPlusTokenMaker {
+    static final int[] tokenTypes = new int[0x30];
+
+    static {
+        for (int i = 0; i < tokenTypes.length; i++) {
+            tokenTypes[i] = -1;
+        }
+        tokenTypes[KeywordTypes.LITERAL1] = TokenTypes.VARIABLE;
+        tokenTypes[KeywordTypes.LITERAL2] = TokenTypes.PREPROCESSOR;
+        tokenTypes[KeywordTypes.LITERAL3] = TokenTypes.PREPROCESSOR;
+        tokenTypes[KeywordTypes.KEYWORD1] = TokenTypes.RESERVED_WORD;
+        tokenTypes[KeywordTypes.KEYWORD2] = TokenTypes.IDENTIFIER;
+        tokenTypes[KeywordTypes.KEYWORD3] = TokenTypes.FUNCTION;
+        tokenTypes[KeywordTypes.OBJECT] = TokenTypes.RESERVED_WORD_2;
+        tokenTypes[KeywordTypes.VARIABLE] = TokenTypes.VARIABLE;
+        tokenTypes[KeywordTypes.FUNCTION] = TokenTypes.FUNCTION;
+        tokenTypes[KeywordTypes.DATATYPE] = TokenTypes.DATA_TYPE;
+        tokenTypes[KeywordTypes.RESERVED] = TokenTypes.RESERVED_WORD;
+    }
+
+    volatile KeywordTable keywords = null;
+
+    public static void register() {
+        AbstractTokenMakerFactory f = (AbstractTokenMakerFactory)TokenMakerFactory.getDefaultInstance();
+        f.putMapping(SyntaxConstants.SYNTAX_STYLE_EXTENDABLE_CPLUSPLUS, KeywordTokenMaker.class.getName(), KeywordTokenMaker.class.getClassLoader());
+    }
+
+    // The token type a KeywordTypes value is shown as, or -1
+    public static int tokenType(int keywordType) {
+        if (keywordType < 0 || keywordType >= tokenTypes.length) {
+            return -1;
+        }
+        return tokenTypes[keywordType];
+    }
+
+    public void setKeywords(KeywordTable k) {
+        keywords = k;
+    }
+
+    public KeywordTable getKeywords() {
+        return keywords;
+    }
+
+    @Override
+    public void addToken(char[] array, int start, int end, int tokenType, int startOffset, boolean hyperlink) {
+        KeywordTable k = keywords;
+        if (k != null && end >= start) {
+            int t = tokenType(k.lookup(array, start, end));
+            if (t != -1) {
+                tokenType = t;
+            }
+        }
+        super.addToken(array, start, end, tokenType, startOffset, hyperlink);
+    }
+}
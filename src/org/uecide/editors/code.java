@@ -275,6 +275,19 @@ public class code extends JPanel implements EditorBase {
         editor.addMenuChunk(pm, Plugin.MENU_POPUP_EDITOR | Plugin.MENU_MID);
         editor.addMenuChunk(pm, Plugin.MENU_POPUP_EDITOR | Plugin.MENU_BOTTOM);
 
+        Action definition = new AbstractAction(Base.i18n.string("menu.definition")) {
+            public void actionPerformed(ActionEvent e) {
+                editor.gotoDefinition(getWordAtCaret());
+            }
+        };
+        KeyStroke definitionKey = KeyStroke.getKeyStroke(KeyEvent.VK_F12, 0);
+        textArea.getInputMap().put(definitionKey, "gotoDefinition");
+        textArea.getActionMap().put("gotoDefinition", definition);
+        JMenuItem definitionItem = new JMenuItem(definition);
+        definitionItem.setAccelerator(definitionKey);
+        pm.addSeparator();
+        pm.add(definitionItem);
+
 
         scrollPane = new RTextScrollPane(textArea);
 
@@ -984,6 +997,31 @@ public class code extends JPanel implements EditorBase {
         setModified(false);
     }
 
+    // The selection, or the identifier the caret is in
+    public String getWordAtCaret() {
+        String sel = textArea.getSelectedText();
+        if (sel != null && !sel.trim().equals("")) {
+            return sel.trim();
+        }
+        try {
+            int start = textArea.getLineStartOffsetOfCurrentLine();
+            int end = textArea.getLineEndOffsetOfCurrentLine();
+            String line = textArea.getText(start, end - start);
+            int pos = textArea.getCaretPosition() - start;
+            int s = pos;
+            int e = pos;
+            while (s > 0 && (Character.isLetterOrDigit(line.charAt(s - 1)) || line.charAt(s - 1) == '_')) {
+                s--;
+            }
+            while (e < line.length() && (Character.isLetterOrDigit(line.charAt(e)) || line.charAt(e) == '_')) {
+                e++;
+            }
+            return line.substring(s, e);
+        } catch (BadLocationException ex) {
+            return "";
+        }
+    }
+
     public void insertAtCursor(String text) {
         textArea.insert(text, textArea.getCaretPosition());
     }
@@ -1132,7 +1170,29 @@ public class code extends JPanel implements EditorBase {
             RSyntaxDocument d = (RSyntaxDocument)textArea.getDocument();
             ExtendableCPlusPlusTokenMaker tm = (ExtendableCPlusPlusTokenMaker)d.getTokenMaker();
             tm.clear();
+            if (tm instanceof KeywordTokenMaker) {
+                ((KeywordTokenMaker)tm).setKeywords(null);
+            }
+        }
+    }
+
+    // Highlight keywords straight from a shared table. Returns false if
+    // this editor's token maker can't, in which case use addKeyword().
+    public boolean setKeywords(KeywordTable k) {
+        if (!fileSyntax.equals(SyntaxConstants.SYNTAX_STYLE_EXTENDABLE_CPLUSPLUS)) {
+            return false;
         }
+        RSyntaxDocument d = (RSyntaxDocument)textArea.getDocument();
+        if (!(d.getTokenMaker() instanceof KeywordTokenMaker)) {
+            return false;
+        }
+        KeywordTokenMaker tm = (KeywordTokenMaker)d.getTokenMaker();
+        if (tm.getKeywords() != k) {
+            tm.clear();
+            tm.setKeywords(k);
+            textArea.repaint();
+        }
+        return true;
     }
 
     public void addKeyword(String name, Integer type) {
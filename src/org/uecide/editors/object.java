@@ -63,16 +63,7 @@ public class object extends text {
     public boolean loadFile(File f) {
         file = f;
 
-        Context ctx = sketch.getContext();
-
-        ctx.startBuffer();
-        String cmd = "${objdump}::-t::${object.filename}";
-        ctx.set("object.filename", f.getAbsolutePath());
-        String out = ctx.parseString(cmd);
-        ctx.executeCommand(out, null);
-        String output = ctx.endBuffer();
-
-        textArea.setText(output);
+        textArea.setText(listSymbols(f));
 
         textArea.setCaretPosition(0);
         scrollTo(0);
@@ -80,6 +71,72 @@ public class object extends text {
         return true;
     }
 
+    // Symbol table in the same layout as "objdump -t"
+    public static String listSymbols(File f) {
+        StringBuilder out = new StringBuilder();
+        ElfFile elf = null;
+        try {
+            elf = new ElfFile(f);
+            int width = elf.is64() ? 16 : 8;
+            String addrFormat = "%0" + width + "x";
+
+            out.append("\n");
+            out.append(f.getName());
+            out.append(":     file format elf");
+            out.append(elf.is64() ? "64" : "32");
+            out.append(elf.isBigEndian() ? "-big" : "-little");
+            out.append("\n\nSYMBOL TABLE:\n");
+
+            ArrayList<ElfFile.Symbol> symbols = elf.getSymbols();
+            for (ElfFile.Symbol sym : symbols) {
+                if (sym.getIndex() == 0) {
+                    continue; // The null symbol
+                }
+
+                int bind = sym.getBinding();
+                int type = sym.getType();
+
+                out.append(String.format(addrFormat, sym.value));
+                out.append(' ');
+                out.append(bind == ElfFile.STB_LOCAL ? 'l' : bind == ElfFile.STB_GLOBAL ? 'g' : ' ');
+                out.append(bind == ElfFile.STB_WEAK ? 'w' : ' ');
+                out.append("   ");
+                out.append((type == ElfFile.STT_FILE || type == ElfFile.STT_SECTION) ? 'd' : ' ');
+                out.append(type == ElfFile.STT_FUNC ? 'F' : type == ElfFile.STT_OBJECT ? 'O' : type == ElfFile.STT_FILE ? 'f' : ' ');
+                out.append(' ');
+
+                String secName;
+                if (sym.shndx == ElfFile.SHN_UNDEF) {
+                    secName = "*UND*";
+                } else if (sym.shndx == ElfFile.SHN_ABS) {
+                    secName = "*ABS*";
+                } else if (sym.shndx == ElfFile.SHN_COMMON) {
+                    secName = "*COM*";
+                } else {
+                    ElfFile.Section sec = sym.getSection();
+                    secName = sec == null ? "" : sec.getName();
+                }
+                out.append(secName);
+                out.append('\t');
+                out.append(String.format(addrFormat, sym.size));
+                out.append(' ');
+                if (type == ElfFile.STT_SECTION && sym.getSection() != null) {
+                    out.append(sym.getSection().getName());
+                } else {
+                    out.append(sym.getName());
+                }
+                out.append('\n');
+            }
+        } catch (Exception e) {
+            out.append(f.getName() + ": " + e.getMessage() + "\n");
+        } finally {
+            if (elf != null) {
+                elf.close();
+            }
+        }
+        return out.toString();
+    }
+
     @Override
     public void reloadFile() {
         loadFile(file);